@@ -1,6 +1,9 @@
 package edu.brown.cs.systems.xtrace;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.typesafe.config.Config;
@@ -14,8 +17,13 @@ public class XTraceSettings {
   public static final String SERVER_BIND_HOSTNAME = CONFIG.getString("xtrace.server.bind-hostname");
 
   public static final int WEBUI_PORT = CONFIG.getInt("xtrace.server.webui.port");
+  public static final int WEBUI_QUERY_CACHE_SIZE = CONFIG.getInt("xtrace.server.webui.query-cache-size");
+  public static final long WEBUI_REPORTS_QUIET = CONFIG.getLong("xtrace.server.webui.reports-quiet-ms");
+  public static final long WEBUI_REPORTS_CACHE_MB = CONFIG.getLong("xtrace.server.webui.reports-cache-mb");
+  public static final int WEBUI_VERSION_CACHE_SIZE = CONFIG.getInt("xtrace.server.webui.version-cache-size");
 
   public static final int TCP_PORT = CONFIG.getInt("xtrace.tcp.port");
+  public static final boolean TCP_CONVERT_V2_REPORTS = CONFIG.getBoolean("xtrace.tcp.convert-v2-reports");
 
   public static final int PUBSUB_PUBLISH_PORT = CONFIG.getInt("xtrace.pubsub.client-publish-port");
   public static final int PUBSUB_SUBSCRIBE_PORT = CONFIG.getInt("xtrace.pubsub.client-subscribe-port");
@@ -24,13 +32,64 @@ public class XTraceSettings {
   public static final int DATABASE_UPDATE_INTERVAL = CONFIG.getInt("xtrace.server.database-update-interval-ms");
 
   public static final String DATASTORE_DIRECTORY = CONFIG.getString("xtrace.server.datastore.dir");
+  public static final String DATASTORE_TYPE = CONFIG.getString("xtrace.server.datastore.type");
+  public static final List<String> DATASTORE_DIRECTORIES = CONFIG.getStringList("xtrace.server.datastore.dirs");
+  public static final int SHARD_QUEUE_SIZE = CONFIG.getInt("xtrace.server.datastore.shard-queue-size");
+  public static final long SHARD_HEALTH_CHECK_INTERVAL = CONFIG.getLong("xtrace.server.datastore.shard-health-check-interval-ms");
   public static final int DATASTORE_BUFFER_SIZE = CONFIG.getInt("xtrace.server.datastore.buffer-size");
+  public static final String DATASTORE_WRITE_MODE = CONFIG.getString("xtrace.server.datastore.write-mode");
+  public static final int DATASTORE_ASYNC_IO_THREADS = CONFIG.getInt("xtrace.server.datastore.async-io-threads");
+  public static final int DATASTORE_ASYNC_MAX_INFLIGHT = CONFIG.getInt("xtrace.server.datastore.async-max-inflight-per-file");
+  public static final long DATASTORE_ASYNC_MAX_OUTSTANDING = CONFIG.getLong("xtrace.server.datastore.async-max-outstanding-bytes");
+  public static final int DATASTORE_RECOVERY_THREADS = CONFIG.getInt("xtrace.server.datastore.recovery-threads");
   public static final int DATASTORE_CACHE_SIZE = CONFIG.getInt("xtrace.server.datastore.cache-size");
   public static final int DATASTORE_CACHE_TIMEOUT = CONFIG.getInt("xtrace.server.datastore.cache-timeout");
+  public static final int DATASTORE_FLUSH_INTERVAL = CONFIG.getInt("xtrace.server.datastore.flush-interval-ms");
+  public static final long DATASTORE_FLUSH_BYTES = CONFIG.getLong("xtrace.server.datastore.flush-bytes");
+  public static final String DATASTORE_FSYNC_POLICY = CONFIG.getString("xtrace.server.datastore.fsync");
+  public static final int DATASTORE_FSYNC_INTERVAL = CONFIG.getInt("xtrace.server.datastore.fsync-interval-ms");
+  public static final long DATASTORE_SEGMENT_SIZE = CONFIG.getLong("xtrace.server.datastore.segment-size");
+  public static final long DATASTORE_MMAP_THRESHOLD = CONFIG.getLong("xtrace.server.datastore.mmap-threshold");
+  public static final long DATASTORE_MAP_WINDOW = CONFIG.getLong("xtrace.server.datastore.map-window");
+  public static final int DATASTORE_READAHEAD_SIZE = CONFIG.getInt("xtrace.server.datastore.readahead-size");
+  public static final boolean DATASTORE_COMPRESSION = CONFIG.getBoolean("xtrace.server.datastore.compression");
+  public static final int DATASTORE_BLOCK_SIZE = CONFIG.getInt("xtrace.server.datastore.block-size");
+  public static final boolean HOT_TIER_ENABLED = CONFIG.getBoolean("xtrace.server.datastore.hot-tier.enabled");
+  public static final long HOT_TIER_MAX_BYTES = CONFIG.getLong("xtrace.server.datastore.hot-tier.max-bytes");
+  public static final long HOT_TIER_IDLE_TIMEOUT = CONFIG.getLong("xtrace.server.datastore.hot-tier.idle-timeout-ms");
+  public static final boolean HOT_TIER_OFF_HEAP = CONFIG.getBoolean("xtrace.server.datastore.hot-tier.off-heap");
+  
+  public static final String METADATA_TYPE = CONFIG.getString("xtrace.server.metadata.type");
+  public static final long METADATA_SNAPSHOT_INTERVAL = CONFIG.getLong("xtrace.server.metadata.snapshot-interval-ms");
+  public static final long METADATA_SNAPSHOT_LOG_BYTES = CONFIG.getLong("xtrace.server.metadata.snapshot-log-bytes");
+  public static final int METADATA_READ_CONNECTIONS = CONFIG.getInt("xtrace.server.metadata.read-connections");
+  public static final long METADATA_QUERY_TIMEOUT = CONFIG.getLong("xtrace.server.metadata.query-timeout-ms");
+  public static final int METADATA_FLUSH_THRESHOLD = CONFIG.getInt("xtrace.server.metadata.flush-threshold");
+  public static final int METADATA_MAX_PENDING_TASKS = CONFIG.getInt("xtrace.server.metadata.max-pending-tasks");
+  public static final long METADATA_MAX_PENDING_WAIT = CONFIG.getLong("xtrace.server.metadata.max-pending-wait-ms");
+  public static final int METADATA_KNOWN_TASKS = CONFIG.getInt("xtrace.server.metadata.known-tasks");
+  public static final long METADATA_INGEST_STATS_MAX_AGE = CONFIG.getLong("xtrace.server.metadata.ingest-stats-max-age-ms");
+  public static final boolean METADATA_INTERVAL_INDEX = CONFIG.getBoolean("xtrace.server.metadata.interval-index");
+  public static final boolean METADATA_REBUILD_ON_CREATE = CONFIG.getBoolean("xtrace.server.metadata.rebuild-on-create");
+  public static final int METADATA_REBUILD_PARALLELISM = CONFIG.getInt("xtrace.server.metadata.rebuild-parallelism");
+  public static final int METADATA_REBUILD_BATCH_SIZE = CONFIG.getInt("xtrace.server.metadata.rebuild-batch-size");
+  
+  public static final long RETENTION_MAX_AGE = CONFIG.getLong("xtrace.server.retention.max-age-ms");
+  public static final long RETENTION_MAX_BYTES = CONFIG.getLong("xtrace.server.retention.max-bytes");
+  public static final Map<String, Long> RETENTION_TAG_MAX_AGES = tagMaxAges(CONFIG.getConfigList("xtrace.server.retention.tag-overrides"));
+  public static final int RETENTION_INTERVAL = CONFIG.getInt("xtrace.server.retention.interval-ms");
+  public static final int RETENTION_BATCH_SIZE = CONFIG.getInt("xtrace.server.retention.batch-size");
+  public static final double RETENTION_MAX_DELETES_PER_SECOND = CONFIG.getDouble("xtrace.server.retention.max-deletes-per-second");
   
   public static final boolean REPORTING_ENABLED_DEFAULT = CONFIG.getBoolean("xtrace.client.reporting.default");
   public static final Set<String> REPORTING_ENABLED = new HashSet<String>(CONFIG.getStringList("xtrace.client.reporting.enabled"));
   public static final Set<String> REPORTING_DISABLED = new HashSet<String>(CONFIG.getStringList("xtrace.client.reporting.disabled"));
-  
+
+  private static Map<String, Long> tagMaxAges(List<? extends Config> overrides) {
+    Map<String, Long> ages = new HashMap<String, Long>();
+    for (Config override : overrides)
+      ages.put(override.getString("tag"), override.getLong("max-age-ms"));
+    return ages;
+  }
 
 }
@@ -1,15 +1,30 @@
 package edu.brown.cs.systems.xtrace.server;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -29,11 +44,26 @@ import org.mortbay.jetty.servlet.ServletHolder;
 import org.mortbay.log.Log;
 import org.mortbay.servlet.CGI;
 
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
 import edu.brown.cs.systems.utils.TempFileExtractor;
+import edu.brown.cs.systems.xtrace.XTraceSettings;
 import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.IngestCount;
 import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
 import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+import edu.brown.cs.systems.xtrace.server.api.StatusSource;
 import edu.brown.cs.systems.xtrace.server.api.TaskRecord;
+import edu.brown.cs.systems.xtrace.server.api.TaskSummary;
+import edu.brown.cs.systems.xtrace.server.impl.JSONReportWriter;
+import edu.brown.cs.systems.xtrace.server.impl.ReportsCache;
 
 public class WebServer extends Server {
   
@@ -43,9 +73,27 @@ public class WebServer extends Server {
   private static final DateFormat HTML_DATE_FORMAT = new SimpleDateFormat("MMM dd yyyy, HH:mm:ss");
   private static final int PAGE_LENGTH = 25;
 
+  // Change this when the JSON of reports changes, so cached copies aren't used
+  private static final int REPORTS_FORMAT = 1;
+  private static final String GZIP_SUFFIX = "-gzip";
+
   private DataStore data;
   private MetadataStore metadata;
   
+  private final Map<String, StatusSource> statusSources = new ConcurrentSkipListMap<String, StatusSource>();
+
+  // Pages of task lists, keyed by the metadata epoch they were read at and the
+  // query. Entries of past epochs are never hit again, and age out
+  private final Cache<String, List<TaskRecord>> taskPages;
+
+  // Gzipped reports of complete tasks, keyed by their version
+  private final ReportsCache reportsCache;
+
+  // The report count and last update of tasks found to be complete, so their
+  // reports' versions don't need a metadata lookup per request. A report that
+  // arrives after all is noticed once the entry expires
+  private final Cache<String, long[]> completeTasks;
+  
   private String webui = "";
   
   private void extractWebUI() throws IOException, URISyntaxException {
@@ -59,6 +107,24 @@ public class WebServer extends Server {
 
     this.data = data;
     this.metadata = metadata;
+    if (XTraceSettings.WEBUI_QUERY_CACHE_SIZE > 0) {
+      taskPages = CacheBuilder.newBuilder().maximumSize(XTraceSettings.WEBUI_QUERY_CACHE_SIZE).recordStats().build();
+      registerStatus("querycache", new QueryCacheStatus());
+    } else {
+      taskPages = null;
+    }
+    if (XTraceSettings.WEBUI_REPORTS_CACHE_MB > 0) {
+      reportsCache = new ReportsCache(new File(XTraceSettings.DATASTORE_DIRECTORY, "webcache"), XTraceSettings.WEBUI_REPORTS_CACHE_MB * 1024 * 1024);
+      registerStatus("reportscache", reportsCache);
+    } else {
+      reportsCache = null;
+    }
+    if (XTraceSettings.WEBUI_VERSION_CACHE_SIZE > 0) {
+      completeTasks = CacheBuilder.newBuilder().maximumSize(XTraceSettings.WEBUI_VERSION_CACHE_SIZE)
+          .expireAfterWrite(XTraceSettings.WEBUI_REPORTS_QUIET, TimeUnit.MILLISECONDS).build();
+    } else {
+      completeTasks = null;
+    }
 
     // Initialize Velocity template engine
     try {
@@ -97,11 +163,61 @@ public class WebServer extends Server {
     context.addServlet(new ServletHolder(new GetOverlappingTasksServlet()), "/interactive/overlapping/*");
     context.addServlet(new ServletHolder(new GetTagsForTaskServlet()), "/interactive/tags/*");
     context.addServlet(new ServletHolder(new GetTasksForTags()), "/interactive/taggedwith/*");
+    context.addServlet(new ServletHolder(new IngestServlet()), "/interactive/ingest");
+    context.addServlet(new ServletHolder(new SummaryServlet()), "/interactive/summary/*");
+    context.addServlet(new ServletHolder(new SlowestTasksServlet()), "/interactive/slowest");
+
+    // Server status and metrics
+    context.addServlet(new ServletHolder(new StatusServlet()), "/status");
 
     context.setResourceBase(webui + "/html");
     context.addServlet(new ServletHolder(new IndexServlet()), "/");
   }
 
+  /**
+   * Returns a page of task records, reusing the result of an identical query
+   * if the metadata hasn't changed since it was run. The key identifies the
+   * query and its parameters. A query that fails returns null, which is not
+   * cached, so the next request runs it again; meanwhile the page is empty
+   */
+  private List<TaskRecord> cached(String key, Callable<List<TaskRecord>> query) {
+    try {
+      if (taskPages == null) {
+        List<TaskRecord> tasks = query.call();
+        return tasks == null ? Collections.<TaskRecord> emptyList() : tasks;
+      }
+      // Read the epoch first, so a result is never cached under a later epoch than it reflects
+      return taskPages.get(metadata.epoch() + "\0" + key, query);
+    } catch (InvalidCacheLoadException e) {
+      // The query returned null, so it failed and has already been logged
+    } catch (ExecutionException e) {
+      LOG.warn("Task query " + key + " failed", e.getCause());
+    } catch (Exception e) {
+      LOG.warn("Task query " + key + " failed", e);
+    }
+    return Collections.emptyList();
+  }
+
+  private class QueryCacheStatus implements StatusSource {
+    @Override
+    public JSONObject getStatus() {
+      CacheStats stats = taskPages.stats();
+      JSONObject status = new JSONObject();
+      status.put("size", taskPages.size());
+      status.put("hits", stats.hitCount());
+      status.put("misses", stats.missCount());
+      status.put("epoch", metadata.epoch());
+      return status;
+    }
+  }
+
+  /**
+   * Publishes the status of a server component on the status page
+   */
+  public void registerStatus(String name, StatusSource source) {
+    statusSources.put(name, source);
+  }
+
   private class GetReportsServlet extends HttpServlet {
     private static final long serialVersionUID = -5448528803007855403L;
 
@@ -113,55 +229,230 @@ public class WebServer extends Server {
       String taskId = uri.length() > pathLen ? uri.substring(pathLen) : null;
       Writer out = response.getWriter();
       if (taskId != null) {
-        Iterator<Report> iter = data.getReports(taskId);
-        while (iter.hasNext()) {
-          out.write(iter.next().toString());
-          out.write("\n\n");
+        ReportStream reports = data.getReports(taskId);
+        try {
+          while (reports.hasNext()) {
+            out.write(reports.next().toString());
+            out.write("\n\n");
+          }
+        } finally {
+          reports.close();
         }
       }
     }
   }
 
+  /**
+   * Returns a version of the tasks' reports that changes whenever they might,
+   * if all of the tasks have been quiet long enough to be complete; otherwise
+   * null. The version includes REPORTS_FORMAT, so it also changes with the
+   * JSON format
+   */
+  private String reportsVersion(String[] taskIds, long[] lastModified) {
+    long quietSince = System.currentTimeMillis() - XTraceSettings.WEBUI_REPORTS_QUIET;
+    Hasher hasher = Hashing.murmur3_128().newHasher().putInt(REPORTS_FORMAT);
+    lastModified[0] = 0;
+    for (String taskId : taskIds) {
+      long[] complete = completeTasks == null ? null : completeTasks.getIfPresent(taskId);
+      if (complete == null) {
+        TaskRecord task = metadata.getTask(taskId);
+        if (task == null || task.getLastUpdated() > quietSince)
+          return null;
+        complete = new long[] { task.getNumReports(), task.getLastUpdated() };
+        if (completeTasks != null)
+          completeTasks.put(taskId, complete);
+      }
+      hasher.putString(taskId, Charsets.UTF_8).putInt((int) complete[0]).putLong(complete[1]);
+      lastModified[0] = Math.max(lastModified[0], complete[1]);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns true if the client's copy, as given by its conditional headers, is
+   * still the current version. Gzipped and plain responses have different
+   * ETags, so a copy in the other encoding does not match
+   */
+  private static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/"))
+          tag = tag.substring(2);
+        tag = tag.replace("\"", "");
+        if (tag.equals("*") || tag.equals(etag))
+          return true;
+      }
+      return false;
+    }
+    try {
+      long since = request.getDateHeader("If-Modified-Since");
+      return since >= 0 && lastModified / 1000 <= since / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private static boolean acceptsGzip(HttpServletRequest request) {
+    String accept = request.getHeader("Accept-Encoding");
+    return accept != null && accept.toLowerCase().contains("gzip");
+  }
+
+  /**
+   * Serves the reports of the comma separated tasks as JSON, gzipped if the
+   * client accepts it. Once all of the tasks are complete their reports no
+   * longer change, so the response gets an ETag and Last-Modified for
+   * conditional requests, and the gzipped JSON is kept on disk for next time
+   */
   private class GetJSONReportsServlet extends HttpServlet {
     private static final long serialVersionUID = -3918120497812383181L;
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-      response.setContentType("text/json");
-      response.setStatus(HttpServletResponse.SC_OK);
       String uri = request.getRequestURI();
       int pathLen = request.getServletPath().length() + 1;
       String taskIdString = uri.length() > pathLen ? uri.substring(pathLen) : null;
       String[] taskIds = taskIdString.split(",");
+      boolean gzip = acceptsGzip(request);
+
+      long[] lastModified = new long[1];
+      String version = reportsVersion(taskIds, lastModified);
+      response.setHeader("Vary", "Accept-Encoding");
+      if (version != null) {
+        String etag = version + (gzip ? GZIP_SUFFIX : "");
+        response.setHeader("ETag", "\"" + etag + "\"");
+        response.setDateHeader("Last-Modified", lastModified[0]);
+        response.setHeader("Cache-Control", "no-cache");
+        if (notModified(request, etag, lastModified[0])) {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
+      }
 
-      Writer out = response.getWriter();
-      out.write("[");
-      boolean firstTaskDone = false;
-      int count = 0;
-      for (String taskId : taskIds) {
-        Log.info("Writing task " + count++ + ": " + taskId);
+      response.setContentType("text/json");
+      response.setCharacterEncoding("UTF-8");
+      response.setStatus(HttpServletResponse.SC_OK);
+      if (gzip)
+        response.setHeader("Content-Encoding", "gzip");
+
+      if (gzip && version != null && reportsCache != null && sendCachedReports(version, taskIds, response))
+        return;
+
+      OutputStream out = response.getOutputStream();
+      if (gzip) {
+        GZIPOutputStream zipped = new GZIPOutputStream(out, 64 * 1024);
+        writeReports(taskIds, zipped);
+        zipped.finish();
+        zipped.flush();
+      } else {
+        writeReports(taskIds, out);
+      }
+    }
+  }
 
-        if (firstTaskDone)
-          out.write("\n,");
-        firstTaskDone = true;
+  /**
+   * Sends the cached file of gzipped reports for the version, writing it first
+   * if it isn't cached yet. Returns false, having sent nothing, if the file
+   * couldn't be written or read
+   */
+  private boolean sendCachedReports(String version, String[] taskIds, HttpServletResponse response) throws IOException {
+    File cached = reportsCache.get(version);
+    if (cached != null)
+      return sendFile(cached, response);
+
+    File temp = null;
+    try {
+      temp = reportsCache.createTempFile();
+      OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 64 * 1024);
+      try {
+        writeReports(taskIds, out);
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Unable to cache reports of " + taskIds.length + " tasks", e);
+      if (temp != null)
+        temp.delete();
+      return false;
+    }
 
-        out.append("{\"id\":\"");
-        out.append(taskId);
-        out.append("\",\"reports\":[");
+    cached = reportsCache.put(version, temp);
+    if (cached != null)
+      return sendFile(cached, response);
+    try {
+      return sendFile(temp, response);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Sends the file as the response body. Returns false if it no longer exists
+   */
+  private static boolean sendFile(File file, HttpServletResponse response) throws IOException {
+    if (file == null)
+      return false;
+    FileInputStream in;
+    try {
+      in = new FileInputStream(file);
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+    try {
+      FileChannel channel = in.getChannel();
+      long size = channel.size();
+      if (size <= Integer.MAX_VALUE)
+        response.setContentLength((int) size);
+      WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+      for (long position = 0; position < size;)
+        position += channel.transferTo(position, size - position, out);
+    } finally {
+      in.close();
+    }
+    return true;
+  }
 
-        boolean firstReportDone = false;
-        Iterator<Report> iter = data.getReports(taskId);
-        while (iter.hasNext()) {
+  /**
+   * Writes the reports of the tasks to the stream as JSON. Reports are
+   * streamed straight to the response rather than built up as JSON objects
+   */
+  private void writeReports(String[] taskIds, OutputStream stream) throws IOException {
+    JSONReportWriter out = new JSONReportWriter(stream);
+    out.write('[');
+    boolean firstTaskDone = false;
+    int count = 0;
+    for (String taskId : taskIds) {
+      Log.info("Writing task " + count++ + ": " + taskId);
+
+      if (firstTaskDone)
+        out.writeRaw("\n,");
+      firstTaskDone = true;
+
+      out.writeRaw("{\"id\":");
+      out.writeString(taskId);
+      out.writeRaw(",\"reports\":[");
+
+      boolean firstReportDone = false;
+      ReportStream reports = data.getReports(taskId);
+      try {
+        while (reports.hasNext()) {
+          Report report = reports.next();
+          if (report == null)
+            continue;
           if (firstReportDone)
-            out.append(",\n");
-          out.append(iter.next().jsonRepr().toJSONString());
+            out.writeRaw(",\n");
+          out.write(report);
           firstReportDone = true;
         }
-
-        out.append("]}");
-        Log.info("... done");
+      } finally {
+        reports.close();
       }
-      out.write("]");
+
+      out.writeRaw("]}");
+      Log.info("... done");
     }
+    out.write(']');
+    out.flush();
   }
 
   private class GetOverlappingTasksServlet extends HttpServlet {
@@ -234,6 +525,8 @@ public class WebServer extends Server {
       for (String tag : tags) {
         JSONArray arr = new JSONArray();
         Collection<TaskRecord> taskInfos = metadata.getTasksByTag(tag, 0, Integer.MAX_VALUE);
+        if (taskInfos == null)
+          taskInfos = Collections.emptyList();
         for (TaskRecord t : taskInfos) {
           arr.add(t.getTaskId().toString());
         }
@@ -245,16 +538,151 @@ public class WebServer extends Server {
     }
   }
 
+  /**
+   * Converts a task summary to JSON. Start, end and duration are null if the
+   * task's reports have no timestamps
+   */
+  private static JSONObject toJSON(TaskSummary summary) {
+    JSONObject obj = new JSONObject();
+    obj.put("taskId", summary.getTaskId());
+    obj.put("title", summary.getTitle());
+    obj.put("numReports", summary.getNumReports());
+    obj.put("start", summary.getStart());
+    obj.put("end", summary.getEnd());
+    obj.put("duration", summary.getDuration());
+    JSONArray hosts = new JSONArray();
+    hosts.addAll(summary.getHosts());
+    obj.put("hosts", hosts);
+    JSONArray agents = new JSONArray();
+    agents.addAll(summary.getAgents());
+    obj.put("agents", agents);
+    obj.put("maxFanIn", summary.getMaxFanIn());
+    obj.put("errors", summary.hasErrors());
+    return obj;
+  }
+
+  /**
+   * Summaries of the comma separated tasks, keyed by task ID. Tasks with no
+   * record are left out
+   */
+  private class SummaryServlet extends HttpServlet {
+    private static final long serialVersionUID = 2283490281263404512L;
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+      response.setContentType("text/json");
+      response.setStatus(HttpServletResponse.SC_OK);
+      String uri = request.getRequestURI();
+      int pathLen = request.getServletPath().length() + 1;
+      String taskIdString = uri.length() > pathLen ? uri.substring(pathLen) : "";
+
+      JSONObject obj = new JSONObject();
+      for (String taskId : taskIdString.split(",")) {
+        TaskSummary summary = metadata.getTaskSummary(taskId);
+        if (summary != null)
+          obj.put(taskId, toJSON(summary));
+      }
+
+      Writer out = response.getWriter();
+      out.write(obj.toJSONString());
+    }
+  }
+
+  /**
+   * The tasks with the longest durations among those that reported in the
+   * last few minutes, optionally only those with reports from one host, eg.
+   * /interactive/slowest?host=h1&minutes=60. minutes=0 includes every task
+   */
+  private class SlowestTasksServlet extends HttpServlet {
+    private static final long serialVersionUID = -1585236409357712470L;
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+      response.setContentType("text/json");
+      response.setStatus(HttpServletResponse.SC_OK);
+      int minutes = Math.max(getIntParam(request, "minutes", 60), 0);
+      long since = minutes == 0 ? Long.MIN_VALUE : System.currentTimeMillis() - minutes * 60000L;
+      String host = request.getParameter("host");
+      if (host != null && host.isEmpty())
+        host = null;
+
+      JSONArray arr = new JSONArray();
+      for (TaskSummary summary : metadata.getSlowestTasks(host, since, getOffset(request), getLength(request)))
+        arr.add(toJSON(summary));
+
+      JSONObject obj = new JSONObject();
+      obj.put("tasks", arr);
+      Writer out = response.getWriter();
+      out.write(obj.toJSONString());
+    }
+  }
+
+  /**
+   * Returns the total numbers of tasks and reports, and the numbers received
+   * in each of the last few minutes, 60 unless specified by the minutes
+   * parameter
+   */
+  private class IngestServlet extends HttpServlet {
+    private static final long serialVersionUID = -3209514875317262281L;
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+      response.setContentType("text/json");
+      response.setStatus(HttpServletResponse.SC_OK);
+      int minutes = Math.max(getIntParam(request, "minutes", 60), 0);
+
+      JSONArray arr = new JSONArray();
+      for (IngestCount count : metadata.getIngestCounts(System.currentTimeMillis() - minutes * 60000L)) {
+        JSONObject minute = new JSONObject();
+        minute.put("minute", count.getMinute());
+        minute.put("tasks", count.getTasks());
+        minute.put("reports", count.getReports());
+        arr.add(minute);
+      }
+
+      JSONObject obj = new JSONObject();
+      obj.put("tasks", metadata.numTasks());
+      obj.put("reports", metadata.numReports());
+      obj.put("minutes", arr);
+
+      Writer out = response.getWriter();
+      out.write(obj.toJSONString());
+    }
+  }
+
+  private class StatusServlet extends HttpServlet {
+    private static final long serialVersionUID = 2953312045397207284L;
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+      response.setContentType("text/json");
+      response.setStatus(HttpServletResponse.SC_OK);
+
+      JSONObject obj = new JSONObject();
+      for (Map.Entry<String, StatusSource> source : statusSources.entrySet()) {
+        try {
+          obj.put(source.getKey(), source.getValue().getStatus());
+        } catch (Exception e) {
+          LOG.warn("Unable to get status of " + source.getKey(), e);
+        }
+      }
+
+      Writer out = response.getWriter();
+      out.write(obj.toJSONString());
+    }
+  }
+
   private class TagServlet extends HttpServlet {
     private static final long serialVersionUID = 4626142579591044224L;
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-      String tag = getUriPastServletName(request);
+      final String tag = getUriPastServletName(request);
       if (tag == null || tag.equalsIgnoreCase("")) {
         response.sendError(505, "No tag given");
       } else {
-        Collection<TaskRecord> taskInfos = metadata.getTasksByTag(tag, getOffset(request), getLength(request));
-        showTasks(request, response, taskInfos, "Tasks with tag: " + tag, false);
+        final int offset = getOffset(request), length = getLength(request);
+        Collection<TaskRecord> taskInfos = cached("tag\0" + tag + "\0" + offset + "\0" + length, new Callable<List<TaskRecord>>() {
+          public List<TaskRecord> call() {
+            return metadata.getTasksByTag(tag, offset, length);
+          }
+        });
+        showTasks(request, response, taskInfos, "Tasks with tag: " + tag, false, null);
       }
     }
   }
@@ -263,12 +691,17 @@ public class WebServer extends Server {
     private static final long serialVersionUID = 4219687534314262068L;
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-      String title = getUriPastServletName(request);
+      final String title = getUriPastServletName(request);
       if (title == null || title.equalsIgnoreCase("")) {
         response.sendError(505, "No title given");
       } else {
-        Collection<TaskRecord> taskInfos = metadata.getTasksByTitle(title, getOffset(request), getLength(request));
-        showTasks(request, response, taskInfos, "Tasks with title: " + title, false);
+        final int offset = getOffset(request), length = getLength(request);
+        Collection<TaskRecord> taskInfos = cached("title\0" + title + "\0" + offset + "\0" + length, new Callable<List<TaskRecord>>() {
+          public List<TaskRecord> call() {
+            return metadata.getTasksByTitle(title, offset, length);
+          }
+        });
+        showTasks(request, response, taskInfos, "Tasks with title: " + title, false, null);
       }
     }
   }
@@ -277,12 +710,17 @@ public class WebServer extends Server {
     private static final long serialVersionUID = -6165372457313341911L;
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-      String title = getUriPastServletName(request);
+      final String title = getUriPastServletName(request);
       if (title == null || title.equalsIgnoreCase("")) {
         response.sendError(505, "No title given");
       } else {
-        Collection<TaskRecord> taskInfos = metadata.getTasksByTitleSubstring(title, getOffset(request), getLength(request));
-        showTasks(request, response, taskInfos, "Tasks with title like: " + title, false);
+        final int offset = getOffset(request), length = getLength(request);
+        Collection<TaskRecord> taskInfos = cached("titleLike\0" + title + "\0" + offset + "\0" + length, new Callable<List<TaskRecord>>() {
+          public List<TaskRecord> call() {
+            return metadata.getTasksByTitleSubstring(title, offset, length);
+          }
+        });
+        showTasks(request, response, taskInfos, "Tasks with title like: " + title, false, null);
       }
     }
   }
@@ -292,8 +730,37 @@ public class WebServer extends Server {
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
       if (request.getRequestURI().equals("/")) {
-        Collection<TaskRecord> tasks = metadata.getLatestTasks(getOffset(request), getLength(request));
-        showTasks(request, response, tasks, "X-Trace Latest Tasks", true);
+        // Deep pages use the keyset cursor from the previous page rather than the offset
+        List<TaskRecord> tasks = null;
+        final int offset = getOffset(request), length = getLength(request);
+        String before = request.getParameter("before");
+        int sep = before == null ? -1 : before.indexOf(',');
+        if (sep > 0) {
+          try {
+            final long lastUpdated = Long.parseLong(before.substring(0, sep));
+            final String taskId = before.substring(sep + 1);
+            tasks = cached("before\0" + lastUpdated + "\0" + taskId + "\0" + length, new Callable<List<TaskRecord>>() {
+              public List<TaskRecord> call() {
+                return metadata.getLatestTasksBefore(lastUpdated, taskId, length);
+              }
+            });
+          } catch (NumberFormatException e) {
+            // Fall back to the offset
+          }
+        }
+        if (tasks == null) {
+          tasks = cached("latest\0" + offset + "\0" + length, new Callable<List<TaskRecord>>() {
+            public List<TaskRecord> call() {
+              return metadata.getLatestTasks(offset, length);
+            }
+          });
+        }
+        String nextCursor = null;
+        if (!tasks.isEmpty()) {
+          TaskRecord last = tasks.get(tasks.size() - 1);
+          nextCursor = last.getLastUpdated() + "," + last.getTaskId();
+        }
+        showTasks(request, response, tasks, "X-Trace Latest Tasks", true, nextCursor);
       } else {
         super.doGet(request, response);
       }
@@ -315,7 +782,11 @@ public class WebServer extends Server {
     return text;
   }
 
-  private void showTasks(HttpServletRequest request, HttpServletResponse response, Collection<TaskRecord> tasks, String title, boolean showDbStats) throws IOException {
+  /**
+   * @param nextCursor if not null, the next page link passes this as the
+   *          keyset cursor, in the before parameter
+   */
+  private void showTasks(HttpServletRequest request, HttpServletResponse response, Collection<TaskRecord> tasks, String title, boolean showDbStats, String nextCursor) throws IOException {
     if ("json".equals(request.getParameter("format"))) {
       response.setContentType("text/plain");
     } else {
@@ -334,6 +805,8 @@ public class WebServer extends Server {
     context.put("lastResultNum", offset + length - 1);
     context.put("prevOffset", Math.max(0, offset - length));
     context.put("nextOffset", offset + length);
+    if (nextCursor != null)
+      context.put("nextCursor", nextCursor);
     context.put("showStats", showDbStats);
     context.put("JSON_DATE_FORMAT", JSON_DATE_FORMAT);
     context.put("HTML_DATE_FORMAT", HTML_DATE_FORMAT);
@@ -27,15 +27,26 @@
 
 package edu.brown.cs.systems.xtrace.server;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.log4j.Logger;
 
 import edu.brown.cs.systems.pubsub.Server;
 import edu.brown.cs.systems.xtrace.XTraceSettings;
 import edu.brown.cs.systems.xtrace.server.api.DataStore;
 import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
+import edu.brown.cs.systems.xtrace.server.api.StatusSource;
 import edu.brown.cs.systems.xtrace.server.impl.DerbyMetadataStore;
 import edu.brown.cs.systems.xtrace.server.impl.FileTreeDataStore;
+import edu.brown.cs.systems.xtrace.server.impl.HotTierDataStore;
+import edu.brown.cs.systems.xtrace.server.impl.MemoryMetadataStore;
+import edu.brown.cs.systems.xtrace.server.impl.MetadataRebuilder;
 import edu.brown.cs.systems.xtrace.server.impl.PubSubSource;
+import edu.brown.cs.systems.xtrace.server.impl.RetentionManager;
+import edu.brown.cs.systems.xtrace.server.impl.SegmentedDataStore;
+import edu.brown.cs.systems.xtrace.server.impl.ShardedDataStore;
 import edu.brown.cs.systems.xtrace.server.impl.deprecated.TcpReportSource;
 
 /**
@@ -57,16 +68,36 @@ public class XTraceServer {
   private final TcpReportSource tcpsource;
   private final PubSubSource pubsubsource;
   
+  // Background maintenance
+  private final RetentionManager retention;
+  private final MetadataRebuilder rebuilder;
+  
   /**
    * Only allow a single XTrace server to run
    */
 	private XTraceServer() throws Exception {
 	  // Create the data stores
-	  metadata = DerbyMetadataStore.getInstance();
-	  data = new FileTreeDataStore(XTraceSettings.DATASTORE_DIRECTORY + "/reports/");
+	  metadata = createMetadataStore();
+	  data = createDataStore();
 	  
 	  // Create the static servers
 	  webserver = new WebServer(XTraceSettings.WEBUI_PORT, data, metadata);
+	  
+	  // Create the retention manager, which removes old data
+	  retention = new RetentionManager(data, metadata);
+	  webserver.registerStatus("retention", retention);
+	  if (data instanceof StatusSource)
+	    webserver.registerStatus("datastore", (StatusSource) data);
+	  if (metadata instanceof StatusSource)
+	    webserver.registerStatus("metadata", (StatusSource) metadata);
+	  
+	  // Repopulate a newly created metadata database from existing reports
+	  if (metadata.wasCreated() && XTraceSettings.METADATA_REBUILD_ON_CREATE) {
+	    rebuilder = new MetadataRebuilder(data, metadata);
+	    webserver.registerStatus("rebuild", rebuilder);
+	  } else {
+	    rebuilder = null;
+	  }
 	  pubsubserver = new Server(XTraceSettings.SERVER_BIND_HOSTNAME, XTraceSettings.PUBSUB_SUBSCRIBE_PORT, XTraceSettings.PUBSUB_PUBLISH_PORT);
 	  
 	  // Start the report sources
@@ -76,6 +107,15 @@ public class XTraceServer {
 	  Runtime.getRuntime().addShutdownHook(new Thread() {
 	    @Override
 	    public void run() {
+        retention.shutdown();
+        // The rebuild imports into the metadata store, so must stop first
+        if (rebuilder != null) {
+          try {
+            rebuilder.shutdown();
+          } catch (InterruptedException e) {
+            LOG.warn("Interrupted waiting for the metadata rebuild to stop");
+          }
+        }
         try {
           metadata.shutdown();
         } catch (Exception e) {
@@ -106,6 +146,59 @@ public class XTraceServer {
 	  });
 	}
 
+	/**
+	 * Creates the data store of the type specified by xtrace.server.datastore.type,
+	 * sharded across xtrace.server.datastore.dirs if specified, and fronted by the
+	 * in-memory hot tier if it is enabled. Also used by offline tools
+	 */
+	public static DataStore createDataStore() throws Exception {
+	  DataStore store;
+	  if (XTraceSettings.DATASTORE_DIRECTORIES.isEmpty()) {
+	    store = createDataStore(XTraceSettings.DATASTORE_DIRECTORY);
+	  } else {
+	    List<File> directories = new ArrayList<File>();
+	    List<DataStore> stores = new ArrayList<DataStore>();
+	    for (String directory : XTraceSettings.DATASTORE_DIRECTORIES) {
+	      directories.add(new File(directory));
+	      stores.add(createDataStore(directory));
+	    }
+	    store = new ShardedDataStore(directories, stores);
+	  }
+	  if (XTraceSettings.HOT_TIER_ENABLED)
+	    store = new HotTierDataStore(store);
+	  return store;
+	}
+	
+	private static DataStore createDataStore(String directory) throws Exception {
+	  String type = XTraceSettings.DATASTORE_TYPE;
+	  if ("filetree".equals(type))
+	    return new FileTreeDataStore(directory + "/reports/");
+	  if ("segmented".equals(type))
+	    return new SegmentedDataStore(directory + "/segments/");
+	  throw new IllegalArgumentException("Unknown data store type " + type);
+	}
+
+	/**
+	 * Creates the metadata store of the type specified by
+	 * xtrace.server.metadata.type. Also used by offline tools
+	 */
+	public static MetadataStore createMetadataStore() throws Exception {
+	  String type = XTraceSettings.METADATA_TYPE;
+	  if ("derby".equals(type))
+	    return DerbyMetadataStore.getInstance();
+	  if ("memory".equals(type))
+	    return new MemoryMetadataStore(metadataDirectory());
+	  throw new IllegalArgumentException("Unknown metadata store type " + type);
+	}
+
+	/**
+	 * Returns the directory that the configured type of metadata store keeps
+	 * its files in
+	 */
+	public static String metadataDirectory() {
+	  return XTraceSettings.DATASTORE_DIRECTORY + ("memory".equals(XTraceSettings.METADATA_TYPE) ? "/metadata/" : "/derby/");
+	}
+
 	private static XTraceServer INSTANCE;
 	
 	public static XTraceServer getInstance() throws Exception {
@@ -119,6 +212,10 @@ public class XTraceServer {
     webserver.start();
     pubsubserver.start();
     tcpsource.start();
+    if (retention.isEnabled())
+      retention.start();
+    if (rebuilder != null)
+      rebuilder.start();
 	}
 	
 	
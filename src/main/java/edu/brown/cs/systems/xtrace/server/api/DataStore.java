@@ -1,6 +1,6 @@
 package edu.brown.cs.systems.xtrace.server.api;
 
-import java.util.Iterator;
+import java.util.Collection;
 
 /**
  * Defines the interface for persisting the reports themselves.
@@ -9,9 +9,55 @@ import java.util.Iterator;
  */
 public interface DataStore {
   
-  public void reportReceived(Report r);
+  /**
+   * Stores the report.  Returns false if the report was dropped, eg. because
+   * the store is overloaded or failed to write it
+   */
+  public boolean reportReceived(Report r);
   
-  public Iterator<Report> getReports(String taskId);
+  /**
+   * Returns a stream over the reports of the specified task.  The caller must
+   * close the stream when done
+   */
+  public ReportStream getReports(String taskId);
+  
+  /**
+   * Returns true if the store has received any reports for the specified task.
+   * Should be cheap enough to call on the ingest path
+   */
+  public boolean contains(String taskId);
+  
+  /**
+   * Returns the IDs of all of the tasks in the store.  Used to rebuild the
+   * metadata store, so may be slow
+   */
+  public Collection<String> getTaskIds();
+  
+  /**
+   * Deletes all of the reports of the specified task.  Returns the number of
+   * bytes by which this reduces size(), even if the disk space is only
+   * reclaimed later
+   */
+  public long removeTask(String taskId);
+  
+  /**
+   * Returns the (approximate) total size in bytes of the stored reports
+   */
+  public long size();
+  
+  /**
+   * Returns the sequence number of the most recently received report.  Reports
+   * are persisted in sequence order, so this can be passed to awaitDurable to
+   * wait for everything received so far
+   */
+  public long sequence();
+  
+  /**
+   * Waits until all reports up to and including the specified sequence number
+   * have been persisted, or until the timeout (in milliseconds) elapses.
+   * Returns true if the reports are durable
+   */
+  public boolean awaitDurable(long sequence, long timeout) throws InterruptedException;
 
   public void shutdown();
 
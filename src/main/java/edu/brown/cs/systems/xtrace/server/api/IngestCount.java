@@ -0,0 +1,31 @@
+package edu.brown.cs.systems.xtrace.server.api;
+
+/**
+ * The number of new tasks and reports received during one minute
+ */
+public class IngestCount {
+	private long minute;
+	private long tasks;
+	private long reports;
+
+	public IngestCount(long minute, long tasks, long reports) {
+		this.minute = minute;
+		this.tasks = tasks;
+		this.reports = reports;
+	}
+
+	/**
+	 * The start of the minute, in milliseconds since the epoch
+	 */
+	public long getMinute() {
+		return minute;
+	}
+
+	public long getTasks() {
+		return tasks;
+	}
+
+	public long getReports() {
+		return reports;
+	}
+}
@@ -5,7 +5,9 @@ import java.util.List;
 
 /**
  * Defines the interface for persisting task metadata to a database
- * for querying for web APIs.  
+ * for querying for web APIs.  The queries that return lists of task records
+ * return null if they could not be run, eg. because no database connection
+ * was free in time, so that a failure can be told apart from no results
  * @author Jonathan Mace
  */
 public interface MetadataStore {
@@ -14,8 +16,29 @@ public interface MetadataStore {
   
   public List<TaskRecord> getTasksSince(long startTime, int offset, int limit);
   
+  /**
+   * Returns tasks ordered from most to least recently updated, then by
+   * descending task ID
+   */
   public List<TaskRecord> getLatestTasks(int offset, int limit);
   
+  /**
+   * Returns the tasks that follow the specified task in getLatestTasks order.
+   * Pass the last task of one page to get the next; unlike an offset, the cost
+   * does not grow with the number of pages skipped
+   */
+  public List<TaskRecord> getLatestTasksBefore(long lastUpdated, String taskId, int limit);
+  
+  /**
+   * Returns tasks ordered from least to most recently updated, then by task ID
+   */
+  public List<TaskRecord> getOldestTasks(int offset, int limit);
+  
+  /**
+   * Returns the tasks that follow the specified task in getOldestTasks order
+   */
+  public List<TaskRecord> getOldestTasksAfter(long lastUpdated, String taskId, int limit);
+  
   public List<TaskRecord> getTasksByTag(String tag, int offset, int limit);
   
   public List<TaskRecord> getTasksByTitle(String title, int offset, int limit);
@@ -25,11 +48,63 @@ public interface MetadataStore {
   public Collection<String> getConcurrentTasks(String taskId);
 
   public Collection<String> getTags(String taskId);
+
+  /**
+   * Returns the task's record, or null if it has none
+   */
+  public TaskRecord getTask(String taskId);
+
+  /**
+   * Returns the summary of the task's reports, or null if the task has no
+   * record
+   */
+  public TaskSummary getTaskSummary(String taskId);
+
+  /**
+   * Returns the tasks with the longest spans of report timestamps, longest
+   * first, among those whose last report was at or after since.  If host is
+   * not null, only tasks with reports from that host are included
+   */
+  public List<TaskSummary> getSlowestTasks(String host, long since, int offset, int limit);
+  
+  /**
+   * Deletes the records of the specified tasks.  Returns once the records have
+   * been deleted
+   */
+  public void removeTasks(Collection<String> taskIds);
+  
+  /**
+   * Bulk loads task records, eg. when rebuilding the metadata from the data
+   * store.  Records of tasks that already have one, eg. because reports
+   * arrived during the rebuild, are merged into it: the larger of the two
+   * report counts is kept, since the rebuild may have read the reports that
+   * created the task, and the times are widened and the tags combined
+   */
+  public void importTasks(Collection<TaskRecord> tasks);
   
   public int numTasks();
   
   public int numReports();
 
+  /**
+   * Returns the number of new tasks and reports received in each minute from
+   * startTime onwards, oldest first.  Minutes with nothing received are
+   * omitted
+   */
+  public List<IngestCount> getIngestCounts(long startTime);
+
+  /**
+   * Returns a number that changes whenever changes to the task records become
+   * visible to queries.  Query results can be reused until it changes
+   */
+  public long epoch();
+
+  /**
+   * Returns true if the store did not exist and was created on startup, in
+   * which case its metadata can be rebuilt from the data store
+   */
+  public boolean wasCreated();
+
   public void shutdown();
 
 }
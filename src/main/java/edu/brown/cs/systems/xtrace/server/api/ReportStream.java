@@ -0,0 +1,18 @@
+package edu.brown.cs.systems.xtrace.server.api;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * A stream of reports read from a data store.  Holds on to whatever buffers
+ * the data store used to read the reports, so callers should always close the
+ * stream once done with it, even if it was not read to the end.
+ */
+public interface ReportStream extends Iterator<Report>, Closeable {
+  
+  /**
+   * Releases any resources held by this stream.  Safe to call more than once
+   */
+  public void close();
+
+}
@@ -0,0 +1,16 @@
+package edu.brown.cs.systems.xtrace.server.api;
+
+import net.minidev.json.JSONObject;
+
+/**
+ * Interface for server components that publish metrics on the server's status
+ * page
+ */
+public interface StatusSource {
+  
+  /**
+   * Returns a snapshot of this component's current status and metrics
+   */
+  public JSONObject getStatus();
+
+}
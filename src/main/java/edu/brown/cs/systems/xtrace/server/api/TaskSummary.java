@@ -0,0 +1,88 @@
+package edu.brown.cs.systems.xtrace.server.api;
+
+import java.util.List;
+
+/**
+ * Aggregates of a task's reports, maintained as the reports are received
+ */
+public class TaskSummary {
+	private String taskId;
+	private String title;
+	private int numReports;
+	private Long start;
+	private Long end;
+	private List<String> hosts;
+	private List<String> agents;
+	private int maxFanIn;
+	private boolean errors;
+
+	public TaskSummary(String taskId, String title, int numReports, Long start, Long end,
+			List<String> hosts, List<String> agents, int maxFanIn, boolean errors) {
+		this.taskId = taskId;
+		this.title = title;
+		this.numReports = numReports;
+		this.start = start;
+		this.end = end;
+		this.hosts = hosts;
+		this.agents = agents;
+		this.maxFanIn = maxFanIn;
+		this.errors = errors;
+	}
+
+	public String getTaskId() {
+		return taskId;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public int getNumReports() {
+		return numReports;
+	}
+
+	/**
+	 * The earliest report timestamp, in milliseconds since the epoch, or null
+	 * if no report had a timestamp
+	 */
+	public Long getStart() {
+		return start;
+	}
+
+	/**
+	 * The latest report timestamp, or null if no report had a timestamp
+	 */
+	public Long getEnd() {
+		return end;
+	}
+
+	/**
+	 * The time from the first report to the last, or null if no report had a
+	 * timestamp
+	 */
+	public Long getDuration() {
+		return start == null || end == null ? null : end - start;
+	}
+
+	public List<String> getHosts() {
+		return hosts;
+	}
+
+	public List<String> getAgents() {
+		return agents;
+	}
+
+	/**
+	 * The largest number of parents of any one event
+	 */
+	public int getMaxFanIn() {
+		return maxFanIn;
+	}
+
+	/**
+	 * True if any report recorded an error
+	 */
+	public boolean hasErrors() {
+		return errors;
+	}
+}
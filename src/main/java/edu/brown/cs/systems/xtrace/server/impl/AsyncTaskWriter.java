@@ -0,0 +1,409 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minidev.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.CodedOutputStream;
+
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+import edu.brown.cs.systems.xtrace.server.impl.ServerReporting.ReportOnDisk;
+
+/**
+ * Writes a task file using an AsynchronousFileChannel. Reports are encoded into
+ * pooled buffers, and full buffers are written asynchronously, with a bounded
+ * number of writes in flight per file; further buffers queue up behind them.
+ * Buffers are returned to the pool when their write completes.
+ *
+ * The bytes accepted but not yet written are bounded across all files. When
+ * the bound is reached, new reports are dropped rather than making the ingest
+ * thread wait.
+ *
+ * If a write fails, no more writes are issued until those in flight complete.
+ * The file is then truncated where the failed write began, since framed
+ * readers stop at the hole it leaves, and writing resumes from there. The
+ * reports in the failed write, and in any later writes already in flight, are
+ * lost.
+ */
+class AsyncTaskWriter extends FileTreeDataStore.TaskWriter implements CompletionHandler<Integer, AsyncTaskWriter.Write> {
+
+  static private final Logger LOG = Logger.getLogger(AsyncTaskWriter.class);
+
+  /**
+   * State shared by all asynchronous writers: the I/O threads, the buffer pool
+   * and the outstanding byte budget
+   */
+  static class AsyncIO {
+    private final ExecutorService executor;
+    private final int bufferSize;
+    private final int maxInflight;
+    private final long maxOutstanding;
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public AsyncIO() {
+      this(XTraceSettings.DATASTORE_ASYNC_IO_THREADS, XTraceSettings.DATASTORE_BUFFER_SIZE,
+          XTraceSettings.DATASTORE_ASYNC_MAX_INFLIGHT, XTraceSettings.DATASTORE_ASYNC_MAX_OUTSTANDING);
+    }
+
+    public AsyncIO(int threads, int bufferSize, int maxInflight, long maxOutstanding) {
+      this.bufferSize = bufferSize;
+      this.maxInflight = Math.max(1, maxInflight);
+      this.maxOutstanding = maxOutstanding;
+      executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "AsyncTaskWriter-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+
+    /**
+     * Reserves space for a report in the outstanding byte budget. Returns false
+     * if the report should be dropped
+     */
+    boolean reserve(int size) {
+      if (outstanding.addAndGet(size) > maxOutstanding) {
+        outstanding.addAndGet(-size);
+        dropped.incrementAndGet();
+        return false;
+      }
+      return true;
+    }
+
+    ByteBuffer acquire(int size) {
+      if (size > bufferSize)
+        return ByteBuffer.allocate(size);
+      ByteBuffer buf = pool.poll();
+      if (buf == null)
+        return ByteBuffer.allocate(bufferSize);
+      pooled.decrementAndGet();
+      return buf;
+    }
+
+    void release(Write write) {
+      outstanding.addAndGet(-write.size);
+      ByteBuffer buf = write.buf;
+      // Only keep as many buffers as the budget could ever need at once
+      if (buf.capacity() == bufferSize && (long) pooled.get() * bufferSize < maxOutstanding) {
+        buf.clear();
+        pooled.incrementAndGet();
+        pool.offer(buf);
+      }
+    }
+
+    public void shutdown() {
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS))
+          LOG.warn("Asynchronous writes did not complete before shutdown");
+      } catch (InterruptedException e) {
+        LOG.warn("Interrupted waiting for asynchronous writes to complete");
+      }
+    }
+
+    public JSONObject getStatus() {
+      JSONObject status = new JSONObject();
+      status.put("outstandingBytes", outstanding.get());
+      status.put("maxOutstandingBytes", maxOutstanding);
+      status.put("pooledBuffers", pooled.get());
+      status.put("dropped", dropped.get());
+      status.put("errors", errors.get());
+      return status;
+    }
+  }
+
+  /**
+   * A buffer being written to the file
+   */
+  static class Write {
+    private final ByteBuffer buf;
+    private final int size;
+    private final long start;
+    private long position;
+
+    private Write(ByteBuffer buf, long position) {
+      this.buf = buf;
+      this.size = buf.remaining();
+      this.start = this.position = position;
+    }
+  }
+
+  private final File file;
+  private final AsyncIO io;
+  private final AsynchronousFileChannel channel;
+  private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<ByteBuffer>();
+  private long position;
+  private ByteBuffer current = null;
+  private int inflight = 0;
+  private boolean syncOnClose = false;
+  private volatile boolean finished = false;
+
+  // Until it finishes, the writer whose writes precede ours in the file
+  private volatile FileTreeDataStore.TaskWriter previous;
+
+  // Where the earliest failed write began, or -1 if no write has failed since
+  // the file was last truncated
+  private long failedAt = -1;
+  // Set if the file could not be truncated, after which reports are dropped
+  private boolean dead = false;
+
+  /**
+   * @param start the offset to start writing at, if beyond the end of the
+   *          file; ie. the end of a previous writer's writes that are still
+   *          in flight
+   * @param previous the closed writer of the file that this one takes over
+   *          from, or null
+   */
+  public AsyncTaskWriter(String taskId, File file, boolean framed, AsyncIO io, long start, FileTreeDataStore.TaskWriter previous) throws IOException {
+    super(taskId, framed);
+    this.file = file;
+    this.io = io;
+    this.previous = previous;
+    channel = AsynchronousFileChannel.open(file.toPath(), EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE), io.executor);
+    position = Math.max(channel.size(), start);
+    if (framed && position == 0) {
+      io.outstanding.addAndGet(Frames.FILE_MAGIC_SIZE);
+      current = io.acquire(Frames.FILE_MAGIC_SIZE);
+      current.putLong(Frames.FILE_MAGIC);
+    }
+  }
+
+  @Override
+  public synchronized boolean write(ReportOnDisk report, int size) throws IOException {
+    if (dead) {
+      io.dropped.incrementAndGet();
+      return false;
+    }
+    if (!io.reserve(size))
+      return false;
+    if (current == null || current.remaining() < size) {
+      dispatch();
+      current = io.acquire(size);
+    }
+    int offset = current.arrayOffset() + current.position();
+    if (framed) {
+      Frames.encode(report, current.array(), offset);
+    } else {
+      CodedOutputStream out = CodedOutputStream.newInstance(current.array(), offset, size);
+      out.writeRawVarint32(report.getSerializedSize());
+      report.writeTo(out);
+    }
+    current.position(current.position() + size);
+    unsynced = true;
+    return true;
+  }
+
+  @Override
+  public synchronized void flush() {
+    dispatch();
+  }
+
+  @Override
+  public void force() throws IOException {
+    channel.force(false);
+  }
+
+  @Override
+  public synchronized void close(boolean sync) {
+    if (closed)
+      return;
+    closed = true;
+    syncOnClose = sync && unsynced;
+    dispatch();
+    // Never close on the calling thread, which might be the ingest thread
+    if (inflight == 0) {
+      io.executor.execute(new Runnable() {
+        public void run() {
+          finishClose();
+        }
+      });
+    }
+  }
+
+  /**
+   * If a write has failed, waits until the file has been truncated, as the end
+   * is not known until then
+   */
+  @Override
+  public synchronized long end() {
+    while (failedAt >= 0) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    long end = position;
+    for (ByteBuffer buf : queued)
+      end += buf.remaining();
+    if (current != null)
+      end += current.position();
+    return end;
+  }
+
+  /**
+   * Only true once the file has been synced, if asked to on close, and closed
+   */
+  @Override
+  public boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Also waits for the previous writer of the file, as the file has a hole
+   * until its writes complete, and readers stop at the hole
+   */
+  @Override
+  public void awaitFlushed(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + Math.min(timeout, Long.MAX_VALUE / 2);
+    FileTreeDataStore.TaskWriter before = previous;
+    if (before != null)
+      before.awaitFlushed(timeout);
+    synchronized (this) {
+      while (inflight > 0) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+          return;
+        wait(remaining);
+      }
+    }
+  }
+
+  /**
+   * Queues the current buffer for writing
+   */
+  private void dispatch() {
+    if (current != null && current.position() > 0) {
+      current.flip();
+      queued.add(current);
+      current = null;
+    }
+    while (failedAt < 0 && !dead && inflight < io.maxInflight && !queued.isEmpty()) {
+      Write write = new Write(queued.poll(), position);
+      position += write.size;
+      inflight++;
+      issue(write);
+    }
+  }
+
+  private void issue(Write write) {
+    try {
+      channel.write(write.buf, write.position, write, this);
+    } catch (RuntimeException e) {
+      failed(e, write);
+    }
+  }
+
+  @Override
+  public void completed(Integer written, Write write) {
+    synchronized (this) {
+      if (write.buf.hasRemaining()) {
+        write.position += written;
+        issue(write);
+        return;
+      }
+    }
+    done(write);
+  }
+
+  @Override
+  public void failed(Throwable t, Write write) {
+    io.errors.incrementAndGet();
+    LOG.warn("Asynchronous write of " + write.size + " bytes to " + file + " failed", t);
+    synchronized (this) {
+      if (failedAt < 0 || write.start < failedAt)
+        failedAt = write.start;
+    }
+    done(write);
+  }
+
+  private void done(Write write) {
+    io.release(write);
+    boolean close;
+    synchronized (this) {
+      inflight--;
+      if (inflight == 0 && failedAt >= 0)
+        truncate();
+      dispatch();
+      close = inflight == 0;
+      if (close)
+        notifyAll();
+      close &= closed;
+    }
+    if (close)
+      finishClose();
+  }
+
+  /**
+   * Called once the writes in flight when a write failed have completed. Cuts
+   * the file back to where the failed write began, so that queued reports are
+   * written from there. If the file cannot be truncated, the queued reports are
+   * dropped, and so are any further reports
+   */
+  private void truncate() {
+    try {
+      channel.truncate(failedAt);
+      LOG.info("Truncated " + file + " to " + failedAt + " bytes after a failed write");
+      if (framed && failedAt == 0) {
+        // The file magic went with the failed write
+        io.outstanding.addAndGet(Frames.FILE_MAGIC_SIZE);
+        ByteBuffer magic = io.acquire(Frames.FILE_MAGIC_SIZE);
+        magic.putLong(Frames.FILE_MAGIC);
+        magic.flip();
+        queued.addFirst(magic);
+      }
+    } catch (IOException e) {
+      LOG.warn("Unable to truncate " + file + " after a failed write, dropping its reports", e);
+      dead = true;
+      if (current != null) {
+        current.flip();
+        queued.add(current);
+        current = null;
+      }
+      for (ByteBuffer buf : queued)
+        io.release(new Write(buf, 0));
+      queued.clear();
+    }
+    position = failedAt;
+    failedAt = -1;
+    notifyAll();
+  }
+
+  private void finishClose() {
+    try {
+      if (syncOnClose)
+        channel.force(false);
+      channel.close();
+    } catch (IOException e) {
+      LOG.warn("IOException closing " + file, e);
+    }
+    previous = null;
+    finished = true;
+  }
+
+}
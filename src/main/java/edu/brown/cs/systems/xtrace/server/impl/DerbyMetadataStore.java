@@ -7,27 +7,43 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minidev.json.JSONObject;
 
 import org.apache.log4j.Logger;
 
 import edu.brown.cs.systems.xtrace.XTraceSettings;
+import edu.brown.cs.systems.xtrace.server.api.IngestCount;
 import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
 import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.StatusSource;
 import edu.brown.cs.systems.xtrace.server.api.TaskRecord;
+import edu.brown.cs.systems.xtrace.server.api.TaskSummary;
 
-public class DerbyMetadataStore implements MetadataStore {
+public class DerbyMetadataStore implements MetadataStore, StatusSource {
   private static DerbyMetadataStore INSTANCE;
 
   /**
@@ -42,12 +58,64 @@ public class DerbyMetadataStore implements MetadataStore {
 
   private static final Logger LOG = Logger.getLogger(DerbyMetadataStore.class);
 
-  private final DatabaseReader reader;
+  // Longer tags are kept in the task's tags, but can't be searched for
+  private static final int MAX_TAG_LENGTH = 256;
+
+  private static final String INSERT_TAG = "insert into task_tags (tag, taskId) select cast(? as varchar(" + MAX_TAG_LENGTH + ")), cast(? as varchar(40)) " +
+      "from sysibm.sysdummy1 where not exists (select 1 from task_tags where tag = ? and taskId = ?)";
+
+  // Longer host and agent names are left out of task summaries
+  private static final int MAX_SOURCE_LENGTH = 256;
+
+  private static final String INSERT_HOST = "insert into task_hosts (host, taskId) select cast(? as varchar(" + MAX_SOURCE_LENGTH + ")), cast(? as varchar(40)) " +
+      "from sysibm.sysdummy1 where not exists (select 1 from task_hosts where host = ? and taskId = ?)";
+  private static final String INSERT_AGENT = "insert into task_agents (agent, taskId) select cast(? as varchar(" + MAX_SOURCE_LENGTH + ")), cast(? as varchar(40)) " +
+      "from sysibm.sysdummy1 where not exists (select 1 from task_agents where agent = ? and taskId = ?)";
+
+  private static final String ADD_TO_STAT = "update stats set total = total + ? where name = ?";
+
+  private static final String INSERT_TRIGRAM = "insert into title_trigrams (trigram, taskId) values (?, ?)";
+
+  private static final String APPEND_TAGS = "update tasks set tags = case when tags is null or tags = '' then ? else tags || ',' || ? end where taskid = ?";
+
+  // Widen the report times to include the update's; null times leave them as they are
+  private static final String NEW_REPORT_START = "(case when reportStart is null or reportStart > cast(? as bigint) then cast(? as bigint) else reportStart end)";
+  private static final String NEW_REPORT_END = "(case when reportEnd is null or reportEnd < cast(? as bigint) then cast(? as bigint) else reportEnd end)";
+
+  // Title substring searches count the posting lists of up to TRIGRAMS_SAMPLED of the
+  // query's trigrams, up to POSTINGS_COUNTED entries each, then intersect the
+  // MAX_QUERY_TRIGRAMS smallest.  If every list is that long, scanning is cheaper
+  private static final int TRIGRAMS_SAMPLED = 8;
+  private static final int POSTINGS_COUNTED = 1000;
+  private static final int MAX_QUERY_TRIGRAMS = 4;
+
+  private final BlockingQueue<DatabaseReader> readers;
+  private final long readTimeout;
   private final DatabaseWriter writer;
 
+  // Totals as of the last commit, kept in the stats table so they survive restarts
+  private final AtomicLong totalTasks = new AtomicLong();
+  private final AtomicLong totalReports = new AtomicLong();
+
+  // Advanced after every commit that changes task records
+  private final AtomicLong epoch = new AtomicLong();
+
+  // Lifetimes of all tasks, for finding concurrent tasks, or null if disabled
+  private final TaskIntervalIndex lifetimes = XTraceSettings.METADATA_INTERVAL_INDEX ? new TaskIntervalIndex() : null;
+  private volatile boolean lifetimesLoaded = false;
+  private final LifetimeLoader lifetimeLoader;
+
+  // Tasks removed while the lifetimes are loading, which the load may have read first
+  private final Set<String> removedWhileLoading = new HashSet<String>();
+
   private volatile boolean alive = true;
+  private boolean created = false;
 
-  private DerbyMetadataStore(String dataDirName) throws Exception {
+  /**
+   * Opens the database in the given directory. Derby only reads the directory
+   * when it first starts, so every instance in a JVM must use the same one
+   */
+  DerbyMetadataStore(String dataDirName) throws Exception {
     File dataRootDir = new File(dataDirName);
     if (!dataRootDir.isDirectory() && !dataRootDir.mkdirs())
       throw new IOException("Data Store location isn't a directory " + dataDirName);
@@ -62,11 +130,22 @@ public class DerbyMetadataStore implements MetadataStore {
     } catch (SQLException e) {
       LOG.info("Derby database does not exist; creating...");
       createDatabase();
+      created = true;
     }
-
-    reader = new DatabaseReader();
+    upgradeSchema();
+    loadTotals();
+
+    // Each reader has its own connection, so slow queries only hold up their own reader
+    int numReaders = Math.max(1, XTraceSettings.METADATA_READ_CONNECTIONS);
+    readTimeout = XTraceSettings.METADATA_QUERY_TIMEOUT;
+    readers = new ArrayBlockingQueue<DatabaseReader>(numReaders);
+    for (int i = 0; i < numReaders; i++)
+      readers.add(new DatabaseReader((int) Math.max(1, (readTimeout + 999) / 1000)));
     writer = new DatabaseWriter();
     writer.start();
+    lifetimeLoader = lifetimes == null ? null : new LifetimeLoader();
+    if (lifetimeLoader != null)
+      lifetimeLoader.start();
 
     LOG.info("Successfully connected to the internal Derby database");
     LOG.info("Database directory: " + dataRootDir.getAbsolutePath());
@@ -86,6 +165,227 @@ public class DerbyMetadataStore implements MetadataStore {
     create.close();
   }
 
+  /**
+   * Adds anything that databases created by older versions are missing. Runs
+   * on every startup, so each change must be safe to repeat. Derby's DDL is
+   * transactional, so a table is committed together with the rows it is
+   * filled with; otherwise a crash in between would leave a table that exists,
+   * and so is never filled in again, but is missing its rows
+   */
+  private void upgradeSchema() throws SQLException {
+    Connection upgrade = DriverManager.getConnection("jdbc:derby:tasks");
+    upgrade.setAutoCommit(false);
+    Statement s = upgrade.createStatement();
+    try {
+      // Newest first, so the latest tasks page and its keyset cursors read the index in order
+      createIfMissing(s, "create index idx_lastupdated_taskid on tasks(lastUpdated desc, taskId desc)");
+
+      // One row per task and tag, so that tag lookups are index seeks
+      if (createIfMissing(s, "create table task_tags(tag varchar(" + MAX_TAG_LENGTH + ") not null, taskId varchar(40) not null, primary key (tag, taskId))")) {
+        s.executeUpdate("create index idx_task_tags_taskid on task_tags(taskId)");
+        populateTaskTags(upgrade);
+      }
+      upgrade.commit();
+
+      // Running totals, counted once here and then maintained as tasks are added and removed.
+      // Older upgrades could commit the table without its rows, so missing totals are recounted
+      createIfMissing(s, "create table stats(name varchar(32) not null primary key, total bigint not null)");
+      if (!hasTotals(s)) {
+        LOG.info("Counting existing tasks and reports");
+        s.executeUpdate("delete from stats");
+        s.executeUpdate("insert into stats (name, total) select 'tasks', count(*) from tasks");
+        s.executeUpdate("insert into stats (name, total) select 'reports', coalesce(sum(cast(numReports as bigint)), 0) from tasks");
+      }
+      upgrade.commit();
+
+      // New tasks and reports per minute, for charting ingestion
+      createIfMissing(s, "create table ingest_stats(bucket timestamp not null primary key, tasks integer not null, reports integer not null)");
+
+      // One row per distinct trigram of each task's upper case title, for substring searches
+      if (createIfMissing(s, "create table title_trigrams(trigram varchar(3) not null, taskId varchar(40) not null, constraint pk_title_trigrams primary key (trigram, taskId))")) {
+        s.executeUpdate("create index idx_title_trigrams_taskid on title_trigrams(taskId)");
+        populateTitleTrigrams(upgrade);
+      }
+      upgrade.commit();
+
+      // Summaries of each task's reports, maintained as they arrive.  Times are report
+      // timestamps in milliseconds, and are unknown for tasks received before this
+      createIfMissing(s, "alter table tasks add column reportStart bigint");
+      createIfMissing(s, "alter table tasks add column reportEnd bigint");
+      createIfMissing(s, "alter table tasks add column duration bigint");
+      createIfMissing(s, "alter table tasks add column maxFanIn integer default 0 not null");
+      createIfMissing(s, "alter table tasks add column hasErrors smallint default 0 not null");
+      createIfMissing(s, "create index idx_tasks_reportend on tasks(reportEnd)");
+      createIfMissing(s, "create index idx_tasks_duration on tasks(duration desc)");
+      if (createIfMissing(s, "create table task_hosts(host varchar(" + MAX_SOURCE_LENGTH + ") not null, taskId varchar(40) not null, primary key (host, taskId))"))
+        s.executeUpdate("create index idx_task_hosts_taskid on task_hosts(taskId)");
+      if (createIfMissing(s, "create table task_agents(agent varchar(" + MAX_SOURCE_LENGTH + ") not null, taskId varchar(40) not null, primary key (agent, taskId))"))
+        s.executeUpdate("create index idx_task_agents_taskid on task_agents(taskId)");
+      upgrade.commit();
+    } catch (SQLException e) {
+      upgrade.rollback();
+      throw e;
+    } finally {
+      s.close();
+      upgrade.close();
+    }
+  }
+
+  /**
+   * Returns true if the stats table has both of the totals
+   */
+  private static boolean hasTotals(Statement s) throws SQLException {
+    ResultSet rs = s.executeQuery("select count(*) from stats where name in ('tasks', 'reports')");
+    try {
+      return rs.next() && rs.getInt(1) == 2;
+    } finally {
+      rs.close();
+    }
+  }
+
+  private void loadTotals() throws SQLException {
+    Connection conn = DriverManager.getConnection("jdbc:derby:tasks");
+    try {
+      ResultSet rs = conn.createStatement().executeQuery("select name, total from stats");
+      while (rs.next()) {
+        if ("tasks".equals(rs.getString(1)))
+          totalTasks.set(rs.getLong(2));
+        else if ("reports".equals(rs.getString(1)))
+          totalReports.set(rs.getLong(2));
+      }
+      rs.close();
+    } finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Adds to the stored totals as part of the statement's transaction. The
+   * in-memory totals should be updated once it commits
+   */
+  private static void addToTotals(PreparedStatement addToStat, long tasks, long reports) throws SQLException {
+    addToStat.setLong(1, tasks);
+    addToStat.setString(2, "tasks");
+    addToStat.addBatch();
+    addToStat.setLong(1, reports);
+    addToStat.setString(2, "reports");
+    addToStat.addBatch();
+    addToStat.executeBatch();
+  }
+
+  /**
+   * Returns true if the object was created, or false if it already existed
+   */
+  private static boolean createIfMissing(Statement s, String ddl) throws SQLException {
+    try {
+      s.executeUpdate(ddl);
+      return true;
+    } catch (SQLException e) {
+      // X0Y32: the object already exists
+      if (!"X0Y32".equals(e.getSQLState()))
+        throw e;
+      return false;
+    }
+  }
+
+  /**
+   * Fills in the task_tags table from the tags column of existing tasks
+   */
+  private void populateTaskTags(Connection conn) throws SQLException {
+    LOG.info("Indexing the tags of existing tasks");
+    Statement select = conn.createStatement();
+    PreparedStatement insert = conn.prepareStatement("insert into task_tags (tag, taskId) values (?, ?)");
+    try {
+      ResultSet rs = select.executeQuery("select taskId, tags from tasks where tags is not null and tags <> ''");
+      try {
+        int batched = 0;
+        while (rs.next()) {
+          String taskId = rs.getString(1);
+          for (String tag : new HashSet<String>(Arrays.asList(rs.getString(2).split(",")))) {
+            if (tag.isEmpty() || tag.length() > MAX_TAG_LENGTH)
+              continue;
+            insert.setString(1, tag);
+            insert.setString(2, taskId);
+            insert.addBatch();
+            if (++batched % 5000 == 0)
+              insert.executeBatch();
+          }
+        }
+        insert.executeBatch();
+      } finally {
+        rs.close();
+      }
+    } finally {
+      select.close();
+      insert.close();
+    }
+  }
+
+  /**
+   * Fills in the title_trigrams table from the titles of existing tasks
+   */
+  private void populateTitleTrigrams(Connection conn) throws SQLException {
+    LOG.info("Indexing the titles of existing tasks");
+    Statement select = conn.createStatement();
+    PreparedStatement insert = conn.prepareStatement(INSERT_TRIGRAM);
+    try {
+      ResultSet rs = select.executeQuery("select taskId, title from tasks where title is not null");
+      try {
+        int batched = 0;
+        while (rs.next()) {
+          batched += addTrigrams(insert, rs.getString(1), rs.getString(2));
+          if (batched >= 5000) {
+            insert.executeBatch();
+            batched = 0;
+          }
+        }
+        insert.executeBatch();
+      } finally {
+        rs.close();
+      }
+    } finally {
+      select.close();
+      insert.close();
+    }
+  }
+
+  /**
+   * Returns the distinct trigrams of the upper case text, in the order they
+   * first occur
+   */
+  static Set<String> trigrams(String text) {
+    Set<String> trigrams = new LinkedHashSet<String>();
+    if (text != null) {
+      String upper = text.toUpperCase(Locale.ROOT);
+      for (int i = 0; i + 3 <= upper.length(); i++)
+        trigrams.add(upper.substring(i, i + 3));
+    }
+    return trigrams;
+  }
+
+  /**
+   * Adds a row for each trigram of the title to the insert's batch, returning
+   * the number of rows added
+   */
+  private static int addTrigrams(PreparedStatement insertTrigram, String taskId, String title) throws SQLException {
+    Set<String> trigrams = trigrams(title);
+    for (String trigram : trigrams) {
+      insertTrigram.setString(1, trigram);
+      insertTrigram.setString(2, taskId);
+      insertTrigram.addBatch();
+    }
+    return trigrams.size();
+  }
+
+  /**
+   * Returns true if the database did not exist and was created on startup, in
+   * which case its metadata can be rebuilt from the data store
+   */
+  @Override
+  public boolean wasCreated() {
+    return created;
+  }
+
   @Override
   public void shutdown() {
     // Set alive to false to stop doing anything new
@@ -95,6 +395,8 @@ public class DerbyMetadataStore implements MetadataStore {
     try {
       writer.interrupt();
       writer.join();
+      if (lifetimeLoader != null)
+        lifetimeLoader.join();
     } catch (InterruptedException e) {
     }
 
@@ -114,101 +416,647 @@ public class DerbyMetadataStore implements MetadataStore {
   @Override
   public void reportReceived(Report report) {
     if (alive && report != null) {
-      writer.reportReceived(report.getTaskID());
-      if (report.hasTitle())
-        writer.setTitle(report.getTaskID(), report.getTitle());
-      if (report.hasTags())
-        writer.addTags(report.getTaskID(), report.getTags());
+      writer.update(report);
+    }
+  }
+
+  /**
+   * Waits until the reports received so far have been written
+   */
+  void awaitUpdates() throws InterruptedException {
+    writer.flush().await();
+  }
+
+  /**
+   * Waits until the lifetimes of the tasks in the database have been indexed,
+   * if they are indexed
+   */
+  void awaitLifetimes() throws InterruptedException {
+    if (lifetimeLoader != null)
+      lifetimeLoader.join();
+  }
+
+  @Override
+  public JSONObject getStatus() {
+    JSONObject status = new JSONObject();
+    status.put("tasks", totalTasks.get());
+    status.put("reports", totalReports.get());
+    status.put("freeReaders", readers.size());
+    status.put("pending", writer.pendingUpdates.getStatus());
+    return status;
+  }
+
+  /**
+   * Takes a reader from the pool, waiting up to the query timeout for one to be
+   * returned. Returns null if the store is shut down or no reader was free
+   */
+  private DatabaseReader acquireReader() {
+    if (!alive)
+      return null;
+    try {
+      DatabaseReader reader = readers.poll(readTimeout, TimeUnit.MILLISECONDS);
+      if (reader == null)
+        LOG.warn("Timed out waiting for a free database read connection");
+      return reader;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
     }
   }
 
   @Override
   public List<TaskRecord> getTasksSince(long startTime, int offset, int limit) {
-    if (alive)
-      return reader.getTasksSince(startTime, offset, limit);
-    return Collections.emptyList();
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getTasksSince(startTime, offset, limit);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return null;
   }
 
   @Override
   public List<TaskRecord> getLatestTasks(int offset, int limit) {
-    if (alive)
-      return reader.getLatestTasks(offset, limit);
-    return Collections.emptyList();
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getLatestTasks(offset, limit);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public List<TaskRecord> getLatestTasksBefore(long lastUpdated, String taskId, int limit) {
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getLatestTasksBefore(lastUpdated, taskId, limit);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public List<TaskRecord> getOldestTasks(int offset, int limit) {
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getOldestTasks(offset, limit);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public List<TaskRecord> getOldestTasksAfter(long lastUpdated, String taskId, int limit) {
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getOldestTasksAfter(lastUpdated, taskId, limit);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return null;
   }
 
   @Override
   public List<TaskRecord> getTasksByTag(String tag, int offset, int limit) {
-    if (alive)
-      return reader.getTasksByTag(tag, offset, limit);
-    return Collections.emptyList();
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getTasksByTag(tag, offset, limit);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return null;
   }
 
   @Override
   public List<TaskRecord> getTasksByTitle(String title, int offset, int limit) {
-    if (alive)
-      return reader.getTasksByTitle(title, offset, limit);
-    return Collections.emptyList();
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getTasksByTitle(title, offset, limit);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return null;
   }
 
   @Override
   public List<TaskRecord> getTasksByTitleSubstring(String title, int offset, int limit) {
-    if (alive)
-      return reader.getTasksByTitleSubstring(title, offset, limit);
-    return Collections.emptyList();
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getTasksByTitleSubstring(title, offset, limit);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return null;
   }
 
   @Override
   public Collection<String> getConcurrentTasks(String taskId) {
-    if (alive)
-      return reader.getOverlappingTasks(taskId);
+    if (lifetimesLoaded) {
+      Set<String> concurrent = new HashSet<String>();
+      concurrent.add(taskId);
+      long[] lifetime = lifetimes.getLifetime(taskId);
+      if (lifetime != null)
+        concurrent.addAll(lifetimes.getOverlapping(lifetime[0], lifetime[1]));
+      return concurrent;
+    }
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getOverlappingTasks(taskId);
+      } finally {
+        readers.offer(reader);
+      }
+    }
     return Collections.emptyList();
   }
 
   @Override
   public Collection<String> getTags(String taskId) {
-    if (alive)
-      return reader.getTagsForTask(taskId);
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getTagsForTask(taskId);
+      } finally {
+        readers.offer(reader);
+      }
+    }
     return Collections.emptyList();
   }
 
+  @Override
+  public TaskRecord getTask(String taskId) {
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getTask(taskId);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void removeTasks(Collection<String> taskIds) {
+    if (alive && !taskIds.isEmpty()) {
+      try {
+        writer.removeTasks(taskIds).await();
+      } catch (InterruptedException e) {
+        LOG.warn("Interrupted waiting for tasks to be removed");
+      }
+    }
+  }
+
+  /**
+   * Imports on its own connection, one transaction per call, so large imports
+   * do not hold up the database writer thread. If the batch fails, the records
+   * are retried one by one so that a single bad record is all that is lost.
+   * Records of tasks that already exist are merged one at a time; there are
+   * only as many as received reports while the metadata was being rebuilt
+   */
+  @Override
+  public void importTasks(Collection<TaskRecord> tasks) {
+    if (!alive || tasks.isEmpty())
+      return;
+    Connection conn = null;
+    try {
+      conn = DriverManager.getConnection("jdbc:derby:tasks");
+      conn.setAutoCommit(false);
+      PreparedStatement insert = conn.prepareStatement("insert into tasks (taskid, firstSeen, lastUpdated, numReports, tags, title, reportStart, reportEnd, duration) " +
+          "select cast(? as varchar(40)), cast(? as timestamp), cast(? as timestamp), cast(? as integer), cast(? as varchar(32672)), cast(? as varchar(128)), " +
+          "cast(? as bigint), cast(? as bigint), cast(? as bigint) from sysibm.sysdummy1 where not exists (select 1 from tasks where taskid = ?)");
+      PreparedStatement insertTag = conn.prepareStatement(INSERT_TAG);
+      PreparedStatement insertTrigram = conn.prepareStatement(INSERT_TRIGRAM);
+      PreparedStatement addToStat = conn.prepareStatement(ADD_TO_STAT);
+      PreparedStatement merge = conn.prepareStatement("update tasks set " +
+          "firstSeen = case when firstSeen > cast(? as timestamp) then cast(? as timestamp) else firstSeen end, " +
+          "lastUpdated = case when lastUpdated < cast(? as timestamp) then cast(? as timestamp) else lastUpdated end, " +
+          "reportStart = " + NEW_REPORT_START + ", reportEnd = " + NEW_REPORT_END + ", " +
+          "duration = " + NEW_REPORT_END + " - " + NEW_REPORT_START + " where taskid = ?");
+      PreparedStatement reportsOfTask = conn.prepareStatement("select numReports from tasks where taskid = ?");
+      PreparedStatement setReports = conn.prepareStatement("update tasks set numReports = ? where taskid = ?");
+      PreparedStatement retitle = conn.prepareStatement("update tasks set title = ? where taskid = ? and title = ?");
+      PreparedStatement deleteTrigrams = conn.prepareStatement("delete from title_trigrams where taskid = ?");
+      PreparedStatement appendTags = conn.prepareStatement(APPEND_TAGS);
+      try {
+        List<TaskRecord> inserted = new ArrayList<TaskRecord>();
+        List<TaskRecord> existing = new ArrayList<TaskRecord>();
+        for (TaskRecord task : tasks) {
+          setImportParameters(insert, task);
+          insert.addBatch();
+        }
+        try {
+          int[] counts = insert.executeBatch();
+          int i = 0;
+          for (TaskRecord task : tasks) {
+            if (counts[i++] > 0)
+              inserted.add(task);
+            else
+              existing.add(task);
+          }
+        } catch (SQLException e) {
+          LOG.warn("Batch import of " + tasks.size() + " tasks failed, importing individually", e);
+          conn.rollback();
+          inserted.clear();
+          existing.clear();
+          for (TaskRecord task : tasks) {
+            try {
+              setImportParameters(insert, task);
+              if (insert.executeUpdate() > 0)
+                inserted.add(task);
+              else
+                existing.add(task);
+            } catch (SQLException e2) {
+              LOG.warn("Unable to import task " + task.getTaskId(), e2);
+            }
+          }
+        }
+
+        // Index the tags and titles of the tasks that were new
+        long reports = 0;
+        for (TaskRecord task : inserted) {
+          reports += task.getNumReports();
+          addTrigrams(insertTrigram, task.getTaskId(), truncateTitle(task.getTitle() == null ? task.getTaskId() : task.getTitle()));
+          for (String tag : new HashSet<String>(task.getTags())) {
+            if (tag.isEmpty() || tag.length() > MAX_TAG_LENGTH)
+              continue;
+            setIndexRowParameters(insertTag, task.getTaskId(), tag);
+            insertTag.addBatch();
+          }
+        }
+        insertTag.executeBatch();
+        insertTrigram.executeBatch();
+
+        // Fold the records of tasks that already existed into their rows
+        List<TaskRecord> merged = new ArrayList<TaskRecord>();
+        for (TaskRecord task : existing) {
+          Savepoint savepoint = conn.setSavepoint();
+          try {
+            long added = mergeImported(merge, reportsOfTask, setReports, retitle, deleteTrigrams, insertTrigram, insertTag, appendTags, task);
+            if (added >= 0) {
+              reports += added;
+              merged.add(task);
+            }
+          } catch (SQLException e) {
+            LOG.warn("Unable to merge imported task " + task.getTaskId(), e);
+            conn.rollback(savepoint);
+          }
+        }
+
+        addToTotals(addToStat, inserted.size(), reports);
+        conn.commit();
+        epoch.incrementAndGet();
+        totalTasks.addAndGet(inserted.size());
+        totalReports.addAndGet(reports);
+        if (lifetimes != null) {
+          for (TaskRecord task : inserted)
+            lifetimes.update(task.getTaskId(), task.getFirstSeen(), task.getLastUpdated());
+          for (TaskRecord task : merged)
+            lifetimes.update(task.getTaskId(), task.getFirstSeen(), task.getLastUpdated());
+        }
+      } finally {
+        insert.close();
+        insertTag.close();
+        insertTrigram.close();
+        addToStat.close();
+        merge.close();
+        reportsOfTask.close();
+        setReports.close();
+        retitle.close();
+        deleteTrigrams.close();
+        appendTags.close();
+      }
+    } catch (SQLException e) {
+      LOG.warn("Unable to import " + tasks.size() + " tasks", e);
+    } finally {
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (SQLException e) {
+          LOG.warn("Unable to close import connection", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Merges an imported record into the row of a task that already exists:
+   * keeps the larger report count, widens its times, and adds the tags that
+   * are new to the task. The counts are not added because the rebuild may have
+   * read the reports that created the task. The record's title replaces the
+   * task's only if the task has none but its ID. Returns the number of reports
+   * added to the task, or -1 if the task no longer exists. Updating the row
+   * first locks it, so the database writer can't change the task's report
+   * count or tags in the meantime
+   */
+  private long mergeImported(PreparedStatement merge, PreparedStatement reportsOfTask, PreparedStatement setReports,
+      PreparedStatement retitle, PreparedStatement deleteTrigrams, PreparedStatement insertTrigram, PreparedStatement insertTag,
+      PreparedStatement appendTags, TaskRecord task) throws SQLException {
+    String taskId = task.getTaskId();
+    Timestamp firstSeen = new Timestamp(task.getFirstSeen()), lastUpdated = new Timestamp(task.getLastUpdated());
+    merge.setTimestamp(1, firstSeen);
+    merge.setTimestamp(2, firstSeen);
+    merge.setTimestamp(3, lastUpdated);
+    merge.setTimestamp(4, lastUpdated);
+    for (int i : new int[] { 5, 11 }) {
+      merge.setLong(i, task.getFirstSeen());
+      merge.setLong(i + 1, task.getFirstSeen());
+    }
+    for (int i : new int[] { 7, 9 }) {
+      merge.setLong(i, task.getLastUpdated());
+      merge.setLong(i + 1, task.getLastUpdated());
+    }
+    merge.setString(13, taskId);
+    if (merge.executeUpdate() == 0)
+      return -1;
+
+    int existing = 0;
+    reportsOfTask.setString(1, taskId);
+    ResultSet rs = reportsOfTask.executeQuery();
+    try {
+      if (rs.next())
+        existing = rs.getInt(1);
+    } finally {
+      rs.close();
+    }
+    long newReports = Math.max(0, task.getNumReports() - existing);
+    if (newReports > 0) {
+      setReports.setInt(1, task.getNumReports());
+      setReports.setString(2, taskId);
+      setReports.executeUpdate();
+    }
+
+    if (task.getTitle() != null && !task.getTitle().equals(taskId)) {
+      String title = truncateTitle(task.getTitle());
+      retitle.setString(1, title);
+      retitle.setString(2, taskId);
+      retitle.setString(3, truncateTitle(taskId));
+      if (retitle.executeUpdate() > 0) {
+        deleteTrigrams.setString(1, taskId);
+        deleteTrigrams.executeUpdate();
+        if (addTrigrams(insertTrigram, taskId, title) > 0)
+          insertTrigram.executeBatch();
+      }
+    }
+
+    List<String> added = new ArrayList<String>();
+    for (String tag : new LinkedHashSet<String>(task.getTags())) {
+      if (tag.isEmpty())
+        continue;
+      boolean isNew = true;
+      if (tag.length() <= MAX_TAG_LENGTH) {
+        setIndexRowParameters(insertTag, taskId, tag);
+        isNew = insertTag.executeUpdate() > 0;
+      }
+      if (isNew)
+        added.add(tag);
+    }
+    if (!added.isEmpty()) {
+      setAppendParameters(appendTags, taskId, added);
+      appendTags.executeUpdate();
+    }
+    return newReports;
+  }
+
+  /**
+   * Imported records carry no hosts or agents, and their first and last times
+   * stand in for report times; the rebuilder takes those from report timestamps
+   */
+  private void setImportParameters(PreparedStatement insert, TaskRecord task) throws SQLException {
+    String title = task.getTitle() == null ? task.getTaskId() : task.getTitle();
+    insert.setString(1, task.getTaskId());
+    insert.setTimestamp(2, new Timestamp(task.getFirstSeen()));
+    insert.setTimestamp(3, new Timestamp(task.getLastUpdated()));
+    insert.setInt(4, task.getNumReports());
+    insert.setString(5, joinWithCommas(task.getTags()));
+    insert.setString(6, truncateTitle(title));
+    insert.setLong(7, task.getFirstSeen());
+    insert.setLong(8, task.getLastUpdated());
+    insert.setLong(9, task.getLastUpdated() - task.getFirstSeen());
+    insert.setString(10, task.getTaskId());
+  }
+
   @Override
   public int numTasks() {
-    if (alive)
-      return reader.numTasks();
-    return 0;
+    return (int) Math.min(Integer.MAX_VALUE, totalTasks.get());
   }
 
   @Override
   public int numReports() {
-    if (alive)
-      return reader.numReports();
-    return 0;
+    return (int) Math.min(Integer.MAX_VALUE, totalReports.get());
+  }
+
+  @Override
+  public TaskSummary getTaskSummary(String taskId) {
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getTaskSummary(taskId);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public List<TaskSummary> getSlowestTasks(String host, long since, int offset, int limit) {
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getSlowestTasks(host, since, offset, limit);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  @Override
+  public long epoch() {
+    return epoch.get();
+  }
+
+  @Override
+  public List<IngestCount> getIngestCounts(long startTime) {
+    DatabaseReader reader = acquireReader();
+    if (reader != null) {
+      try {
+        return reader.getIngestCounts(startTime);
+      } finally {
+        readers.offer(reader);
+      }
+    }
+    return Collections.emptyList();
   }
 
+  /**
+   * A read connection and its prepared statements. Readers are pooled, and
+   * only used by one thread at a time
+   */
   private final class DatabaseReader {
 
+    private static final String PAGE = " offset ? rows fetch next ? rows only";
+
     private Connection read;
     private PreparedStatement getByTag, tasksBetween, updatedSince;
-    private PreparedStatement totalNumReports, totalNumTasks, timesByTask;
-    private PreparedStatement lastTasks, getTags, getByTitle, getByTitleApprox;
-
-    private DatabaseReader() throws Exception {
+    private PreparedStatement ingestCounts, timesByTask, getTask;
+    private PreparedStatement lastTasks, oldestTasks, getTags, getByTitle, getByTitleApprox;
+    private PreparedStatement lastTasksBefore, oldestTasksAfter;
+    private PreparedStatement trigramPostings;
+    private PreparedStatement summary, hostsOfTask, agentsOfTask, slowest, slowestOnHost;
+    private PreparedStatement[] getByTitleTrigrams = new PreparedStatement[MAX_QUERY_TRIGRAMS];
+
+    private DatabaseReader(int queryTimeoutSeconds) throws Exception {
       read = DriverManager.getConnection("jdbc:derby:tasks");
       read.setAutoCommit(false);
       createPreparedStatements();
+      for (PreparedStatement statement : new PreparedStatement[] { getByTag, tasksBetween, updatedSince, ingestCounts,
+          timesByTask, lastTasks, oldestTasks, getTags, getByTitle, getByTitleApprox, lastTasksBefore, oldestTasksAfter, trigramPostings,
+          summary, hostsOfTask, agentsOfTask, slowest, slowestOnHost, getTask })
+        statement.setQueryTimeout(queryTimeoutSeconds);
+      for (PreparedStatement statement : getByTitleTrigrams)
+        statement.setQueryTimeout(queryTimeoutSeconds);
     }
 
     private void createPreparedStatements() throws SQLException {
       tasksBetween = read.prepareStatement("select taskid from tasks where firstseen <= ? and lastUpdated >= ?");
-      totalNumReports = read.prepareStatement("select sum(numReports) as totalreports from tasks");
-      totalNumTasks = read.prepareStatement("select count(distinct taskid) as numtasks from tasks");
+      ingestCounts = read.prepareStatement("select bucket, tasks, reports from ingest_stats where bucket >= ? order by bucket");
       timesByTask = read.prepareStatement("select firstseen, lastUpdated from tasks where taskid = ?");
-      updatedSince = read.prepareStatement("select * from tasks where firstseen >= ? order by lastUpdated desc");
-      lastTasks = read.prepareStatement("select * from tasks order by lastUpdated desc");
-      getByTag = read.prepareStatement("select * from tasks where upper(tags) like upper('%'||?||'%') order by lastUpdated desc");
+      getTask = read.prepareStatement("select * from tasks where taskid = ?");
+      updatedSince = read.prepareStatement("select * from tasks where firstseen >= ? order by lastUpdated desc" + PAGE);
+      lastTasks = read.prepareStatement("select * from tasks order by lastUpdated desc, taskid desc" + PAGE);
+      oldestTasks = read.prepareStatement("select * from tasks order by lastUpdated asc, taskid asc" + PAGE);
+      getByTag = read.prepareStatement("select t.* from task_tags g join tasks t on t.taskId = g.taskId where g.tag = ? order by t.lastUpdated desc" + PAGE);
       getTags = read.prepareStatement("select tags from tasks where taskid = ?");
-      getByTitle = read.prepareStatement("select * from tasks where upper(title) = upper(?) order by lastUpdated desc");
-      getByTitleApprox = read.prepareStatement("select * from tasks where upper(title) like upper('%'||?||'%') order by lastUpdated desc");
+      getByTitle = read.prepareStatement("select * from tasks where upper(title) = upper(?) order by lastUpdated desc" + PAGE);
+      getByTitleApprox = read.prepareStatement("select * from tasks where upper(title) like upper('%'||?||'%') order by lastUpdated desc" + PAGE);
+
+      // Walks the posting list of the first trigram, probes the others' for each
+      // task, then checks the candidates' titles.  Derby can't tell which
+      // trigram is rarest when planning, so the join order is fixed
+      trigramPostings = read.prepareStatement("select taskId from title_trigrams where trigram = ?");
+      trigramPostings.setMaxRows(POSTINGS_COUNTED);
+      for (int n = 1; n <= MAX_QUERY_TRIGRAMS; n++) {
+        StringBuilder sql = new StringBuilder("select t.* from --DERBY-PROPERTIES joinOrder=FIXED\n");
+        sql.append("title_trigrams g1 --DERBY-PROPERTIES constraint=pk_title_trigrams\n");
+        for (int i = 2; i <= n; i++) {
+          sql.append("join title_trigrams g" + i + " --DERBY-PROPERTIES constraint=pk_title_trigrams, joinStrategy=NESTEDLOOP\n");
+          sql.append("on g" + i + ".trigram = ? and g" + i + ".taskId = g1.taskId ");
+        }
+        sql.append("join tasks t --DERBY-PROPERTIES joinStrategy=NESTEDLOOP\n");
+        sql.append("on t.taskId = g1.taskId where g1.trigram = ? and upper(t.title) like upper('%'||?||'%') order by t.lastUpdated desc" + PAGE);
+        getByTitleTrigrams[n - 1] = read.prepareStatement(sql.toString());
+      }
+
+      // Keyset cursors; the first condition lets the (lastUpdated, taskid) index bound the scan
+      lastTasksBefore = read.prepareStatement("select * from tasks where lastUpdated <= ? and (lastUpdated < ? or taskid < ?) " +
+          "order by lastUpdated desc, taskid desc fetch next ? rows only");
+      oldestTasksAfter = read.prepareStatement("select * from tasks where lastUpdated >= ? and (lastUpdated > ? or taskid > ?) " +
+          "order by lastUpdated asc, taskid asc fetch next ? rows only");
+
+      // Task summaries; the slowest tasks on a host are found from the host's rows of task_hosts
+      String summaryColumns = "t.taskId, t.title, t.numReports, t.reportStart, t.reportEnd, t.maxFanIn, t.hasErrors";
+      summary = read.prepareStatement("select " + summaryColumns + " from tasks t where t.taskId = ?");
+      hostsOfTask = read.prepareStatement("select host from task_hosts where taskId = ?");
+      agentsOfTask = read.prepareStatement("select agent from task_agents where taskId = ?");
+      slowest = read.prepareStatement("select " + summaryColumns + " from tasks t where t.reportEnd >= ? and t.duration is not null " +
+          "order by t.duration desc, t.taskId" + PAGE);
+      slowestOnHost = read.prepareStatement("select " + summaryColumns + " from task_hosts h join tasks t on t.taskId = h.taskId " +
+          "where h.host = ? and t.reportEnd >= ? and t.duration is not null order by t.duration desc, t.taskId" + PAGE);
+    }
+
+    private List<String> queryStrings(PreparedStatement query, String taskId) throws SQLException {
+      List<String> values = new ArrayList<String>();
+      query.setString(1, taskId);
+      ResultSet rs = query.executeQuery();
+      try {
+        while (rs.next())
+          values.add(rs.getString(1));
+      } finally {
+        rs.close();
+      }
+      return values;
+    }
+
+    /**
+     * Runs a query of summary columns, and reads each task's hosts and agents
+     */
+    private List<TaskSummary> querySummaries(PreparedStatement query) throws SQLException {
+      List<TaskSummary> summaries = new ArrayList<TaskSummary>();
+      ResultSet rs = query.executeQuery();
+      try {
+        while (rs.next()) {
+          String taskId = rs.getString(1);
+          long start = rs.getLong(4);
+          Long reportStart = rs.wasNull() ? null : start;
+          long end = rs.getLong(5);
+          Long reportEnd = rs.wasNull() ? null : end;
+          summaries.add(new TaskSummary(taskId, rs.getString(2), rs.getInt(3), reportStart, reportEnd, queryStrings(hostsOfTask, taskId),
+              queryStrings(agentsOfTask, taskId), rs.getInt(6), rs.getShort(7) != 0));
+        }
+      } finally {
+        rs.close();
+      }
+      return summaries;
+    }
+
+    public TaskRecord getTask(String taskId) {
+      try {
+        getTask.setString(1, taskId);
+        List<TaskRecord> records = queryRecords(getTask);
+        return records.isEmpty() ? null : records.get(0);
+      } catch (SQLException e) {
+        LOG.warn("Unable to get the record of task " + taskId, e);
+      }
+      return null;
+    }
+
+    public TaskSummary getTaskSummary(String taskId) {
+      try {
+        summary.setString(1, taskId);
+        List<TaskSummary> summaries = querySummaries(summary);
+        return summaries.isEmpty() ? null : summaries.get(0);
+      } catch (SQLException e) {
+        LOG.warn("Unable to get the summary of task " + taskId, e);
+      }
+      return null;
+    }
+
+    public List<TaskSummary> getSlowestTasks(String host, long since, int offset, int limit) {
+      if (limit <= 0)
+        return Collections.emptyList();
+      try {
+        PreparedStatement query = host == null ? slowest : slowestOnHost;
+        int index = 1;
+        if (host != null)
+          query.setString(index++, host);
+        query.setLong(index++, since);
+        setPage(query, index, offset, limit);
+        return querySummaries(query);
+      } catch (SQLException e) {
+        LOG.warn("Internal SQL error", e);
+      }
+      return Collections.emptyList();
     }
 
     /**
@@ -228,48 +1076,43 @@ public class DerbyMetadataStore implements MetadataStore {
     }
 
     /**
-     * Creates a list of TaskRecord objects from a databse result set
+     * Sets the offset and limit of a paged query, whose other parameters have
+     * already been set
+     */
+    private void setPage(PreparedStatement query, int index, int offset, int limit) throws SQLException {
+      query.setInt(index, offset);
+      query.setInt(index + 1, limit);
+    }
+
+    /**
+     * Runs a query and reads all of its rows as task records
      */
-    private List<TaskRecord> createRecordList(ResultSet rs, int offset, int limit) throws SQLException {
+    private List<TaskRecord> queryRecords(PreparedStatement query) throws SQLException {
       List<TaskRecord> lst = new ArrayList<TaskRecord>();
-      int i = 0;
-      while (rs.next()) {
-        if (i >= offset && i < offset + limit)
+      ResultSet rs = query.executeQuery();
+      try {
+        while (rs.next())
           lst.add(readTaskRecord(rs));
-        i++;
+      } finally {
+        rs.close();
       }
       return lst;
     }
 
-    public synchronized List<TaskRecord> getTasksSince(long milliSecondsSince1970, int offset, int limit) {
-      ArrayList<TaskRecord> lst = new ArrayList<TaskRecord>();
-
+    public List<TaskRecord> getTasksSince(long milliSecondsSince1970, int offset, int limit) {
+      if (limit <= 0)
+        return Collections.emptyList();
       try {
-        if (offset + limit + 1 < 0) {
-          updatedSince.setMaxRows(Integer.MAX_VALUE);
-        } else {
-          updatedSince.setMaxRows(offset + limit + 1);
-        }
         updatedSince.setString(1, (new Timestamp(milliSecondsSince1970)).toString());
-        ResultSet rs = updatedSince.executeQuery();
-        try {
-          int i = 0;
-          while (rs.next()) {
-            if (i >= offset && i < offset + limit)
-              lst.add(readTaskRecord(rs));
-            i++;
-          }
-        } finally {
-          rs.close();
-        }
+        setPage(updatedSince, 2, offset, limit);
+        return queryRecords(updatedSince);
       } catch (SQLException e) {
         LOG.warn("Internal SQL error", e);
       }
-
-      return lst;
+      return null;
     }
 
-    public synchronized Collection<String> getTagsForTask(String taskId) {
+    public Collection<String> getTagsForTask(String taskId) {
       try {
         getTags.setString(1, taskId);
         getTags.execute();
@@ -286,64 +1129,76 @@ public class DerbyMetadataStore implements MetadataStore {
       return Collections.emptyList();
     }
 
-    public synchronized List<TaskRecord> getLatestTasks(int offset, int limit) {
-      int numToFetch = offset + limit;
-      List<TaskRecord> lst = new ArrayList<TaskRecord>();
+    public List<TaskRecord> getLatestTasks(int offset, int limit) {
+      if (limit <= 0)
+        return Collections.emptyList();
       try {
-        if (offset + limit + 1 < 0) {
-          lastTasks.setMaxRows(Integer.MAX_VALUE);
-        } else {
-          lastTasks.setMaxRows(offset + limit + 1);
-        }
-        ResultSet rs = lastTasks.executeQuery();
-        try {
-          int i = 0;
-          while (rs.next() && numToFetch > 0) {
-            if (i >= offset && i < offset + limit)
-              lst.add(readTaskRecord(rs));
-            numToFetch -= 1;
-            i++;
-          }
-        } finally {
-          rs.close();
-        }
+        setPage(lastTasks, 1, offset, limit);
+        return queryRecords(lastTasks);
       } catch (SQLException e) {
         LOG.warn("Internal SQL error", e);
       }
-      return lst;
+      return null;
     }
 
-    public synchronized List<TaskRecord> getTasksByTag(String tag, int offset, int limit) {
-      List<TaskRecord> lst = new ArrayList<TaskRecord>();
+    public List<TaskRecord> getLatestTasksBefore(long lastUpdated, String taskId, int limit) {
+      if (limit <= 0)
+        return Collections.emptyList();
+      try {
+        Timestamp cursor = new Timestamp(lastUpdated);
+        lastTasksBefore.setTimestamp(1, cursor);
+        lastTasksBefore.setTimestamp(2, cursor);
+        lastTasksBefore.setString(3, taskId);
+        lastTasksBefore.setInt(4, limit);
+        return queryRecords(lastTasksBefore);
+      } catch (SQLException e) {
+        LOG.warn("SQLException in getLatestTasksBefore", e);
+      }
+      return null;
+    }
+
+    public List<TaskRecord> getOldestTasks(int offset, int limit) {
+      if (limit <= 0)
+        return Collections.emptyList();
+      try {
+        setPage(oldestTasks, 1, offset, limit);
+        return queryRecords(oldestTasks);
+      } catch (SQLException e) {
+        LOG.warn("SQLException in getOldestTasks", e);
+      }
+      return null;
+    }
+
+    public List<TaskRecord> getOldestTasksAfter(long lastUpdated, String taskId, int limit) {
+      if (limit <= 0)
+        return Collections.emptyList();
+      try {
+        Timestamp cursor = new Timestamp(lastUpdated);
+        oldestTasksAfter.setTimestamp(1, cursor);
+        oldestTasksAfter.setTimestamp(2, cursor);
+        oldestTasksAfter.setString(3, taskId);
+        oldestTasksAfter.setInt(4, limit);
+        return queryRecords(oldestTasksAfter);
+      } catch (SQLException e) {
+        LOG.warn("SQLException in getOldestTasksAfter", e);
+      }
+      return null;
+    }
+
+    public List<TaskRecord> getTasksByTag(String tag, int offset, int limit) {
+      if (limit <= 0)
+        return Collections.emptyList();
       try {
-        if (offset + limit + 1 < 0) {
-          getByTag.setMaxRows(Integer.MAX_VALUE);
-        } else {
-          getByTag.setMaxRows(offset + limit + 1);
-        }
         getByTag.setString(1, tag);
-        ResultSet rs = getByTag.executeQuery();
-        try {
-          int i = 0;
-          while (rs.next()) {
-            TaskRecord rec = readTaskRecord(rs);
-            if (rec.getTags().contains(tag)) { // Make sure the SQL "LIKE"
-              // match is exact
-              if (i >= offset && i < offset + limit)
-                lst.add(rec);
-            }
-            i++;
-          }
-        } finally {
-          rs.close();
-        }
+        setPage(getByTag, 2, offset, limit);
+        return queryRecords(getByTag);
       } catch (SQLException e) {
         LOG.warn("SQLException in getTasksByTag", e);
       }
-      return lst;
+      return null;
     }
 
-    public synchronized Collection<String> getOverlappingTasks(String taskId) {
+    public Collection<String> getOverlappingTasks(String taskId) {
       HashSet<String> overlaps = new HashSet<String>();
       overlaps.add(taskId);
 
@@ -381,196 +1236,408 @@ public class DerbyMetadataStore implements MetadataStore {
       return overlaps;
     }
 
-    public synchronized List<TaskRecord> getTasksByTitle(String title, int offset, int limit) {
+    public List<TaskRecord> getTasksByTitle(String title, int offset, int limit) {
+      if (limit <= 0)
+        return Collections.emptyList();
       try {
-        if (offset + limit + 1 < 0) {
-          getByTitle.setMaxRows(Integer.MAX_VALUE);
-        } else {
-          getByTitle.setMaxRows(offset + limit + 1);
-        }
         getByTitle.setString(1, title);
-        ResultSet rs = getByTitle.executeQuery();
-        try {
-          return createRecordList(rs, offset, limit);
-        } finally {
-          rs.close();
-        }
+        setPage(getByTitle, 2, offset, limit);
+        return queryRecords(getByTitle);
       } catch (SQLException e) {
         LOG.warn("SQLException in getTasksByTitle", e);
       }
-      return Collections.emptyList();
+      return null;
     }
 
-    public synchronized List<TaskRecord> getTasksByTitleSubstring(String title, int offset, int limit) {
+    public List<TaskRecord> getTasksByTitleSubstring(String title, int offset, int limit) {
+      if (limit <= 0)
+        return Collections.emptyList();
       try {
-        if (offset + limit + 1 < 0) {
-          getByTitleApprox.setMaxRows(Integer.MAX_VALUE);
-        } else {
-          getByTitleApprox.setMaxRows(offset + limit + 1);
+        // Short queries have no trigrams, and like wildcards could match titles without the query's trigrams
+        if (title.indexOf('%') < 0 && title.indexOf('_') < 0) {
+          List<String> trigrams = rarestTrigrams(title);
+          if (trigrams != null) {
+            int n = trigrams.size();
+            if (n == 0)
+              return Collections.emptyList();
+            PreparedStatement query = getByTitleTrigrams[n - 1];
+            for (int i = 1; i < n; i++)
+              query.setString(i, trigrams.get(i));
+            query.setString(n, trigrams.get(0));
+            query.setString(n + 1, title);
+            setPage(query, n + 2, offset, limit);
+            return queryRecords(query);
+          }
         }
         getByTitleApprox.setString(1, title);
-        ResultSet rs = getByTitleApprox.executeQuery();
-        try {
-          return createRecordList(rs, offset, limit);
-        } finally {
-          rs.close();
-        }
+        setPage(getByTitleApprox, 2, offset, limit);
+        return queryRecords(getByTitleApprox);
       } catch (SQLException e) {
         LOG.warn("Internal SQL error", e);
       }
-      return Collections.emptyList();
+      return null;
+    }
+
+    /**
+     * Returns up to MAX_QUERY_TRIGRAMS of the text's trigrams, rarest first.
+     * Returns an empty list if no title contains one of them, or null if the
+     * text has none or they are all too common to be worth using
+     */
+    private List<String> rarestTrigrams(String text) throws SQLException {
+      List<String> trigrams = new ArrayList<String>(trigrams(text));
+      if (trigrams.isEmpty())
+        return null;
+
+      // Sample trigrams spread across the text, including the first and last
+      int sampled = Math.min(trigrams.size(), TRIGRAMS_SAMPLED);
+      final Map<String, Integer> sizes = new HashMap<String, Integer>();
+      for (int i = 0; i < sampled; i++) {
+        String trigram = trigrams.get(sampled == 1 ? 0 : i * (trigrams.size() - 1) / (sampled - 1));
+        int size = countPostings(trigram);
+        if (size == 0)
+          return Collections.emptyList();
+        sizes.put(trigram, size);
+      }
+
+      List<String> rarest = new ArrayList<String>(sizes.keySet());
+      Collections.sort(rarest, new Comparator<String>() {
+        public int compare(String a, String b) {
+          return sizes.get(a).compareTo(sizes.get(b));
+        }
+      });
+      if (sizes.get(rarest.get(0)) >= POSTINGS_COUNTED)
+        return null;
+      return rarest.subList(0, Math.min(rarest.size(), MAX_QUERY_TRIGRAMS));
+    }
+
+    /**
+     * Returns the size of the trigram's posting list, up to POSTINGS_COUNTED
+     */
+    private int countPostings(String trigram) throws SQLException {
+      trigramPostings.setString(1, trigram);
+      ResultSet rs = trigramPostings.executeQuery();
+      try {
+        int count = 0;
+        while (rs.next())
+          count++;
+        return count;
+      } finally {
+        rs.close();
+      }
     }
 
-    public synchronized int numReports() {
+    public List<IngestCount> getIngestCounts(long startTime) {
+      List<IngestCount> counts = new ArrayList<IngestCount>();
       try {
-        ResultSet rs = totalNumReports.executeQuery();
+        ingestCounts.setTimestamp(1, new Timestamp(startTime));
+        ResultSet rs = ingestCounts.executeQuery();
         try {
-          rs.next();
-          return rs.getInt("totalreports");
+          while (rs.next())
+            counts.add(new IngestCount(rs.getTimestamp(1).getTime(), rs.getInt(2), rs.getInt(3)));
         } finally {
           rs.close();
         }
       } catch (SQLException e) {
-        LOG.warn("Internal SQL error", e);
+        LOG.warn("SQLException in getIngestCounts", e);
       }
-      return 0;
+      return counts;
+    }
+  }
+
+  /**
+   * Removes the tasks from the lifetime index once their removal has
+   * committed
+   */
+  private void removeLifetimes(Collection<String> taskIds) {
+    synchronized (removedWhileLoading) {
+      for (String taskId : taskIds)
+        lifetimes.remove(taskId);
+      if (!lifetimesLoaded)
+        removedWhileLoading.addAll(taskIds);
+    }
+  }
+
+  /**
+   * Indexes the lifetimes of the tasks already in the database, with its own
+   * connection so that the writer can apply reports in the meantime. Until
+   * this is done, concurrent tasks are found with a database query
+   */
+  private final class LifetimeLoader extends Thread {
+
+    public LifetimeLoader() {
+      super("LifetimeLoader");
     }
 
-    public synchronized int numTasks() {
+    @Override
+    public void run() {
+      long start = System.currentTimeMillis();
       try {
-        ResultSet rs = totalNumTasks.executeQuery();
+        Connection conn = DriverManager.getConnection("jdbc:derby:tasks");
         try {
-          rs.next();
-          return rs.getInt("numtasks");
-        } finally {
+          Statement select = conn.createStatement();
+          ResultSet rs = select.executeQuery("select taskId, firstSeen, lastUpdated from tasks");
+          while (alive && rs.next())
+            lifetimes.update(rs.getString(1), rs.getTimestamp(2).getTime(), rs.getTimestamp(3).getTime());
           rs.close();
+          select.close();
+        } finally {
+          conn.close();
         }
       } catch (SQLException e) {
-        LOG.warn("Internal SQL error", e);
+        LOG.warn("Unable to index task lifetimes, concurrent tasks will be found with database queries", e);
+        return;
       }
-      return 0;
+      if (!alive)
+        return;
+
+      // The scan may have read tasks before they were removed.  A task that was
+      // removed and then received new reports is indexed again by its next report
+      synchronized (removedWhileLoading) {
+        for (String taskId : removedWhileLoading)
+          lifetimes.remove(taskId);
+        removedWhileLoading.clear();
+        lifetimesLoaded = true;
+      }
+      LOG.info("Indexed the lifetimes of " + lifetimes.size() + " tasks in " + (System.currentTimeMillis() - start) + "ms");
     }
   }
 
+  /**
+   * Applies task updates in the background. Updates are coalesced per task
+   * between flushes, and each flush applies them with a few JDBC batches. A
+   * flush happens every database-update-interval-ms, or sooner once enough
+   * tasks have pending updates, so the writer keeps up with bursts
+   */
   private final class DatabaseWriter extends Thread {
 
-    private final class TaskUpdate {
-      public String taskid;
-      public String title = null;
-      public Set<String> tags = null;
-      public int newreportcount = 0;
+    private final class TaskUpdate extends PendingUpdates.Update {
+      public boolean created = false;
+      public boolean failed = false;
+      public String indexedTitle = null;
+      public boolean reindex = false;
+
+      public TaskUpdate(String taskId) {
+        super(taskId);
+      }
     }
 
     private Connection write;
-    private PreparedStatement insert, update, updateTitle, updateTags, countTasks, getTags;
+    private PreparedStatement insert, updateTask, appendTags, insertTag, delete, deleteTags, insertTrigram, deleteTrigrams;
+    private PreparedStatement insertHost, insertAgent, deleteHosts, deleteAgents;
+    private PreparedStatement reportsOfTask, addToStat, insertMinute, updateMinute, pruneMinutes;
+
+    private final long interval;
+    private final long ingestMaxAge = XTraceSettings.METADATA_INGEST_STATS_MAX_AGE;
+    private Timestamp flushTime;
 
-    private Map<String, TaskUpdate> pendingUpdates = new HashMap<String, TaskUpdate>();
+    private final PendingUpdates<TaskUpdate> pendingUpdates;
+    private List<String> pendingRemovals = new ArrayList<String>();
+    private CountDownLatch removalsDone = new CountDownLatch(1);
+    private CountDownLatch flushDone = new CountDownLatch(1);
+
+    // Tasks recently seen to exist, least recently used first, and their indexed
+    // titles if known; only used by the writer thread
+    private final Map<String, String> known;
 
     public DatabaseWriter() throws Exception {
+      this(XTraceSettings.DATABASE_UPDATE_INTERVAL, XTraceSettings.METADATA_FLUSH_THRESHOLD, XTraceSettings.METADATA_MAX_PENDING_TASKS,
+          XTraceSettings.METADATA_MAX_PENDING_WAIT, XTraceSettings.METADATA_KNOWN_TASKS);
+    }
+
+    public DatabaseWriter(long interval, int flushThreshold, int maxPendingTasks, long maxPendingWait, final int knownTasks) throws Exception {
+      super("DatabaseWriter");
+      this.interval = interval;
+      pendingUpdates = new PendingUpdates<TaskUpdate>(flushThreshold, maxPendingTasks, maxPendingWait) {
+        TaskUpdate newUpdate(String taskId) {
+          return new TaskUpdate(taskId);
+        }
+      };
+      known = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > knownTasks;
+        }
+      };
       write = DriverManager.getConnection("jdbc:derby:tasks");
       write.setAutoCommit(false);
       createPreparedStatements();
     }
 
     private void createPreparedStatements() throws SQLException {
-      insert = write.prepareStatement("insert into tasks (taskid, tags, title, numReports) values (?, ?, ?, ?)");
-      update = write.prepareStatement("update tasks set lastUpdated = current_timestamp, " + "numReports = numReports + ? where taskId = ?");
-      updateTitle = write.prepareStatement("update tasks set title = ? where taskid = ?");
-      updateTags = write.prepareStatement("update tasks set tags = ? where taskid = ?");
-      countTasks = write.prepareStatement("select count(taskid) as rowcount from tasks where taskid = ?");
-      getTags = write.prepareStatement("select tags from tasks where taskid = ?");
+      insert = write.prepareStatement("insert into tasks (taskid, tags, title, numReports, firstSeen, lastUpdated, reportStart, reportEnd, duration, maxFanIn, hasErrors) " +
+          "select cast(? as varchar(40)), cast(? as varchar(32672)), cast(? as varchar(128)), cast(? as integer), cast(? as timestamp), cast(? as timestamp), " +
+          "cast(? as bigint), cast(? as bigint), cast(? as bigint), cast(? as integer), cast(? as smallint) " +
+          "from sysibm.sysdummy1 where not exists (select 1 from tasks where taskid = ?)");
+
+      updateTask = write.prepareStatement("update tasks set lastUpdated = ?, numReports = numReports + ?, " +
+          "title = coalesce(cast(? as varchar(128)), title), reportStart = " + NEW_REPORT_START + ", reportEnd = " + NEW_REPORT_END + ", " +
+          "duration = " + NEW_REPORT_END + " - " + NEW_REPORT_START + ", " +
+          "maxFanIn = case when maxFanIn < ? then ? else maxFanIn end, hasErrors = case when hasErrors < ? then ? else hasErrors end where taskid = ?");
+      appendTags = write.prepareStatement(APPEND_TAGS);
+      insertTag = write.prepareStatement(INSERT_TAG);
+      delete = write.prepareStatement("delete from tasks where taskid = ?");
+      deleteTags = write.prepareStatement("delete from task_tags where taskid = ?");
+      insertTrigram = write.prepareStatement(INSERT_TRIGRAM);
+      deleteTrigrams = write.prepareStatement("delete from title_trigrams where taskid = ?");
+      insertHost = write.prepareStatement(INSERT_HOST);
+      insertAgent = write.prepareStatement(INSERT_AGENT);
+      deleteHosts = write.prepareStatement("delete from task_hosts where taskid = ?");
+      deleteAgents = write.prepareStatement("delete from task_agents where taskid = ?");
+      reportsOfTask = write.prepareStatement("select numReports from tasks where taskid = ?");
+      addToStat = write.prepareStatement(ADD_TO_STAT);
+      insertMinute = write.prepareStatement("insert into ingest_stats (bucket, tasks, reports) select cast(? as timestamp), cast(? as integer), cast(? as integer) " +
+          "from sysibm.sysdummy1 where not exists (select 1 from ingest_stats where bucket = ?)");
+      updateMinute = write.prepareStatement("update ingest_stats set tasks = tasks + ?, reports = reports + ? where bucket = ?");
+      pruneMinutes = write.prepareStatement("delete from ingest_stats where bucket < ?");
     }
 
-    private TaskUpdate getTaskUpdate(String taskId) {
-      TaskUpdate update = pendingUpdates.get(taskId);
-      if (update == null) {
-        update = new TaskUpdate();
-        update.taskid = taskId;
-        pendingUpdates.put(taskId, update);
-      }
-      return update;
+    /**
+     * Records a report for its task, along with its title, tags and its part
+     * of the task's summary
+     */
+    public void update(Report report) {
+      pendingUpdates.add(report);
     }
 
-    public synchronized void reportReceived(String taskId) {
-      TaskUpdate update = getTaskUpdate(taskId);
-      update.newreportcount++;
+    /**
+     * Schedules the tasks to be removed on the next update.  Returns a latch
+     * that is released once they have been removed
+     */
+    public CountDownLatch removeTasks(Collection<String> taskIds) {
+      CountDownLatch latch;
+      synchronized (this) {
+        pendingRemovals.addAll(taskIds);
+        latch = removalsDone;
+      }
+      pendingUpdates.signal();
+      return latch;
     }
 
-    public synchronized void setTitle(String taskId, String title) {
-      TaskUpdate update = getTaskUpdate(taskId);
-      update.title = title;
+    /**
+     * Flushes the pending updates now.  Returns a latch that is released once
+     * they have been applied
+     */
+    public CountDownLatch flush() {
+      CountDownLatch latch;
+      synchronized (this) {
+        latch = flushDone;
+      }
+      pendingUpdates.signal();
+      return latch;
     }
 
-    public synchronized void addTags(String taskId, List<String> tags) {
-      TaskUpdate update = getTaskUpdate(taskId);
-      if (update.tags == null)
-        update.tags = new HashSet<String>();
-      update.tags.addAll(tags);
+    /**
+     * Waits until the interval since the last flush has passed, or until
+     * there is enough work to flush early
+     */
+    private void awaitWork(long lastFlush) throws InterruptedException {
+      long remaining;
+      while (alive && (remaining = lastFlush + interval - System.currentTimeMillis()) > 0)
+        if (pendingUpdates.await(remaining))
+          return;
     }
 
     @Override
     public void run() {
-      long last_processing_time = System.currentTimeMillis();
-      Set<String> seen = new HashSet<String>();
-      Map<String, TaskUpdate> updates = new HashMap<String, TaskUpdate>();
+      long lastFlush = System.currentTimeMillis();
+      List<TaskUpdate> updates = new ArrayList<TaskUpdate>();
       while (alive && !Thread.currentThread().isInterrupted()) {
-        // Wait until the next allowed processing time
         try {
-          long tosleep;
-          while ((tosleep = (last_processing_time + XTraceSettings.DATABASE_UPDATE_INTERVAL - System.currentTimeMillis())) > 0) {
-            Thread.sleep(tosleep);
-          }
+          awaitWork(lastFlush);
         } catch (InterruptedException e) {
           // This means the thread is shutting down; we still want to finish
           // updates
         }
 
         // Get the pending database updates
+        List<String> removals;
+        CountDownLatch removalsLatch, flushLatch;
         synchronized (this) {
-          Map<String, TaskUpdate> pending = pendingUpdates;
-          pendingUpdates = updates;
-          updates = pending;
+          removals = pendingRemovals;
+          removalsLatch = removalsDone;
+          if (!removals.isEmpty()) {
+            pendingRemovals = new ArrayList<String>();
+            removalsDone = new CountDownLatch(1);
+          }
+          flushLatch = flushDone;
+          flushDone = new CountDownLatch(1);
         }
+        pendingUpdates.drain(updates);
+        lastFlush = System.currentTimeMillis();
+        flushTime = new Timestamp(lastFlush);
 
-        // Save the start time of processing, to later sleep
-        last_processing_time = System.currentTimeMillis();
-
-        if (updates.size() > 0) {
-          // Process all of the updates
-          for (TaskUpdate update : updates.values()) {
-            String taskId = update.taskid;
-            try {
-              if (!seen.contains(taskId) && !taskExists(taskId)) {
-                // fast track add all details at once
-                newTask(taskId, update);
-              } else {
-                if (update.title != null)
-                  updateTitle(taskId, update.title);
-                if (update.tags != null)
-                  addTagsToExistingTask(taskId, update.tags);
-                if (update.newreportcount > 0)
-                  updateExistingTaskReportCount(taskId, update.newreportcount);
-              }
-            } catch (Exception e) {
-              LOG.warn("Error processing database update for task " + taskId + ", dropping database update.  Report will still exist on disk", e);
-            }
+        // Process removals first, so that new reports for a removed task recreate it
+        if (!removals.isEmpty()) {
+          try {
+            long[] removed = removeTasks(removals);
+            addToTotals(addToStat, -removed[0], -removed[1]);
+            write.commit();
+            epoch.incrementAndGet();
+            totalTasks.addAndGet(-removed[0]);
+            totalReports.addAndGet(-removed[1]);
+            if (lifetimes != null)
+              removeLifetimes(removals);
+          } catch (SQLException e) {
+            LOG.warn("Error removing " + removals.size() + " tasks", e);
+            rollback();
           }
+          removalsLatch.countDown();
+        }
 
-          // Commit the updates
+        if (!updates.isEmpty()) {
+          long[] received = null;
           try {
+            applyBatched(updates);
+            received = recordIngest(updates);
             write.commit();
           } catch (SQLException e) {
-            LOG.warn("Error committing database updates for database updater thread", e);
+            // Fall back to applying the updates one at a time, so only the bad ones are lost
+            LOG.warn("Batched update of " + updates.size() + " tasks failed, applying individually", e);
+            rollback();
+            for (TaskUpdate update : updates) {
+              try {
+                applyIndividually(update);
+              } catch (SQLException e2) {
+                update.failed = true;
+                LOG.warn("Error processing database update for task " + update.taskId + ", dropping database update.  Report will still exist on disk", e2);
+              }
+            }
+            try {
+              received = recordIngest(updates);
+              write.commit();
+            } catch (SQLException e2) {
+              received = null;
+              LOG.warn("Error committing database updates for database updater thread", e2);
+              rollback();
+            }
           }
 
-          // Keep track of the task IDs we've most recently seen
-          if (seen.size() > 1000)
-            seen.clear();
-          seen.addAll(updates.keySet());
-
-          // Clear the updates
+          if (received != null) {
+            epoch.incrementAndGet();
+            totalTasks.addAndGet(received[0]);
+            totalReports.addAndGet(received[1]);
+            if (lifetimes != null)
+              for (TaskUpdate update : updates)
+                if (!update.failed)
+                  lifetimes.update(update.taskId, lastFlush, lastFlush);
+          }
+          for (TaskUpdate update : updates) {
+            if (update.failed || received == null)
+              known.remove(update.taskId);
+            else
+              known.put(update.taskId, update.indexedTitle);
+          }
           updates.clear();
         }
+        flushLatch.countDown();
+      }
+
+      // Release anybody still waiting on removals or flushes
+      synchronized (this) {
+        removalsDone.countDown();
+        flushDone.countDown();
       }
 
       // Finally, clear up the database connection
@@ -581,57 +1648,359 @@ public class DerbyMetadataStore implements MetadataStore {
       }
     }
 
-    private boolean taskExists(String taskId) throws SQLException {
+    /**
+     * Rolls back the transaction, and drops any batches that were not executed
+     * so that they are not run with the next ones
+     */
+    private void rollback() {
       try {
-        countTasks.setString(1, taskId);
-        ResultSet rs = countTasks.executeQuery();
+        write.rollback();
+        clearBatches();
+      } catch (SQLException e) {
+        LOG.warn("Unable to roll back database updates", e);
+      }
+    }
+
+    private void clearBatches() throws SQLException {
+      for (PreparedStatement statement : new PreparedStatement[] { insert, updateTask, appendTags, insertTag, delete, deleteTags, insertTrigram,
+          deleteTrigrams, insertHost, insertAgent, deleteHosts, deleteAgents, addToStat, insertMinute, updateMinute, pruneMinutes })
+        statement.clearBatch();
+    }
+
+    /**
+     * Deletes the tasks, returning the number of tasks and reports removed
+     */
+    private long[] removeTasks(List<String> taskIds) throws SQLException {
+      long tasks = 0, reports = 0;
+      for (String taskId : taskIds) {
+        reportsOfTask.setString(1, taskId);
+        ResultSet rs = reportsOfTask.executeQuery();
         try {
-          rs.next();
-          return rs.getInt("rowcount") != 0;
+          if (!rs.next())
+            continue;
+          tasks++;
+          reports += rs.getInt(1);
         } finally {
           rs.close();
         }
-      } catch (Exception e) {
-        return false;
+        delete.setString(1, taskId);
+        delete.addBatch();
+        deleteTags.setString(1, taskId);
+        deleteTags.addBatch();
+        deleteTrigrams.setString(1, taskId);
+        deleteTrigrams.addBatch();
+        deleteHosts.setString(1, taskId);
+        deleteHosts.addBatch();
+        deleteAgents.setString(1, taskId);
+        deleteAgents.addBatch();
+        known.remove(taskId);
       }
+      if (tasks > 0) {
+        delete.executeBatch();
+        deleteTags.executeBatch();
+        deleteTrigrams.executeBatch();
+        deleteHosts.executeBatch();
+        deleteAgents.executeBatch();
+      }
+      return new long[] { tasks, reports };
     }
 
-    private void newTask(String taskId, TaskUpdate update) throws SQLException {
-      String title = update.title == null ? taskId : update.title;
-      insert.setString(1, taskId);
-      insert.setString(2, joinWithCommas(update.tags));
-      insert.setString(3, title);
-      insert.setInt(4, update.newreportcount);
-      insert.executeUpdate();
+    /**
+     * Adds the tasks created and reports received by the updates to the
+     * totals and to this minute's counts, returning the number of each
+     */
+    private long[] recordIngest(Collection<TaskUpdate> updates) throws SQLException {
+      long tasks = 0, reports = 0;
+      for (TaskUpdate update : updates) {
+        if (!update.failed) {
+          tasks += update.created ? 1 : 0;
+          reports += update.reports;
+        }
+      }
+      addToTotals(addToStat, tasks, reports);
+
+      long now = System.currentTimeMillis();
+      Timestamp minute = new Timestamp(now - now % 60000);
+      insertMinute.setTimestamp(1, minute);
+      insertMinute.setLong(2, tasks);
+      insertMinute.setLong(3, reports);
+      insertMinute.setTimestamp(4, minute);
+      if (insertMinute.executeUpdate() == 0) {
+        updateMinute.setLong(1, tasks);
+        updateMinute.setLong(2, reports);
+        updateMinute.setTimestamp(3, minute);
+        updateMinute.executeUpdate();
+      } else {
+        // A new minute, so drop the ones that have expired
+        pruneMinutes.setTimestamp(1, new Timestamp(minute.getTime() - ingestMaxAge));
+        pruneMinutes.executeUpdate();
+      }
+      return new long[] { tasks, reports };
+    }
+
+    /**
+     * Applies the updates with one batch of inserts for tasks that might be
+     * new, one batch of updates for the tasks that already existed, then
+     * batches for the titles and tags
+     */
+    private void applyBatched(Collection<TaskUpdate> updates) throws SQLException {
+      List<TaskUpdate> inserted = new ArrayList<TaskUpdate>();
+      for (TaskUpdate update : updates) {
+        update.created = false;
+        update.failed = false;
+        if (!known.containsKey(update.taskId)) {
+          setInsertParameters(update);
+          insert.addBatch();
+          inserted.add(update);
+        }
+      }
+      if (!inserted.isEmpty()) {
+        int[] counts = insert.executeBatch();
+        for (int i = 0; i < counts.length; i++)
+          inserted.get(i).created = counts[i] > 0;
+      }
+
+      boolean updating = false;
+      for (TaskUpdate update : updates) {
+        if (!update.created) {
+          setUpdateParameters(update);
+          updateTask.addBatch();
+          updating = true;
+        }
+      }
+      if (updating)
+        updateTask.executeBatch();
+
+      boolean deleting = false, indexing = false;
+      for (TaskUpdate update : updates) {
+        if (reindexTitle(update)) {
+          deleteTrigrams.setString(1, update.taskId);
+          deleteTrigrams.addBatch();
+          deleting = true;
+        }
+        if (update.reindex)
+          indexing |= addTrigrams(insertTrigram, update.taskId, update.indexedTitle) > 0;
+      }
+      if (deleting)
+        deleteTrigrams.executeBatch();
+      if (indexing)
+        insertTrigram.executeBatch();
+
+      // New tasks were inserted with their tags; existing tasks only get the tags that were new to them
+      List<TaskUpdate> tagged = new ArrayList<TaskUpdate>();
+      List<String> tags = new ArrayList<String>();
+      Map<TaskUpdate, List<String>> appended = new HashMap<TaskUpdate, List<String>>();
+      for (TaskUpdate update : updates) {
+        if (update.tags == null)
+          continue;
+        for (String tag : update.tags) {
+          if (tag.isEmpty())
+            continue;
+          if (tag.length() <= MAX_TAG_LENGTH) {
+            setIndexRowParameters(insertTag, update.taskId, tag);
+            insertTag.addBatch();
+            tagged.add(update);
+            tags.add(tag);
+          } else if (!update.created) {
+            appendTo(appended, update, tag);
+          }
+        }
+      }
+      if (!tagged.isEmpty()) {
+        int[] counts = insertTag.executeBatch();
+        for (int i = 0; i < counts.length; i++)
+          if (counts[i] > 0 && !tagged.get(i).created)
+            appendTo(appended, tagged.get(i), tags.get(i));
+      }
+      for (Map.Entry<TaskUpdate, List<String>> entry : appended.entrySet()) {
+        setAppendParameters(entry.getKey().taskId, entry.getValue());
+        appendTags.addBatch();
+      }
+      if (!appended.isEmpty())
+        appendTags.executeBatch();
+
+      boolean hosts = false, agents = false;
+      for (TaskUpdate update : updates) {
+        hosts |= addSources(insertHost, update.taskId, update.summary.hosts);
+        agents |= addSources(insertAgent, update.taskId, update.summary.agents);
+      }
+      if (hosts)
+        insertHost.executeBatch();
+      if (agents)
+        insertAgent.executeBatch();
     }
 
-    private void updateTitle(String taskId, String title) throws SQLException {
-      updateTitle.setString(1, title);
-      updateTitle.setString(2, taskId);
-      updateTitle.executeUpdate();
+    /**
+     * Adds a row for each host or agent to the insert's batch, returning true
+     * if any were added
+     */
+    private boolean addSources(PreparedStatement insertSource, String taskId, Collection<String> sources) throws SQLException {
+      boolean added = false;
+      if (sources != null) {
+        for (String source : sources) {
+          if (source.length() <= MAX_SOURCE_LENGTH) {
+            setIndexRowParameters(insertSource, taskId, source);
+            insertSource.addBatch();
+            added = true;
+          }
+        }
+      }
+      return added;
     }
 
-    private void updateExistingTaskReportCount(String taskId, Integer reportCount) throws SQLException {
-      update.setInt(1, reportCount);
-      update.setString(2, taskId);
-      update.executeUpdate();
+    private void appendTo(Map<TaskUpdate, List<String>> appended, TaskUpdate update, String tag) {
+      List<String> tags = appended.get(update);
+      if (tags == null)
+        appended.put(update, tags = new ArrayList<String>());
+      tags.add(tag);
     }
 
-    private void addTagsToExistingTask(String taskId, Set<String> tags) throws SQLException {
-      getTags.setString(1, taskId);
-      ResultSet tagsRs = getTags.executeQuery();
-      String oldTags = "";
+    /**
+     * Applies a single update without batching.  If it fails, none of it is
+     * applied, so the rest of the transaction can still be committed
+     */
+    private void applyIndividually(TaskUpdate update) throws SQLException {
+      Savepoint savepoint = write.setSavepoint();
       try {
-        tagsRs.next();
-        oldTags = tagsRs.getString("tags");
-      } finally {
-        tagsRs.close();
+        apply(update);
+      } catch (SQLException e) {
+        write.rollback(savepoint);
+        clearBatches();
+        throw e;
       }
-      tags.addAll(Arrays.asList(oldTags.split(",")));
-      updateTags.setString(1, joinWithCommas(tags));
-      updateTags.setString(2, taskId);
-      updateTags.executeUpdate();
+      write.releaseSavepoint(savepoint);
     }
+
+    private void apply(TaskUpdate update) throws SQLException {
+      setInsertParameters(update);
+      update.created = insert.executeUpdate() > 0;
+      if (!update.created) {
+        setUpdateParameters(update);
+        updateTask.executeUpdate();
+      }
+      if (reindexTitle(update)) {
+        deleteTrigrams.setString(1, update.taskId);
+        deleteTrigrams.executeUpdate();
+      }
+      if (update.reindex && addTrigrams(insertTrigram, update.taskId, update.indexedTitle) > 0)
+        insertTrigram.executeBatch();
+      if (addSources(insertHost, update.taskId, update.summary.hosts))
+        insertHost.executeBatch();
+      if (addSources(insertAgent, update.taskId, update.summary.agents))
+        insertAgent.executeBatch();
+      if (update.tags == null)
+        return;
+      List<String> added = new ArrayList<String>();
+      for (String tag : update.tags) {
+        if (tag.isEmpty())
+          continue;
+        boolean isNew = true;
+        if (tag.length() <= MAX_TAG_LENGTH) {
+          setIndexRowParameters(insertTag, update.taskId, tag);
+          isNew = insertTag.executeUpdate() > 0;
+        }
+        if (isNew)
+          added.add(tag);
+      }
+      if (!update.created && !added.isEmpty()) {
+        setAppendParameters(update.taskId, added);
+        appendTags.executeUpdate();
+      }
+    }
+
+    /**
+     * Works out which title the task is indexed by after the update, and
+     * whether its trigrams need to be added. Returns true if the task's
+     * existing trigrams must be deleted first
+     */
+    private boolean reindexTitle(TaskUpdate update) {
+      String previous = known.get(update.taskId);
+      if (update.created) {
+        update.indexedTitle = truncateTitle(update.title == null ? update.taskId : update.title);
+        update.reindex = true;
+        return false;
+      }
+      String title = update.title == null ? null : truncateTitle(update.title);
+      update.reindex = title != null && !title.equals(previous);
+      update.indexedTitle = title == null ? previous : title;
+      return update.reindex;
+    }
+
+    private void setInsertParameters(TaskUpdate update) throws SQLException {
+      insert.setString(1, update.taskId);
+      insert.setString(2, joinWithCommas(update.tags));
+      insert.setString(3, truncateTitle(update.title == null ? update.taskId : update.title));
+      insert.setInt(4, update.reports);
+      insert.setTimestamp(5, flushTime);
+      insert.setTimestamp(6, flushTime);
+      TaskAggregate summary = update.summary;
+      if (summary.hasTimes()) {
+        insert.setLong(7, summary.start);
+        insert.setLong(8, summary.end);
+        insert.setLong(9, summary.end - summary.start);
+      } else {
+        insert.setNull(7, Types.BIGINT);
+        insert.setNull(8, Types.BIGINT);
+        insert.setNull(9, Types.BIGINT);
+      }
+      insert.setInt(10, summary.maxFanIn);
+      insert.setShort(11, (short) (summary.errors ? 1 : 0));
+      insert.setString(12, update.taskId);
+    }
+
+    private void setUpdateParameters(TaskUpdate update) throws SQLException {
+      updateTask.setTimestamp(1, flushTime);
+      updateTask.setInt(2, update.reports);
+      updateTask.setString(3, update.title == null ? null : truncateTitle(update.title));
+      TaskAggregate summary = update.summary;
+      Long start = summary.hasTimes() ? summary.start : null, end = summary.hasTimes() ? summary.end : null;
+      setLongOrNull(updateTask, 4, start);
+      setLongOrNull(updateTask, 5, start);
+      setLongOrNull(updateTask, 6, end);
+      setLongOrNull(updateTask, 7, end);
+      setLongOrNull(updateTask, 8, end);
+      setLongOrNull(updateTask, 9, end);
+      setLongOrNull(updateTask, 10, start);
+      setLongOrNull(updateTask, 11, start);
+      updateTask.setInt(12, summary.maxFanIn);
+      updateTask.setInt(13, summary.maxFanIn);
+      updateTask.setShort(14, (short) (summary.errors ? 1 : 0));
+      updateTask.setShort(15, (short) (summary.errors ? 1 : 0));
+      updateTask.setString(16, update.taskId);
+    }
+
+    private void setLongOrNull(PreparedStatement statement, int index, Long value) throws SQLException {
+      if (value == null)
+        statement.setNull(index, Types.BIGINT);
+      else
+        statement.setLong(index, value);
+    }
+
+    private void setAppendParameters(String taskId, List<String> tags) throws SQLException {
+      DerbyMetadataStore.this.setAppendParameters(appendTags, taskId, tags);
+    }
+  }
+
+  private void setAppendParameters(PreparedStatement appendTags, String taskId, List<String> tags) throws SQLException {
+    String joined = joinWithCommas(tags);
+    appendTags.setString(1, joined);
+    appendTags.setString(2, joined);
+    appendTags.setString(3, taskId);
+  }
+
+  private static String truncateTitle(String title) {
+    return title.length() > 128 ? title.substring(0, 128) : title;
+  }
+
+  /**
+   * Sets the parameters of an insert of a (value, taskId) row that is skipped
+   * if the row exists, such as INSERT_TAG
+   */
+  private static void setIndexRowParameters(PreparedStatement insertTag, String taskId, String tag) throws SQLException {
+    insertTag.setString(1, tag);
+    insertTag.setString(2, taskId);
+    insertTag.setString(3, tag);
+    insertTag.setString(4, taskId);
   }
 
   private String joinWithCommas(Collection<String> strings) {
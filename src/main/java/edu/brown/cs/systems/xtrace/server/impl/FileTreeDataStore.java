@@ -2,16 +2,37 @@ package edu.brown.cs.systems.xtrace.server.impl;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.OutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Iterator;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minidev.json.JSONObject;
 
 import org.apache.log4j.Logger;
 
@@ -20,20 +41,56 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.protobuf.CodedOutputStream;
 
 import edu.brown.cs.systems.xtrace.XTraceSettings;
 import edu.brown.cs.systems.xtrace.server.api.DataStore;
 import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+import edu.brown.cs.systems.xtrace.server.api.StatusSource;
+import edu.brown.cs.systems.xtrace.server.impl.GroupCommitter.FsyncPolicy;
 import edu.brown.cs.systems.xtrace.server.impl.ServerReporting.ReportOnDisk;
-import edu.brown.cs.systems.xtrace.server.impl.deprecated.Report2;
 
-public class FileTreeDataStore implements DataStore {
+public class FileTreeDataStore implements DataStore, StatusSource {
 
   static private final Logger LOG = Logger.getLogger(FileTreeDataStore.class);
   
+  // Maximum time a read waits for a live task's asynchronous writes to complete
+  private static final long READ_FLUSH_TIMEOUT = 1000;
+  
+  // Lists the task files opened for writing, so that they can be recovered after a crash
+  static final String WRITERS_JOURNAL = "open-writers";
+  
+  // The journal is compacted once it has at least this many entries, and twice
+  // as many as there are unfinished writers
+  private static final int JOURNAL_COMPACT_ENTRIES = 10000;
+  
   private final File data;
+  private final Committer committer;
+  private final AsyncTaskWriter.AsyncIO async;
+  private final Object journalLock = new Object();
+  private FileOutputStream journalfile;
+  private DataOutputStream journal;
+  private int journalEntries = 0;
+  int journalCompactEntries = JOURNAL_COMPACT_ENTRIES;
+  
+  // Tracks the total size of the task files; the baseline is only calculated if somebody asks
+  private final AtomicLong sizeDelta = new AtomicLong();
+  private volatile long sizeBaseline = -1;
+  
+  // Task files at least this large are memory-mapped, at most a window at a time
+  long mmapThreshold = XTraceSettings.DATASTORE_MMAP_THRESHOLD;
+  long mapWindow = XTraceSettings.DATASTORE_MAP_WINDOW;
   
   public FileTreeDataStore(String directory) throws IOException {
+    this(directory, "async".equals(XTraceSettings.DATASTORE_WRITE_MODE));
+  }
+  
+  /**
+   * @param async if true, task files are written with asynchronous I/O, so that
+   *          the ingest thread never waits on the disk
+   */
+  public FileTreeDataStore(String directory, boolean async) throws IOException {
     if (directory == null)
       throw new IOException("FileTreeDataStore directory name is null");
 
@@ -43,112 +100,675 @@ public class FileTreeDataStore implements DataStore {
     if (!data.canWrite())
       throw new IOException("FileTreeDataStore cannot write to specified datastore " + directory);
     
-    LOG.info("DataStore directory: " + data.getAbsolutePath());
+    LOG.info("DataStore directory: " + data.getAbsolutePath() + (async ? ", asynchronous writes" : ""));
+    
+    // The journal is only left behind if we did not shut down cleanly
+    File journalpath = new File(data, WRITERS_JOURNAL);
+    if (journalpath.exists())
+      recover(journalpath);
+    journalfile = new FileOutputStream(journalpath);
+    journal = new DataOutputStream(new BufferedOutputStream(journalfile, 4096));
+    
+    this.async = async ? new AsyncTaskWriter.AsyncIO() : null;
+    committer = new Committer();
+    committer.start();
+  }
+  
+  /**
+   * A writer for a task file.  Writes are flushed by the group committer rather
+   * than by the ingest thread.  Apart from force and awaitFlushed, all access is
+   * synchronized on the writer itself
+   */
+  static abstract class TaskWriter {
+    protected final String taskId;
+    protected final boolean framed;
+    protected long recoverFrom;
+    protected boolean closed = false;
+    protected boolean unsynced = false;
+    
+    /**
+     * @param framed whether the task file uses framed records; files written
+     *          before framing was introduced are still appended to unframed
+     */
+    protected TaskWriter(String taskId, boolean framed) {
+      this.taskId = taskId;
+      this.framed = framed;
+    }
+    
+    /**
+     * Returns the number of bytes a report takes up in the task file
+     */
+    public int sizeOf(ReportOnDisk report) {
+      int size = report.getSerializedSize();
+      return framed ? Frames.size(size) : size + CodedOutputStream.computeRawVarint32Size(size);
+    }
+    
+    /**
+     * Buffers a report of the specified (delimited) size.  Returns false if the
+     * report was dropped
+     */
+    public abstract boolean write(ReportOnDisk report, int size) throws IOException;
+    
+    /**
+     * Starts writing all buffered reports to the file
+     */
+    public abstract void flush() throws IOException;
+    
+    /**
+     * Forces flushed reports to disk
+     */
+    public abstract void force() throws IOException;
+    
+    public abstract void close(boolean sync) throws IOException;
+    
+    /**
+     * Returns the offset in the file just past the last report accepted
+     */
+    public abstract long end();
+    
+    /**
+     * Returns true once the writer is closed and all of its reports have
+     * reached the file
+     */
+    public boolean isFinished() {
+      return closed;
+    }
+    
+    /**
+     * Waits until previously flushed reports have reached the file.  Writers
+     * that flush synchronously have nothing to wait for
+     */
+    public void awaitFlushed(long timeout) throws InterruptedException {
+    }
+  }
+  
+  /**
+   * Writes through a BufferedOutputStream, so flushes block until the data is
+   * written
+   */
+  private static class StreamTaskWriter extends TaskWriter {
+    private final FileOutputStream file;
+    private final OutputStream out;
+    private long end;
+    
+    public StreamTaskWriter(String taskId, File taskfile, boolean framed) throws IOException {
+      super(taskId, framed);
+      file = new FileOutputStream(taskfile, true);
+      out = new BufferedOutputStream(file, XTraceSettings.DATASTORE_BUFFER_SIZE);
+      end = file.getChannel().size();
+      if (framed && end == 0) {
+        new DataOutputStream(out).writeLong(Frames.FILE_MAGIC);
+        end = Frames.FILE_MAGIC_SIZE;
+      }
+    }
+    
+    @Override
+    public boolean write(ReportOnDisk report, int size) throws IOException {
+      if (framed)
+        out.write(Frames.encode(report));
+      else
+        report.writeDelimitedTo(out);
+      end += size;
+      unsynced = true;
+      return true;
+    }
+    
+    @Override
+    public long end() {
+      return end;
+    }
+    
+    @Override
+    public void flush() throws IOException {
+      if (!closed)
+        out.flush();
+    }
+    
+    @Override
+    public void force() throws IOException {
+      file.getFD().sync();
+    }
+    
+    @Override
+    public void close(boolean sync) throws IOException {
+      if (!closed) {
+        closed = true;
+        out.flush();
+        if (sync && unsynced)
+          file.getFD().sync();
+        unsynced = false;
+        out.close();
+      }
+    }
+  }
+  
+  /**
+   * Flushes the open task writers in batches, instead of after every report
+   */
+  private class Committer extends GroupCommitter {
+    public Committer() {
+      super("FileTreeDataStore");
+    }
+    
+    /**
+     * Flushes every writer that has not finished, including writers that have
+     * been evicted but are still completing their writes, and forgets the
+     * writers that have finished
+     */
+    @Override
+    protected void flush() {
+      writercache.cleanUp();
+      for (TaskWriter writer : unfinished) {
+        synchronized(writer) {
+          try {
+            writer.flush();
+          } catch (IOException e) {
+            LOG.warn("IOException flushing task writer", e);
+          }
+        }
+      }
+      // Asynchronous writes are only persisted once they complete
+      if (async != null) {
+        for (TaskWriter writer : unfinished) {
+          try {
+            writer.awaitFlushed(Long.MAX_VALUE);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+      }
+      for (TaskWriter writer : unfinished) {
+        if (writer.isFinished()) {
+          unfinished.remove(writer);
+          open.remove(writer.taskId, writer);
+        }
+      }
+      if (getFsyncPolicy() == FsyncPolicy.NONE)
+        compactJournal();
+    }
+    
+    @Override
+    protected void sync() {
+      // The journal must reach the disk before the task files it lists
+      synchronized(journalLock) {
+        try {
+          journalfile.getFD().sync();
+        } catch (IOException e) {
+          LOG.warn("IOException syncing writers journal", e);
+        }
+      }
+      for (TaskWriter writer : unfinished) {
+        boolean needsync;
+        synchronized(writer) {
+          needsync = writer.unsynced;
+          writer.unsynced = false;
+        }
+        // Sync outside of the lock.  An evicted writer might still be completing
+        // its writes, so is synced too; once its file is closed it has synced itself
+        if (needsync) {
+          try {
+            writer.force();
+          } catch (IOException e) {
+            if (!writer.closed)
+              LOG.warn("IOException syncing task writer", e);
+          }
+        }
+      }
+      compactJournal();
+    }
   }
   
-  private class FileCloser implements RemovalListener<String, OutputStream> {
-    public void  onRemoval(RemovalNotification<String, OutputStream> notification) {
+  /**
+   * Rewrites the journal with just the unfinished writers, once it has grown
+   * well beyond them.  A finished writer flushed its file and, unless the
+   * fsync policy is none, synced it, so the file no longer needs recovering.
+   * The compacted journal is synced and then renamed over the old one
+   */
+  private void compactJournal() {
+    synchronized(journalLock) {
+      if (journalEntries < Math.max(journalCompactEntries, 2 * unfinished.size()))
+        return;
+      File journalpath = new File(data, WRITERS_JOURNAL);
+      File partial = new File(data, WRITERS_JOURNAL + ".tmp");
       try {
-        notification.getValue().close();
+        FileOutputStream file = new FileOutputStream(partial);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 4096));
+        int entries = 0;
+        for (TaskWriter writer : unfinished) {
+          out.writeUTF(writer.taskId);
+          out.writeLong(writer.recoverFrom);
+          entries++;
+        }
+        out.flush();
+        file.getFD().sync();
+        if (!partial.renameTo(journalpath)) {
+          out.close();
+          throw new IOException("Unable to replace " + journalpath);
+        }
+        journal.close();
+        journalfile = file;
+        journal = out;
+        LOG.debug("Compacted writers journal from " + journalEntries + " to " + entries + " entries");
+        journalEntries = entries;
       } catch (IOException e) {
-        LOG.warn("IOException closing writer for task " + notification.getKey(), e);
+        LOG.warn("IOException compacting writers journal", e);
+        partial.delete();
+      }
+    }
+  }
+  
+  /**
+   * Truncates any torn records from the tails of the task files that were
+   * being written when the server stopped.  Only the part of each file written
+   * since it was opened is scanned, and files are scanned in parallel
+   */
+  private void recover(File journalpath) throws IOException {
+    final Map<String, Long> starts = new HashMap<String, Long>();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalpath), 65536));
+    try {
+      while (true) {
+        String taskId = in.readUTF();
+        long start = in.readLong();
+        Long previous = starts.get(taskId);
+        if (previous == null || start < previous)
+          starts.put(taskId, start);
+      }
+    } catch (EOFException e) {
+      // Reached the end, or a partially written entry
+    } finally {
+      in.close();
+    }
+    
+    LOG.warn("DataStore was not shut down cleanly, recovering " + starts.size() + " task files");
+    long begin = System.currentTimeMillis();
+    final AtomicLong truncated = new AtomicLong();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, XTraceSettings.DATASTORE_RECOVERY_THREADS));
+    for (final Map.Entry<String, Long> entry : starts.entrySet()) {
+      pool.execute(new Runnable() {
+        public void run() {
+          File taskfile = taskFile(entry.getKey());
+          try {
+            truncated.addAndGet(recoverFile(taskfile, entry.getValue()));
+          } catch (IOException e) {
+            LOG.warn("IOException recovering " + taskfile, e);
+          }
+        }
+      });
+    }
+    pool.shutdown();
+    try {
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted during recovery", e);
+    }
+    LOG.info("Recovered " + starts.size() + " task files in " + (System.currentTimeMillis() - begin) + "ms, truncated " + truncated.get() + " bytes");
+  }
+  
+  /**
+   * Truncates a task file at the end of its last intact record, scanning from
+   * the specified offset.  Returns the number of bytes removed
+   */
+  private static long recoverFile(File taskfile, long start) throws IOException {
+    if (!taskfile.exists())
+      return 0;
+    if (Frames.isFramed(taskfile))
+      return Frames.truncate(taskfile, Frames.scan(taskfile, Math.max(start, Frames.FILE_MAGIC_SIZE)));
+    if (start == 0 && taskfile.length() < Frames.FILE_MAGIC_SIZE)
+      return Frames.truncate(taskfile, 0); // A new file whose magic was torn
+    return Frames.truncate(taskfile, Frames.scanDelimited(taskfile, start));
+  }
+  
+  /**
+   * Returns the file that the specified task's reports are written to
+   */
+  private File taskFile(String taskId) {
+    // For some reason, it was decided that a three-level directory is the best choice
+    File l1 = new File(data, taskId.substring(0, 2));
+    File l2 = new File(l1, taskId.substring(2, 4));
+    File l3 = new File(l2, taskId.substring(4, 6));
+    return new File(l3, taskId + ".txt");
+  }
+  
+  private class FileCloser implements RemovalListener<String, TaskWriter> {
+    public void  onRemoval(RemovalNotification<String, TaskWriter> notification) {
+      TaskWriter writer = notification.getValue();
+      synchronized(writer) {
+        try {
+          writer.close(committer.getFsyncPolicy() != FsyncPolicy.NONE);
+        } catch (IOException e) {
+          LOG.warn("IOException closing writer for task " + notification.getKey(), e);
+        }
       }
     }    
   }
   
-  private class FileOpener extends CacheLoader<String, OutputStream> {
-    public OutputStream load(String taskId) throws IOException {
+  // Prevents empty directories being removed while a task file is created in them
+  private final Object directoryLock = new Object();
+  
+  private class FileOpener extends CacheLoader<String, TaskWriter> {
+    public TaskWriter load(String taskId) throws IOException {
       if (taskId.length() < 6)
         throw new IllegalArgumentException("Invalid Task ID: " + taskId);
       
-      // For some reason, it was decided that a three-level directory is the best choice
-      File l1 = new File(data, taskId.substring(0, 2));
-      File l2 = new File(l1, taskId.substring(2, 4));
-      File l3 = new File(l2, taskId.substring(4, 6));
-      
       // Make sure the directory to write the task exists
-      if (!l3.exists() && !l3.mkdirs()) {
-        LOG.warn("Error creating directory " + l3.toString());
-        throw new IOException("Error creating directory " + l3.toString());
+      File taskfile = taskFile(taskId);
+      File l3 = taskfile.getParentFile();
+      synchronized(directoryLock) {
+        if (!l3.exists() && !l3.mkdirs()) {
+          LOG.warn("Error creating directory " + l3.toString());
+          throw new IOException("Error creating directory " + l3.toString());
+        }
+        
+        // Only one writer writes a file at a time.  The cache has dropped any
+        // previous writer, but its removal listener might not have closed it
+        // yet, so close it now; its remaining reports then go before ours
+        long start = 0;
+        TaskWriter previous = open.get(taskId);
+        if (previous != null) {
+          synchronized(previous) {
+            previous.close(committer.getFsyncPolicy() != FsyncPolicy.NONE);
+            start = previous.end();
+          }
+        }
+        
+        // Create the task file and a writer to it
+        long length = taskfile.length();
+        boolean framed = length == 0 || Frames.isFramed(taskfile);
+        TaskWriter writer;
+        if (async != null)
+          writer = new AsyncTaskWriter(taskId, taskfile, framed, async, start, previous);
+        else
+          writer = new StreamTaskWriter(taskId, taskfile, framed);
+        
+        // Record where this session's writes to the file begin, for recovery,
+        // before anything is written
+        writer.recoverFrom = length;
+        synchronized(journalLock) {
+          journal.writeUTF(taskId);
+          journal.writeLong(length);
+          journal.flush();
+          journalEntries++;
+          unfinished.add(writer);
+        }
+        open.put(taskId, writer);
+        return writer;
       }
-      
-      // Create the task file and a writer to it
-      File taskfile = new File(l3, taskId + ".txt");
-      return new BufferedOutputStream(new FileOutputStream(taskfile, true), XTraceSettings.DATASTORE_BUFFER_SIZE);
     }
   }
+  
+  // The most recent writer of each task, until it finishes
+  private final ConcurrentMap<String, TaskWriter> open = new ConcurrentHashMap<String, TaskWriter>();
+  
+  // Every writer that has not finished, including evicted writers whose
+  // asynchronous writes are still in flight
+  private final Set<TaskWriter> unfinished = Collections.newSetFromMap(new ConcurrentHashMap<TaskWriter, Boolean>());
 
-  private final LoadingCache<String, OutputStream> writercache = 
+  private final LoadingCache<String, TaskWriter> writercache = 
       CacheBuilder.newBuilder().maximumSize(XTraceSettings.DATASTORE_CACHE_SIZE)
                                .expireAfterWrite(XTraceSettings.DATASTORE_CACHE_TIMEOUT, TimeUnit.MILLISECONDS)
                                .removalListener(new FileCloser())
                                .build(new FileOpener());
   
   @Override
-  public void reportReceived(Report r) {
+  public boolean reportReceived(Report r) {
     try {
-      OutputStream writer = writercache.get(r.getTaskID());
       ReportOnDisk fordisk = r.diskRepr();
-      synchronized(writer) {
-        fordisk.writeDelimitedTo(writer);
+      while (true) {
+        TaskWriter writer = writercache.get(r.getTaskID());
+        synchronized(writer) {
+          // The writer might have been evicted and closed since we got it from the cache
+          if (!writer.closed) {
+            int size = writer.sizeOf(fordisk);
+            if (!writer.write(fordisk, size))
+              return false;
+            committer.written(size);
+            sizeDelta.addAndGet(size);
+            return true;
+          }
+        }
       }
-      writer.flush(); // for now flush immediately... but might not be the best choice
-      writercache.cleanUp();
     } catch (ExecutionException e) {
       LOG.warn("Discarding a report due to file cache error", e);
     } catch (IOException e) {
       LOG.warn("Discarding a report due to IOException", e);
     }
+    return false;
   }
 
   @Override
-  public Iterator<Report> getReports(String taskId) {
-    File l1 = new File(data, taskId.substring(0, 2));
-    File l2 = new File(l1, taskId.substring(2, 4));
-    File l3 = new File(l2, taskId.substring(4, 6));
-    File taskfile = new File(l3, taskId + ".txt");
-    return new ReportIterator(taskfile);
+  public ReportStream getReports(String taskId) {
+    // Flush anything still buffered for the task, so that live tasks are complete
+    TaskWriter writer = open.get(taskId);
+    if (writer != null) {
+      synchronized(writer) {
+        try {
+          writer.flush();
+        } catch (IOException e) {
+          LOG.warn("IOException flushing writer for task " + taskId, e);
+        }
+      }
+      try {
+        writer.awaitFlushed(READ_FLUSH_TIMEOUT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return new MappedReportStream(taskFile(taskId));
+  }
+  
+  @Override
+  public boolean contains(String taskId) {
+    return writercache.getIfPresent(taskId) != null || (taskId.length() >= 6 && taskFile(taskId).exists());
   }
   
   /**
-   * Flushes all open writers to disk.
+   * Walks the three levels of task directories
    */
-  public void flush() {
-    for (OutputStream out : writercache.asMap().values()) {
-      try {
-        out.flush();
-      } catch (IOException e) {
+  @Override
+  public Collection<String> getTaskIds() {
+    List<String> taskIds = new ArrayList<String>();
+    for (File l1 : subdirectories(data))
+      for (File l2 : subdirectories(l1))
+        for (File l3 : subdirectories(l2)) {
+          String[] names = l3.list();
+          if (names != null)
+            for (String name : names)
+              if (name.endsWith(".txt"))
+                taskIds.add(name.substring(0, name.length() - 4));
+        }
+    return taskIds;
+  }
+  
+  private static File[] subdirectories(File dir) {
+    File[] children = dir.listFiles();
+    if (children == null)
+      return new File[0];
+    List<File> dirs = new ArrayList<File>(children.length);
+    for (File child : children)
+      if (child.isDirectory())
+        dirs.add(child);
+    return dirs.toArray(new File[dirs.size()]);
+  }
+  
+  @Override
+  public long removeTask(String taskId) {
+    writercache.invalidate(taskId);
+    // Writes still in flight go to the deleted file, so the next writer starts afresh
+    open.remove(taskId);
+    File taskfile = taskFile(taskId);
+    long length = taskfile.length();
+    if (!taskfile.delete())
+      return 0;
+    sizeDelta.addAndGet(-length);
+    
+    // Prune directories that are now empty
+    synchronized(directoryLock) {
+      for (File dir = taskfile.getParentFile(); !dir.equals(data) && dir.delete(); dir = dir.getParentFile())
+        ;
+    }
+    return length;
+  }
+  
+  /**
+   * The first call walks the entire file tree, so can take a long time.
+   * Subsequent calls are cheap
+   */
+  @Override
+  public long size() {
+    if (sizeBaseline < 0) {
+      synchronized(sizeDelta) {
+        if (sizeBaseline < 0) {
+          // The walk already includes everything written so far
+          long walked = sizeOf(data);
+          sizeBaseline = walked - sizeDelta.get();
+        }
       }
     }
+    return sizeBaseline + sizeDelta.get();
+  }
+  
+  private static long sizeOf(File file) {
+    if (!file.isDirectory())
+      return file.length();
+    long size = 0;
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        size += sizeOf(child);
+    return size;
+  }
+  
+  @Override
+  public long sequence() {
+    return committer.sequence();
+  }
+  
+  @Override
+  public boolean awaitDurable(long sequence, long timeout) throws InterruptedException {
+    return committer.awaitDurable(sequence, timeout);
+  }
+  
+  /**
+   * Flushes all open writers to disk.
+   */
+  public void flush() {
+    committer.flush();
+  }
+  
+  /**
+   * Closes the task's writer as if it had expired from the cache
+   */
+  void evict(String taskId) {
+    writercache.invalidate(taskId);
+  }
+  
+  @Override
+  public JSONObject getStatus() {
+    JSONObject status = new JSONObject();
+    status.put("directory", data.getAbsolutePath());
+    status.put("openWriters", writercache.size());
+    status.put("unfinishedWriters", unfinished.size());
+    status.put("sequence", committer.sequence());
+    status.put("durable", committer.durable());
+    if (async != null)
+      status.put("async", async.getStatus());
+    return status;
   }
   
   @Override
   public void shutdown() {
+    committer.shutdown();
     writercache.invalidateAll();
     writercache.cleanUp();
+    if (async != null)
+      async.shutdown();
+    open.clear();
+    unfinished.clear();
+    synchronized(journalLock) {
+      try {
+        journal.close();
+      } catch (IOException e) {
+        LOG.warn("IOException closing writers journal", e);
+      }
+    }
+    new File(data, WRITERS_JOURNAL).delete();
     LOG.info("Data store flushed all data to disk");
   }
   
-  private class ReportIterator implements Iterator<Report> {
+  /**
+   * Reads a task file either by memory-mapping it or, for small files, by
+   * reading it into a heap buffer, then parses reports directly from the buffer.
+   * Large files are mapped a window of at most map-window bytes at a time, and
+   * each window is unmapped as soon as the stream moves past it or is closed,
+   * rather than whenever the garbage collector gets round to it. The file is
+   * closed as soon as its last window has been mapped, so an abandoned stream
+   * only holds a file descriptor if the file spans several windows
+   */
+  private class MappedReportStream implements ReportStream {
 
-    private InputStream in = null;
+    private final File taskfile;
+    private RandomAccessFile file = null;
+    private long size;
+    private ByteBuffer buf = null;
+    private long bufstart = 0;
+    private boolean framed = false;
     private Report nextReport = null;
 
-    public ReportIterator(File taskfile) {
+    public MappedReportStream(File taskfile) {
+      this.taskfile = taskfile;
       if (taskfile.exists() && taskfile.canRead()) {
         try {
-          in = new BufferedInputStream(new FileInputStream(taskfile), 4096);
+          file = new RandomAccessFile(taskfile, "r");
+          FileChannel channel = file.getChannel();
+          size = channel.size();
+          if (size >= mmapThreshold) {
+            map(0);
+          } else {
+            buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && channel.read(buf) >= 0)
+              ;
+            buf.flip();
+            closeFile();
+          }
+          framed = Frames.readMagic(buf);
           nextReport = calcNext();
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
+          LOG.warn("IOException reading task file " + taskfile, e);
+          close();
         }
       }
     }
 
+    /**
+     * Maps the window of the file that starts at the specified offset,
+     * unmapping the previous window
+     */
+    private void map(long start) throws IOException {
+      unmap(buf);
+      buf = null;
+      long length = Math.min(size - start, Math.min(mapWindow, Integer.MAX_VALUE));
+      try {
+        buf = file.getChannel().map(MapMode.READ_ONLY, start, length);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Unable to map " + length + " bytes at offset " + start, e);
+      }
+      bufstart = start;
+      if (start + length == size)
+        closeFile();
+    }
+
+    private boolean lastWindow() {
+      return bufstart + buf.limit() == size;
+    }
+
     public boolean hasNext() {
       return nextReport != null;
     }
 
     public Report next() {
+      if (nextReport == null)
+        throw new NoSuchElementException();
       Report ret = nextReport;
       nextReport = calcNext();
       return ret;
@@ -158,22 +778,74 @@ public class FileTreeDataStore implements DataStore {
       throw new UnsupportedOperationException();
     }
 
+    public void close() {
+      unmap(buf);
+      buf = null;
+      nextReport = null;
+      closeFile();
+    }
+
+    private void closeFile() {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {
+          LOG.warn("IOException closing task file " + taskfile, e);
+        }
+        file = null;
+      }
+    }
+
     private Report calcNext() {
-      try {
-        // read the next report
-        ReportOnDisk diskrepr = ReportOnDisk.parseDelimitedFrom(in);
-        
-        if (diskrepr==null)
-          return null;
-        if (diskrepr.hasV2Report())
-          return new Report2(diskrepr.getV2Report());
-        if (diskrepr.hasV3Report())
-          return new Report3(diskrepr.getV3Report());
-        
-        LOG.warn("Received empty or invalid report from disk:\n"+diskrepr);
-      } catch (IOException e) {
+      while (buf != null) {
+        int start = buf.position();
+        ReportOnDisk diskrepr;
+        try {
+          diskrepr = framed ? Frames.read(buf) : Reports.readDelimited(buf);
+        } catch (IOException e) {
+          diskrepr = null;
+          if (lastWindow() || start == 0) {
+            LOG.warn("Invalid report in task file " + taskfile + ", ignoring remainder of file", e);
+            break;
+          }
+        }
+        if (diskrepr == null) {
+          // The record might continue past the end of the window
+          if (lastWindow() || start == 0)
+            break;
+          try {
+            map(bufstart + start);
+          } catch (IOException e) {
+            LOG.warn("IOException reading task file " + taskfile, e);
+            break;
+          }
+          continue;
+        }
+        Report report = Reports.fromDisk(diskrepr);
+        if (report != null)
+          return report;
       }
+      close();
       return null;
     }
   }
+
+  /**
+   * Unmaps a mapped buffer straight away. The buffer must not be used again.
+   * Where the JVM doesn't allow this, the mapping is released when the buffer
+   * is garbage collected
+   */
+  private static void unmap(ByteBuffer buf) {
+    if (!(buf instanceof MappedByteBuffer))
+      return;
+    try {
+      Method cleanerMethod = buf.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buf);
+      if (cleaner != null)
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+    } catch (Exception e) {
+      LOG.debug("Unable to unmap buffer, leaving it to the garbage collector", e);
+    }
+  }
 }
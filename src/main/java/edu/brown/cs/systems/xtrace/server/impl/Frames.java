@@ -0,0 +1,234 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.CodedOutputStream;
+
+import edu.brown.cs.systems.xtrace.server.impl.ServerReporting.ReportOnDisk;
+
+/**
+ * Crash-consistent framing for records on disk. Each frame is
+ * [int length][int crc32c][payload], where the checksum covers the length and
+ * the payload. A torn or corrupt frame is detected by its checksum rather than
+ * being misparsed, so recovery can truncate a file at its last good frame.
+ *
+ * Framed task files start with FILE_MAGIC. Its first byte is zero, which can't
+ * start a file of length-delimited reports, so older files are still
+ * recognised and read as before.
+ */
+class Frames {
+
+  static private final Logger LOG = Logger.getLogger(Frames.class);
+
+  static final int HEADER_SIZE = 8;
+  static final long FILE_MAGIC = 0x0058544652000001L; // "\0XTFR", version 1
+  static final int FILE_MAGIC_SIZE = 8;
+
+  // CRC32C (Castagnoli) lookup table; neither this JDK nor our Guava version provide one
+  private static final int[] CRC32C_TABLE = new int[256];
+  static {
+    for (int i = 0; i < 256; i++) {
+      int crc = i;
+      for (int j = 0; j < 8; j++)
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+      CRC32C_TABLE[i] = crc;
+    }
+  }
+
+  private Frames() {
+  }
+
+  /**
+   * Returns the CRC32C of the frame length followed by the payload
+   */
+  static int checksum(byte[] buf, int offset, int length) {
+    int crc = 0xFFFFFFFF;
+    for (int shift = 24; shift >= 0; shift -= 8)
+      crc = (crc >>> 8) ^ CRC32C_TABLE[(crc ^ (length >>> shift)) & 0xFF];
+    for (int i = offset, end = offset + length; i < end; i++)
+      crc = (crc >>> 8) ^ CRC32C_TABLE[(crc ^ buf[i]) & 0xFF];
+    return ~crc;
+  }
+
+  /**
+   * Returns the framed size of a payload
+   */
+  static int size(int payload) {
+    return HEADER_SIZE + payload;
+  }
+
+  /**
+   * Encodes a report as a frame into the buffer at the specified offset.
+   * Returns the size of the frame
+   */
+  static int encode(ReportOnDisk report, byte[] dst, int offset) throws IOException {
+    int length = report.getSerializedSize();
+    CodedOutputStream out = CodedOutputStream.newInstance(dst, offset + HEADER_SIZE, length);
+    report.writeTo(out);
+    out.checkNoSpaceLeft();
+    writeHeader(dst, offset, length, checksum(dst, offset + HEADER_SIZE, length));
+    return HEADER_SIZE + length;
+  }
+
+  static byte[] encode(ReportOnDisk report) throws IOException {
+    byte[] frame = new byte[size(report.getSerializedSize())];
+    encode(report, frame, 0);
+    return frame;
+  }
+
+  /**
+   * Frames an arbitrary payload that has been written to the buffer after
+   * HEADER_SIZE bytes of space, by filling in the header
+   */
+  static void writeHeader(byte[] dst, int offset, int length, int crc) {
+    ByteBuffer.wrap(dst, offset, HEADER_SIZE).putInt(length).putInt(crc);
+  }
+
+  /**
+   * Reads and verifies the next frame, returning its payload. Returns null if
+   * the buffer has no more data, and throws an IOException if the next frame is
+   * torn or corrupt
+   */
+  static byte[] readPayload(ByteBuffer buf) throws IOException {
+    if (!buf.hasRemaining())
+      return null;
+    if (buf.remaining() < HEADER_SIZE)
+      throw new IOException("Truncated frame header");
+    int length = buf.getInt();
+    int crc = buf.getInt();
+    if (length <= 0 || length > buf.remaining())
+      throw new IOException("Truncated or corrupt frame of length " + length);
+    byte[] payload = new byte[length];
+    buf.get(payload);
+    if (checksum(payload, 0, length) != crc)
+      throw new IOException("Frame checksum mismatch");
+    return payload;
+  }
+
+  /**
+   * Reads the next framed report. Returns null if the buffer has no more data
+   */
+  static ReportOnDisk read(ByteBuffer buf) throws IOException {
+    byte[] payload = readPayload(buf);
+    return payload == null ? null : ReportOnDisk.parseFrom(payload);
+  }
+
+  /**
+   * Returns true if the buffer starts with the framed file magic, advancing
+   * past it if so
+   */
+  static boolean readMagic(ByteBuffer buf) {
+    if (buf.remaining() >= FILE_MAGIC_SIZE && buf.getLong(buf.position()) == FILE_MAGIC) {
+      buf.position(buf.position() + FILE_MAGIC_SIZE);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the file is a framed task file
+   */
+  static boolean isFramed(File file) throws IOException {
+    if (file.length() < FILE_MAGIC_SIZE)
+      return false;
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return in.readLong() == FILE_MAGIC;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads and verifies the next frame from a stream that has at most
+   * available bytes left, returning its payload. Returns null at the end of
+   * the stream or if the next frame is torn or corrupt
+   */
+  static byte[] readPayload(DataInputStream in, long available) throws IOException {
+    try {
+      int length = in.readInt();
+      int crc = in.readInt();
+      if (length <= 0 || HEADER_SIZE + length > available)
+        return null;
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      return checksum(payload, 0, length) == crc ? payload : null;
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Scans the frames of a file from the specified offset, which must be the
+   * start of a frame, and returns the offset just past the last good frame
+   */
+  static long scan(File file, long offset) throws IOException {
+    long length = file.length();
+    FileInputStream fin = new FileInputStream(file);
+    try {
+      fin.getChannel().position(offset);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(fin, 65536));
+      byte[] payload;
+      while ((payload = readPayload(in, length - offset)) != null)
+        offset += HEADER_SIZE + payload.length;
+      return offset;
+    } finally {
+      fin.close();
+    }
+  }
+
+  /**
+   * Scans the length-delimited reports of an unframed file from the specified
+   * offset, which must be the start of a report, and returns the offset just
+   * past the last complete report
+   */
+  static long scanDelimited(File file, long offset) throws IOException {
+    FileInputStream fin = new FileInputStream(file);
+    try {
+      fin.getChannel().position(offset);
+      BufferedInputStream in = new BufferedInputStream(fin, 65536);
+      while (true) {
+        ReportOnDisk report;
+        try {
+          report = ReportOnDisk.parseDelimitedFrom(in);
+        } catch (IOException e) {
+          return offset;
+        }
+        if (report == null)
+          return offset;
+        int size = report.getSerializedSize();
+        offset += size + CodedOutputStream.computeRawVarint32Size(size);
+      }
+    } finally {
+      fin.close();
+    }
+  }
+
+  /**
+   * Truncates the file to the specified length if it is longer. Returns the
+   * number of bytes removed
+   */
+  static long truncate(File file, long length) throws IOException {
+    long removed = file.length() - length;
+    if (removed <= 0)
+      return 0;
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+    LOG.warn("Truncated " + removed + " bytes of torn records from " + file);
+    return removed;
+  }
+
+}
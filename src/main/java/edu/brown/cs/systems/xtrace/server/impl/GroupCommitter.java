@@ -0,0 +1,199 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+
+/**
+ * Background thread that flushes a data store's buffered writes in batches, so
+ * that the ingest path never has to. Data stores call written() after
+ * buffering each report; the committer flushes every flush-interval-ms, or
+ * sooner once flush-bytes of data are pending, and optionally fsyncs according
+ * to the configured fsync policy.
+ *
+ * Each report is assigned a sequence number. The committer tracks the highest
+ * sequence number that has been persisted, so that callers can wait on it
+ * using awaitDurable
+ */
+abstract class GroupCommitter extends Thread {
+
+  private static final Logger LOG = Logger.getLogger(GroupCommitter.class);
+
+  /**
+   * NONE never fsyncs; reports are durable once flushed to the OS. INTERVAL
+   * fsyncs every fsync-interval-ms; BATCH fsyncs after every flush
+   */
+  public enum FsyncPolicy {
+    NONE, INTERVAL, BATCH
+  }
+
+  private final long interval;
+  private final long maxBytes;
+  private final FsyncPolicy fsync;
+  private final long fsyncInterval;
+
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong pendingBytes = new AtomicLong();
+  private final Object wakeup = new Object();
+  private final Object durableLock = new Object();
+
+  private volatile boolean requested = false;
+  private volatile boolean alive = true;
+  private volatile boolean stopped = false;
+  private volatile long durable = 0;
+
+  public GroupCommitter(String name) {
+    this(name, XTraceSettings.DATASTORE_FLUSH_INTERVAL, XTraceSettings.DATASTORE_FLUSH_BYTES,
+        FsyncPolicy.valueOf(XTraceSettings.DATASTORE_FSYNC_POLICY.toUpperCase()), XTraceSettings.DATASTORE_FSYNC_INTERVAL);
+  }
+
+  public GroupCommitter(String name, long interval, long maxBytes, FsyncPolicy fsync, long fsyncInterval) {
+    super("GroupCommitter-" + name);
+    this.interval = Math.max(1, interval);
+    this.maxBytes = maxBytes;
+    this.fsync = fsync;
+    this.fsyncInterval = fsyncInterval;
+    setDaemon(true);
+  }
+
+  /**
+   * Flushes all buffered data to the OS
+   */
+  protected abstract void flush() throws IOException;
+
+  /**
+   * Forces all flushed data to disk
+   */
+  protected abstract void sync() throws IOException;
+
+  public FsyncPolicy getFsyncPolicy() {
+    return fsync;
+  }
+
+  /**
+   * Called by the data store once a report of the specified size has been
+   * buffered. Returns the sequence number assigned to the report
+   */
+  public long written(long bytes) {
+    long seq = sequence.incrementAndGet();
+    long pending = pendingBytes.addAndGet(bytes);
+    if (pending >= maxBytes && pending - bytes < maxBytes)
+      requestCommit();
+    return seq;
+  }
+
+  /**
+   * Returns the sequence number of the most recently buffered report
+   */
+  public long sequence() {
+    return sequence.get();
+  }
+
+  /**
+   * Returns the sequence number up to which all reports have been persisted
+   */
+  public long durable() {
+    return durable;
+  }
+
+  /**
+   * Waits until all reports up to and including the specified sequence number
+   * are persisted, or until the timeout elapses. Returns true if the reports
+   * are durable; returns false straight away once the committer has stopped
+   * without persisting them
+   */
+  public boolean awaitDurable(long seq, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (durableLock) {
+      while (durable < seq) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0 || stopped || !isAlive())
+          return false;
+        requestCommit();
+        durableLock.wait(remaining);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Wakes up the committer to flush immediately
+   */
+  public void requestCommit() {
+    synchronized (wakeup) {
+      requested = true;
+      wakeup.notify();
+    }
+  }
+
+  /**
+   * Stops the committer, waiting for it to perform a final flush and sync
+   */
+  public void shutdown() {
+    alive = false;
+    requestCommit();
+    try {
+      join();
+    } catch (InterruptedException e) {
+      LOG.warn("Interrupted waiting for " + getName() + " to shut down");
+    }
+  }
+
+  @Override
+  public void run() {
+    long lastSync = System.currentTimeMillis();
+    while (alive) {
+      synchronized (wakeup) {
+        try {
+          if (!requested)
+            wakeup.wait(interval);
+        } catch (InterruptedException e) {
+          // This means the thread is shutting down; we still want to commit
+          alive = false;
+        }
+        requested = false;
+      }
+
+      boolean dosync = fsync == FsyncPolicy.BATCH || (fsync == FsyncPolicy.INTERVAL && System.currentTimeMillis() - lastSync >= fsyncInterval);
+      if (commit(dosync) && dosync)
+        lastSync = System.currentTimeMillis();
+    }
+
+    // Final flush, syncing unless the policy says never to
+    commit(fsync != FsyncPolicy.NONE);
+
+    // Wake anybody still waiting for reports that were never written
+    synchronized (durableLock) {
+      stopped = true;
+      durableLock.notifyAll();
+    }
+  }
+
+  private boolean commit(boolean dosync) {
+    long seq = sequence.get();
+    pendingBytes.getAndSet(0);
+    try {
+      flush();
+      if (dosync)
+        sync();
+    } catch (IOException e) {
+      LOG.warn(getName() + " IOException committing buffered reports", e);
+      return false;
+    } catch (RuntimeException e) {
+      LOG.warn(getName() + " exception committing buffered reports", e);
+      return false;
+    }
+
+    if (dosync || fsync == FsyncPolicy.NONE) {
+      synchronized (durableLock) {
+        durable = Math.max(durable, seq);
+        durableLock.notifyAll();
+      }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,426 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minidev.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.CodedOutputStream;
+
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+import edu.brown.cs.systems.xtrace.server.api.StatusSource;
+import edu.brown.cs.systems.xtrace.server.impl.ServerReporting.ReportOnDisk;
+
+/**
+ * Keeps the reports of live and recent tasks in memory, in front of another
+ * data store. Every report is still written through to the underlying store;
+ * the hot tier additionally keeps an encoded copy so that reads of recent
+ * tasks never touch disk.
+ *
+ * Only tasks that are first seen by the hot tier are held in memory, so that
+ * an in-memory task is always complete. Tasks are demoted, ie. dropped from
+ * memory, when the byte budget fills (least recently used first), when they
+ * have not received a report for idle-timeout-ms, or when the underlying store
+ * drops one of their reports. The hot tier remembers which tasks it demoted,
+ * because the underlying store might not contain them yet, eg. while their
+ * reports are still queued for a shard; otherwise a demoted task could be
+ * admitted again with only its later reports
+ */
+public class HotTierDataStore implements DataStore, StatusSource {
+
+  static private final Logger LOG = Logger.getLogger(HotTierDataStore.class);
+
+  private static final int MIN_CHUNK_SIZE = 512;
+  private static final int MAX_CHUNK_SIZE = 65536;
+
+  // Bounds the demoted task IDs; by the time one is forgotten, the underlying
+  // store has long since written the task's reports
+  private static final int MAX_DEMOTED = 100000;
+
+  private final DataStore data;
+  private final long maxBytes;
+  private final long idleTimeout;
+  private final boolean offHeap;
+
+  // Access ordered, so iteration starts with the least recently used task
+  private final LinkedHashMap<String, HotTask> tasks = new LinkedHashMap<String, HotTask>(1024, 0.75f, true);
+
+  // The most recently demoted tasks, which are never admitted again. Guarded by tasks
+  private final LinkedHashMap<String, Boolean> demoted = new LinkedHashMap<String, Boolean>() {
+    private static final long serialVersionUID = 1L;
+
+    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+      return size() > MAX_DEMOTED;
+    }
+  };
+  private final AtomicLong bytes = new AtomicLong();
+  private final Demoter demoter;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong demotions = new AtomicLong();
+
+  public HotTierDataStore(DataStore data) {
+    this(data, XTraceSettings.HOT_TIER_MAX_BYTES, XTraceSettings.HOT_TIER_IDLE_TIMEOUT, XTraceSettings.HOT_TIER_OFF_HEAP);
+  }
+
+  public HotTierDataStore(DataStore data, long maxBytes, long idleTimeout, boolean offHeap) {
+    this.data = data;
+    this.maxBytes = maxBytes;
+    this.idleTimeout = idleTimeout;
+    this.offHeap = offHeap;
+    demoter = new Demoter();
+    demoter.start();
+    LOG.info("Hot tier of " + maxBytes + " bytes " + (offHeap ? "off-heap" : "on-heap") + ", idle timeout " + idleTimeout + "ms");
+  }
+
+  @Override
+  public boolean reportReceived(Report r) {
+    String taskId = r.getTaskID();
+    HotTask task;
+    boolean wasDemoted;
+    synchronized (tasks) {
+      task = tasks.get(taskId);
+      wasDemoted = demoted.containsKey(taskId);
+    }
+
+    // Admit new tasks before writing them to the underlying store, so that
+    // concurrent reports for the task also end up in memory
+    if (task == null && !wasDemoted && !data.contains(taskId)) {
+      synchronized (tasks) {
+        task = tasks.get(taskId);
+        if (task == null && !demoted.containsKey(taskId)) {
+          task = new HotTask();
+          tasks.put(taskId, task);
+        }
+      }
+    }
+
+    boolean stored = data.reportReceived(r);
+
+    // A task whose report was dropped is no longer the same as the store's copy
+    if (task != null && !stored)
+      demote(taskId, task);
+    else if (task != null && task.append(r.diskRepr()))
+      enforceBudget();
+    return stored;
+  }
+
+  @Override
+  public ReportStream getReports(String taskId) {
+    HotTask task;
+    synchronized (tasks) {
+      task = tasks.get(taskId);
+    }
+    if (task != null) {
+      ReportStream stream = task.stream();
+      if (stream != null) {
+        hits.incrementAndGet();
+        return stream;
+      }
+    }
+    misses.incrementAndGet();
+    return data.getReports(taskId);
+  }
+
+  @Override
+  public boolean contains(String taskId) {
+    synchronized (tasks) {
+      if (tasks.containsKey(taskId))
+        return true;
+    }
+    return data.contains(taskId);
+  }
+
+  /**
+   * Every report is written through, so the underlying store has every task
+   */
+  @Override
+  public Collection<String> getTaskIds() {
+    return data.getTaskIds();
+  }
+
+  @Override
+  public long removeTask(String taskId) {
+    HotTask task;
+    synchronized (tasks) {
+      task = tasks.remove(taskId);
+      demoted.remove(taskId);
+    }
+    if (task != null)
+      task.release();
+    return data.removeTask(taskId);
+  }
+
+  @Override
+  public long size() {
+    return data.size();
+  }
+
+  @Override
+  public long sequence() {
+    return data.sequence();
+  }
+
+  @Override
+  public boolean awaitDurable(long sequence, long timeout) throws InterruptedException {
+    return data.awaitDurable(sequence, timeout);
+  }
+
+  @Override
+  public void shutdown() {
+    demoter.shutdown();
+    synchronized (tasks) {
+      for (HotTask task : tasks.values())
+        task.release();
+      tasks.clear();
+      demoted.clear();
+    }
+    data.shutdown();
+  }
+
+  /**
+   * Demotes least recently used tasks until we are back under budget
+   */
+  private void enforceBudget() {
+    if (bytes.get() <= maxBytes)
+      return;
+    synchronized (tasks) {
+      Iterator<Map.Entry<String, HotTask>> it = tasks.entrySet().iterator();
+      while (bytes.get() > maxBytes && it.hasNext()) {
+        Map.Entry<String, HotTask> entry = it.next();
+        it.remove();
+        demoted(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Demotes tasks that have not received a report recently
+   */
+  private void demoteIdle() {
+    long cutoff = System.currentTimeMillis() - idleTimeout;
+    synchronized (tasks) {
+      Iterator<Map.Entry<String, HotTask>> it = tasks.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, HotTask> entry = it.next();
+        if (entry.getValue().lastWrite < cutoff) {
+          it.remove();
+          demoted(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Demotes the task, unless it has already been demoted or removed
+   */
+  private void demote(String taskId, HotTask task) {
+    synchronized (tasks) {
+      if (tasks.get(taskId) == task) {
+        tasks.remove(taskId);
+        demoted(taskId, task);
+      }
+    }
+  }
+
+  /**
+   * Releases a task that was just taken out of the map, remembering that it
+   * was demoted. Must hold the tasks lock
+   */
+  private void demoted(String taskId, HotTask task) {
+    task.release();
+    demoted.put(taskId, Boolean.TRUE);
+    demotions.incrementAndGet();
+  }
+
+  @Override
+  public JSONObject getStatus() {
+    JSONObject status = new JSONObject();
+    synchronized (tasks) {
+      status.put("tasks", tasks.size());
+      status.put("demotedTasks", demoted.size());
+    }
+    status.put("bytes", bytes.get());
+    status.put("maxBytes", maxBytes);
+    status.put("offHeap", offHeap);
+    status.put("hits", hits.get());
+    status.put("misses", misses.get());
+    status.put("demotions", demotions.get());
+    if (data instanceof StatusSource)
+      status.put("store", ((StatusSource) data).getStatus());
+    return status;
+  }
+
+  private class Demoter extends Thread {
+    private volatile boolean alive = true;
+
+    public Demoter() {
+      super("HotTierDemoter");
+      setDaemon(true);
+    }
+
+    public void shutdown() {
+      alive = false;
+      interrupt();
+    }
+
+    @Override
+    public void run() {
+      while (alive) {
+        try {
+          Thread.sleep(Math.max(100, Math.min(idleTimeout / 2, 5000)));
+        } catch (InterruptedException e) {
+          continue;
+        }
+        demoteIdle();
+      }
+    }
+  }
+
+  /**
+   * The encoded reports of a task, as length-delimited ReportOnDisk records in
+   * a list of chunks of growing size. Bytes below a chunk's write position are
+   * never modified, so streams can read them without holding the lock
+   */
+  private class HotTask {
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private ByteBuffer current = null;
+    private boolean released = false;
+    private volatile long lastWrite = System.currentTimeMillis();
+
+    /**
+     * Appends a report. Returns true if new memory was allocated
+     */
+    public synchronized boolean append(ReportOnDisk report) {
+      if (released)
+        return false;
+      lastWrite = System.currentTimeMillis();
+      int size = report.getSerializedSize();
+      int length = size + CodedOutputStream.computeRawVarint32Size(size);
+
+      boolean allocated = false;
+      if (current == null || current.remaining() < length) {
+        int chunksize = current == null ? MIN_CHUNK_SIZE : Math.min(current.capacity() * 2, MAX_CHUNK_SIZE);
+        current = allocate(Math.max(chunksize, length));
+        chunks.add(current);
+        allocated = true;
+      }
+
+      byte[] encoded = new byte[length];
+      CodedOutputStream out = CodedOutputStream.newInstance(encoded);
+      try {
+        out.writeRawVarint32(size);
+        report.writeTo(out);
+        out.flush();
+      } catch (IOException e) {
+        // Cannot happen when writing to a byte array
+        throw new RuntimeException(e);
+      }
+      current.put(encoded);
+      return allocated;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+      bytes.addAndGet(capacity);
+      return offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Frees this task's memory. Streams already open on the task keep their
+     * own references to the chunks
+     */
+    public synchronized void release() {
+      if (!released) {
+        released = true;
+        for (ByteBuffer chunk : chunks)
+          bytes.addAndGet(-chunk.capacity());
+        chunks.clear();
+        current = null;
+      }
+    }
+
+    /**
+     * Returns a stream over a snapshot of the reports, or null if the task has
+     * been released
+     */
+    public synchronized ReportStream stream() {
+      if (released)
+        return null;
+      ByteBuffer[] snapshot = new ByteBuffer[chunks.size()];
+      for (int i = 0; i < snapshot.length; i++) {
+        ByteBuffer chunk = chunks.get(i);
+        ByteBuffer view = chunk.duplicate();
+        view.flip();
+        snapshot[i] = view;
+      }
+      return new ChunkReportStream(snapshot);
+    }
+  }
+
+  private static class ChunkReportStream implements ReportStream {
+    private ByteBuffer[] chunks;
+    private int i = 0;
+    private Report nextReport;
+
+    public ChunkReportStream(ByteBuffer[] chunks) {
+      this.chunks = chunks;
+      nextReport = calcNext();
+    }
+
+    public boolean hasNext() {
+      return nextReport != null;
+    }
+
+    public Report next() {
+      if (nextReport == null)
+        throw new NoSuchElementException();
+      Report ret = nextReport;
+      nextReport = calcNext();
+      return ret;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      chunks = null;
+      nextReport = null;
+    }
+
+    private Report calcNext() {
+      while (chunks != null && i < chunks.length) {
+        try {
+          ReportOnDisk diskrepr = Reports.readDelimited(chunks[i]);
+          if (diskrepr == null) {
+            i++;
+            continue;
+          }
+          Report report = Reports.fromDisk(diskrepr);
+          if (report != null)
+            return report;
+        } catch (IOException e) {
+          LOG.warn("Invalid report in hot tier", e);
+          i++;
+        }
+      }
+      close();
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,325 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.google.protobuf.ByteString;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+
+/**
+ * Writes reports as JSON straight to an output stream, in UTF-8. Version 3
+ * reports are written field by field from the protocol buffers message, with
+ * the same names and values as Report3.jsonRepr, without building a map or a
+ * string per report. String fields are copied from the message's UTF-8 bytes
+ * where they are valid, so they aren't decoded either. Where custom keys
+ * clash with each other or with a field, only the value jsonRepr would keep
+ * is written, so names are never repeated. Other reports fall back to their
+ * jsonRepr.
+ *
+ * Output is collected in one buffer that is reused for every report, and
+ * written to the stream whenever it fills up. Not thread safe.
+ */
+public class JSONReportWriter {
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  // Field names, in the order they are written
+  private static final ByteString TASK_ID = ByteString.copyFromUtf8("taskID");
+  private static final ByteString TIMESTAMP = ByteString.copyFromUtf8("Timestamp");
+  private static final ByteString HRT = ByteString.copyFromUtf8("HRT");
+  private static final ByteString CYCLES = ByteString.copyFromUtf8("Cycles");
+  private static final ByteString HOST = ByteString.copyFromUtf8("Host");
+  private static final ByteString PROCESS_ID = ByteString.copyFromUtf8("ProcessID");
+  private static final ByteString PROCESS_NAME = ByteString.copyFromUtf8("ProcessName");
+  private static final ByteString THREAD_ID = ByteString.copyFromUtf8("ThreadID");
+  private static final ByteString THREAD_NAME = ByteString.copyFromUtf8("ThreadName");
+  private static final ByteString AGENT = ByteString.copyFromUtf8("Agent");
+  private static final ByteString SOURCE = ByteString.copyFromUtf8("Source");
+  private static final ByteString LABEL = ByteString.copyFromUtf8("Label");
+  private static final ByteString TAG = ByteString.copyFromUtf8("Tag");
+  private static final ByteString TITLE = ByteString.copyFromUtf8("Title");
+  private static final ByteString TENANT_CLASS = ByteString.copyFromUtf8("TenantClass");
+  private static final ByteString EVENT_ID = ByteString.copyFromUtf8("EventID");
+  private static final ByteString PARENT_EVENT_ID = ByteString.copyFromUtf8("ParentEventID");
+  private static final ByteString OPERATION = ByteString.copyFromUtf8("Operation");
+
+  private final OutputStream out;
+  private final byte[] buf;
+  private int count = 0;
+  private boolean first;
+
+  public JSONReportWriter(OutputStream out) {
+    this(out, 64 * 1024);
+  }
+
+  public JSONReportWriter(OutputStream out, int bufferSize) {
+    this.out = out;
+    this.buf = new byte[Math.max(32, bufferSize)];
+  }
+
+  public void write(Report report) throws IOException {
+    if (report instanceof Report3)
+      write(((Report3) report).event());
+    else
+      writeRaw(report.jsonRepr().toJSONString());
+  }
+
+  public void write(XTraceReport3 event) throws IOException {
+    write('{');
+    first = true;
+    if (event.hasTaskID() && !hasKey(event, TASK_ID, -1)) {
+      name(TASK_ID);
+      write('"');
+      long taskId = event.getTaskID();
+      for (int shift = 60; shift >= 0; shift -= 4)
+        write(HEX[(int) (taskId >>> shift) & 0xF]);
+      write('"');
+    }
+    if (event.hasTimestamp() && !hasKey(event, TIMESTAMP, -1))
+      field(TIMESTAMP, event.getTimestamp());
+    if (event.hasHRT() && !hasKey(event, HRT, -1))
+      field(HRT, event.getHRT());
+    if (event.hasCycles() && !hasKey(event, CYCLES, -1))
+      field(CYCLES, event.getCycles());
+    if (event.hasHost() && !hasKey(event, HOST, -1))
+      field(HOST, event.getHostBytes());
+    if (event.hasProcessID() && !hasKey(event, PROCESS_ID, -1))
+      field(PROCESS_ID, event.getProcessID());
+    if (event.hasProcessName() && !hasKey(event, PROCESS_NAME, -1))
+      field(PROCESS_NAME, event.getProcessNameBytes());
+    if (event.hasThreadID() && !hasKey(event, THREAD_ID, -1))
+      field(THREAD_ID, event.getThreadID());
+    if (event.hasThreadName() && !hasKey(event, THREAD_NAME, -1))
+      field(THREAD_NAME, event.getThreadNameBytes());
+    if (event.hasAgent() && !hasKey(event, AGENT, -1))
+      field(AGENT, event.getAgentBytes());
+    if (event.hasSource() && !hasKey(event, SOURCE, -1))
+      field(SOURCE, event.getSourceBytes());
+    if (event.hasLabel() && !hasKey(event, LABEL, -1))
+      field(LABEL, event.getLabelBytes());
+    for (int i = 0; i < event.getKeyCount(); i++) {
+      ByteString key = event.getKeyBytes(i);
+      if (!hasKey(event, key, i) && !hasLaterField(event, key)) {
+        name(key);
+        writeString(event.getValueBytes(i));
+      }
+    }
+    if (event.getTagsCount() > 0) {
+      name(TAG);
+      write('[');
+      for (int i = 0; i < event.getTagsCount(); i++) {
+        if (i > 0)
+          write(',');
+        writeString(event.getTagsBytes(i));
+      }
+      write(']');
+    }
+    if (event.hasTitle())
+      field(TITLE, event.getTitleBytes());
+    if (event.hasTenantClass())
+      field(TENANT_CLASS, event.getTenantClass());
+    if (event.hasEventID()) {
+      name(EVENT_ID);
+      writeQuoted(event.getEventID());
+    }
+    if (event.getParentEventIDCount() > 0) {
+      name(PARENT_EVENT_ID);
+      write('[');
+      for (int i = 0; i < event.getParentEventIDCount(); i++) {
+        if (i > 0)
+          write(',');
+        writeQuoted(event.getParentEventID(i));
+      }
+      write(']');
+    }
+    if (event.hasOp())
+      field(OPERATION, event.getOpBytes());
+    write('}');
+  }
+
+  /**
+   * Returns true if a custom key after the given index has the name
+   */
+  private static boolean hasKey(XTraceReport3 event, ByteString name, int after) {
+    for (int i = after + 1; i < event.getKeyCount(); i++)
+      if (name.equals(event.getKeyBytes(i)))
+        return true;
+    return false;
+  }
+
+  /**
+   * Returns true if one of the fields written after the custom keys has the
+   * name
+   */
+  private static boolean hasLaterField(XTraceReport3 event, ByteString name) {
+    return (event.getTagsCount() > 0 && name.equals(TAG)) || (event.hasTitle() && name.equals(TITLE))
+        || (event.hasTenantClass() && name.equals(TENANT_CLASS)) || (event.hasEventID() && name.equals(EVENT_ID))
+        || (event.getParentEventIDCount() > 0 && name.equals(PARENT_EVENT_ID)) || (event.hasOp() && name.equals(OPERATION));
+  }
+
+  private void name(ByteString name) throws IOException {
+    if (!first)
+      write(',');
+    first = false;
+    writeString(name);
+    write(':');
+  }
+
+  private void field(ByteString name, long value) throws IOException {
+    name(name);
+    writeLong(value);
+  }
+
+  private void field(ByteString name, ByteString value) throws IOException {
+    name(name);
+    writeString(value);
+  }
+
+  private void writeQuoted(long value) throws IOException {
+    write('"');
+    writeLong(value);
+    write('"');
+  }
+
+  /**
+   * Writes the text in UTF-8 without quoting or escaping it, eg. punctuation,
+   * field names or JSON that was already serialized
+   */
+  public void writeRaw(String text) throws IOException {
+    encode(text, false);
+  }
+
+  public void write(char c) throws IOException {
+    write((int) c);
+  }
+
+  private void write(int b) throws IOException {
+    if (count == buf.length)
+      flushBuffer();
+    buf[count++] = (byte) b;
+  }
+
+  public void writeLong(long value) throws IOException {
+    if (value == Long.MIN_VALUE) {
+      writeRaw("-9223372036854775808");
+      return;
+    }
+    if (value < 0) {
+      write('-');
+      value = -value;
+    }
+    if (buf.length - count < 19)
+      flushBuffer();
+    int digits = 1;
+    for (long v = value / 10; v != 0; v /= 10)
+      digits++;
+    for (int i = count + digits - 1; i >= count; i--) {
+      buf[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    count += digits;
+  }
+
+  /**
+   * Writes the UTF-8 bytes as a quoted and escaped JSON string. Invalid UTF-8
+   * is decoded and re-encoded, replacing bad bytes the same way as the
+   * message's string getters
+   */
+  public void writeString(ByteString utf8) throws IOException {
+    if (!utf8.isValidUtf8()) {
+      writeString(utf8.toStringUtf8());
+      return;
+    }
+    write('"');
+    for (int i = 0, n = utf8.size(); i < n; i++) {
+      int b = utf8.byteAt(i) & 0xFF;
+      if (b < 0x20 || b == '"' || b == '\\')
+        escape(b);
+      else
+        write(b);
+    }
+    write('"');
+  }
+
+  /**
+   * Writes the string as a quoted and escaped JSON string
+   */
+  public void writeString(String s) throws IOException {
+    write('"');
+    encode(s, true);
+    write('"');
+  }
+
+  private void encode(String s, boolean escape) throws IOException {
+    for (int i = 0, n = s.length(); i < n; i++) {
+      char c = s.charAt(i);
+      if (escape && (c < 0x20 || c == '"' || c == '\\')) {
+        escape(c);
+      } else if (c < 0x80) {
+        write(c);
+      } else if (c < 0x800) {
+        write(0xC0 | (c >> 6));
+        write(0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        write(0xF0 | (cp >> 18));
+        write(0x80 | ((cp >> 12) & 0x3F));
+        write(0x80 | ((cp >> 6) & 0x3F));
+        write(0x80 | (cp & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        write('?');
+      } else {
+        write(0xE0 | (c >> 12));
+        write(0x80 | ((c >> 6) & 0x3F));
+        write(0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private void escape(int c) throws IOException {
+    write('\\');
+    switch (c) {
+    case '"':
+    case '\\':
+      write(c);
+      break;
+    case '\n':
+      write('n');
+      break;
+    case '\r':
+      write('r');
+      break;
+    case '\t':
+      write('t');
+      break;
+    case '\b':
+      write('b');
+      break;
+    case '\f':
+      write('f');
+      break;
+    default:
+      writeRaw("u00");
+      write(HEX[c >> 4]);
+      write(HEX[c & 0xF]);
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count > 0) {
+      out.write(buf, 0, count);
+      count = 0;
+    }
+  }
+
+  /**
+   * Writes out anything buffered and flushes the stream
+   */
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+}
@@ -0,0 +1,1217 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.minidev.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+import edu.brown.cs.systems.xtrace.server.api.IngestCount;
+import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.StatusSource;
+import edu.brown.cs.systems.xtrace.server.api.TaskRecord;
+import edu.brown.cs.systems.xtrace.server.api.TaskSummary;
+
+/**
+ * A metadata store that keeps every task record in memory, for servers that
+ * would rather not run Derby.
+ *
+ * Tasks with the usual 16 digit hex IDs are keyed by their numeric value in an
+ * open addressing table, and any others by string. Records are ordered by last
+ * update for the task lists, and indexed by tag, by upper case title and by
+ * lifetime. All of them are guarded by a single read/write lock.
+ *
+ * As with the Derby store, reports are coalesced per task and applied by a
+ * background thread. Every change is appended to a change log of checksummed
+ * frames, and the whole store is periodically written to a snapshot, after
+ * which the logs it covers are deleted. On startup the snapshot is loaded and
+ * the later logs replayed; a torn frame at the end of a log is truncated.
+ * Logs are flushed to the OS after every update but only synced on snapshot
+ * and shutdown, so a machine crash can lose the most recent updates, which
+ * the reports on disk still hold.
+ */
+public class MemoryMetadataStore implements MetadataStore, StatusSource {
+
+  private static final Logger LOG = Logger.getLogger(MemoryMetadataStore.class);
+
+  private static final int MAX_TITLE_LENGTH = 128;
+  private static final long SNAPSHOT_MAGIC = 0x0058544d44000001L; // "\0XTMD", version 1
+  private static final String SNAPSHOT = "snapshot";
+  private static final String LOG_PREFIX = "changes.";
+
+  // Change log and snapshot record types
+  private static final byte TASK = 1, UPDATE = 2, REMOVE = 3, INGEST = 4;
+
+  /**
+   * Orders tasks by last update, then by task ID. Two canonical IDs compare as
+   * unsigned numbers, which is the same as comparing their hex strings
+   */
+  private static final Comparator<Task> BY_LAST_UPDATED = new Comparator<Task>() {
+    public int compare(Task a, Task b) {
+      if (a.lastUpdated != b.lastUpdated)
+        return a.lastUpdated < b.lastUpdated ? -1 : 1;
+      if (a.id == null && b.id == null) {
+        long x = a.key ^ Long.MIN_VALUE, y = b.key ^ Long.MIN_VALUE;
+        return x < y ? -1 : (x == y ? 0 : 1);
+      }
+      return a.getTaskId().compareTo(b.getTaskId());
+    }
+  };
+
+  private static final class Task {
+    private final long key;     // the task ID as a number, if it is canonical
+    private final String id;    // otherwise the task ID, else null
+    private long firstSeen, lastUpdated;
+    private int numReports;
+    private String title;       // null if the task has no title
+    private String[] tags;
+    private long reportStart = Long.MAX_VALUE, reportEnd = Long.MIN_VALUE;
+    private String[] hosts = NO_TAGS, agents = NO_TAGS;
+    private int maxFanIn;
+    private boolean errors;
+
+    private Task(long key, String id) {
+      this.key = key;
+      this.id = id;
+    }
+
+    private String getTaskId() {
+      return id != null ? id : TaskIDs.toHex(key);
+    }
+
+    /**
+     * Returns the title, which as in the Derby store defaults to the task ID
+     */
+    private String getTitle() {
+      return title != null ? title : getTaskId();
+    }
+
+    private TaskRecord toRecord() {
+      return new TaskRecord(getTaskId(), firstSeen, lastUpdated, numReports, getTitle(), Arrays.asList(tags));
+    }
+
+    private boolean hasTimes() {
+      return reportStart <= reportEnd;
+    }
+
+    private TaskSummary toSummary() {
+      return new TaskSummary(getTaskId(), getTitle(), numReports, hasTimes() ? reportStart : null, hasTimes() ? reportEnd : null,
+          Arrays.asList(hosts), Arrays.asList(agents), maxFanIn, errors);
+    }
+  }
+
+  /**
+   * Orders tasks from the longest span of report times to the shortest, then
+   * by task ID
+   */
+  private static final Comparator<Task> BY_DURATION = new Comparator<Task>() {
+    public int compare(Task a, Task b) {
+      long x = a.reportEnd - a.reportStart, y = b.reportEnd - b.reportStart;
+      if (x != y)
+        return x > y ? -1 : 1;
+      return a.getTaskId().compareTo(b.getTaskId());
+    }
+  };
+
+  private static final String[] NO_TAGS = new String[0];
+
+  private final File directory;
+  private final long snapshotInterval;
+  private final long snapshotLogBytes;
+  private final long ingestMaxAge;
+  private final boolean created;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final TaskTable tasks = new TaskTable();
+  private final Map<String, Task> otherTasks = new HashMap<String, Task>();
+  private final TreeSet<Task> byLastUpdated = new TreeSet<Task>(BY_LAST_UPDATED);
+  private final Map<String, TreeSet<Task>> byTag = new HashMap<String, TreeSet<Task>>();
+  private final Map<String, TreeSet<Task>> byTitle = new HashMap<String, TreeSet<Task>>();
+  private final Map<String, Set<Task>> byHost = new HashMap<String, Set<Task>>();
+  private final TaskIntervalIndex lifetimes = new TaskIntervalIndex();
+  private final TreeMap<Long, long[]> ingest = new TreeMap<Long, long[]>();
+  private long totalReports = 0;
+  private volatile long epoch = 0;  // advanced by the holder of the write lock
+
+  // Change log state, guarded by the write lock
+  private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+  private final DataOutputStream record = new DataOutputStream(recordBytes);
+  private long generation;
+  private ChangeLog log;
+
+  private volatile long lastSnapshot = 0;
+  private volatile long snapshotDuration = 0;
+  private volatile boolean alive = true;
+  private final Writer writer;
+
+  public MemoryMetadataStore(String directory) throws IOException {
+    this(new File(directory), XTraceSettings.METADATA_SNAPSHOT_INTERVAL, XTraceSettings.METADATA_SNAPSHOT_LOG_BYTES);
+  }
+
+  public MemoryMetadataStore(File directory, long snapshotInterval, long snapshotLogBytes) throws IOException {
+    this.directory = directory;
+    this.snapshotInterval = snapshotInterval;
+    this.snapshotLogBytes = snapshotLogBytes;
+    this.ingestMaxAge = XTraceSettings.METADATA_INGEST_STATS_MAX_AGE;
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Unable to create metadata directory " + directory);
+
+    long start = System.currentTimeMillis();
+    lock.writeLock().lock();
+    try {
+      created = !recover();
+      log = new ChangeLog(logFile(generation));
+    } finally {
+      lock.writeLock().unlock();
+    }
+    lastSnapshot = System.currentTimeMillis();
+    LOG.info("Loaded " + numTasks() + " task records in " + (System.currentTimeMillis() - start) + "ms");
+
+    writer = new Writer();
+    writer.start();
+  }
+
+  /**
+   * Returns true if there was no existing snapshot or change log, in which
+   * case the metadata can be rebuilt from the data store
+   */
+  @Override
+  public boolean wasCreated() {
+    return created;
+  }
+
+  @Override
+  public void shutdown() {
+    alive = false;
+    try {
+      writer.interrupt();
+      writer.join();
+    } catch (InterruptedException e) {
+    }
+    lock.writeLock().lock();
+    try {
+      log.close(true);
+    } catch (IOException e) {
+      LOG.warn("Unable to close metadata change log", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+    LOG.info("Memory metadata store shut down");
+  }
+
+  @Override
+  public void reportReceived(Report report) {
+    if (alive && report != null) {
+      writer.update(report);
+    }
+  }
+
+  /**
+   * Selects tasks for a page of results
+   */
+  private interface Filter {
+    public boolean matches(Task task);
+  }
+
+  private List<TaskRecord> page(Collection<Task> ordered, Filter filter, int offset, int limit) {
+    List<TaskRecord> records = new ArrayList<TaskRecord>();
+    if (limit <= 0)
+      return records;
+    lock.readLock().lock();
+    try {
+      for (Task task : ordered) {
+        if (filter != null && !filter.matches(task))
+          continue;
+        if (offset > 0) {
+          offset--;
+          continue;
+        }
+        records.add(task.toRecord());
+        if (records.size() >= limit)
+          break;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return records;
+  }
+
+  /**
+   * Returns a task that sorts before every other task with the same last
+   * update, for bounding ranges of byLastUpdated
+   */
+  private static Task probe(long lastUpdated) {
+    Task probe = new Task(0, "");
+    probe.lastUpdated = lastUpdated;
+    return probe;
+  }
+
+  private static Task probe(long lastUpdated, String taskId) {
+    Task probe = newTask(taskId);
+    probe.lastUpdated = lastUpdated;
+    return probe;
+  }
+
+  @Override
+  public List<TaskRecord> getTasksSince(final long startTime, int offset, int limit) {
+    // A task first seen since the start time must have been updated since then too
+    lock.readLock().lock();
+    try {
+      return page(byLastUpdated.tailSet(probe(startTime), true).descendingSet(), new Filter() {
+        public boolean matches(Task task) {
+          return task.firstSeen >= startTime;
+        }
+      }, offset, limit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<TaskRecord> getLatestTasks(int offset, int limit) {
+    return page(byLastUpdated.descendingSet(), null, offset, limit);
+  }
+
+  @Override
+  public List<TaskRecord> getLatestTasksBefore(long lastUpdated, String taskId, int limit) {
+    lock.readLock().lock();
+    try {
+      return page(byLastUpdated.headSet(probe(lastUpdated, taskId), false).descendingSet(), null, 0, limit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<TaskRecord> getOldestTasks(int offset, int limit) {
+    return page(byLastUpdated, null, offset, limit);
+  }
+
+  @Override
+  public List<TaskRecord> getOldestTasksAfter(long lastUpdated, String taskId, int limit) {
+    lock.readLock().lock();
+    try {
+      return page(byLastUpdated.tailSet(probe(lastUpdated, taskId), false), null, 0, limit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<TaskRecord> getTasksByTag(String tag, int offset, int limit) {
+    lock.readLock().lock();
+    try {
+      TreeSet<Task> tagged = byTag.get(tag);
+      return tagged == null ? new ArrayList<TaskRecord>() : page(tagged.descendingSet(), null, offset, limit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<TaskRecord> getTasksByTitle(String title, int offset, int limit) {
+    lock.readLock().lock();
+    try {
+      TreeSet<Task> titled = byTitle.get(title.toUpperCase(Locale.ROOT));
+      return titled == null ? new ArrayList<TaskRecord>() : page(titled.descendingSet(), null, offset, limit);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Scans titles from the most recently updated task, so a page of a common
+   * substring stops early and only rare substrings scan every task
+   */
+  @Override
+  public List<TaskRecord> getTasksByTitleSubstring(final String title, int offset, int limit) {
+    return page(byLastUpdated.descendingSet(), new Filter() {
+      public boolean matches(Task task) {
+        return containsIgnoreCase(task.getTitle(), title);
+      }
+    }, offset, limit);
+  }
+
+  static boolean containsIgnoreCase(String s, String substring) {
+    for (int i = 0, last = s.length() - substring.length(); i <= last; i++)
+      if (s.regionMatches(true, i, substring, 0, substring.length()))
+        return true;
+    return false;
+  }
+
+  @Override
+  public TaskRecord getTask(String taskId) {
+    lock.readLock().lock();
+    try {
+      Task task = get(taskId);
+      return task == null ? null : task.toRecord();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public TaskSummary getTaskSummary(String taskId) {
+    lock.readLock().lock();
+    try {
+      Task task = get(taskId);
+      return task == null ? null : task.toSummary();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Keeps the slowest offset + limit tasks in a heap while scanning the host's
+   * tasks, or every task if there is no host
+   */
+  @Override
+  public List<TaskSummary> getSlowestTasks(String host, long since, int offset, int limit) {
+    List<TaskSummary> summaries = new ArrayList<TaskSummary>();
+    if (limit <= 0)
+      return summaries;
+    int size = (int) Math.min(Integer.MAX_VALUE, (long) Math.max(0, offset) + limit);
+    PriorityQueue<Task> slowest = new PriorityQueue<Task>(Math.min(size, 1024), Collections.reverseOrder(BY_DURATION));
+    lock.readLock().lock();
+    try {
+      Collection<Task> candidates = host == null ? byLastUpdated : byHost.get(host);
+      if (candidates == null)
+        return summaries;
+      for (Task task : candidates) {
+        if (!task.hasTimes() || task.reportEnd < since)
+          continue;
+        if (slowest.size() < size) {
+          slowest.add(task);
+        } else if (BY_DURATION.compare(task, slowest.peek()) < 0) {
+          slowest.poll();
+          slowest.add(task);
+        }
+      }
+      List<Task> sorted = new ArrayList<Task>(slowest);
+      Collections.sort(sorted, BY_DURATION);
+      for (int i = Math.max(0, offset); i < sorted.size(); i++)
+        summaries.add(sorted.get(i).toSummary());
+    } finally {
+      lock.readLock().unlock();
+    }
+    return summaries;
+  }
+
+  @Override
+  public Collection<String> getConcurrentTasks(String taskId) {
+    long[] lifetime = lifetimes.getLifetime(taskId);
+    if (lifetime == null)
+      return Collections.emptyList();
+    Set<String> overlapping = new HashSet<String>(lifetimes.getOverlapping(lifetime[0], lifetime[1]));
+    overlapping.add(taskId);
+    return overlapping;
+  }
+
+  @Override
+  public Collection<String> getTags(String taskId) {
+    lock.readLock().lock();
+    try {
+      Task task = get(taskId);
+      return task == null ? Collections.<String> emptyList() : Arrays.asList(task.tags);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void removeTasks(Collection<String> taskIds) {
+    if (!alive || taskIds.isEmpty())
+      return;
+    lock.writeLock().lock();
+    try {
+      for (String taskId : taskIds) {
+        if (remove(taskId)) {
+          record.writeByte(REMOVE);
+          writeString(record, taskId);
+          appendRecord();
+        }
+      }
+      log.flush();
+    } catch (IOException e) {
+      LOG.warn("Unable to log removal of " + taskIds.size() + " tasks", e);
+    } finally {
+      epoch++;
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void importTasks(Collection<TaskRecord> records) {
+    if (!alive || records.isEmpty())
+      return;
+    lock.writeLock().lock();
+    try {
+      for (TaskRecord r : records) {
+        String title = r.getTitle() == null || r.getTitle().equals(r.getTaskId()) ? null : r.getTitle();
+        // As in the Derby store, imported first and last times stand in for report times
+        TaskAggregate times = new TaskAggregate();
+        times.start = r.getFirstSeen();
+        times.end = r.getLastUpdated();
+        merge(r.getTaskId(), r.getFirstSeen(), r.getLastUpdated(), r.getNumReports(), title, r.getTags(), times);
+
+        // Logs the imported record rather than the merged task, so replaying it merges the same way
+        record.writeByte(TASK);
+        writeString(record, r.getTaskId());
+        record.writeLong(r.getFirstSeen());
+        record.writeLong(r.getLastUpdated());
+        record.writeInt(r.getNumReports());
+        writeString(record, title);
+        writeTags(record, r.getTags());
+        writeSummary(record, times.start, times.end, times.maxFanIn, times.errors, times.hosts, times.agents);
+        appendRecord();
+      }
+      log.flush();
+    } catch (IOException e) {
+      LOG.warn("Unable to log import of " + records.size() + " tasks", e);
+    } finally {
+      epoch++;
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public int numTasks() {
+    lock.readLock().lock();
+    try {
+      return tasks.size() + otherTasks.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public int numReports() {
+    lock.readLock().lock();
+    try {
+      return (int) Math.min(Integer.MAX_VALUE, totalReports);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public long epoch() {
+    return epoch;
+  }
+
+  @Override
+  public List<IngestCount> getIngestCounts(long startTime) {
+    List<IngestCount> counts = new ArrayList<IngestCount>();
+    lock.readLock().lock();
+    try {
+      for (Map.Entry<Long, long[]> entry : ingest.tailMap(startTime).entrySet())
+        counts.add(new IngestCount(entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+    } finally {
+      lock.readLock().unlock();
+    }
+    return counts;
+  }
+
+  @Override
+  public JSONObject getStatus() {
+    JSONObject status = new JSONObject();
+    lock.readLock().lock();
+    try {
+      status.put("tasks", tasks.size() + otherTasks.size());
+      status.put("reports", totalReports);
+      status.put("tags", byTag.size());
+      status.put("logGeneration", generation);
+      status.put("logBytes", log.size);
+    } finally {
+      lock.readLock().unlock();
+    }
+    status.put("lastSnapshot", lastSnapshot);
+    status.put("snapshotDuration", snapshotDuration);
+    status.put("pending", writer.pendingUpdates.getStatus());
+    return status;
+  }
+
+  /*
+   * The remaining methods change the store, and their callers hold the write
+   * lock
+   */
+
+  private static Task newTask(String taskId) {
+    return TaskIDs.isCanonical(taskId) ? new Task(TaskIDs.fromHex(taskId), null) : new Task(0, taskId);
+  }
+
+  private Task get(String taskId) {
+    if (TaskIDs.isCanonical(taskId))
+      return tasks.get(TaskIDs.fromHex(taskId));
+    return otherTasks.get(taskId);
+  }
+
+  private static String truncateTitle(String title) {
+    return title.length() > MAX_TITLE_LENGTH ? title.substring(0, MAX_TITLE_LENGTH) : title;
+  }
+
+  private static void addTo(Map<String, TreeSet<Task>> index, String key, Task task) {
+    TreeSet<Task> set = index.get(key);
+    if (set == null)
+      index.put(key, set = new TreeSet<Task>(BY_LAST_UPDATED));
+    set.add(task);
+  }
+
+  private static void removeFrom(Map<String, TreeSet<Task>> index, String key, Task task) {
+    TreeSet<Task> set = index.get(key);
+    if (set != null && set.remove(task) && set.isEmpty())
+      index.remove(key);
+  }
+
+  private void index(Task task) {
+    byLastUpdated.add(task);
+    for (String tag : task.tags)
+      addTo(byTag, tag, task);
+    addTo(byTitle, task.getTitle().toUpperCase(Locale.ROOT), task);
+  }
+
+  /**
+   * Removes the task from the ordered indexes, which must be done before
+   * changing its last update, title or tags
+   */
+  private void unindex(Task task) {
+    byLastUpdated.remove(task);
+    for (String tag : task.tags)
+      removeFrom(byTag, tag, task);
+    removeFrom(byTitle, task.getTitle().toUpperCase(Locale.ROOT), task);
+  }
+
+  /**
+   * Adds a record for the task if it has none. Returns the new record, or null
+   * if the task already had one
+   */
+  private Task insert(String taskId, long firstSeen, long lastUpdated, int numReports, String title, Collection<String> tags) {
+    if (get(taskId) != null)
+      return null;
+    Task task = newTask(taskId);
+    task.firstSeen = firstSeen;
+    task.lastUpdated = lastUpdated;
+    task.numReports = numReports;
+    task.title = title == null ? null : truncateTitle(title);
+    task.tags = mergeTags(NO_TAGS, tags);
+    if (task.id == null)
+      tasks.put(task);
+    else
+      otherTasks.put(task.id, task);
+    index(task);
+    lifetimes.update(taskId, firstSeen, lastUpdated);
+    totalReports += numReports;
+    return task;
+  }
+
+  /**
+   * Adds a record for the task, or folds the record into the one it has: the
+   * larger report count is kept, the times widened and the tags combined. The
+   * record's title is only taken if the task has none. Reports received while
+   * the metadata is being rebuilt may already have created the task, and the
+   * rebuild may have counted them too, so the counts are not added
+   */
+  private void merge(String taskId, long firstSeen, long lastUpdated, int numReports, String title, Collection<String> tags, TaskAggregate summary) {
+    Task task = get(taskId);
+    if (task == null) {
+      summarize(insert(taskId, firstSeen, lastUpdated, numReports, title, tags), summary);
+      return;
+    }
+    unindex(task);
+    task.firstSeen = Math.min(task.firstSeen, firstSeen);
+    task.lastUpdated = Math.max(task.lastUpdated, lastUpdated);
+    int added = Math.max(0, numReports - task.numReports);
+    task.numReports += added;
+    if (task.title == null && title != null)
+      task.title = truncateTitle(title);
+    task.tags = mergeTags(task.tags, tags);
+    index(task);
+    summarize(task, summary);
+    lifetimes.update(taskId, task.firstSeen, task.lastUpdated);
+    totalReports += added;
+  }
+
+  /**
+   * Applies a flush of a task's reports, creating the task if it has no record
+   */
+  private void update(String taskId, long time, int reports, String title, Collection<String> tags, TaskAggregate summary) {
+    Task task = get(taskId);
+    if (task == null) {
+      summarize(insert(taskId, time, time, reports, title, tags), summary);
+      countIngest(time, 1, reports);
+      return;
+    }
+    unindex(task);
+    task.lastUpdated = Math.max(task.lastUpdated, time);
+    task.numReports += reports;
+    if (title != null)
+      task.title = truncateTitle(title);
+    task.tags = mergeTags(task.tags, tags);
+    index(task);
+    summarize(task, summary);
+    lifetimes.update(taskId, task.firstSeen, task.lastUpdated);
+    totalReports += reports;
+    countIngest(time, 0, reports);
+  }
+
+  /**
+   * Folds the aggregates of more of the task's reports into its summary
+   */
+  private void summarize(Task task, TaskAggregate summary) {
+    task.reportStart = Math.min(task.reportStart, summary.start);
+    task.reportEnd = Math.max(task.reportEnd, summary.end);
+    task.maxFanIn = Math.max(task.maxFanIn, summary.maxFanIn);
+    task.errors |= summary.errors;
+    task.agents = mergeTags(task.agents, summary.agents);
+    String[] hosts = mergeTags(task.hosts, summary.hosts);
+    for (int i = task.hosts.length; i < hosts.length; i++) {
+      Set<Task> onHost = byHost.get(hosts[i]);
+      if (onHost == null)
+        byHost.put(hosts[i], onHost = new HashSet<Task>());
+      onHost.add(task);
+    }
+    task.hosts = hosts;
+  }
+
+  private boolean remove(String taskId) {
+    Task task = get(taskId);
+    if (task == null)
+      return false;
+    unindex(task);
+    if (task.id == null)
+      tasks.remove(task.key);
+    else
+      otherTasks.remove(task.id);
+    for (String host : task.hosts) {
+      Set<Task> onHost = byHost.get(host);
+      if (onHost != null && onHost.remove(task) && onHost.isEmpty())
+        byHost.remove(host);
+    }
+    lifetimes.remove(taskId);
+    totalReports -= task.numReports;
+    return true;
+  }
+
+  /**
+   * Returns the distinct, non-empty values of both, in the order first seen.
+   * Used for tags, hosts and agents
+   */
+  private static String[] mergeTags(String[] tags, Collection<String> more) {
+    if (more == null || more.isEmpty())
+      return tags;
+    Set<String> merged = new LinkedHashSet<String>(Arrays.asList(tags));
+    for (String tag : more)
+      if (tag != null && !tag.isEmpty())
+        merged.add(tag);
+    return merged.size() == tags.length ? tags : merged.toArray(new String[merged.size()]);
+  }
+
+  /**
+   * Adds to the minute's ingest counts, pruning old minutes when a new one
+   * starts
+   */
+  private void countIngest(long time, long newTasks, long reports) {
+    long minute = time - time % 60000;
+    long[] counts = ingest.get(minute);
+    if (counts == null) {
+      ingest.put(minute, counts = new long[2]);
+      ingest.headMap(minute - ingestMaxAge).clear();
+    }
+    counts[0] += newTasks;
+    counts[1] += reports;
+  }
+
+  /*
+   * Persistence
+   */
+
+  private File logFile(long generation) {
+    return new File(directory, LOG_PREFIX + generation);
+  }
+
+  /**
+   * Appends the record in recordBytes to the change log
+   */
+  private void appendRecord() throws IOException {
+    try {
+      log.append(recordBytes.toByteArray());
+    } finally {
+      recordBytes.reset();
+    }
+  }
+
+  private static void writeFrame(OutputStream out, byte[] payload) throws IOException {
+    byte[] header = new byte[Frames.HEADER_SIZE];
+    Frames.writeHeader(header, 0, payload.length, Frames.checksum(payload, 0, payload.length));
+    out.write(header);
+    out.write(payload);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0)
+      return null;
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeTags(DataOutputStream out, Collection<String> tags) throws IOException {
+    out.writeInt(tags == null ? 0 : tags.size());
+    if (tags != null)
+      for (String tag : tags)
+        writeString(out, tag);
+  }
+
+  private static List<String> readTags(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    List<String> tags = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++)
+      tags.add(readString(in));
+    return tags;
+  }
+
+  private static void writeTask(DataOutputStream out, Task task) throws IOException {
+    out.writeByte(TASK);
+    writeString(out, task.getTaskId());
+    out.writeLong(task.firstSeen);
+    out.writeLong(task.lastUpdated);
+    out.writeInt(task.numReports);
+    writeString(out, task.title);
+    writeTags(out, Arrays.asList(task.tags));
+    writeSummary(out, task.reportStart, task.reportEnd, task.maxFanIn, task.errors, Arrays.asList(task.hosts), Arrays.asList(task.agents));
+  }
+
+  private static void writeSummary(DataOutputStream out, long start, long end, int maxFanIn, boolean errors, Collection<String> hosts,
+      Collection<String> agents) throws IOException {
+    out.writeLong(start);
+    out.writeLong(end);
+    out.writeInt(maxFanIn);
+    out.writeBoolean(errors);
+    writeTags(out, hosts);
+    writeTags(out, agents);
+  }
+
+  private static TaskAggregate readSummary(DataInputStream in) throws IOException {
+    TaskAggregate summary = new TaskAggregate();
+    summary.start = in.readLong();
+    summary.end = in.readLong();
+    summary.maxFanIn = in.readInt();
+    summary.errors = in.readBoolean();
+    summary.hosts = new LinkedHashSet<String>(readTags(in));
+    summary.agents = new LinkedHashSet<String>(readTags(in));
+    return summary;
+  }
+
+  /**
+   * Applies a record from a snapshot or change log
+   */
+  private void apply(byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    byte type = in.readByte();
+    if (type == TASK) {
+      String taskId = readString(in);
+      long firstSeen = in.readLong(), lastUpdated = in.readLong();
+      int numReports = in.readInt();
+      String title = readString(in);
+      List<String> tags = readTags(in);
+      merge(taskId, firstSeen, lastUpdated, numReports, title, tags, readSummary(in));
+    } else if (type == UPDATE) {
+      String taskId = readString(in);
+      long time = in.readLong();
+      int reports = in.readInt();
+      String title = readString(in);
+      List<String> tags = readTags(in);
+      update(taskId, time, reports, title, tags, readSummary(in));
+    } else if (type == REMOVE) {
+      remove(readString(in));
+    } else if (type == INGEST) {
+      long minute = in.readLong();
+      ingest.put(minute, new long[] { in.readLong(), in.readLong() });
+    } else {
+      throw new IOException("Unknown metadata record type " + type);
+    }
+  }
+
+  /**
+   * Applies the frames of a file from the specified offset, and returns the
+   * offset just past the last good frame
+   */
+  private long applyFrames(File file, long offset) throws IOException {
+    long length = file.length();
+    FileInputStream fin = new FileInputStream(file);
+    try {
+      fin.getChannel().position(offset);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(fin, 65536));
+      byte[] payload;
+      while ((payload = Frames.readPayload(in, length - offset)) != null) {
+        apply(payload);
+        offset += Frames.HEADER_SIZE + payload.length;
+      }
+      return offset;
+    } finally {
+      fin.close();
+    }
+  }
+
+  /**
+   * Loads the snapshot, if any, and replays the change logs written since.
+   * Returns false if there was nothing to load
+   */
+  private boolean recover() throws IOException {
+    boolean found = false;
+    File snapshot = new File(directory, SNAPSHOT);
+    if (snapshot.exists()) {
+      found = true;
+      DataInputStream in = new DataInputStream(new FileInputStream(snapshot));
+      try {
+        if (in.readLong() != SNAPSHOT_MAGIC)
+          throw new IOException("Not a metadata snapshot: " + snapshot);
+        generation = in.readLong();
+      } finally {
+        in.close();
+      }
+      long end = applyFrames(snapshot, 16);
+      if (end < snapshot.length())
+        LOG.warn("Ignored " + (snapshot.length() - end) + " corrupt bytes at the end of " + snapshot);
+    }
+
+    TreeMap<Long, File> logs = new TreeMap<Long, File>();
+    File[] files = directory.listFiles();
+    for (File file : files == null ? new File[0] : files) {
+      if (!file.getName().startsWith(LOG_PREFIX))
+        continue;
+      try {
+        logs.put(Long.parseLong(file.getName().substring(LOG_PREFIX.length())), file);
+      } catch (NumberFormatException e) {
+        continue;
+      }
+    }
+    for (Map.Entry<Long, File> entry : logs.entrySet()) {
+      found = true;
+      File file = entry.getValue();
+      if (entry.getKey() < generation) {
+        // Left behind by a crash after its snapshot was written
+        file.delete();
+        continue;
+      }
+      Frames.truncate(file, applyFrames(file, 0));
+      generation = entry.getKey();
+    }
+    return found;
+  }
+
+  /**
+   * Writes the whole store to a new snapshot and deletes the change logs that
+   * it replaces. Changes wait while the snapshot is written, but queries don't
+   */
+  private void snapshot() {
+    long start = System.currentTimeMillis();
+    long snapshotGeneration;
+    lock.writeLock().lock();
+    try {
+      // Later changes go to the next log, which is replayed over this snapshot
+      ChangeLog previous = log;
+      try {
+        log = new ChangeLog(logFile(generation + 1));
+      } catch (IOException e) {
+        LOG.warn("Unable to start a new metadata change log, skipping snapshot", e);
+        return;
+      }
+      snapshotGeneration = ++generation;
+      try {
+        previous.close(true);
+      } catch (IOException e) {
+        LOG.warn("Unable to close metadata change log " + (generation - 1), e);
+      }
+      lock.readLock().lock();
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    File tmp = new File(directory, SNAPSHOT + ".tmp");
+    try {
+      FileOutputStream fout = new FileOutputStream(tmp);
+      try {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 65536));
+        out.writeLong(SNAPSHOT_MAGIC);
+        out.writeLong(snapshotGeneration);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream task = new DataOutputStream(bytes);
+        for (Task t : byLastUpdated) {
+          writeTask(task, t);
+          writeFrame(out, bytes.toByteArray());
+          bytes.reset();
+        }
+        for (Map.Entry<Long, long[]> entry : ingest.entrySet()) {
+          task.writeByte(INGEST);
+          task.writeLong(entry.getKey());
+          task.writeLong(entry.getValue()[0]);
+          task.writeLong(entry.getValue()[1]);
+          writeFrame(out, bytes.toByteArray());
+          bytes.reset();
+        }
+        out.flush();
+        fout.getFD().sync();
+      } finally {
+        fout.close();
+      }
+      Files.move(tmp.toPath(), new File(directory, SNAPSHOT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Unable to write metadata snapshot", e);
+      tmp.delete();
+      return;
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    for (long g = snapshotGeneration - 1; g >= 0 && logFile(g).exists(); g--)
+      logFile(g).delete();
+    lastSnapshot = System.currentTimeMillis();
+    snapshotDuration = lastSnapshot - start;
+    LOG.info("Wrote metadata snapshot in " + snapshotDuration + "ms");
+  }
+
+  /**
+   * An append-only file of framed change records
+   */
+  private static final class ChangeLog {
+    private final FileOutputStream file;
+    private final BufferedOutputStream out;
+    private long size;
+
+    private ChangeLog(File path) throws IOException {
+      file = new FileOutputStream(path, true);
+      out = new BufferedOutputStream(file, 65536);
+      size = path.length();
+    }
+
+    private void append(byte[] payload) throws IOException {
+      writeFrame(out, payload);
+      size += Frames.size(payload.length);
+    }
+
+    private void flush() throws IOException {
+      out.flush();
+    }
+
+    private void close(boolean sync) throws IOException {
+      try {
+        out.flush();
+        if (sync)
+          file.getFD().sync();
+      } finally {
+        file.close();
+      }
+    }
+  }
+
+  /**
+   * Open addressing hash table of tasks keyed by their numeric IDs, which
+   * avoids boxing a key and allocating an entry for every task
+   */
+  private static final class TaskTable {
+    private long[] keys = new long[16];
+    private Task[] values = new Task[16];
+    private int size = 0;
+
+    private int slot(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+    }
+
+    private Task get(long key) {
+      int mask = keys.length - 1;
+      for (int i = slot(key); values[i] != null; i = (i + 1) & mask)
+        if (keys[i] == key)
+          return values[i];
+      return null;
+    }
+
+    private void put(Task task) {
+      if ((size + 1) * 2 > keys.length)
+        resize(keys.length * 2);
+      int mask = keys.length - 1;
+      int i = slot(task.key);
+      for (; values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == task.key) {
+          values[i] = task;
+          return;
+        }
+      }
+      keys[i] = task.key;
+      values[i] = task;
+      size++;
+    }
+
+    private void remove(long key) {
+      int mask = keys.length - 1;
+      int i = slot(key);
+      for (; values[i] != null; i = (i + 1) & mask)
+        if (keys[i] == key)
+          break;
+      if (values[i] == null)
+        return;
+      values[i] = null;
+      size--;
+
+      // Shift back any later entries of the run that can no longer be reached
+      for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+        int home = slot(keys[j]);
+        boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+        if (!reachable) {
+          keys[i] = keys[j];
+          values[i] = values[j];
+          values[j] = null;
+          i = j;
+        }
+      }
+    }
+
+    private void resize(int capacity) {
+      long[] oldKeys = keys;
+      Task[] oldValues = values;
+      keys = new long[capacity];
+      values = new Task[capacity];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++)
+        if (oldValues[i] != null)
+          put(oldValues[i]);
+    }
+
+    private int size() {
+      return size;
+    }
+  }
+
+  /**
+   * Coalesces the updates from reports, and applies and logs them every update
+   * interval. Also takes snapshots when they are due
+   */
+  private final class Writer extends Thread {
+
+    private final long interval = XTraceSettings.DATABASE_UPDATE_INTERVAL;
+    private final PendingUpdates<PendingUpdates.Update> pendingUpdates = new PendingUpdates<PendingUpdates.Update>(
+        XTraceSettings.METADATA_FLUSH_THRESHOLD, XTraceSettings.METADATA_MAX_PENDING_TASKS, XTraceSettings.METADATA_MAX_PENDING_WAIT) {
+      PendingUpdates.Update newUpdate(String taskId) {
+        return new PendingUpdates.Update(taskId);
+      }
+    };
+
+    private Writer() {
+      super("MemoryMetadataWriter");
+    }
+
+    private void update(Report report) {
+      pendingUpdates.add(report);
+    }
+
+    private void awaitWork(long lastFlush) throws InterruptedException {
+      long remaining;
+      while (alive && (remaining = lastFlush + interval - System.currentTimeMillis()) > 0)
+        if (pendingUpdates.await(remaining))
+          return;
+    }
+
+    @Override
+    public void run() {
+      long lastFlush = System.currentTimeMillis();
+      List<PendingUpdates.Update> updates = new ArrayList<PendingUpdates.Update>();
+      while (alive && !Thread.currentThread().isInterrupted()) {
+        try {
+          awaitWork(lastFlush);
+        } catch (InterruptedException e) {
+          // This means the thread is shutting down; we still want to finish
+          // updates
+        }
+
+        lastFlush = System.currentTimeMillis();
+        updates = flush(updates, lastFlush);
+        if (lastFlush - lastSnapshot >= snapshotInterval || log.size >= snapshotLogBytes)
+          snapshot();
+      }
+
+      // Apply anything received since the last flush before the final snapshot
+      flush(updates, System.currentTimeMillis());
+      snapshot();
+    }
+
+    /**
+     * Drains the pending updates into the empty list and applies them,
+     * returning the emptied list for next time
+     */
+    private List<PendingUpdates.Update> flush(List<PendingUpdates.Update> updates, long time) {
+      pendingUpdates.drain(updates);
+      if (!updates.isEmpty()) {
+        apply(updates, time);
+        updates.clear();
+      }
+      return updates;
+    }
+
+    private void apply(Collection<PendingUpdates.Update> updates, long time) {
+      lock.writeLock().lock();
+      try {
+        for (PendingUpdates.Update u : updates) {
+          MemoryMetadataStore.this.update(u.taskId, time, u.reports, u.title, u.tags, u.summary);
+          record.writeByte(UPDATE);
+          writeString(record, u.taskId);
+          record.writeLong(time);
+          record.writeInt(u.reports);
+          writeString(record, u.title);
+          writeTags(record, u.tags);
+          writeSummary(record, u.summary.start, u.summary.end, u.summary.maxFanIn, u.summary.errors, u.summary.hosts, u.summary.agents);
+          appendRecord();
+        }
+        log.flush();
+      } catch (IOException e) {
+        LOG.warn("Unable to log metadata updates of " + updates.size() + " tasks.  Reports will still exist on disk", e);
+      } finally {
+        epoch++;
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+}
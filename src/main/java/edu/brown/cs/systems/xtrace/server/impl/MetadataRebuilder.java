@@ -0,0 +1,273 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minidev.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+import edu.brown.cs.systems.xtrace.server.XTraceServer;
+import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+import edu.brown.cs.systems.xtrace.server.api.StatusSource;
+import edu.brown.cs.systems.xtrace.server.api.TaskRecord;
+import edu.brown.cs.systems.xtrace.server.impl.ServerReporting.ReportOnDisk;
+
+/**
+ * Rebuilds the metadata store from the reports in the data store. The tasks
+ * are split across a fork/join pool, which reads each task's reports to work
+ * out its first and last report times, report count, title and tags. The
+ * resulting records are bulk-loaded into the metadata store in large batches.
+ *
+ * Report times come from version 3 report timestamps. Tasks with no
+ * timestamped reports are given the time that the rebuild started.
+ *
+ * Runs in the background when the server creates a new metadata database, or
+ * offline with the server stopped via main, which starts from an empty
+ * database.
+ */
+public class MetadataRebuilder extends Thread implements StatusSource {
+
+  private static final Logger LOG = Logger.getLogger(MetadataRebuilder.class);
+
+  // Number of tasks that a single fork/join task reads without splitting
+  private static final int TASKS_PER_SPLIT = 64;
+
+  private final DataStore data;
+  private final MetadataStore metadata;
+  private final int parallelism;
+  private final int batchSize;
+
+  private final List<TaskRecord> pending = new ArrayList<TaskRecord>();
+  private final AtomicLong tasksRead = new AtomicLong();
+  private final AtomicLong reportsRead = new AtomicLong();
+  private final AtomicLong tasksImported = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  private volatile boolean alive = true;
+  private volatile boolean running = false;
+  private volatile long tasksTotal = 0;
+  private volatile long start = 0;
+  private volatile long duration = 0;
+
+  public MetadataRebuilder(DataStore data, MetadataStore metadata) {
+    this(data, metadata, XTraceSettings.METADATA_REBUILD_PARALLELISM, XTraceSettings.METADATA_REBUILD_BATCH_SIZE);
+  }
+
+  /**
+   * @param parallelism the number of threads reading tasks, or 0 for one per
+   *          processor
+   * @param batchSize the number of records loaded into the metadata store at a
+   *          time
+   */
+  public MetadataRebuilder(DataStore data, MetadataStore metadata, int parallelism, int batchSize) {
+    super("MetadataRebuilder");
+    this.data = data;
+    this.metadata = metadata;
+    this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    this.batchSize = Math.max(1, batchSize);
+    setDaemon(true);
+    setPriority(MIN_PRIORITY);
+  }
+
+  @Override
+  public void run() {
+    try {
+      rebuild();
+    } catch (RuntimeException e) {
+      LOG.warn("Metadata rebuild failed", e);
+    }
+  }
+
+  /**
+   * Stops the rebuild and waits for it to finish loading the batch it is on,
+   * so that the metadata store can then be shut down
+   */
+  public void shutdown() throws InterruptedException {
+    alive = false;
+    join();
+  }
+
+  /**
+   * Rebuilds the metadata of every task in the data store, returning once all
+   * of the records have been loaded
+   */
+  public void rebuild() {
+    running = true;
+    start = System.currentTimeMillis();
+    try {
+      List<String> taskIds = new ArrayList<String>(data.getTaskIds());
+      tasksTotal = taskIds.size();
+      LOG.info("Rebuilding metadata for " + taskIds.size() + " tasks using " + parallelism + " threads");
+
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      try {
+        pool.invoke(new ReadTasks(taskIds, 0, taskIds.size()));
+      } finally {
+        pool.shutdown();
+      }
+
+      List<TaskRecord> remaining;
+      synchronized (pending) {
+        remaining = new ArrayList<TaskRecord>(pending);
+        pending.clear();
+      }
+      load(remaining);
+    } finally {
+      duration = System.currentTimeMillis() - start;
+      running = false;
+    }
+    if (!alive)
+      LOG.info("Metadata rebuild stopped after " + tasksImported.get() + " of " + tasksTotal + " tasks");
+    else
+      LOG.info("Rebuilt metadata for " + tasksImported.get() + " tasks (" + reportsRead.get() + " reports) in " + duration + "ms");
+  }
+
+  /**
+   * Summarizes a task's reports as a metadata record, or returns null if the
+   * task has no reports
+   */
+  static TaskRecord summarize(String taskId, ReportStream reports, long defaultTime) {
+    long firstSeen = Long.MAX_VALUE, lastUpdated = Long.MIN_VALUE;
+    int numReports = 0;
+    String title = null;
+    Set<String> tags = new LinkedHashSet<String>();
+    try {
+      while (reports.hasNext()) {
+        Report report = reports.next();
+        numReports++;
+        if (report.hasTitle())
+          title = report.getTitle();
+        if (report.hasTags())
+          tags.addAll(report.getTags());
+        ReportOnDisk diskrepr = report.diskRepr();
+        if (diskrepr.hasV3Report() && diskrepr.getV3Report().hasTimestamp()) {
+          long timestamp = diskrepr.getV3Report().getTimestamp();
+          firstSeen = Math.min(firstSeen, timestamp);
+          lastUpdated = Math.max(lastUpdated, timestamp);
+        }
+      }
+    } finally {
+      reports.close();
+    }
+    if (numReports == 0)
+      return null;
+    if (firstSeen > lastUpdated)
+      firstSeen = lastUpdated = defaultTime;
+    return new TaskRecord(taskId, firstSeen, lastUpdated, numReports, title, new ArrayList<String>(tags));
+  }
+
+  /**
+   * Queues records for loading, and loads a batch once enough are queued
+   */
+  private void add(List<TaskRecord> records) {
+    List<TaskRecord> batch = null;
+    synchronized (pending) {
+      pending.addAll(records);
+      if (pending.size() >= batchSize) {
+        batch = new ArrayList<TaskRecord>(pending);
+        pending.clear();
+      }
+    }
+    if (batch != null)
+      load(batch);
+  }
+
+  private void load(List<TaskRecord> batch) {
+    if (batch.isEmpty() || !alive)
+      return;
+    metadata.importTasks(batch);
+    tasksImported.addAndGet(batch.size());
+  }
+
+  /**
+   * Reads a range of tasks, splitting it in half until it is small enough
+   */
+  private class ReadTasks extends RecursiveAction {
+    private final List<String> taskIds;
+    private final int from, to;
+
+    public ReadTasks(List<String> taskIds, int from, int to) {
+      this.taskIds = taskIds;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (!alive)
+        return;
+      if (to - from > TASKS_PER_SPLIT) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new ReadTasks(taskIds, from, mid), new ReadTasks(taskIds, mid, to));
+        return;
+      }
+      List<TaskRecord> records = new ArrayList<TaskRecord>(to - from);
+      for (int i = from; i < to && alive; i++) {
+        String taskId = taskIds.get(i);
+        try {
+          TaskRecord record = summarize(taskId, data.getReports(taskId), start);
+          if (record != null) {
+            records.add(record);
+            reportsRead.addAndGet(record.getNumReports());
+          }
+        } catch (RuntimeException e) {
+          errors.incrementAndGet();
+          LOG.warn("Unable to read reports of task " + taskId + " during metadata rebuild", e);
+        }
+        tasksRead.incrementAndGet();
+      }
+      add(records);
+    }
+  }
+
+  @Override
+  public JSONObject getStatus() {
+    JSONObject status = new JSONObject();
+    status.put("running", running);
+    status.put("parallelism", parallelism);
+    status.put("tasksTotal", tasksTotal);
+    status.put("tasksRead", tasksRead.get());
+    status.put("reportsRead", reportsRead.get());
+    status.put("tasksImported", tasksImported.get());
+    status.put("errors", errors.get());
+    status.put("start", start);
+    status.put("duration", running ? System.currentTimeMillis() - start : duration);
+    return status;
+  }
+
+  /**
+   * Offline rebuild, to be run while the server is stopped. Moves any existing
+   * metadata database aside, then rebuilds a new one from the data store
+   * configured in the usual way
+   */
+  public static void main(String[] args) throws Exception {
+    File database = new File(XTraceServer.metadataDirectory());
+    if (database.exists()) {
+      File moved = new File(database.getParentFile(), database.getName() + ".old-" + System.currentTimeMillis());
+      if (!database.renameTo(moved))
+        throw new IllegalStateException("Unable to move existing metadata database " + database + " aside");
+      LOG.info("Moved existing metadata database to " + moved);
+    }
+
+    DataStore data = XTraceServer.createDataStore();
+    MetadataStore metadata = XTraceServer.createMetadataStore();
+    try {
+      new MetadataRebuilder(data, metadata).rebuild();
+    } finally {
+      metadata.shutdown();
+      data.shutdown();
+    }
+  }
+
+}
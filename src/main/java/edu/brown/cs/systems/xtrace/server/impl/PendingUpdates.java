@@ -0,0 +1,248 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minidev.json.JSONObject;
+
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.StatusSource;
+
+/**
+ * The task updates that reports have produced but a metadata writer has not
+ * yet applied, coalesced per task. Tasks are spread over stripes with their own
+ * locks, so ingest threads only contend when their reports are for tasks in
+ * the same stripe.
+ *
+ * The number of tasks with pending updates is capped. Once the cap is reached,
+ * reports for tasks that already have a pending update only add to its counts,
+ * times and title; their tags, hosts and agents are not recorded. A report for
+ * a task without a pending update waits a short while for the writer to drain
+ * the updates, and is dropped if there is still no room. Either way the report
+ * itself is still in the data store, so rebuilding the metadata recovers what
+ * was left out.
+ */
+abstract class PendingUpdates<U extends PendingUpdates.Update> implements StatusSource {
+
+  /**
+   * A task's coalesced update
+   */
+  static class Update {
+    public final String taskId;
+    public String title = null;
+    public Set<String> tags = null;
+    public int reports = 0;
+    public final TaskAggregate summary = new TaskAggregate();
+
+    Update(String taskId) {
+      this.taskId = taskId;
+    }
+  }
+
+  private static final int STRIPES = 16;
+
+  private final List<Map<String, U>> stripes = new ArrayList<Map<String, U>>(STRIPES);
+  private final int flushThreshold;
+  private final int maxTasks;
+  private final long maxWait;
+  private final AtomicInteger size = new AtomicInteger();
+
+  // Woken when the writer should flush early, and when a drain makes room
+  private final Object signal = new Object();
+  private boolean signalled = false;
+
+  private final AtomicLong reports = new AtomicLong();
+  private final AtomicLong reduced = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong drains = new AtomicLong();
+  private volatile int maxSize = 0;
+
+  PendingUpdates(int flushThreshold, int maxTasks, long maxWait) {
+    this.flushThreshold = Math.max(1, flushThreshold);
+    this.maxTasks = Math.max(this.flushThreshold, maxTasks);
+    this.maxWait = Math.max(0, maxWait);
+    for (int i = 0; i < STRIPES; i++)
+      stripes.add(new HashMap<String, U>());
+  }
+
+  /**
+   * Creates an empty update for the task
+   */
+  abstract U newUpdate(String taskId);
+
+  private Map<String, U> stripe(String taskId) {
+    int h = taskId.hashCode();
+    return stripes.get((h ^ (h >>> 16)) & (STRIPES - 1));
+  }
+
+  /**
+   * Adds the report to its task's pending update. Returns false if the report
+   * was dropped because too many tasks have pending updates
+   */
+  public boolean add(Report report) {
+    String taskId = report.getTaskID();
+    Map<String, U> stripe = stripe(taskId);
+    long deadline = 0;
+    while (true) {
+      synchronized (stripe) {
+        U update = stripe.get(taskId);
+        if (update != null) {
+          merge(update, report, size.get() < maxTasks);
+          return true;
+        }
+        if (reserve()) {
+          update = newUpdate(taskId);
+          stripe.put(taskId, update);
+          merge(update, report, true);
+          return true;
+        }
+      }
+
+      // Full; wait for the writer to make room
+      long now = System.nanoTime();
+      if (deadline == 0) {
+        waits.incrementAndGet();
+        deadline = now + maxWait * 1000000L;
+      }
+      if (now >= deadline || !awaitRoom(deadline - now)) {
+        dropped.incrementAndGet();
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Adds the report to the update. Its tags, host and agent are only recorded
+   * if sources is true
+   */
+  private void merge(U update, Report report, boolean sources) {
+    reports.incrementAndGet();
+    update.reports++;
+    if (report.hasTitle())
+      update.title = report.getTitle();
+    if (sources) {
+      if (report.hasTags()) {
+        if (update.tags == null)
+          update.tags = new HashSet<String>();
+        update.tags.addAll(report.getTags());
+      }
+    } else {
+      reduced.incrementAndGet();
+    }
+    update.summary.add(report, sources);
+  }
+
+  /**
+   * Counts a new task towards the cap, waking the writer once there are
+   * enough tasks to flush. Returns false if the cap has been reached
+   */
+  private boolean reserve() {
+    int n = size.incrementAndGet();
+    if (n > maxTasks) {
+      size.decrementAndGet();
+      signal();
+      return false;
+    }
+    if (n > maxSize)
+      maxSize = n;
+    if (n == flushThreshold)
+      signal();
+    return true;
+  }
+
+  /**
+   * Waits for up to the given time for a drain to make room below the cap.
+   * Returns false if interrupted
+   */
+  private boolean awaitRoom(long nanos) {
+    long start = System.nanoTime();
+    try {
+      synchronized (signal) {
+        if (size.get() >= maxTasks)
+          signal.wait(Math.max(1, nanos / 1000000L));
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      waitNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Wakes the writer to flush now
+   */
+  public void signal() {
+    synchronized (signal) {
+      signalled = true;
+      signal.notifyAll();
+    }
+  }
+
+  /**
+   * Waits for up to the given time until the writer should flush early, ie.
+   * enough tasks have pending updates or signal was called. Returns true if
+   * the writer should flush
+   */
+  public boolean await(long millis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + millis;
+    synchronized (signal) {
+      long remaining;
+      while (!signalled && size.get() < flushThreshold && (remaining = deadline - System.currentTimeMillis()) > 0)
+        signal.wait(remaining);
+      boolean flush = signalled || size.get() >= flushThreshold;
+      signalled = false;
+      return flush;
+    }
+  }
+
+  /**
+   * Removes all of the pending updates, adding them to the list
+   */
+  public List<U> drain(List<U> updates) {
+    int before = updates.size();
+    for (Map<String, U> stripe : stripes) {
+      synchronized (stripe) {
+        updates.addAll(stripe.values());
+        stripe.clear();
+      }
+    }
+    if (updates.size() > before) {
+      drains.incrementAndGet();
+      size.addAndGet(before - updates.size());
+      synchronized (signal) {
+        signal.notifyAll();
+      }
+    }
+    return updates;
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  @Override
+  public JSONObject getStatus() {
+    JSONObject status = new JSONObject();
+    status.put("pendingTasks", size.get());
+    status.put("maxPendingTasks", maxTasks);
+    status.put("highWaterMark", maxSize);
+    status.put("reports", reports.get());
+    status.put("countsOnly", reduced.get());
+    status.put("waits", waits.get());
+    status.put("waitMillis", waitNanos.get() / 1000000L);
+    status.put("dropped", dropped.get());
+    status.put("drains", drains.get());
+    return status;
+  }
+
+}
@@ -18,19 +18,27 @@ public class Report3 implements Report {
 
   static private final String HEADER = "X-Trace Report ver 3.0";
   
-  private final String taskID;
   private final XTraceReport3 event;
+  private String taskID = null;
   
   public Report3(XTraceReport3 event) {
     this.event = event;
-    this.taskID = String.format("%16s", Long.toHexString(event.getTaskID())).replace(' ', '0');
   }
 
+  /**
+   * The hex form of the task ID is only created when first needed
+   */
   @Override
   public String getTaskID() {
+    if (taskID == null)
+      taskID = TaskIDs.toHex(event.getTaskID());
     return taskID;
   }
 
+  XTraceReport3 event() {
+    return event;
+  }
+
   @Override
   public boolean hasTags() {
     return event.getTagsCount()>0;
@@ -66,7 +74,7 @@ public class Report3 implements Report {
     JSONObject json = new JSONObject();
     
     if (event.hasTaskID())
-      json.put("taskID", this.taskID);
+      json.put("taskID", getTaskID());
     if (event.hasTimestamp())
       json.put("Timestamp", event.getTimestamp());
     if (event.hasHRT())
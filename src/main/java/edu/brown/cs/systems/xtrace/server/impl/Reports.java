@@ -0,0 +1,104 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+import edu.brown.cs.systems.xtrace.server.impl.ServerReporting.ReportOnDisk;
+import edu.brown.cs.systems.xtrace.server.impl.deprecated.Report2;
+
+/**
+ * Helper methods shared by the data store implementations
+ */
+public class Reports {
+
+  static private final Logger LOG = Logger.getLogger(Reports.class);
+
+  private Reports() {
+  }
+
+  /**
+   * Converts the on-disk representation of a report back into a report.
+   * Returns null if the report on disk is empty or invalid
+   */
+  public static Report fromDisk(ReportOnDisk diskrepr) {
+    if (diskrepr.hasV2Report())
+      return new Report2(diskrepr.getV2Report());
+    if (diskrepr.hasV3Report())
+      return new Report3(diskrepr.getV3Report());
+
+    LOG.warn("Received empty or invalid report from disk:\n" + diskrepr);
+    return null;
+  }
+
+  /**
+   * Reads the next length-delimited report from the buffer, advancing the
+   * buffer's position past it. Returns null if the buffer is exhausted or the
+   * next record is incomplete, in which case the position is left unchanged
+   */
+  public static ReportOnDisk readDelimited(ByteBuffer buf) throws InvalidProtocolBufferException {
+    int start = buf.position();
+    int length = readRawVarint32(buf);
+    if (length < 0 || length > buf.remaining()) {
+      buf.position(start);
+      return null;
+    }
+    ReportOnDisk diskrepr;
+    if (buf.hasArray()) {
+      diskrepr = ReportOnDisk.PARSER.parseFrom(buf.array(), buf.arrayOffset() + buf.position(), length);
+      buf.position(buf.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      buf.get(bytes);
+      diskrepr = ReportOnDisk.PARSER.parseFrom(bytes);
+    }
+    return diskrepr;
+  }
+
+  /**
+   * Reads a varint from the buffer. Returns -1 if the buffer does not contain a
+   * complete varint
+   */
+  private static int readRawVarint32(ByteBuffer buf) {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (!buf.hasRemaining())
+        return -1;
+      byte b = buf.get();
+      result |= (b & 0x7f) << shift;
+      if (b >= 0)
+        return result;
+    }
+    return -1;
+  }
+
+  /**
+   * A stream with no reports
+   */
+  public static ReportStream emptyStream() {
+    return EMPTY;
+  }
+
+  private static final ReportStream EMPTY = new ReportStream() {
+    public boolean hasNext() {
+      return false;
+    }
+
+    public Report next() {
+      throw new NoSuchElementException();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+    }
+  };
+
+}
@@ -0,0 +1,155 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minidev.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+import edu.brown.cs.systems.xtrace.server.api.StatusSource;
+
+/**
+ * A directory of web responses that will never change, such as the gzipped
+ * reports of tasks that have finished, so repeat requests can be served
+ * straight from a file. Files are named by a key that identifies the response's
+ * content, eg. its ETag, so a stale file is simply never asked for again.
+ *
+ * The total size of the files is bounded; the least recently used are deleted
+ * to make room. Files written by a previous run are kept, oldest first.
+ */
+public class ReportsCache implements StatusSource {
+
+  static private final Logger LOG = Logger.getLogger(ReportsCache.class);
+
+  private static final String SUFFIX = ".cached";
+  private static final String TEMP_PREFIX = "tmp-";
+
+  private final File directory;
+  private final long maxBytes;
+
+  // Sizes of the cached files, least recently used first
+  private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(256, 0.75f, true);
+  private long bytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public ReportsCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    directory.mkdirs();
+
+    File[] existing = directory.listFiles();
+    if (existing == null)
+      existing = new File[0];
+    Arrays.sort(existing, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (File file : existing) {
+      String name = file.getName();
+      if (name.startsWith(TEMP_PREFIX))
+        file.delete();
+      else if (name.endsWith(SUFFIX))
+        add(name.substring(0, name.length() - SUFFIX.length()), file.length());
+    }
+    evict();
+  }
+
+  private File file(String key) {
+    return new File(directory, key + SUFFIX);
+  }
+
+  /**
+   * Returns the cached file for the key, or null if there is none
+   */
+  public File get(String key) {
+    synchronized (this) {
+      if (files.get(key) == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+    }
+    hits.incrementAndGet();
+    return file(key);
+  }
+
+  /**
+   * Returns a new temporary file in the cache's directory, to write a response
+   * into before passing it to put
+   */
+  public File createTempFile() throws IOException {
+    return File.createTempFile(TEMP_PREFIX, "", directory);
+  }
+
+  /**
+   * Moves the completed temporary file into the cache under the key, and
+   * returns the cached file. Returns null if it couldn't be cached, in which
+   * case the caller should delete the temporary file once done with it. The
+   * file is moved under the same lock that evictions delete files under, so
+   * an eviction of the key's previous file can't delete the new one
+   */
+  public File put(String key, File temp) {
+    long length = temp.length();
+    if (length > maxBytes)
+      return null;
+    File file = file(key);
+    synchronized (this) {
+      if (!temp.renameTo(file)) {
+        LOG.warn("Unable to move " + temp + " to " + file);
+        return null;
+      }
+      Long previous = files.get(key);
+      if (previous != null)
+        bytes -= previous;
+      add(key, length);
+    }
+    evict();
+    return file;
+  }
+
+  private synchronized void add(String key, long length) {
+    files.put(key, length);
+    bytes += length;
+  }
+
+  /**
+   * Deletes the least recently used files until the cache fits in its bound.
+   * Anybody still reading a deleted file can finish reading it
+   */
+  private synchronized void evict() {
+    Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, Long> eldest = it.next();
+      bytes -= eldest.getValue();
+      it.remove();
+      evictions.incrementAndGet();
+      if (!file(eldest.getKey()).delete())
+        LOG.warn("Unable to delete cached file " + file(eldest.getKey()));
+    }
+  }
+
+  @Override
+  public JSONObject getStatus() {
+    JSONObject status = new JSONObject();
+    synchronized (this) {
+      status.put("files", files.size());
+      status.put("bytes", bytes);
+    }
+    status.put("maxBytes", maxBytes);
+    status.put("hits", hits.get());
+    status.put("misses", misses.get());
+    status.put("evictions", evictions.get());
+    return status;
+  }
+
+}
@@ -0,0 +1,215 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.minidev.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
+import edu.brown.cs.systems.xtrace.server.api.StatusSource;
+import edu.brown.cs.systems.xtrace.server.api.TaskRecord;
+
+/**
+ * Low priority background thread that deletes old tasks. A task is deleted
+ * once it has not been updated for longer than its maximum age, or if the data
+ * store is larger than its maximum size, in which case the least recently
+ * updated tasks are deleted first. Tags can override the default maximum age.
+ *
+ * Deletions are rate limited so that they do not compete with ingestion for
+ * disk bandwidth
+ */
+public class RetentionManager extends Thread implements StatusSource {
+
+  private static final Logger LOG = Logger.getLogger(RetentionManager.class);
+
+  private final DataStore data;
+  private final MetadataStore metadata;
+
+  private final long maxAge;
+  private final long maxBytes;
+  private final Map<String, Long> tagMaxAges;
+  private final long interval;
+  private final int batchSize;
+  private final RateLimiter limiter;
+
+  private volatile boolean alive = true;
+
+  // Progress metrics
+  private volatile boolean running = false;
+  private volatile long passes = 0;
+  private volatile long tasksRemoved = 0;
+  private volatile long bytesRemoved = 0;
+  private volatile long passTasksRemoved = 0;
+  private volatile long passTasksExamined = 0;
+  private volatile long lastPassStart = 0;
+  private volatile long lastPassDuration = 0;
+
+  public RetentionManager(DataStore data, MetadataStore metadata) {
+    this(data, metadata, XTraceSettings.RETENTION_MAX_AGE, XTraceSettings.RETENTION_MAX_BYTES, XTraceSettings.RETENTION_TAG_MAX_AGES);
+  }
+
+  public RetentionManager(DataStore data, MetadataStore metadata, long maxAge, long maxBytes, Map<String, Long> tagMaxAges) {
+    super("RetentionManager");
+    this.data = data;
+    this.metadata = metadata;
+    this.maxAge = maxAge > 0 ? maxAge : Long.MAX_VALUE;
+    this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    this.tagMaxAges = tagMaxAges;
+    this.interval = XTraceSettings.RETENTION_INTERVAL;
+    this.batchSize = XTraceSettings.RETENTION_BATCH_SIZE;
+    this.limiter = RateLimiter.create(XTraceSettings.RETENTION_MAX_DELETES_PER_SECOND);
+    setDaemon(true);
+    setPriority(Thread.MIN_PRIORITY);
+  }
+
+  /**
+   * Returns true if any retention limits are configured
+   */
+  public boolean isEnabled() {
+    return maxAge != Long.MAX_VALUE || maxBytes != Long.MAX_VALUE || !tagMaxAges.isEmpty();
+  }
+
+  public void shutdown() {
+    alive = false;
+    interrupt();
+  }
+
+  @Override
+  public void run() {
+    LOG.info("RetentionManager started: max age " + maxAge + "ms, max bytes " + maxBytes + ", tag overrides " + tagMaxAges);
+    while (alive) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        continue;
+      }
+      try {
+        runPass();
+      } catch (Exception e) {
+        LOG.warn("Exception during retention pass", e);
+      }
+    }
+  }
+
+  /**
+   * Walks the tasks from least to most recently updated, deleting tasks that
+   * have expired or while the data store is over budget, until we reach tasks
+   * younger than the default maximum age. Tasks with tags whose maximum age is
+   * shorter than the default are then checked tag by tag
+   */
+  void runPass() {
+    running = true;
+    passTasksRemoved = 0;
+    passTasksExamined = 0;
+    lastPassStart = System.currentTimeMillis();
+
+    long now = System.currentTimeMillis();
+    // Deleted segments can lag behind removals, so the size is read once and
+    // reduced by what each removal returns
+    long excess = maxBytes == Long.MAX_VALUE ? 0 : data.size() - maxBytes;
+    TaskRecord last = null;
+    boolean done = false;
+    while (alive && !done) {
+      // Continue from the last task examined, so retained tasks are not read again
+      List<TaskRecord> batch = last == null ? metadata.getOldestTasks(0, batchSize) : metadata.getOldestTasksAfter(last.getLastUpdated(), last.getTaskId(), batchSize);
+      if (batch == null || batch.isEmpty())
+        break;
+
+      List<String> expired = new ArrayList<String>();
+      for (TaskRecord task : batch) {
+        last = task;
+        passTasksExamined++;
+        long age = now - task.getLastUpdated();
+        if (excess > 0 || age > maxAge(task)) {
+          excess -= remove(task, expired);
+        } else if (age <= maxAge) {
+          // Every remaining task is younger than the default maximum age
+          done = true;
+          break;
+        }
+        // Otherwise retained because of a tag override
+      }
+      metadata.removeTasks(expired);
+    }
+
+    for (Map.Entry<String, Long> tag : tagMaxAges.entrySet())
+      if (alive && tag.getValue() < maxAge)
+        removeExpired(tag.getKey(), now);
+
+    passes++;
+    lastPassDuration = System.currentTimeMillis() - lastPassStart;
+    running = false;
+    if (passTasksRemoved > 0)
+      LOG.info("Retention pass removed " + passTasksRemoved + " tasks in " + lastPassDuration + "ms");
+  }
+
+  /**
+   * Deletes the expired tasks with the specified tag
+   */
+  private void removeExpired(String tag, long now) {
+    int offset = 0;
+    while (alive) {
+      List<TaskRecord> batch = metadata.getTasksByTag(tag, offset, batchSize);
+      if (batch == null || batch.isEmpty())
+        break;
+
+      List<String> expired = new ArrayList<String>();
+      for (TaskRecord task : batch) {
+        passTasksExamined++;
+        if (now - task.getLastUpdated() > maxAge(task))
+          remove(task, expired);
+      }
+      metadata.removeTasks(expired);
+      // Removed tasks no longer take up places in the tag's list
+      offset += batch.size() - expired.size();
+    }
+  }
+
+  /**
+   * Deletes the task's reports and adds it to the tasks whose records are to
+   * be deleted. Returns the bytes by which the data store shrank
+   */
+  private long remove(TaskRecord task, List<String> expired) {
+    limiter.acquire();
+    long bytes = data.removeTask(task.getTaskId());
+    bytesRemoved += bytes;
+    expired.add(task.getTaskId());
+    passTasksRemoved++;
+    tasksRemoved++;
+    return bytes;
+  }
+
+  private long maxAge(TaskRecord task) {
+    long age = -1;
+    for (String tag : task.getTags()) {
+      Long tagAge = tagMaxAges.get(tag);
+      if (tagAge != null)
+        age = Math.max(age, tagAge);
+    }
+    return age < 0 ? maxAge : age;
+  }
+
+  @Override
+  public JSONObject getStatus() {
+    JSONObject status = new JSONObject();
+    status.put("running", running);
+    status.put("passes", passes);
+    status.put("tasksRemoved", tasksRemoved);
+    status.put("bytesRemoved", bytesRemoved);
+    status.put("currentPassTasksExamined", passTasksExamined);
+    status.put("currentPassTasksRemoved", passTasksRemoved);
+    status.put("lastPassStart", lastPassStart);
+    status.put("lastPassDurationMs", lastPassDuration);
+    if (maxBytes != Long.MAX_VALUE)
+      status.put("dataStoreBytes", data.size());
+    return status;
+  }
+
+}
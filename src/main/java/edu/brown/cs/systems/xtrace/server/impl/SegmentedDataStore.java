@@ -0,0 +1,1155 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.log4j.Logger;
+
+import com.google.protobuf.CodedOutputStream;
+
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+import edu.brown.cs.systems.xtrace.server.impl.GroupCommitter.FsyncPolicy;
+import edu.brown.cs.systems.xtrace.server.impl.ServerReporting.ReportOnDisk;
+
+/**
+ * Log-structured data store. Rather than one file per task, all reports are
+ * appended to large rolling segment files, and an in-memory index maps each
+ * task to the positions of its reports. Reads are positional reads against the
+ * segments.
+ *
+ * Each segment has a sidecar index file, written sequentially alongside the
+ * segment, so that the in-memory index can be reloaded on startup without
+ * rescanning sealed segments.
+ *
+ * Records are framed with a length and CRC32C (see Frames), so a torn tail left
+ * by a crash is detected when the segment's index is rebuilt, and truncated.
+ *
+ * Segments can optionally be compressed. A compressed segment is a sequence of
+ * blocks, each holding a batch of reports compressed with Deflater. A block is
+ * sealed when it reaches block-size or when the group committer flushes, and
+ * the index records each report's block and its offset within the block, so a
+ * read only decompresses the blocks that contain the task's reports.
+ */
+public class SegmentedDataStore implements DataStore {
+
+  static private final Logger LOG = Logger.getLogger(SegmentedDataStore.class);
+
+  static final int MAGIC = 0x58545347; // "XTSG"
+  // Versions 1 and 2 predate framing and are only read, never written
+  static final int VERSION = 1;
+  static final int COMPRESSED_VERSION = 2;
+  static final int FRAMED_VERSION = 3;
+  static final int FRAMED_COMPRESSED_VERSION = 4;
+  static final int HEADER_SIZE = 8;
+  static final int BLOCK_HEADER_SIZE = 8;
+  static final int FRAMED_BLOCK_HEADER_SIZE = Frames.HEADER_SIZE + 4;
+
+  static final String SEGMENT_SUFFIX = ".log";
+  static final String INDEX_SUFFIX = ".idx";
+  static final String PARTIAL_INDEX_SUFFIX = ".idx.tmp";
+  static final String TOMBSTONES = "removed-tasks";
+
+  private final File data;
+  private final long segmentSize;
+  private final boolean compress;
+  private final int blockSize;
+  private final Committer committer;
+
+  private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+  private final ConcurrentMap<String, TaskIndex> index = new ConcurrentHashMap<String, TaskIndex>();
+
+  // Total length of the reports in the index, which is what size() reports
+  private final AtomicLong liveBytes = new AtomicLong();
+
+  private final Object writeLock = new Object();
+  private Segment active;
+
+  private final Object tombstoneLock = new Object();
+  private DataOutputStream tombstones;
+
+  public SegmentedDataStore(String directory) throws IOException {
+    this(directory, XTraceSettings.DATASTORE_SEGMENT_SIZE, XTraceSettings.DATASTORE_COMPRESSION, XTraceSettings.DATASTORE_BLOCK_SIZE);
+  }
+
+  public SegmentedDataStore(String directory, long segmentSize) throws IOException {
+    this(directory, segmentSize, false, 0);
+  }
+
+  public SegmentedDataStore(String directory, long segmentSize, boolean compress, int blockSize) throws IOException {
+    if (directory == null)
+      throw new IOException("SegmentedDataStore directory name is null");
+
+    data = new File(directory);
+    if (!data.isDirectory() && !data.mkdirs())
+      throw new IOException("SegmentedDataStore specified data store is not a directory " + directory);
+    if (!data.canWrite())
+      throw new IOException("SegmentedDataStore cannot write to specified datastore " + directory);
+    this.segmentSize = segmentSize;
+    this.compress = compress;
+    this.blockSize = blockSize;
+
+    loadSegments();
+    applyTombstones();
+
+    // Always start a fresh segment on startup
+    long next = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+    active = Segment.create(data, next, compress);
+    segments.put(active.id, active);
+
+    committer = new Committer();
+    committer.start();
+
+    LOG.info("DataStore directory: " + data.getAbsolutePath() + ", " + segments.size() + " segments, " + index.size() + " tasks");
+  }
+
+  /**
+   * Loads the index for each existing segment. Segments whose index was not
+   * completely written, typically just the segment that was active when the
+   * server stopped, are first rescanned in parallel to rebuild their index
+   */
+  private void loadSegments() throws IOException {
+    File[] files = data.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith("segment-") && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    Arrays.sort(files);
+    List<Segment> opened = new ArrayList<Segment>();
+    List<Segment> unindexed = new ArrayList<Segment>();
+    for (File file : files) {
+      long id = Long.parseLong(file.getName().substring(8, file.getName().length() - SEGMENT_SUFFIX.length()), 16);
+      Segment segment = Segment.open(id, file);
+      opened.add(segment);
+      if (!segment.indexFile(INDEX_SUFFIX).exists())
+        unindexed.add(segment);
+    }
+
+    if (!unindexed.isEmpty())
+      rebuildIndexes(unindexed);
+
+    // Load in order, so that each task's positions are sorted
+    for (Segment segment : opened) {
+      loadIndex(segment, segment.indexFile(INDEX_SUFFIX));
+      segments.put(segment.id, segment);
+    }
+  }
+
+  private void rebuildIndexes(List<Segment> unindexed) throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(unindexed.size(), XTraceSettings.DATASTORE_RECOVERY_THREADS)));
+    try {
+      List<Future<?>> rebuilt = new ArrayList<Future<?>>();
+      for (final Segment segment : unindexed) {
+        rebuilt.add(pool.submit(new Callable<Void>() {
+          public Void call() throws IOException {
+            LOG.info("Rebuilding index for segment " + segment.file.getName());
+            rebuildIndex(segment);
+            return null;
+          }
+        }));
+      }
+      for (Future<?> f : rebuilt)
+        f.get();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted rebuilding segment indexes", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to rebuild segment index", e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private void loadIndex(Segment segment, File indexfile) throws IOException {
+    InputStream file = new FileInputStream(indexfile);
+    if (segment.compressed)
+      file = new InflaterInputStream(file);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(file, 65536));
+    try {
+      while (true) {
+        String taskId;
+        try {
+          taskId = in.readUTF();
+        } catch (EOFException e) {
+          break;
+        }
+        long offset = in.readLong();
+        int inblock = segment.compressed ? in.readInt() : 0;
+        int length = in.readInt();
+        addToIndex(taskId, segment, offset, inblock, length);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Scans a segment to rebuild its index file, truncating any torn records at
+   * the end of the segment
+   */
+  private static void rebuildIndex(Segment segment) throws IOException {
+    File partial = segment.indexFile(PARTIAL_INDEX_SUFFIX);
+    segment.indexout = Segment.indexWriter(partial, segment.compressed);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 65536));
+    long end = HEADER_SIZE;
+    try {
+      if (in.readInt() != MAGIC)
+        throw new IOException("Not a segment file: " + segment.file);
+      in.readInt(); // version
+      if (segment.framed && segment.compressed)
+        end = rebuildFramedCompressed(segment, in);
+      else if (segment.framed)
+        end = rebuildFramed(segment, in);
+      else if (segment.compressed)
+        end = rebuildCompressed(segment, in);
+      else
+        end = rebuildUncompressed(segment, in);
+    } catch (EOFException e) {
+      LOG.warn("Segment " + segment.file.getName() + " is missing its header");
+    } finally {
+      in.close();
+      segment.indexout.close();
+      segment.indexout = null;
+    }
+    if (Frames.truncate(segment.file, end) > 0)
+      segment.size = segment.flushed = end;
+    if (!partial.renameTo(segment.indexFile(INDEX_SUFFIX)))
+      throw new IOException("Unable to write index for segment " + segment.file);
+  }
+
+  private static long rebuildFramed(Segment segment, DataInputStream in) throws IOException {
+    long available = segment.file.length();
+    long offset = HEADER_SIZE;
+    byte[] payload;
+    while ((payload = Frames.readPayload(in, available - offset)) != null) {
+      int length = Frames.size(payload.length);
+      Report report = Reports.fromDisk(ReportOnDisk.parseFrom(payload));
+      if (report != null)
+        segment.appendIndex(report.getTaskID(), offset, 0, length);
+      offset += length;
+    }
+    if (offset < available)
+      LOG.warn("Segment " + segment.file.getName() + " has a torn record at offset " + offset);
+    return offset;
+  }
+
+  private static long rebuildFramedCompressed(Segment segment, DataInputStream in) throws IOException {
+    long available = segment.file.length();
+    long offset = HEADER_SIZE;
+    Inflater inflater = new Inflater();
+    try {
+      byte[] payload;
+      while ((payload = Frames.readPayload(in, available - offset)) != null) {
+        int length = ByteBuffer.wrap(payload).getInt();
+        ByteBuffer block = ByteBuffer.wrap(inflate(inflater, payload, 4, payload.length - 4, length));
+        indexBlock(segment, offset, block);
+        offset += Frames.size(payload.length);
+      }
+    } finally {
+      inflater.end();
+    }
+    if (offset < available)
+      LOG.warn("Segment " + segment.file.getName() + " has a torn block at offset " + offset);
+    return offset;
+  }
+
+  private static void indexBlock(Segment segment, long offset, ByteBuffer block) throws IOException {
+    while (block.hasRemaining()) {
+      int inblock = block.position();
+      ReportOnDisk diskrepr = Reports.readDelimited(block);
+      if (diskrepr == null)
+        break;
+      Report report = Reports.fromDisk(diskrepr);
+      if (report != null)
+        segment.appendIndex(report.getTaskID(), offset, inblock, block.position() - inblock);
+    }
+  }
+
+  private static long rebuildUncompressed(Segment segment, DataInputStream in) throws IOException {
+    long offset = HEADER_SIZE;
+    while (true) {
+      ReportOnDisk diskrepr;
+      try {
+        diskrepr = ReportOnDisk.parseDelimitedFrom(in);
+      } catch (IOException e) {
+        LOG.warn("Segment " + segment.file.getName() + " has an incomplete record at offset " + offset);
+        break;
+      }
+      if (diskrepr == null)
+        break;
+      int size = diskrepr.getSerializedSize();
+      int length = size + CodedOutputStream.computeRawVarint32Size(size);
+      Report report = Reports.fromDisk(diskrepr);
+      if (report != null)
+        segment.appendIndex(report.getTaskID(), offset, 0, length);
+      offset += length;
+    }
+    return offset;
+  }
+
+  private static long rebuildCompressed(Segment segment, DataInputStream in) throws IOException {
+    Inflater inflater = new Inflater();
+    long offset = HEADER_SIZE;
+    try {
+      while (true) {
+        ByteBuffer block;
+        int compressedLength;
+        try {
+          compressedLength = in.readInt();
+          int length = in.readInt();
+          byte[] compressed = new byte[compressedLength];
+          in.readFully(compressed);
+          block = ByteBuffer.wrap(inflate(inflater, compressed, 0, compressedLength, length));
+        } catch (IOException e) {
+          if (offset < segment.file.length())
+            LOG.warn("Segment " + segment.file.getName() + " has an incomplete block at offset " + offset);
+          break;
+        }
+        indexBlock(segment, offset, block);
+        offset += BLOCK_HEADER_SIZE + compressedLength;
+      }
+    } finally {
+      inflater.end();
+    }
+    return offset;
+  }
+
+  static byte[] inflate(Inflater inflater, byte[] compressed, int offset, int compressedLength, int length) throws IOException {
+    byte[] block = new byte[length];
+    inflater.reset();
+    inflater.setInput(compressed, offset, compressedLength);
+    try {
+      int n = 0;
+      while (n < length && !inflater.finished()) {
+        int inflated = inflater.inflate(block, n, length - n);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+          break;
+        n += inflated;
+      }
+      if (n != length)
+        throw new IOException("Compressed block is truncated");
+    } catch (DataFormatException e) {
+      throw new IOException("Compressed block is corrupt", e);
+    }
+    return block;
+  }
+
+  private void addToIndex(String taskId, Segment segment, long offset, int inblock, int length) {
+    while (true) {
+      TaskIndex taskindex = index.get(taskId);
+      if (taskindex == null) {
+        taskindex = new TaskIndex();
+        TaskIndex existing = index.putIfAbsent(taskId, taskindex);
+        if (existing != null)
+          taskindex = existing;
+      }
+      // The add fails if the task was concurrently removed
+      if (taskindex.add(segment.id, offset, inblock, length)) {
+        segment.live.incrementAndGet();
+        liveBytes.addAndGet(length);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes the task's reports that precede the watermark from the index, and
+   * deletes segments that no longer contain any reports. Returns the total
+   * length of the removed reports
+   */
+  private long removeFromIndex(String taskId, long watermark) {
+    TaskIndex taskindex = index.get(taskId);
+    if (taskindex == null)
+      return 0;
+    List<Long> removed = new ArrayList<Long>();
+    long bytes = taskindex.removeBefore(watermark, removed);
+    if (taskindex.isRemoved())
+      index.remove(taskId, taskindex);
+    liveBytes.addAndGet(-bytes);
+
+    for (long position : removed) {
+      Segment segment = segments.get(TaskIndex.segment(position));
+      if (segment != null && segment.live.decrementAndGet() == 0 && segment != active)
+        deleteSegment(segment);
+    }
+    return bytes;
+  }
+
+  private void deleteSegment(Segment segment) {
+    if (segments.remove(segment.id, segment)) {
+      segment.closeReader();
+      segment.indexFile(INDEX_SUFFIX).delete();
+      if (segment.file.delete())
+        LOG.info("Deleted segment " + segment.file.getName() + " (" + segment.size + " bytes)");
+      else
+        LOG.warn("Unable to delete segment " + segment.file.getName());
+    }
+  }
+
+  /**
+   * Applies the tombstones of removed tasks to the loaded index, deletes any
+   * segments left empty, and rewrites the tombstone file without tombstones
+   * that only refer to deleted segments
+   */
+  private void applyTombstones() throws IOException {
+    File file = new File(data, TOMBSTONES);
+    List<String> taskIds = new ArrayList<String>();
+    List<Long> watermarks = new ArrayList<Long>();
+    if (file.exists()) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+      try {
+        while (true) {
+          String taskId = in.readUTF();
+          long watermark = in.readLong();
+          taskIds.add(taskId);
+          watermarks.add(watermark);
+          removeFromIndex(taskId, watermark);
+        }
+      } catch (EOFException e) {
+        // Reached the end, or a partially written tombstone
+      } finally {
+        in.close();
+      }
+    }
+
+    for (Segment segment : segments.values())
+      if (segment.live.get() == 0)
+        deleteSegment(segment);
+
+    long oldest = segments.isEmpty() ? Long.MAX_VALUE : TaskIndex.position(segments.firstKey(), 0);
+    File partial = new File(data, TOMBSTONES + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial), 65536));
+    try {
+      for (int i = 0; i < taskIds.size(); i++) {
+        if (watermarks.get(i) > oldest) {
+          out.writeUTF(taskIds.get(i));
+          out.writeLong(watermarks.get(i));
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!partial.renameTo(file) && !(file.delete() && partial.renameTo(file)))
+      throw new IOException("Unable to rewrite " + file);
+    tombstones = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 4096));
+  }
+
+  @Override
+  public boolean reportReceived(Report r) {
+    ReportOnDisk fordisk = r.diskRepr();
+    try {
+      synchronized (writeLock) {
+        int length = active.sizeOf(fordisk);
+        if (active.size > HEADER_SIZE && active.size + length > segmentSize)
+          roll();
+        // For compressed segments, the offset is that of the block being filled
+        long offset = active.size;
+        int inblock = active.append(fordisk, length);
+        active.appendIndex(r.getTaskID(), offset, inblock, length);
+        addToIndex(r.getTaskID(), active, offset, inblock, length);
+        if (compress && inblock + length >= blockSize)
+          active.sealBlock();
+        committer.written(length);
+      }
+      return true;
+    } catch (IOException e) {
+      LOG.warn("Discarding a report due to IOException", e);
+      return false;
+    }
+  }
+
+  /**
+   * Seals the active segment and starts a new one. Must hold the write lock
+   */
+  private void roll() throws IOException {
+    Segment sealed = active;
+    sealed.seal(committer.getFsyncPolicy() != FsyncPolicy.NONE);
+    active = Segment.create(data, sealed.id + 1, compress);
+    segments.put(active.id, active);
+    LOG.info("Sealed segment " + sealed.file.getName() + " (" + sealed.size + " bytes)");
+    if (sealed.live.get() == 0)
+      deleteSegment(sealed);
+  }
+
+  @Override
+  public ReportStream getReports(String taskId) {
+    TaskIndex taskindex = index.get(taskId);
+    if (taskindex == null)
+      return Reports.emptyStream();
+    return new SegmentReportStream(taskindex.snapshot());
+  }
+
+  @Override
+  public boolean contains(String taskId) {
+    return index.containsKey(taskId);
+  }
+
+  @Override
+  public Collection<String> getTaskIds() {
+    return new ArrayList<String>(index.keySet());
+  }
+
+  /**
+   * Removes the task from the index and records a tombstone, so that the task
+   * stays removed across restarts. The space is reclaimed once every report in
+   * a segment has been removed, at which point the whole segment is deleted
+   */
+  @Override
+  public long removeTask(String taskId) {
+    if (!index.containsKey(taskId))
+      return 0;
+    long watermark;
+    synchronized (writeLock) {
+      // Seal the block being filled, so that the watermark falls between blocks
+      try {
+        active.sealBlock();
+      } catch (IOException e) {
+        LOG.warn("IOException sealing block of segment " + active.file.getName(), e);
+      }
+      watermark = TaskIndex.position(active.id, active.size);
+    }
+    synchronized (tombstoneLock) {
+      try {
+        tombstones.writeUTF(taskId);
+        tombstones.writeLong(watermark);
+        tombstones.flush();
+      } catch (IOException e) {
+        LOG.warn("IOException writing tombstone for task " + taskId, e);
+      }
+    }
+    return removeFromIndex(taskId, watermark);
+  }
+
+  /**
+   * Returns the total length of the reports that have not been removed, before
+   * compression. A segment is only deleted once all of its reports are
+   * removed, so the segment files can take up more space than this
+   */
+  @Override
+  public long size() {
+    return liveBytes.get();
+  }
+
+  @Override
+  public long sequence() {
+    return committer.sequence();
+  }
+
+  @Override
+  public boolean awaitDurable(long sequence, long timeout) throws InterruptedException {
+    return committer.awaitDurable(sequence, timeout);
+  }
+
+  @Override
+  public void shutdown() {
+    committer.shutdown();
+    synchronized (writeLock) {
+      try {
+        active.seal(committer.getFsyncPolicy() != FsyncPolicy.NONE);
+        if (active.size == HEADER_SIZE) {
+          // Don't leave empty segments lying around
+          segments.remove(active.id);
+          active.file.delete();
+          active.indexFile(INDEX_SUFFIX).delete();
+        }
+      } catch (IOException e) {
+        LOG.warn("IOException sealing segment " + active.file.getName(), e);
+      }
+    }
+    for (Segment segment : segments.values())
+      segment.closeReader();
+    synchronized (tombstoneLock) {
+      try {
+        tombstones.close();
+      } catch (IOException e) {
+        LOG.warn("IOException closing tombstones", e);
+      }
+    }
+    LOG.info("Data store flushed all data to disk");
+  }
+
+  /**
+   * Makes sure that the specified range of a segment has been flushed, so that
+   * it can be read back. For compressed segments this seals the block being
+   * filled, if the range lies in it
+   */
+  private void ensureFlushed(Segment segment, long end) throws IOException {
+    if (segment.flushed < end) {
+      synchronized (writeLock) {
+        segment.flush();
+      }
+    }
+  }
+
+  /**
+   * Flushes the active segment in batches, instead of after every report
+   */
+  private class Committer extends GroupCommitter {
+    public Committer() {
+      super("SegmentedDataStore");
+    }
+
+    @Override
+    protected void flush() throws IOException {
+      synchronized (writeLock) {
+        active.flush();
+      }
+    }
+
+    @Override
+    protected void sync() throws IOException {
+      FileOutputStream out;
+      synchronized (writeLock) {
+        out = active.unsynced ? active.fileout : null;
+        active.unsynced = false;
+      }
+      // Sync outside of the lock; a segment that is sealed concurrently syncs itself
+      if (out != null) {
+        try {
+          out.getFD().sync();
+        } catch (IOException e) {
+          if (out.getFD().valid())
+            throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * A single segment file. Only the active segment has an output stream; all
+   * writes and flushes happen while holding the store's write lock
+   */
+  private static class Segment {
+    private final long id;
+    private final File file;
+
+    private final boolean compressed;
+    private final boolean framed;
+    private FileOutputStream fileout;
+    private BufferedOutputStream out;
+    private DataOutputStream indexout;
+    private Block block;
+    private Deflater deflater;
+    private long size;
+    private volatile long flushed;
+    private boolean unsynced = false;
+
+    private FileChannel reader;
+
+    // The number of indexed reports in this segment that have not been removed
+    private final AtomicInteger live = new AtomicInteger();
+
+    private Segment(long id, File file, int version) {
+      this.id = id;
+      this.file = file;
+      this.compressed = version == COMPRESSED_VERSION || version == FRAMED_COMPRESSED_VERSION;
+      this.framed = version >= FRAMED_VERSION;
+      this.size = this.flushed = file.length();
+    }
+
+    /**
+     * Opens an existing segment, reading its header to find out its format
+     */
+    public static Segment open(long id, File file) throws IOException {
+      int version = VERSION;
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        in.readInt();
+        version = in.readInt();
+      } catch (EOFException e) {
+        // Missing header, rebuilding the index will report it
+      } finally {
+        in.close();
+      }
+      return new Segment(id, file, version);
+    }
+
+    /**
+     * Creates a new segment. New segments are always framed
+     */
+    public static Segment create(File directory, long id, boolean compressed) throws IOException {
+      int version = compressed ? FRAMED_COMPRESSED_VERSION : FRAMED_VERSION;
+      Segment segment = new Segment(id, new File(directory, String.format("segment-%016x%s", id, SEGMENT_SUFFIX)), version);
+      segment.fileout = new FileOutputStream(segment.file);
+      segment.out = new BufferedOutputStream(segment.fileout, XTraceSettings.DATASTORE_BUFFER_SIZE);
+      segment.indexout = indexWriter(segment.indexFile(PARTIAL_INDEX_SUFFIX), compressed);
+      DataOutputStream header = new DataOutputStream(segment.out);
+      header.writeInt(MAGIC);
+      header.writeInt(version);
+      segment.size = HEADER_SIZE;
+      if (compressed) {
+        segment.block = new Block();
+        // Compression happens on the ingest path, so favour speed; reports are repetitive enough to still compress well
+        segment.deflater = new Deflater(Deflater.BEST_SPEED);
+      }
+      return segment;
+    }
+
+    /**
+     * Returns the number of bytes a report takes up in the segment, or in the
+     * uncompressed block if the segment is compressed
+     */
+    public int sizeOf(ReportOnDisk report) {
+      int size = report.getSerializedSize();
+      if (framed && !compressed)
+        return Frames.size(size);
+      return size + CodedOutputStream.computeRawVarint32Size(size);
+    }
+
+    /**
+     * Appends a report to the segment, or to the block being filled if the
+     * segment is compressed. Returns the report's offset within the block
+     */
+    public int append(ReportOnDisk report, int length) throws IOException {
+      if (!compressed) {
+        out.write(Frames.encode(report));
+        size += length;
+        return 0;
+      }
+      int inblock = block.size();
+      report.writeDelimitedTo(block);
+      return inblock;
+    }
+
+    /**
+     * Compresses the block being filled and writes it to the segment as a
+     * single frame, whose payload is the uncompressed length followed by the
+     * compressed data
+     */
+    public void sealBlock() throws IOException {
+      if (!compressed || block == null || block.size() == 0)
+        return;
+      deflater.reset();
+      deflater.setInput(block.buffer(), 0, block.size());
+      deflater.finish();
+      Block frame = new Block();
+      DataOutputStream header = new DataOutputStream(frame);
+      header.writeLong(0); // Frame header, filled in below
+      header.writeInt(block.size());
+      byte[] chunk = new byte[8192];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(chunk);
+        frame.write(chunk, 0, n);
+      }
+      int length = frame.size() - Frames.HEADER_SIZE;
+      Frames.writeHeader(frame.buffer(), 0, length, Frames.checksum(frame.buffer(), Frames.HEADER_SIZE, length));
+      out.write(frame.buffer(), 0, frame.size());
+      size += frame.size();
+      block.reset();
+    }
+
+    /**
+     * The index of a compressed segment is compressed too, otherwise it would
+     * be larger than the segment itself
+     */
+    public static DataOutputStream indexWriter(File file, boolean compressed) throws IOException {
+      OutputStream out = new FileOutputStream(file);
+      if (compressed)
+        out = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), 65536);
+      return new DataOutputStream(new BufferedOutputStream(out, 65536));
+    }
+
+    public File indexFile(String suffix) {
+      String name = file.getName();
+      return new File(file.getParentFile(), name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + suffix);
+    }
+
+    public void appendIndex(String taskId, long offset, int inblock, int length) throws IOException {
+      indexout.writeUTF(taskId);
+      indexout.writeLong(offset);
+      if (compressed)
+        indexout.writeInt(inblock);
+      indexout.writeInt(length);
+    }
+
+    public void flush() throws IOException {
+      sealBlock();
+      if (out != null && flushed < size) {
+        out.flush();
+        flushed = size;
+        unsynced = true;
+      }
+    }
+
+    /**
+     * Flushes and closes the segment, and moves its index into place
+     */
+    public void seal(boolean sync) throws IOException {
+      if (out == null)
+        return;
+      flush();
+      if (sync)
+        fileout.getFD().sync();
+      out.close();
+      indexout.close();
+      out = null;
+      fileout = null;
+      if (deflater != null) {
+        deflater.end();
+        deflater = null;
+        block = null;
+      }
+      if (!indexFile(PARTIAL_INDEX_SUFFIX).renameTo(indexFile(INDEX_SUFFIX)))
+        LOG.warn("Unable to move index into place for segment " + file.getName());
+    }
+
+    /**
+     * Returns the channel shared by the segment's readers. A reader that is
+     * interrupted mid-read closes the channel for everybody, so it is reopened
+     * if it has been closed
+     */
+    public synchronized FileChannel reader() throws IOException {
+      if (reader == null || !reader.isOpen())
+        reader = new RandomAccessFile(file, "r").getChannel();
+      return reader;
+    }
+
+    public synchronized void closeReader() {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+        }
+        reader = null;
+      }
+    }
+  }
+
+  /**
+   * A byte array output stream that exposes its buffer, to avoid copying
+   */
+  private static class Block extends ByteArrayOutputStream {
+    public Block() {
+      super(8192);
+    }
+
+    public byte[] buffer() {
+      return buf;
+    }
+  }
+
+  /**
+   * The positions of a task's reports. Each position packs the segment ID into
+   * the upper 24 bits and the offset within the segment into the lower 40 bits,
+   * so positions are ordered by the time the reports were written. For
+   * compressed segments the offset is that of the block, and the offset within
+   * the uncompressed block is stored separately
+   */
+  private static class TaskIndex {
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private long[] positions = new long[2];
+    private int[] lengths = new int[2];
+    private int[] inblocks = new int[2];
+    private int count = 0;
+    private boolean removed = false;
+
+    /**
+     * Returns false if this index has been removed, in which case a new index
+     * should be created for the task
+     */
+    public synchronized boolean add(long segment, long offset, int inblock, int length) {
+      if (removed)
+        return false;
+      if (count == positions.length) {
+        positions = Arrays.copyOf(positions, count * 2);
+        lengths = Arrays.copyOf(lengths, count * 2);
+        inblocks = Arrays.copyOf(inblocks, count * 2);
+      }
+      positions[count] = position(segment, offset);
+      lengths[count] = length;
+      inblocks[count] = inblock;
+      count++;
+      return true;
+    }
+
+    /**
+     * Removes the positions that precede the watermark, adding them to before,
+     * and returns the total length of their reports. If no positions remain
+     * then the index is marked as removed
+     */
+    public synchronized long removeBefore(long watermark, List<Long> before) {
+      int n = 0;
+      long bytes = 0;
+      for (; n < count && positions[n] < watermark; n++) {
+        before.add(positions[n]);
+        bytes += lengths[n];
+      }
+      System.arraycopy(positions, n, positions, 0, count - n);
+      System.arraycopy(lengths, n, lengths, 0, count - n);
+      System.arraycopy(inblocks, n, inblocks, 0, count - n);
+      count -= n;
+      if (count == 0)
+        removed = true;
+      return bytes;
+    }
+
+    public synchronized boolean isRemoved() {
+      return removed;
+    }
+
+    public synchronized TaskIndex snapshot() {
+      TaskIndex copy = new TaskIndex();
+      copy.positions = Arrays.copyOf(positions, count);
+      copy.lengths = Arrays.copyOf(lengths, count);
+      copy.inblocks = Arrays.copyOf(inblocks, count);
+      copy.count = count;
+      return copy;
+    }
+
+    public static long position(long segment, long offset) {
+      return (segment << OFFSET_BITS) | offset;
+    }
+
+    public static long segment(long position) {
+      return position >>> OFFSET_BITS;
+    }
+
+    public static long offset(long position) {
+      return position & OFFSET_MASK;
+    }
+  }
+
+  /**
+   * Reads a task's reports from the segments using positional reads. Reports
+   * are appended in order, so consecutive reports of a task that are close
+   * together in a segment are fetched with a single read-ahead read. Reports
+   * in compressed segments are read a block at a time, and consecutive reports
+   * in the same block only decompress it once
+   */
+  private class SegmentReportStream implements ReportStream {
+
+    private final TaskIndex taskindex;
+    private int i = 0;
+    private ByteBuffer buf = null;
+    private int buffered = 0;
+    private long bufstart;
+    private Report nextReport = null;
+
+    // The most recently decompressed block
+    private Inflater inflater = null;
+    private ByteBuffer block = null;
+    private long blockPosition = -1;
+
+    public SegmentReportStream(TaskIndex taskindex) {
+      this.taskindex = taskindex;
+      nextReport = calcNext();
+    }
+
+    public boolean hasNext() {
+      return nextReport != null;
+    }
+
+    public Report next() {
+      if (nextReport == null)
+        throw new NoSuchElementException();
+      Report ret = nextReport;
+      nextReport = calcNext();
+      return ret;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+      i = taskindex.count;
+      buf = null;
+      block = null;
+      nextReport = null;
+      if (inflater != null) {
+        inflater.end();
+        inflater = null;
+      }
+    }
+
+    private Report calcNext() {
+      while (i < taskindex.count) {
+        long position = taskindex.positions[i];
+        long offset = TaskIndex.offset(position);
+        int length = taskindex.lengths[i];
+        ByteBuffer source;
+        int start;
+        boolean framed = false;
+        Segment segment = segments.get(TaskIndex.segment(position));
+        if (segment != null && segment.compressed) {
+          if (!readBlock(segment, position))
+            continue;
+          source = block;
+          start = taskindex.inblocks[i];
+        } else {
+          if (buffered == 0 && !readAhead())
+            continue;
+          buffered--;
+          source = buf;
+          start = (int) (offset - bufstart);
+          framed = segment != null && segment.framed;
+        }
+        i++;
+        try {
+          source.limit(start + length);
+          source.position(start);
+          ReportOnDisk diskrepr = framed ? Frames.read(source) : Reports.readDelimited(source);
+          if (diskrepr != null) {
+            Report report = Reports.fromDisk(diskrepr);
+            if (report != null)
+              return report;
+          }
+        } catch (IOException e) {
+          LOG.warn("Invalid report in segment at offset " + offset, e);
+        }
+      }
+      close();
+      return null;
+    }
+
+    /**
+     * Reads the next run of reports that lie in the same segment within the
+     * read-ahead window. Returns false, skipping the next report, if it could
+     * not be read
+     */
+    private boolean readAhead() {
+      long position = taskindex.positions[i];
+      long segmentId = TaskIndex.segment(position);
+      bufstart = TaskIndex.offset(position);
+      long end = bufstart + taskindex.lengths[i];
+      int j = i + 1;
+      while (j < taskindex.count && TaskIndex.segment(taskindex.positions[j]) == segmentId) {
+        long next = TaskIndex.offset(taskindex.positions[j]) + taskindex.lengths[j];
+        if (next - bufstart > XTraceSettings.DATASTORE_READAHEAD_SIZE)
+          break;
+        end = next;
+        j++;
+      }
+
+      Segment segment = segments.get(segmentId);
+      try {
+        if (segment == null)
+          throw new IOException("Segment " + segmentId + " no longer exists");
+        ensureFlushed(segment, end);
+        int size = (int) (end - bufstart);
+        if (buf == null || buf.capacity() < size)
+          buf = ByteBuffer.allocate(Math.max(size, 4096));
+        buf.clear();
+        buf.limit(size);
+        readFully(segment, buf, bufstart);
+        buffered = j - i;
+        return true;
+      } catch (IOException e) {
+        LOG.warn("IOException reading reports from segment " + segmentId, e);
+        i++;
+        return false;
+      }
+    }
+
+    /**
+     * Reads and decompresses the block at the specified position, unless it is
+     * the block that was most recently read. Returns false, skipping the next
+     * report, if the block could not be read
+     */
+    private boolean readBlock(Segment segment, long position) {
+      if (position == blockPosition)
+        return true;
+      long offset = TaskIndex.offset(position);
+      try {
+        ensureFlushed(segment, offset + 1);
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        readFully(segment, header, offset);
+        header.flip();
+        byte[] compressed;
+        int start, length;
+        if (segment.framed) {
+          // A frame, whose payload is the uncompressed length then the compressed data
+          int framelength = header.getInt();
+          int crc = header.getInt();
+          if (framelength <= 4 || framelength > segment.size)
+            throw new IOException("Corrupt block header");
+          ByteBuffer payload = ByteBuffer.allocate(framelength);
+          readFully(segment, payload, offset + Frames.HEADER_SIZE);
+          compressed = payload.array();
+          if (Frames.checksum(compressed, 0, framelength) != crc)
+            throw new IOException("Block checksum mismatch");
+          length = payload.getInt(0);
+          start = 4;
+        } else {
+          int compressedLength = header.getInt();
+          length = header.getInt();
+          ByteBuffer payload = ByteBuffer.allocate(compressedLength);
+          readFully(segment, payload, offset + BLOCK_HEADER_SIZE);
+          compressed = payload.array();
+          start = 0;
+        }
+        if (inflater == null)
+          inflater = new Inflater();
+        block = ByteBuffer.wrap(inflate(inflater, compressed, start, compressed.length - start, length));
+        blockPosition = position;
+        return true;
+      } catch (IOException e) {
+        LOG.warn("IOException reading block at offset " + offset + " of segment " + segment.id, e);
+        blockPosition = -1;
+        i++;
+        return false;
+      }
+    }
+
+    /**
+     * Reads from the segment's shared channel. If another reader was
+     * interrupted and closed the channel under us, retries on a reopened one
+     */
+    private void readFully(Segment segment, ByteBuffer dst, long position) throws IOException {
+      try {
+        readFully(segment.reader(), dst, position);
+      } catch (ClosedChannelException e) {
+        if (e instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted())
+          throw e;
+        readFully(segment.reader(), dst, position);
+      }
+    }
+
+    private void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+      while (dst.hasRemaining()) {
+        if (channel.read(dst, position + dst.position()) < 0)
+          throw new EOFException();
+      }
+    }
+  }
+
+}
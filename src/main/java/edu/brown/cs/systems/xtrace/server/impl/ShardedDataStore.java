@@ -0,0 +1,373 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+import edu.brown.cs.systems.xtrace.XTraceSettings;
+import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+import edu.brown.cs.systems.xtrace.server.api.StatusSource;
+
+/**
+ * Spreads tasks across several data stores, typically one per disk, by hashing
+ * the task ID. Each shard has its own writer thread and bounded queue, so a
+ * slow disk only backs up its own shard. When a shard's queue is full, or its
+ * directory fails a health check, reports for that shard are dropped and reads
+ * from it return nothing, while the other shards carry on as normal.
+ *
+ * Tasks are assigned to shards by hash, so changing the list of directories
+ * makes existing tasks unreachable.
+ */
+public class ShardedDataStore implements DataStore, StatusSource {
+
+  static private final Logger LOG = Logger.getLogger(ShardedDataStore.class);
+
+  static final String PROBE_FILE = ".xtrace-probe";
+
+  private final Shard[] shards;
+  private final AtomicLong sequence = new AtomicLong();
+  private final HealthChecker checker;
+
+  /**
+   * @param directories the root directory of each shard
+   * @param stores the data store for each shard, in the same order
+   */
+  public ShardedDataStore(List<File> directories, List<DataStore> stores) {
+    this(directories, stores, XTraceSettings.SHARD_QUEUE_SIZE, XTraceSettings.SHARD_HEALTH_CHECK_INTERVAL);
+  }
+
+  public ShardedDataStore(List<File> directories, List<DataStore> stores, int queueSize, long healthCheckInterval) {
+    if (directories.isEmpty() || directories.size() != stores.size())
+      throw new IllegalArgumentException("Need one data store per shard directory");
+    shards = new Shard[stores.size()];
+    for (int i = 0; i < shards.length; i++)
+      shards[i] = new Shard(i, directories.get(i), stores.get(i), queueSize);
+    checker = new HealthChecker(healthCheckInterval);
+    checker.start();
+    LOG.info("Sharding tasks across " + shards.length + " data stores");
+  }
+
+  private Shard shard(String taskId) {
+    return shards[(taskId.hashCode() & Integer.MAX_VALUE) % shards.length];
+  }
+
+  @Override
+  public boolean reportReceived(Report r) {
+    sequence.incrementAndGet();
+    return shard(r.getTaskID()).write(r);
+  }
+
+  @Override
+  public ReportStream getReports(String taskId) {
+    Shard shard = shard(taskId);
+    if (!shard.healthy)
+      return Reports.emptyStream();
+    try {
+      return shard.store.getReports(taskId);
+    } catch (RuntimeException e) {
+      shard.failed("reading task " + taskId, e);
+      return Reports.emptyStream();
+    }
+  }
+
+  /**
+   * Tasks on unhealthy shards are reported as absent, as their reports cannot
+   * be read
+   */
+  @Override
+  public boolean contains(String taskId) {
+    Shard shard = shard(taskId);
+    if (!shard.healthy)
+      return false;
+    try {
+      return shard.store.contains(taskId);
+    } catch (RuntimeException e) {
+      shard.failed("looking up task " + taskId, e);
+      return false;
+    }
+  }
+
+  /**
+   * Tasks on unhealthy shards are omitted
+   */
+  @Override
+  public Collection<String> getTaskIds() {
+    List<String> taskIds = new ArrayList<String>();
+    for (Shard shard : shards) {
+      if (!shard.healthy)
+        continue;
+      try {
+        taskIds.addAll(shard.store.getTaskIds());
+      } catch (RuntimeException e) {
+        shard.failed("listing tasks", e);
+      }
+    }
+    return taskIds;
+  }
+
+  @Override
+  public long removeTask(String taskId) {
+    Shard shard = shard(taskId);
+    if (!shard.healthy)
+      return 0;
+    try {
+      return shard.store.removeTask(taskId);
+    } catch (RuntimeException e) {
+      shard.failed("removing task " + taskId, e);
+      return 0;
+    }
+  }
+
+  @Override
+  public long size() {
+    long size = 0;
+    for (Shard shard : shards) {
+      try {
+        size += shard.store.size();
+      } catch (RuntimeException e) {
+        shard.failed("calculating size", e);
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public long sequence() {
+    return sequence.get();
+  }
+
+  /**
+   * Shards do not share sequence numbers, so this waits for every report
+   * queued so far to be written by its shard, then for each shard's store to
+   * make its reports durable. Unhealthy shards are skipped
+   */
+  @Override
+  public boolean awaitDurable(long sequence, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    Future<?>[] drained = new Future<?>[shards.length];
+    for (int i = 0; i < shards.length; i++)
+      if (shards[i].healthy && (drained[i] = shards[i].drain(deadline)) == null)
+        return false;
+    boolean durable = true;
+    for (int i = 0; i < shards.length; i++) {
+      if (drained[i] == null)
+        continue;
+      try {
+        long remaining = deadline - System.currentTimeMillis();
+        Long seq = (Long) drained[i].get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+        durable &= shards[i].store.awaitDurable(seq, Math.max(0, deadline - System.currentTimeMillis()));
+      } catch (ExecutionException e) {
+        durable = false;
+      } catch (TimeoutException e) {
+        return false;
+      }
+    }
+    return durable;
+  }
+
+  @Override
+  public void shutdown() {
+    checker.shutdown();
+    for (Shard shard : shards)
+      shard.shutdown();
+  }
+
+  @Override
+  public JSONObject getStatus() {
+    JSONArray status = new JSONArray();
+    for (Shard shard : shards)
+      status.add(shard.getStatus());
+    JSONObject ret = new JSONObject();
+    ret.put("shards", status);
+    return ret;
+  }
+
+  private static class Shard {
+    private final int id;
+    private final File directory;
+    private final DataStore store;
+    private final ThreadPoolExecutor writer;
+    private volatile boolean healthy = true;
+    private volatile String lastError = null;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public Shard(final int id, File directory, DataStore store, int queueSize) {
+      this.id = id;
+      this.directory = directory;
+      this.store = store;
+      writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "ShardWriter-" + id);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+
+    /**
+     * Queues the report to be written. Returns false if it was dropped because
+     * the shard is unhealthy or its queue is full. Reports that the store
+     * itself drops are only counted, as they are written asynchronously
+     */
+    public boolean write(final Report r) {
+      if (!healthy) {
+        dropped.incrementAndGet();
+        return false;
+      }
+      try {
+        writer.execute(new Runnable() {
+          public void run() {
+            try {
+              if (store.reportReceived(r))
+                written.incrementAndGet();
+              else
+                dropped.incrementAndGet();
+            } catch (RuntimeException e) {
+              failed("writing a report", e);
+            }
+          }
+        });
+        return true;
+      } catch (RejectedExecutionException e) {
+        dropped.incrementAndGet();
+        return false;
+      }
+    }
+
+    /**
+     * Queues a marker behind all of the currently queued writes. The marker
+     * returns the store's sequence number once the writes are done. Returns
+     * null if the marker could not be queued before the deadline
+     */
+    public Future<?> drain(long deadline) throws InterruptedException {
+      Callable<Long> marker = new Callable<Long>() {
+        public Long call() {
+          return store.sequence();
+        }
+      };
+      while (true) {
+        try {
+          return writer.submit(marker);
+        } catch (RejectedExecutionException e) {
+          if (writer.isShutdown() || System.currentTimeMillis() >= deadline)
+            return null;
+          Thread.sleep(1);
+        }
+      }
+    }
+
+    public void failed(String action, Throwable t) {
+      errors.incrementAndGet();
+      lastError = action + ": " + t;
+      LOG.warn("Shard " + id + " (" + directory + ") failed " + action, t);
+    }
+
+    /**
+     * Checks that the shard's directory is still writable by creating and
+     * deleting a small file
+     */
+    public void checkHealth() {
+      boolean ok;
+      File probe = new File(directory, PROBE_FILE);
+      try {
+        FileOutputStream out = new FileOutputStream(probe);
+        try {
+          out.write(1);
+          out.getFD().sync();
+        } finally {
+          out.close();
+        }
+        ok = probe.delete() && directory.getUsableSpace() > 0;
+        if (!ok)
+          lastError = "directory is full or not writable";
+      } catch (IOException e) {
+        ok = false;
+        lastError = "health check: " + e;
+      }
+      if (ok != healthy) {
+        if (ok)
+          LOG.info("Shard " + id + " (" + directory + ") is healthy again");
+        else
+          LOG.warn("Shard " + id + " (" + directory + ") is unhealthy, dropping its reports: " + lastError);
+        healthy = ok;
+      }
+    }
+
+    public void shutdown() {
+      writer.shutdown();
+      try {
+        if (!writer.awaitTermination(30, TimeUnit.SECONDS))
+          LOG.warn("Shard " + id + " did not finish writing queued reports");
+      } catch (InterruptedException e) {
+        LOG.warn("Interrupted waiting for shard " + id + " to finish writing");
+      }
+      store.shutdown();
+    }
+
+    public JSONObject getStatus() {
+      JSONObject status = new JSONObject();
+      status.put("shard", id);
+      status.put("directory", directory.getAbsolutePath());
+      status.put("healthy", healthy);
+      status.put("queued", writer.getQueue().size());
+      status.put("written", written.get());
+      status.put("dropped", dropped.get());
+      status.put("errors", errors.get());
+      status.put("lastError", lastError);
+      return status;
+    }
+  }
+
+  private class HealthChecker extends Thread {
+    private final long interval;
+    private volatile boolean alive = true;
+
+    public HealthChecker(long interval) {
+      super("ShardHealthChecker");
+      this.interval = interval;
+      setDaemon(true);
+    }
+
+    public void shutdown() {
+      alive = false;
+      interrupt();
+    }
+
+    @Override
+    public void run() {
+      while (alive) {
+        for (Shard shard : shards)
+          shard.checkHealth();
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException e) {
+          // Shutting down
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,86 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.impl.ServerReporting.ReportOnDisk;
+
+/**
+ * The parts of a task's summary that a batch of its reports contributes: the
+ * span of their timestamps, the hosts and agents that sent them, the largest
+ * number of parents of any event, and whether any recorded an error. The
+ * metadata stores fold these into each task's stored summary, so summaries
+ * never need the task's reports to be read back.
+ *
+ * Times come from report timestamps. HRT values are per process, so they
+ * can't be compared across hosts and aren't used. Version 2 reports that
+ * could not be converted only count towards the report total.
+ */
+class TaskAggregate {
+
+  // Custom report keys that mean the event recorded an error
+  private static final Set<String> ERROR_KEYS = new LinkedHashSet<String>();
+  static {
+    ERROR_KEYS.add("error");
+    ERROR_KEYS.add("errormessage");
+    ERROR_KEYS.add("exception");
+  }
+
+  long start = Long.MAX_VALUE;
+  long end = Long.MIN_VALUE;
+  Set<String> hosts = null;
+  Set<String> agents = null;
+  int maxFanIn = 0;
+  boolean errors = false;
+
+  void add(Report report) {
+    add(report, true);
+  }
+
+  /**
+   * Adds the report to the summary. If sources is false, the report's host and
+   * agent are not recorded, so the summary doesn't grow
+   */
+  void add(Report report, boolean sources) {
+    ReportOnDisk diskrepr = report.diskRepr();
+    if (!diskrepr.hasV3Report())
+      return;
+    XTraceReport3 event = diskrepr.getV3Report();
+    if (event.hasTimestamp()) {
+      start = Math.min(start, event.getTimestamp());
+      end = Math.max(end, event.getTimestamp());
+    }
+    if (sources && event.hasHost() && !event.getHost().isEmpty())
+      hosts = add(hosts, event.getHost());
+    if (sources && event.hasAgent() && !event.getAgent().isEmpty())
+      agents = add(agents, event.getAgent());
+    maxFanIn = Math.max(maxFanIn, event.getParentEventIDCount());
+    if (!errors)
+      errors = isError(event.getKeyList());
+  }
+
+  private static Set<String> add(Set<String> set, String value) {
+    if (set == null)
+      set = new LinkedHashSet<String>(4);
+    set.add(value);
+    return set;
+  }
+
+  static boolean isError(Collection<String> keys) {
+    for (String key : keys)
+      if (ERROR_KEYS.contains(key.toLowerCase()))
+        return true;
+    return false;
+  }
+
+  /**
+   * Returns true if any of the reports had a timestamp
+   */
+  boolean hasTimes() {
+    return start <= end;
+  }
+
+}
@@ -0,0 +1,62 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+/**
+ * Conversions between numeric task IDs and the fixed width, lower case hex
+ * strings that the server uses to identify tasks. These run for every report,
+ * so avoid the format strings and intermediate strings of the obvious
+ * implementations
+ */
+public class TaskIDs {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private TaskIDs() {
+  }
+
+  /**
+   * Returns the task ID as 16 hex digits, with leading zeros
+   */
+  public static String toHex(long taskId) {
+    char[] chars = new char[16];
+    for (int i = 15; i >= 0; i--) {
+      chars[i] = HEX[(int) taskId & 0xF];
+      taskId >>>= 4;
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Returns true if the task ID is in the form that toHex returns: exactly 16
+   * lower case hex digits
+   */
+  public static boolean isCanonical(String taskId) {
+    if (taskId.length() != 16)
+      return false;
+    for (int i = 0; i < 16; i++) {
+      char c = taskId.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Parses a task ID of up to 16 hex digits, in either case
+   *
+   * @throws NumberFormatException if the string is not a valid task ID
+   */
+  public static long fromHex(String taskId) {
+    int length = taskId.length();
+    if (length == 0 || length > 16)
+      throw new NumberFormatException("Invalid task ID " + taskId);
+    long value = 0;
+    for (int i = 0; i < length; i++) {
+      int digit = Character.digit(taskId.charAt(i), 16);
+      if (digit < 0)
+        throw new NumberFormatException("Invalid task ID " + taskId);
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+}
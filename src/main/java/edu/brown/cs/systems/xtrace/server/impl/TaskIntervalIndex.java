@@ -0,0 +1,149 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory index of task lifetimes, from the first report of a task to
+ * its last, for finding the tasks that overlap a period of time.
+ *
+ * Tasks are grouped into classes by the length of their lifetime, where class
+ * k holds lifetimes shorter than 2^k milliseconds, and each class is ordered
+ * by start time. A task in class k that overlaps [start, end] must start in
+ * (start - 2^k, end], so a query is one range scan per class, and only looks
+ * at tasks that start near the period.
+ */
+public class TaskIntervalIndex {
+
+  private static final int CLASSES = 64;
+
+  private static final class Interval implements Comparable<Interval> {
+    private final String taskId;
+    private final long start, end;
+
+    private Interval(String taskId, long start, long end) {
+      this.taskId = taskId;
+      this.start = start;
+      this.end = end;
+    }
+
+    public int compareTo(Interval other) {
+      if (start != other.start)
+        return start < other.start ? -1 : 1;
+      return taskId.compareTo(other.taskId);
+    }
+  }
+
+  private final Map<String, Interval> intervals = new HashMap<String, Interval>();
+  private final List<TreeSet<Interval>> classes = new ArrayList<TreeSet<Interval>>(CLASSES);
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  public TaskIntervalIndex() {
+    for (int i = 0; i < CLASSES; i++)
+      classes.add(new TreeSet<Interval>());
+  }
+
+  /**
+   * Returns the class of lifetimes of the specified length; class k holds
+   * lengths shorter than 2^k
+   */
+  static int lengthClass(long length) {
+    return Math.min(CLASSES - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, length)));
+  }
+
+  private TreeSet<Interval> classOf(Interval interval) {
+    return classes.get(lengthClass(interval.end - interval.start));
+  }
+
+  /**
+   * Extends the task's lifetime to include the specified times, adding the
+   * task if it isn't already indexed
+   */
+  public void update(String taskId, long firstSeen, long lastUpdated) {
+    lock.writeLock().lock();
+    try {
+      Interval previous = intervals.get(taskId);
+      long start = firstSeen, end = Math.max(firstSeen, lastUpdated);
+      if (previous != null) {
+        start = Math.min(start, previous.start);
+        end = Math.max(end, previous.end);
+        if (start == previous.start && end == previous.end)
+          return;
+        classOf(previous).remove(previous);
+        taskId = previous.taskId;
+      }
+      Interval interval = new Interval(taskId, start, end);
+      intervals.put(taskId, interval);
+      classOf(interval).add(interval);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void remove(String taskId) {
+    lock.writeLock().lock();
+    try {
+      Interval interval = intervals.remove(taskId);
+      if (interval != null)
+        classOf(interval).remove(interval);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the task's first and last report times, or null if the task
+   * isn't indexed
+   */
+  public long[] getLifetime(String taskId) {
+    lock.readLock().lock();
+    try {
+      Interval interval = intervals.get(taskId);
+      return interval == null ? null : new long[] { interval.start, interval.end };
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the tasks whose lifetimes overlap [start, end]
+   */
+  public Collection<String> getOverlapping(long start, long end) {
+    List<String> overlapping = new ArrayList<String>();
+    if (end < start)
+      return overlapping;
+    Interval to = new Interval("", end == Long.MAX_VALUE ? end : end + 1, 0);
+    lock.readLock().lock();
+    try {
+      for (int k = 0; k < CLASSES; k++) {
+        TreeSet<Interval> lengthClass = classes.get(k);
+        if (lengthClass.isEmpty())
+          continue;
+        long maxLength = k == CLASSES - 1 ? Long.MAX_VALUE : 1L << k;
+        long from = start < Long.MIN_VALUE + maxLength ? Long.MIN_VALUE : start - maxLength;
+        for (Interval interval : lengthClass.subSet(new Interval("", from, 0), true, to, end == Long.MAX_VALUE))
+          if (interval.end >= start)
+            overlapping.add(interval.taskId);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return overlapping;
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return intervals.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+}
@@ -0,0 +1,144 @@
+package edu.brown.cs.systems.xtrace.server.impl.deprecated;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport2;
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.server.impl.Report3;
+
+/**
+ * Converts the text of version 2 reports into version 3 protocol buffers, so
+ * that legacy reports are parsed once when they are received rather than on
+ * every read.
+ *
+ * Known keys map onto their version 3 fields, and everything else, including
+ * values that can't be parsed, is kept as a custom key and value. Only reports
+ * with an 8 byte task ID can be converted. Version 3 task IDs are written in
+ * lower case hex, so a converted task's ID is the lower case form of its
+ * version 2 ID.
+ */
+public class Report2Converter {
+
+  private Report2Converter() {
+  }
+
+  /**
+   * Converts the report, or returns null if it can't be represented as a
+   * version 3 report
+   */
+  public static Report3 convert(Report2 report) {
+    XTraceReport3 converted = convert(report.diskRepr().getV2Report());
+    return converted == null ? null : new Report3(converted);
+  }
+
+  public static XTraceReport3 convert(XTraceReport2 report) {
+    String[] lines = report.getReport().split("\n");
+    XTraceReport3.Builder builder = XTraceReport3.newBuilder();
+
+    // The first line is the report header
+    for (int i = 1; i < lines.length; i++) {
+      String line = lines[i];
+      int idx = line.indexOf(":");
+      if (idx < 0)
+        continue;
+      String key = line.substring(0, idx).trim();
+      String value = line.substring(idx + 1, line.length()).trim();
+      try {
+        if (setField(builder, key, value))
+          continue;
+      } catch (NumberFormatException e) {
+        // Keep the original text below
+      }
+      builder.addKey(key);
+      builder.addValue(value);
+    }
+
+    if (!builder.hasTaskID())
+      return null;
+    if (report.hasTitle() && !builder.hasTitle())
+      builder.setTitle(report.getTitle());
+    if (builder.getTagsCount() == 0)
+      builder.addAllTags(report.getTagList());
+    return builder.build();
+  }
+
+  /**
+   * Sets the version 3 field that corresponds to the key. Returns false if
+   * there is no such field or it is already set
+   */
+  private static boolean setField(XTraceReport3.Builder builder, String key, String value) {
+    if ("X-Trace".equals(key)) {
+      if (builder.hasTaskID())
+        return false;
+      XTraceMetadata xmd = XTraceMetadata.createFromString(value);
+      byte[] taskId = xmd.getTaskId().get();
+      if (!xmd.isValid() || taskId.length != 8)
+        return false;
+      builder.setTaskID(ByteBuffer.wrap(taskId).getLong());
+      builder.setEventID(toLong(xmd.getOpId()));
+    } else if ("Edge".equals(key)) {
+      byte[] parent;
+      try {
+        parent = IoUtil.stringToBytes(value);
+      } catch (IOException e) {
+        return false;
+      }
+      if (parent.length != 4 && parent.length != 8)
+        return false;
+      builder.addParentEventID(toLong(parent));
+    } else if ("Timestamp".equals(key) && !builder.hasTimestamp()) {
+      builder.setTimestamp(toMillis(value));
+    } else if ("HRT".equals(key) && !builder.hasHRT()) {
+      builder.setHRT(Long.parseLong(value));
+    } else if ("Cycles".equals(key) && !builder.hasCycles()) {
+      builder.setCycles(Long.parseLong(value));
+    } else if ("Host".equals(key) && !builder.hasHost()) {
+      builder.setHost(value);
+    } else if ("ProcessID".equals(key) && !builder.hasProcessID()) {
+      builder.setProcessID(Integer.parseInt(value));
+    } else if ("ProcessName".equals(key) && !builder.hasProcessName()) {
+      builder.setProcessName(value);
+    } else if ("ThreadID".equals(key) && !builder.hasThreadID()) {
+      builder.setThreadID(Integer.parseInt(value));
+    } else if ("ThreadName".equals(key) && !builder.hasThreadName()) {
+      builder.setThreadName(value);
+    } else if ("Agent".equals(key) && !builder.hasAgent()) {
+      builder.setAgent(value);
+    } else if ("Source".equals(key) && !builder.hasSource()) {
+      builder.setSource(value);
+    } else if ("Label".equals(key) && !builder.hasLabel()) {
+      builder.setLabel(value);
+    } else if ("Title".equals(key) && !builder.hasTitle()) {
+      builder.setTitle(value);
+    } else if ("Tag".equals(key)) {
+      builder.addTags(value);
+    } else if ("TenantClass".equals(key) && !builder.hasTenantClass()) {
+      builder.setTenantClass(Integer.parseInt(value));
+    } else if ("Operation".equals(key) && !builder.hasOp()) {
+      builder.setOp(value);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private static long toLong(byte[] bytes) {
+    long value = 0;
+    for (byte b : bytes)
+      value = (value << 8) | (b & 0xFF);
+    return value;
+  }
+
+  /**
+   * Version 2 timestamps are either fractional seconds or milliseconds since
+   * the epoch
+   */
+  static long toMillis(String timestamp) {
+    if (timestamp.indexOf('.') >= 0)
+      return Math.round(Double.parseDouble(timestamp) * 1000);
+    long value = Long.parseLong(timestamp);
+    return value < 100000000000L ? value * 1000 : value;
+  }
+
+}
@@ -10,6 +10,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.log4j.Logger;
 
+import edu.brown.cs.systems.xtrace.XTraceSettings;
 import edu.brown.cs.systems.xtrace.server.api.DataStore;
 import edu.brown.cs.systems.xtrace.server.api.MetadataStore;
 import edu.brown.cs.systems.xtrace.server.api.Report;
@@ -34,15 +35,25 @@ public class TcpReportSource extends Thread {
   private final DataStore data;
   private final MetadataStore metadata;
   private final ReportHandler handler;
+  private final boolean convert;
 
   private BlockingQueue<String> q = new LinkedBlockingQueue<String>();
 
   public TcpReportSource(int port, DataStore data, MetadataStore metadata) throws IOException {
+    this(port, data, metadata, XTraceSettings.TCP_CONVERT_V2_REPORTS);
+  }
+
+  /**
+   * @param convert if true, reports are converted to version 3 reports where
+   *          possible before being stored
+   */
+  public TcpReportSource(int port, DataStore data, MetadataStore metadata, boolean convert) throws IOException {
     this.tcpport = port;
     this.serversock = new ServerSocket(port);
     this.data = data;
     this.metadata = metadata;
     this.handler = new ReportHandler();
+    this.convert = convert;
   }
 
   public void shutdown() {
@@ -116,11 +127,18 @@ public class TcpReportSource extends Thread {
         try {
           String next = q.take();
           try {
-            Report report = Report2.parse(next);
+            Report2 parsed = Report2.parse(next);
 
-            if (report == null)
+            if (parsed == null)
               LOG.warn("TcpReportSource received bad report, ignoring: " + next);
 
+            Report report = parsed;
+            if (convert && parsed != null) {
+              Report converted = Report2Converter.convert(parsed);
+              if (converted != null)
+                report = converted;
+            }
+
             data.reportReceived(report);
             metadata.reportReceived(report);
 
@@ -0,0 +1,252 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.server.api.TaskRecord;
+
+/**
+ * Tests the queries of the Derby metadata store against a database in a
+ * temporary directory
+ */
+public class DerbyMetadataStoreTest extends TestCase {
+
+  // Derby only reads its directory when it first starts, so every test uses the same one
+  private static File directory;
+
+  private DerbyMetadataStore store;
+
+  @Override
+  protected void setUp() throws Exception {
+    if (directory == null) {
+      directory = File.createTempFile("derby", "");
+      directory.delete();
+    }
+    store = new DerbyMetadataStore(directory.getAbsolutePath());
+  }
+
+  @Override
+  protected void tearDown() {
+    store.shutdown();
+    delete(directory);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    file.delete();
+  }
+
+  /**
+   * Shuts down the store, runs the statements against its database, then
+   * opens it again
+   */
+  private void reopen(String... statements) throws Exception {
+    store.shutdown();
+    Connection conn = DriverManager.getConnection("jdbc:derby:tasks");
+    try {
+      Statement s = conn.createStatement();
+      for (String statement : statements)
+        s.executeUpdate(statement);
+      s.close();
+    } finally {
+      conn.close();
+    }
+    try {
+      DriverManager.getConnection("jdbc:derby:tasks;shutdown=true");
+    } catch (SQLException e) {
+      // 08006: the database was shut down
+      if (!"08006".equals(e.getSQLState()))
+        throw e;
+    }
+    store = new DerbyMetadataStore(directory.getAbsolutePath());
+  }
+
+  private static TaskRecord task(long taskId, long lastUpdated, String title, String... tags) {
+    return new TaskRecord(TaskIDs.toHex(taskId), lastUpdated, lastUpdated, 1, title, Arrays.asList(tags));
+  }
+
+  private static TaskRecord lifetime(long taskId, long firstSeen, long lastUpdated) {
+    return new TaskRecord(TaskIDs.toHex(taskId), firstSeen, lastUpdated, 1, null, Arrays.<String> asList());
+  }
+
+  private static List<String> ids(List<TaskRecord> records) {
+    List<String> ids = new ArrayList<String>();
+    for (TaskRecord record : records)
+      ids.add(record.getTaskId());
+    return ids;
+  }
+
+  @Test
+  public void testConcurrentReads() throws Exception {
+    List<TaskRecord> tasks = new ArrayList<TaskRecord>();
+    for (long taskId = 1; taskId <= 50; taskId++)
+      tasks.add(task(taskId, 1000 * taskId, "task " + taskId));
+    store.importTasks(tasks);
+
+    // Readers share the pool while the writer applies reports
+    final AtomicInteger wrong = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      final long taskId = i + 1;
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 50; j++) {
+            List<TaskRecord> oldest = store.getOldestTasks(0, 5);
+            if (oldest == null || !TaskIDs.toHex(1).equals(oldest.get(0).getTaskId()))
+              wrong.incrementAndGet();
+            TaskRecord task = store.getTask(TaskIDs.toHex(taskId));
+            if (task == null || !("task " + taskId).equals(task.getTitle()))
+              wrong.incrementAndGet();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (long taskId = 51; taskId <= 60; taskId++)
+      store.reportReceived(TestReports.report(taskId, 0));
+    for (Thread thread : threads)
+      thread.join();
+    assertEquals(0, wrong.get());
+
+    store.awaitUpdates();
+    assertEquals(60, store.numTasks());
+    assertEquals(Arrays.asList(TaskIDs.toHex(50), TaskIDs.toHex(49)), ids(store.getLatestTasksBefore(50000, TaskIDs.toHex(51), 2)));
+  }
+
+  @Test
+  public void testTagPages() throws Exception {
+    List<TaskRecord> tasks = new ArrayList<TaskRecord>();
+    List<String> expected = new ArrayList<String>();
+    for (long taskId = 1; taskId <= 25; taskId++) {
+      tasks.add(task(taskId, 1000 * taskId, null, "a", taskId % 2 == 0 ? "even" : "odd"));
+      expected.add(0, TaskIDs.toHex(taskId));
+    }
+    store.importTasks(tasks);
+
+    // Tags from reports are indexed too, and the newest task comes first
+    store.reportReceived(TestReports.tagged(26, null, null, "a", "new"));
+    store.awaitUpdates();
+    expected.add(0, TaskIDs.toHex(26));
+
+    List<String> paged = new ArrayList<String>();
+    for (int offset = 0; offset < 30; offset += 10)
+      paged.addAll(ids(store.getTasksByTag("a", offset, 10)));
+    assertEquals(expected, paged);
+    assertEquals(Arrays.asList(TaskIDs.toHex(25), TaskIDs.toHex(23)), ids(store.getTasksByTag("odd", 0, 2)));
+    assertEquals(Arrays.asList(TaskIDs.toHex(2)), ids(store.getTasksByTag("even", 11, 10)));
+    assertEquals(Arrays.asList(TaskIDs.toHex(26)), ids(store.getTasksByTag("new", 0, 10)));
+    assertTrue(store.getTasksByTag("a", 26, 10).isEmpty());
+    assertTrue(store.getTasksByTag("missing", 0, 10).isEmpty());
+  }
+
+  @Test
+  public void testTagsBackfilled() throws Exception {
+    store.importTasks(Arrays.asList(task(1, 1000, null, "a", "b"), task(2, 2000, null, "b", "b"), task(3, 3000, null)));
+
+    // Databases from before the task_tags table only have the tags column
+    reopen("drop table task_tags");
+    assertEquals(Arrays.asList(TaskIDs.toHex(1)), ids(store.getTasksByTag("a", 0, 10)));
+    assertEquals(Arrays.asList(TaskIDs.toHex(2), TaskIDs.toHex(1)), ids(store.getTasksByTag("b", 0, 10)));
+  }
+
+  @Test
+  public void testTitleSubstrings() throws Exception {
+    store.importTasks(Arrays.asList(task(1, 1000, "Read file"), task(2, 2000, "write FILE"), task(3, 3000, "other"), task(4, 4000, null)));
+    store.reportReceived(TestReports.tagged(5, "Profile reads", null));
+    store.awaitUpdates();
+    String t1 = TaskIDs.toHex(1), t2 = TaskIDs.toHex(2), t5 = TaskIDs.toHex(5);
+
+    assertEquals(Arrays.asList(t5, t2, t1), ids(store.getTasksByTitleSubstring("file", 0, 10)));
+    assertEquals(Arrays.asList(t2), ids(store.getTasksByTitleSubstring("file", 1, 1)));
+    assertEquals(Arrays.asList(t1), ids(store.getTasksByTitleSubstring("ead f", 0, 10)));
+    assertEquals(Arrays.asList(t5), ids(store.getTasksByTitleSubstring("e READ", 0, 10)));
+    assertTrue(store.getTasksByTitleSubstring("files", 0, 10).isEmpty());
+    assertTrue(store.getTasksByTitleSubstring("zzz", 0, 10).isEmpty());
+
+    // Untitled tasks are titled with their IDs
+    assertEquals(Arrays.asList(TaskIDs.toHex(4)), ids(store.getTasksByTitleSubstring(TaskIDs.toHex(4).substring(2), 0, 10)));
+
+    // Queries too short to have trigrams, or with wildcards, scan the titles
+    assertEquals(Arrays.asList(t5, t2, t1), ids(store.getTasksByTitleSubstring("fi", 0, 10)));
+    assertEquals(Arrays.asList(TaskIDs.toHex(3)), ids(store.getTasksByTitleSubstring("h", 0, 10)));
+    assertEquals(Arrays.asList(t5, t1), ids(store.getTasksByTitleSubstring("r%d", 0, 10)));
+    assertEquals(5, store.getTasksByTitleSubstring("", 0, 10).size());
+  }
+
+  @Test
+  public void testTitleTrigramsBackfilled() throws Exception {
+    store.importTasks(Arrays.asList(task(1, 1000, "Read file"), task(2, 2000, "write FILE"), task(3, 3000, "other")));
+
+    // Databases from before the title_trigrams table can only scan the titles
+    reopen("drop table title_trigrams");
+    assertEquals(Arrays.asList(TaskIDs.toHex(2), TaskIDs.toHex(1)), ids(store.getTasksByTitleSubstring("FILE", 0, 10)));
+    assertEquals(Arrays.asList(TaskIDs.toHex(3)), ids(store.getTasksByTitleSubstring("other", 0, 10)));
+  }
+
+  @Test
+  public void testTotals() throws Exception {
+    assertEquals(0, store.numTasks());
+    assertEquals(0, store.numReports());
+    store.importTasks(Arrays.asList(task(1, 1000, null), task(2, 2000, null)));
+    for (int i = 0; i < 3; i++) {
+      store.reportReceived(TestReports.report(2, i));
+      store.reportReceived(TestReports.report(3, i));
+    }
+    store.awaitUpdates();
+    assertEquals(3, store.numTasks());
+    assertEquals(8, store.numReports());
+
+    store.removeTasks(Arrays.asList(TaskIDs.toHex(2), TaskIDs.toHex(4)));
+    assertEquals(2, store.numTasks());
+    assertEquals(4, store.numReports());
+
+    // The totals are kept across restarts
+    reopen();
+    assertEquals(2, store.numTasks());
+    assertEquals(4, store.numReports());
+  }
+
+  @Test
+  public void testTotalsRecounted() throws Exception {
+    store.importTasks(Arrays.asList(task(1, 1000, null), task(2, 2000, null)));
+    store.reportReceived(TestReports.report(2, 0));
+    store.awaitUpdates();
+
+    // Databases from before the stats table, or whose upgrade committed it without its rows
+    reopen("delete from stats where name = 'reports'");
+    assertEquals(2, store.numTasks());
+    assertEquals(3, store.numReports());
+    reopen("drop table stats");
+    assertEquals(2, store.numTasks());
+    assertEquals(3, store.numReports());
+  }
+
+  @Test
+  public void testConcurrentTasks() throws Exception {
+    store.importTasks(Arrays.asList(lifetime(1, 1000, 5000), lifetime(2, 4000, 6000), lifetime(3, 7000, 8000), lifetime(4, 2000, 3000)));
+    String t1 = TaskIDs.toHex(1), t2 = TaskIDs.toHex(2), t3 = TaskIDs.toHex(3), t4 = TaskIDs.toHex(4);
+
+    // The lifetimes are indexed again from the database when it is opened
+    reopen();
+    store.removeTasks(Arrays.asList(t4));
+    store.awaitLifetimes();
+    assertEquals(new HashSet<String>(Arrays.asList(t1, t2)), new HashSet<String>(store.getConcurrentTasks(t1)));
+    assertEquals(new HashSet<String>(Arrays.asList(t3)), new HashSet<String>(store.getConcurrentTasks(t3)));
+  }
+
+}
@@ -0,0 +1,192 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+import edu.brown.cs.systems.xtrace.server.impl.ServerReporting.ReportOnDisk;
+
+/**
+ * Tests reading and writing the file tree data store's task files
+ */
+public class FileTreeDataStoreTest extends TestCase {
+
+  private File dir;
+  private FileTreeDataStore store;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("filetree", "");
+    dir.delete();
+    dir.mkdirs();
+  }
+
+  @Override
+  protected void tearDown() {
+    if (store != null)
+      store.shutdown();
+    delete(dir);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    file.delete();
+  }
+
+  private List<Long> read(long taskId) {
+    List<Long> events = new ArrayList<Long>();
+    ReportStream reports = store.getReports(TaskIDs.toHex(taskId));
+    try {
+      while (reports.hasNext())
+        events.add(((Report3) reports.next()).event().getEventID());
+    } finally {
+      reports.close();
+    }
+    return events;
+  }
+
+  /**
+   * Parses the task's file straight from disk, without flushing its writer
+   */
+  private List<Long> readFile(long taskId) throws IOException {
+    String id = TaskIDs.toHex(taskId);
+    File file = new File(dir, id.substring(0, 2) + "/" + id.substring(2, 4) + "/" + id.substring(4, 6) + "/" + id + ".txt");
+    ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    assertTrue(Frames.readMagic(buf));
+    List<Long> events = new ArrayList<Long>();
+    for (ReportOnDisk report; (report = Frames.read(buf)) != null;)
+      events.add(report.getV3Report().getEventID());
+    return events;
+  }
+
+  private static List<Long> range(int n) {
+    List<Long> events = new ArrayList<Long>();
+    for (long i = 0; i < n; i++)
+      events.add(i);
+    return events;
+  }
+
+  @Test
+  public void testMapWindows() throws IOException {
+    store = new FileTreeDataStore(dir.getAbsolutePath(), false);
+    for (int i = 0; i < 500; i++)
+      store.reportReceived(TestReports.report(1, i));
+
+    // Read into the heap
+    store.mmapThreshold = Long.MAX_VALUE;
+    assertEquals(range(500), read(1));
+
+    // Mapped in one go, and a window at a time with records that straddle windows
+    store.mmapThreshold = 0;
+    assertEquals(range(500), read(1));
+    for (long window : new long[] { 1000, 1001, 4096 }) {
+      store.mapWindow = window;
+      assertEquals(range(500), read(1));
+    }
+
+    // Closing part way through releases the window
+    ReportStream reports = store.getReports(TaskIDs.toHex(1));
+    assertTrue(reports.hasNext());
+    reports.next();
+    reports.close();
+    assertFalse(reports.hasNext());
+  }
+
+  @Test
+  public void testEvictWhileWriting() throws Exception {
+    store = new FileTreeDataStore(dir.getAbsolutePath(), true);
+    // Evicting a writer with writes still queued or in flight, then writing
+    // more reports, appends them after the evicted writer's
+    int n = 0;
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < 500; i++)
+        store.reportReceived(TestReports.report(1, n++));
+      if (round % 2 == 0)
+        store.flush();
+      store.evict(TaskIDs.toHex(1));
+    }
+    assertEquals(range(n), read(1));
+
+    // Including writers evicted before their first report reached the file
+    store.reportReceived(TestReports.report(2, 0));
+    store.evict(TaskIDs.toHex(2));
+    store.reportReceived(TestReports.report(2, 1));
+    assertEquals(range(2), read(2));
+  }
+
+  @Test
+  public void testAwaitDurable() throws Exception {
+    for (boolean async : new boolean[] { false, true }) {
+      if (store != null)
+        store.shutdown();
+      delete(dir);
+      store = new FileTreeDataStore(dir.getAbsolutePath(), async);
+      for (int i = 0; i < 2000; i++) {
+        store.reportReceived(TestReports.report(1, i));
+        if (i % 500 == 499)
+          store.evict(TaskIDs.toHex(1));
+      }
+
+      // Durable reports are in the file, whether or not their writer was evicted
+      assertTrue(store.awaitDurable(store.sequence(), 10000));
+      assertEquals(range(2000), readFile(1));
+    }
+  }
+
+  /**
+   * Returns the tasks listed in the writers journal
+   */
+  private List<String> journalled() throws IOException {
+    List<String> taskIds = new ArrayList<String>();
+    DataInputStream in = new DataInputStream(new FileInputStream(new File(dir, FileTreeDataStore.WRITERS_JOURNAL)));
+    try {
+      while (true) {
+        taskIds.add(in.readUTF());
+        in.readLong();
+      }
+    } catch (EOFException e) {
+    } finally {
+      in.close();
+    }
+    return taskIds;
+  }
+
+  @Test
+  public void testJournalCompaction() throws Exception {
+    store = new FileTreeDataStore(dir.getAbsolutePath(), false);
+    // Compact whenever there are twice as many entries as unfinished writers,
+    // so the final flush compacts even if a background flush compacted first
+    store.journalCompactEntries = 1;
+    for (int round = 0; round < 3; round++) {
+      for (int task = 0; task < 40; task++) {
+        store.reportReceived(TestReports.report(task, round));
+        store.evict(TaskIDs.toHex(task));
+      }
+    }
+    store.reportReceived(TestReports.report(100, 0));
+
+    // Only writers that have not finished stay in the journal
+    store.flush();
+    assertEquals(Arrays.asList(TaskIDs.toHex(100)), journalled());
+
+    // Writers opened after compacting are appended to the compacted journal
+    store.reportReceived(TestReports.report(101, 0));
+    assertEquals(Arrays.asList(TaskIDs.toHex(100), TaskIDs.toHex(101)), journalled());
+  }
+
+}
@@ -0,0 +1,87 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.server.impl.ServerReporting.ReportOnDisk;
+
+/**
+ * Tests the framing of records on disk
+ */
+public class FramesTest extends TestCase {
+
+  private static ReportOnDisk report(int i) {
+    return ReportOnDisk.newBuilder().setV3Report(XTraceReport3.newBuilder().setTaskID(i).setLabel("report " + i).build()).build();
+  }
+
+  @Test
+  public void testChecksum() {
+    // The checksum covers the length as well as the payload
+    byte[] payload = "123456789".getBytes();
+    assertTrue(Frames.checksum(payload, 0, 9) != Frames.checksum(payload, 0, 8));
+    assertEquals(Frames.checksum(payload, 0, 9), Frames.checksum(payload, 0, 9));
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(4096);
+    for (int i = 0; i < 10; i++)
+      buf.put(Frames.encode(report(i)));
+    buf.flip();
+    for (int i = 0; i < 10; i++)
+      assertEquals(report(i), Frames.read(buf));
+    assertNull(Frames.read(buf));
+  }
+
+  @Test
+  public void testCorruptFrame() throws IOException {
+    byte[] frame = Frames.encode(report(1));
+    frame[frame.length - 1] ^= 1;
+    try {
+      Frames.read(ByteBuffer.wrap(frame));
+      fail("Corrupt frame was not detected");
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void testZeroFilledFrame() {
+    try {
+      Frames.read(ByteBuffer.allocate(64));
+      fail("Zero filled frame was not detected");
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void testTruncateTornTail() throws IOException {
+    File file = File.createTempFile("frames", ".txt");
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      long valid = 0;
+      for (int i = 0; i < 5; i++) {
+        byte[] frame = Frames.encode(report(i));
+        out.write(frame);
+        valid += frame.length;
+      }
+      byte[] torn = Frames.encode(report(5));
+      out.write(torn, 0, torn.length - 3);
+      out.close();
+
+      assertEquals(valid, Frames.scan(file, 0));
+      assertEquals(torn.length - 3, Frames.truncate(file, Frames.scan(file, 0)));
+      assertEquals(valid, file.length());
+      assertEquals(0, Frames.truncate(file, Frames.scan(file, 0)));
+    } finally {
+      file.delete();
+    }
+  }
+
+}
@@ -0,0 +1,157 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.server.impl.GroupCommitter.FsyncPolicy;
+
+/**
+ * Tests when the group committer flushes and syncs, and when it reports
+ * sequence numbers as durable
+ */
+public class GroupCommitterTest extends TestCase {
+
+  private static final long FOREVER = 60000;
+
+  private static class Committer extends GroupCommitter {
+    final AtomicInteger flushes = new AtomicInteger();
+    final AtomicInteger syncs = new AtomicInteger();
+    final AtomicInteger requests = new AtomicInteger();
+    final CountDownLatch requested = new CountDownLatch(1);
+    volatile boolean failing = false;
+
+    Committer(long interval, long maxBytes, FsyncPolicy fsync, long fsyncInterval) {
+      super("test", interval, maxBytes, fsync, fsyncInterval);
+      start();
+    }
+
+    protected void flush() throws IOException {
+      if (failing)
+        throw new IOException("failing");
+      flushes.incrementAndGet();
+    }
+
+    protected void sync() throws IOException {
+      syncs.incrementAndGet();
+    }
+
+    @Override
+    public void requestCommit() {
+      requests.incrementAndGet();
+      requested.countDown();
+      super.requestCommit();
+    }
+  }
+
+  @Test
+  public void testNone() throws InterruptedException {
+    Committer committer = new Committer(FOREVER, Long.MAX_VALUE, FsyncPolicy.NONE, 0);
+    assertEquals(1, committer.written(10));
+    assertEquals(2, committer.written(10));
+    assertEquals(2, committer.sequence());
+
+    // Waiting wakes the committer, and a flush alone makes reports durable
+    assertTrue(committer.awaitDurable(2, FOREVER));
+    assertTrue(committer.durable() >= 2);
+    assertTrue(committer.flushes.get() >= 1);
+    assertEquals(0, committer.syncs.get());
+
+    committer.shutdown();
+    assertEquals(0, committer.syncs.get());
+  }
+
+  @Test
+  public void testBatch() throws InterruptedException {
+    Committer committer = new Committer(FOREVER, Long.MAX_VALUE, FsyncPolicy.BATCH, 0);
+    long seq = committer.written(10);
+    assertTrue(committer.awaitDurable(seq, FOREVER));
+    assertTrue(committer.syncs.get() >= 1);
+    assertEquals(committer.flushes.get(), committer.syncs.get());
+    committer.shutdown();
+  }
+
+  @Test
+  public void testFlushBytes() throws InterruptedException {
+    Committer committer = new Committer(FOREVER, 100, FsyncPolicy.BATCH, 0);
+    committer.written(60);
+    assertEquals(0, committer.requests.get());
+
+    // Crossing the threshold wakes the committer without anybody waiting,
+    // and only the write that crosses it does
+    long seq = committer.written(60);
+    assertEquals(1, committer.requests.get());
+    committer.written(60);
+    assertEquals(1, committer.requests.get());
+    assertTrue(committer.awaitDurable(seq, FOREVER));
+    committer.shutdown();
+  }
+
+  @Test
+  public void testInterval() throws InterruptedException {
+    Committer committer = new Committer(10, Long.MAX_VALUE, FsyncPolicy.INTERVAL, 1000);
+    long seq = committer.written(10);
+
+    // Flushed, but not durable until the next sync
+    assertFalse(committer.awaitDurable(seq, 100));
+    assertTrue(committer.flushes.get() >= 1);
+    assertEquals(0, committer.syncs.get());
+    assertTrue(committer.durable() < seq);
+
+    assertTrue(committer.awaitDurable(seq, FOREVER));
+    assertTrue(committer.syncs.get() >= 1);
+    committer.shutdown();
+  }
+
+  @Test
+  public void testTimeout() throws InterruptedException {
+    Committer committer = new Committer(10, Long.MAX_VALUE, FsyncPolicy.BATCH, 0);
+    committer.failing = true;
+    long seq = committer.written(10);
+    long start = System.currentTimeMillis();
+    assertFalse(committer.awaitDurable(seq, 100));
+    assertTrue(System.currentTimeMillis() - start >= 100);
+    assertEquals(0, committer.durable());
+
+    // Retried once the flushes work again
+    committer.failing = false;
+    assertTrue(committer.awaitDurable(seq, FOREVER));
+    committer.shutdown();
+  }
+
+  @Test
+  public void testShutdown() throws InterruptedException {
+    final Committer committer = new Committer(FOREVER, Long.MAX_VALUE, FsyncPolicy.INTERVAL, FOREVER);
+    final long seq = committer.written(10);
+    final boolean[] result = new boolean[2];
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          result[0] = committer.awaitDurable(seq, FOREVER);
+          result[1] = committer.awaitDurable(seq + 1, FOREVER);
+        } catch (InterruptedException e) {
+        }
+      }
+    };
+    waiter.start();
+    // Waiting requests a commit, so the waiter is in awaitDurable once this is released
+    assertTrue(committer.requested.await(FOREVER, TimeUnit.MILLISECONDS));
+
+    // The final commit syncs what was written, and waiters for reports that
+    // will never be written give up
+    committer.shutdown();
+    waiter.join(10000);
+    assertFalse(waiter.isAlive());
+    assertTrue(result[0]);
+    assertFalse(result[1]);
+    assertEquals(seq, committer.durable());
+    assertEquals(1, committer.syncs.get());
+    assertFalse(committer.awaitDurable(seq + 1, FOREVER));
+  }
+
+}
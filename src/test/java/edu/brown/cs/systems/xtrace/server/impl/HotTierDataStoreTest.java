@@ -0,0 +1,136 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+
+/**
+ * Tests which tasks the hot tier admits and demotes
+ */
+public class HotTierDataStoreTest extends TestCase {
+
+  /**
+   * Stands in for a sharded store whose writes are still queued, so it never
+   * contains anything yet, and which drops reports for some tasks
+   */
+  private static class QueuedDataStore implements DataStore {
+    final Set<String> dropping = new HashSet<String>();
+    final List<Report> received = new ArrayList<Report>();
+
+    public boolean reportReceived(Report r) {
+      received.add(r);
+      return !dropping.contains(r.getTaskID());
+    }
+
+    public ReportStream getReports(String taskId) {
+      return Reports.emptyStream();
+    }
+
+    public boolean contains(String taskId) {
+      return false;
+    }
+
+    public Collection<String> getTaskIds() {
+      return new ArrayList<String>();
+    }
+
+    public long removeTask(String taskId) {
+      return 0;
+    }
+
+    public long size() {
+      return 0;
+    }
+
+    public long sequence() {
+      return received.size();
+    }
+
+    public boolean awaitDurable(long sequence, long timeout) {
+      return true;
+    }
+
+    public void shutdown() {
+    }
+  }
+
+  private static int count(ReportStream reports) {
+    int n = 0;
+    try {
+      for (; reports.hasNext(); reports.next())
+        n++;
+    } finally {
+      reports.close();
+    }
+    return n;
+  }
+
+  private static Object status(HotTierDataStore hot, String key) {
+    return hot.getStatus().get(key);
+  }
+
+  @Test
+  public void testDemotedTasksStayDemoted() {
+    QueuedDataStore data = new QueuedDataStore();
+    // Room for one task's first chunk
+    HotTierDataStore hot = new HotTierDataStore(data, 600, Long.MAX_VALUE, false);
+    try {
+      assertTrue(hot.reportReceived(TestReports.report(1, 0)));
+      assertTrue(hot.reportReceived(TestReports.report(1, 1)));
+      assertEquals(2, count(hot.getReports(TaskIDs.toHex(1))));
+      assertEquals(1L, status(hot, "hits"));
+
+      // Admitting a second task demotes the first
+      assertTrue(hot.reportReceived(TestReports.report(2, 0)));
+      assertEquals(1L, status(hot, "demotions"));
+
+      // The first task isn't admitted again with only its later reports, even
+      // though the underlying store doesn't contain it yet
+      assertTrue(hot.reportReceived(TestReports.report(1, 2)));
+      assertEquals(0, count(hot.getReports(TaskIDs.toHex(1))));
+      assertEquals(1L, status(hot, "misses"));
+      assertEquals(1, status(hot, "tasks"));
+
+      // Until it is removed
+      hot.removeTask(TaskIDs.toHex(1));
+      assertTrue(hot.reportReceived(TestReports.report(1, 3)));
+      assertEquals(1, count(hot.getReports(TaskIDs.toHex(1))));
+    } finally {
+      hot.shutdown();
+    }
+  }
+
+  @Test
+  public void testDroppedReports() {
+    QueuedDataStore data = new QueuedDataStore();
+    HotTierDataStore hot = new HotTierDataStore(data, 1 << 20, Long.MAX_VALUE, false);
+    try {
+      assertTrue(hot.reportReceived(TestReports.report(1, 0)));
+      assertEquals(1, count(hot.getReports(TaskIDs.toHex(1))));
+
+      // A report the store drops demotes its task, rather than only being in memory
+      data.dropping.add(TaskIDs.toHex(1));
+      assertFalse(hot.reportReceived(TestReports.report(1, 1)));
+      assertEquals(0, status(hot, "tasks"));
+      assertEquals(1L, status(hot, "demotions"));
+
+      data.dropping.clear();
+      assertTrue(hot.reportReceived(TestReports.report(1, 2)));
+      assertEquals(0, status(hot, "tasks"));
+      assertEquals(3, data.received.size());
+    } finally {
+      hot.shutdown();
+    }
+  }
+
+}
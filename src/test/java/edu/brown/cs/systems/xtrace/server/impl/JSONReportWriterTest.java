@@ -0,0 +1,70 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.minidev.json.JSONValue;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+
+/**
+ * Tests that streamed reports are the same JSON as their jsonRepr
+ */
+public class JSONReportWriterTest extends TestCase {
+
+  private static final String[] STRINGS = { "", "plain", "quote\"back\\slash", "tab\tnew\nline\r\u0001", "caf\u00e9",
+      "\u65e5\u672c", "emoji \ud83d\ude00", "</script>" };
+
+  private static String streamed(Report3 report, int bufferSize) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    JSONReportWriter out = new JSONReportWriter(bytes, bufferSize);
+    out.write(report);
+    out.flush();
+    return bytes.toString("UTF-8");
+  }
+
+  private static void assertSameJSON(Report3 report) throws IOException {
+    Object expected = JSONValue.parse(report.jsonRepr().toJSONString());
+    assertEquals(expected, JSONValue.parse(streamed(report, 64 * 1024)));
+    assertEquals(expected, JSONValue.parse(streamed(report, 16)));
+  }
+
+  @Test
+  public void testFields() throws IOException {
+    assertSameJSON(new Report3(XTraceReport3.newBuilder().build()));
+    assertSameJSON(new Report3(XTraceReport3.newBuilder().setTaskID(-1).setTimestamp(Long.MIN_VALUE).setHRT(Long.MAX_VALUE)
+        .setCycles(0).setHost("host").setProcessID(-5).setProcessName("proc").setThreadID(7).setThreadName("thread")
+        .setAgent("agent").setSource("Source.java:5").setLabel("label").addKey("k").addValue("v").addTags("a").addTags("b")
+        .setTitle("title").setTenantClass(3).setEventID(Long.MIN_VALUE).addParentEventID(1).addParentEventID(-2)
+        .setOp("op").build()));
+
+    // Custom keys with the same name as a field, or each other
+    assertSameJSON(new Report3(XTraceReport3.newBuilder().setHost("host").addKey("Host").addValue("custom").addKey("Title")
+        .addValue("custom").setTitle("title").addKey("k").addValue("1").addKey("k").addValue("2").build()));
+
+    // Invalid UTF-8 is replaced rather than copied
+    assertSameJSON(new Report3(XTraceReport3.newBuilder().setLabelBytes(ByteString.copyFrom(new byte[] { 'a', (byte) 0xC3, 'b' }))
+        .build()));
+  }
+
+  @Test
+  public void testRandomStrings() throws IOException {
+    Random r = new Random(3);
+    for (int i = 0; i < 200; i++) {
+      XTraceReport3.Builder builder = XTraceReport3.newBuilder().setTaskID(r.nextLong()).setEventID(r.nextLong());
+      builder.setHost(STRINGS[r.nextInt(STRINGS.length)]).setLabel(STRINGS[r.nextInt(STRINGS.length)]);
+      for (int j = r.nextInt(4); j > 0; j--)
+        builder.addKey("key" + j + STRINGS[r.nextInt(STRINGS.length)]).addValue(STRINGS[r.nextInt(STRINGS.length)]);
+      for (int j = r.nextInt(3); j > 0; j--)
+        builder.addTags(STRINGS[r.nextInt(STRINGS.length)]);
+      assertSameJSON(new Report3(builder.build()));
+    }
+  }
+
+}
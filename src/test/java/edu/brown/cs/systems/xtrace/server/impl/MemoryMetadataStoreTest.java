@@ -0,0 +1,275 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.server.api.TaskRecord;
+import edu.brown.cs.systems.xtrace.server.api.TaskSummary;
+
+/**
+ * Tests the queries of the in-memory metadata store, and its recovery from
+ * snapshots and change logs
+ */
+public class MemoryMetadataStoreTest extends TestCase {
+
+  private File directory;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = File.createTempFile("metadata", "");
+    directory.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if (files != null)
+      for (File file : files)
+        file.delete();
+    directory.delete();
+  }
+
+  private MemoryMetadataStore open() throws IOException {
+    return new MemoryMetadataStore(directory, Long.MAX_VALUE, Long.MAX_VALUE);
+  }
+
+  private static TaskRecord task(long taskId, long firstSeen, long lastUpdated, String title, String... tags) {
+    return new TaskRecord(TaskIDs.toHex(taskId), firstSeen, lastUpdated, 1, title, Arrays.asList(tags));
+  }
+
+  private static List<String> ids(List<TaskRecord> records) {
+    List<String> ids = new ArrayList<String>();
+    for (TaskRecord record : records)
+      ids.add(record.getTaskId());
+    return ids;
+  }
+
+  @Test
+  public void testQueries() throws IOException {
+    MemoryMetadataStore store = open();
+    try {
+      assertTrue(store.wasCreated());
+      store.importTasks(Arrays.asList(task(1, 100, 300, "Read file", "a"), task(2, 200, 200, "write FILE", "a", "b"),
+          task(3, 250, 400, null), task(4, 500, 600, "other", "b")));
+      String t1 = TaskIDs.toHex(1), t2 = TaskIDs.toHex(2), t3 = TaskIDs.toHex(3), t4 = TaskIDs.toHex(4);
+
+      assertEquals(4, store.numTasks());
+      assertEquals(4, store.numReports());
+      assertEquals(Arrays.asList(t4, t3, t1, t2), ids(store.getLatestTasks(0, 10)));
+      assertEquals(Arrays.asList(t3, t1), ids(store.getLatestTasks(1, 2)));
+      assertEquals(Arrays.asList(t1, t2), ids(store.getLatestTasksBefore(400, t3, 10)));
+      assertEquals(Arrays.asList(t2, t1, t3, t4), ids(store.getOldestTasks(0, 10)));
+      assertEquals(Arrays.asList(t3), ids(store.getOldestTasksAfter(300, t1, 1)));
+      assertEquals(Arrays.asList(t4, t3), ids(store.getTasksSince(250, 0, 10)));
+      assertEquals(Arrays.asList(t1, t2), ids(store.getTasksByTag("a", 0, 10)));
+      assertEquals(Arrays.asList(t2), ids(store.getTasksByTitle("Write File", 0, 10)));
+      assertEquals(Arrays.asList(t3), ids(store.getTasksByTitle(t3, 0, 10)));
+      assertEquals(Arrays.asList(t1, t2), ids(store.getTasksByTitleSubstring("file", 0, 10)));
+      assertEquals(Arrays.asList("a", "b"), store.getTags(t2));
+      assertEquals(300, store.getTask(t1).getLastUpdated());
+      assertNull(store.getTask("unknown"));
+      assertEquals(new HashSet<String>(Arrays.asList(t1, t2, t3)), store.getConcurrentTasks(t1));
+
+      long epoch = store.epoch();
+      store.removeTasks(Arrays.asList(t1, "unknown"));
+      assertTrue(store.epoch() > epoch);
+      assertEquals(3, store.numTasks());
+      assertEquals(Arrays.asList(t2), ids(store.getTasksByTag("a", 0, 10)));
+      assertEquals(Collections.emptyList(), store.getTags(t1));
+      assertTrue(store.getConcurrentTasks(t1).isEmpty());
+    } finally {
+      store.shutdown();
+    }
+  }
+
+  @Test
+  public void testRecovery() throws IOException {
+    MemoryMetadataStore store = open();
+    store.importTasks(Arrays.asList(task(1, 100, 100, "first", "a"), task(2, 200, 200, null)));
+    store.reportReceived(TestReports.tagged(1, "renamed", null, "b"));
+    store.reportReceived(TestReports.tagged(1, null, null));
+    store.reportReceived(TestReports.tagged(5, null, null, "c"));
+    store.removeTasks(Arrays.asList(TaskIDs.toHex(2)));
+    store.shutdown();
+
+    // Shutdown writes a snapshot
+    store = open();
+    assertFalse(store.wasCreated());
+    assertEquals(2, store.numTasks());
+    assertEquals(4, store.numReports());
+    TaskRecord t1 = store.getTasksByTitle("renamed", 0, 1).get(0);
+    assertEquals(3, t1.getNumReports());
+    assertEquals(Arrays.asList("a", "b"), t1.getTags());
+    assertEquals(Arrays.asList(TaskIDs.toHex(5)), ids(store.getTasksByTag("c", 0, 10)));
+    long ingested = store.getIngestCounts(0).get(0).getReports();
+
+    // Copy the files as a crash would leave them, with changes since the snapshot only logged
+    store.importTasks(Arrays.asList(task(7, 700, 700, "seven")));
+    store.removeTasks(Arrays.asList(TaskIDs.toHex(5)));
+    List<TaskRecord> expected = store.getLatestTasks(0, 10);
+    File crashed = new File(directory, "crashed");
+    crashed.mkdir();
+    for (File file : directory.listFiles())
+      if (file.isFile())
+        Files.copy(file.toPath(), new File(crashed, file.getName()).toPath());
+    store.shutdown();
+
+    // A torn frame at the end of the latest log is dropped
+    FileOutputStream out = new FileOutputStream(new File(crashed, "changes.1"), true);
+    out.write(new byte[] { 0, 0, 0, 20, 1, 2, 3 });
+    out.close();
+
+    store = new MemoryMetadataStore(crashed, Long.MAX_VALUE, Long.MAX_VALUE);
+    try {
+      assertEquals(ids(expected), ids(store.getLatestTasks(0, 10)));
+      assertEquals(Arrays.asList(3, 1), Arrays.asList(expected.get(0).getNumReports(), expected.get(1).getNumReports()));
+      assertEquals(Arrays.asList(TaskIDs.toHex(1), TaskIDs.toHex(7)), ids(store.getLatestTasks(0, 10)));
+      assertEquals(ingested, store.getIngestCounts(0).get(0).getReports());
+      assertEquals(4, store.numReports());
+    } finally {
+      store.shutdown();
+      for (File file : crashed.listFiles())
+        file.delete();
+      crashed.delete();
+    }
+  }
+
+  @Test
+  public void testImportMerges() throws IOException {
+    String t1 = TaskIDs.toHex(1), t2 = TaskIDs.toHex(2);
+    MemoryMetadataStore store = open();
+    store.reportReceived(TestReports.tagged(1, null, null, "live"));
+    store.reportReceived(TestReports.tagged(2, "live title", null));
+    store.shutdown();
+
+    // Reports received during a rebuild created the tasks before their records were imported
+    store = open();
+    long now = store.getTask(t1).getLastUpdated();
+    store.importTasks(Arrays.asList(new TaskRecord(t1, 100, 200, 3, "imported", Arrays.asList("a", "live")),
+        new TaskRecord(t2, 100, now + 1000, 2, "imported", Arrays.asList("b"))));
+    File crashed = new File(directory, "crashed");
+    crashed.mkdir();
+    for (File file : directory.listFiles())
+      if (file.isFile())
+        Files.copy(file.toPath(), new File(crashed, file.getName()).toPath());
+    store.shutdown();
+
+    // The larger report count is kept, as the rebuild may have read the live
+    // reports too. Replaying the logged import merges the same way
+    for (File dir : new File[] { directory, crashed }) {
+      store = new MemoryMetadataStore(dir, Long.MAX_VALUE, Long.MAX_VALUE);
+      try {
+        assertEquals(2, store.numTasks());
+        assertEquals(5, store.numReports());
+        TaskRecord r1 = store.getTask(t1);
+        assertEquals(3, r1.getNumReports());
+        assertEquals(100, r1.getFirstSeen());
+        assertEquals(now, r1.getLastUpdated());
+        assertEquals("imported", r1.getTitle());
+        assertEquals(Arrays.asList("live", "a"), r1.getTags());
+        TaskRecord r2 = store.getTask(t2);
+        assertEquals(2, r2.getNumReports());
+        assertEquals(now + 1000, r2.getLastUpdated());
+        assertEquals("live title", r2.getTitle());
+        assertEquals(Arrays.asList(t1), ids(store.getTasksByTitle("imported", 0, 10)));
+        assertEquals(Arrays.asList(t2), ids(store.getTasksByTag("b", 0, 10)));
+      } finally {
+        store.shutdown();
+      }
+    }
+    for (File file : crashed.listFiles())
+      file.delete();
+    crashed.delete();
+  }
+
+  private static Report3 event(long taskId, long timestamp, String host, int parents, String... keys) {
+    XTraceReport3.Builder builder = TestReports.builder(taskId, timestamp);
+    builder.setTimestamp(timestamp).setHost(host).setAgent("agent-" + host);
+    for (int i = 0; i < parents; i++)
+      builder.addParentEventID(i);
+    for (String key : keys)
+      builder.addKey(key).addValue("");
+    return new Report3(builder.build());
+  }
+
+  @Test
+  public void testSummaries() throws IOException {
+    MemoryMetadataStore store = open();
+    store.reportReceived(event(1, 1000, "h1", 0));
+    store.reportReceived(event(1, 1500, "h2", 3));
+    store.reportReceived(event(2, 2000, "h1", 1, "Exception"));
+    store.reportReceived(event(2, 5000, "h1", 1));
+    store.reportReceived(event(3, 4000, "h2", 2));
+    store.reportReceived(event(3, 4200, "h2", 1));
+    store.shutdown();
+
+    store = open();
+    try {
+      String t1 = TaskIDs.toHex(1), t2 = TaskIDs.toHex(2), t3 = TaskIDs.toHex(3);
+      TaskSummary s1 = store.getTaskSummary(t1);
+      assertEquals(2, s1.getNumReports());
+      assertEquals(500, s1.getDuration().longValue());
+      assertEquals(Arrays.asList("h1", "h2"), s1.getHosts());
+      assertEquals(Arrays.asList("agent-h1", "agent-h2"), s1.getAgents());
+      assertEquals(3, s1.getMaxFanIn());
+      assertFalse(s1.hasErrors());
+      assertTrue(store.getTaskSummary(t2).hasErrors());
+      assertNull(store.getTaskSummary(TaskIDs.toHex(4)));
+
+      List<String> slowest = new ArrayList<String>();
+      for (TaskSummary summary : store.getSlowestTasks(null, 0, 0, 10))
+        slowest.add(summary.getTaskId());
+      assertEquals(Arrays.asList(t2, t1, t3), slowest);
+      slowest.clear();
+      for (TaskSummary summary : store.getSlowestTasks("h2", 0, 0, 10))
+        slowest.add(summary.getTaskId());
+      assertEquals(Arrays.asList(t1, t3), slowest);
+      assertEquals(1, store.getSlowestTasks(null, 4200, 1, 10).size());
+    } finally {
+      store.shutdown();
+    }
+  }
+
+  @Test
+  public void testManyTasks() throws IOException {
+    MemoryMetadataStore store = open();
+    try {
+      Random r = new Random(5);
+      List<TaskRecord> records = new ArrayList<TaskRecord>();
+      for (int i = 0; i < 5000; i++)
+        records.add(task(r.nextLong(), i, i, "task " + i, "tag" + (i % 10)));
+      store.importTasks(records);
+      List<String> removed = new ArrayList<String>();
+      for (int i = 0; i < records.size(); i += 2)
+        removed.add(records.get(i).getTaskId());
+      store.removeTasks(removed);
+
+      assertEquals(records.size() / 2, store.numTasks());
+      for (int i = 0; i < records.size(); i++) {
+        String taskId = records.get(i).getTaskId();
+        boolean present = !store.getTags(taskId).isEmpty() || !store.getConcurrentTasks(taskId).isEmpty();
+        assertEquals(taskId, i % 2 == 1, present);
+      }
+      assertEquals(500, store.getTasksByTag("tag1", 0, 1000).size());
+
+      store.importTasks(Arrays.asList(new TaskRecord("ABCDEF", 1, 1, 1, null, Collections.<String> emptyList())));
+      assertEquals(Arrays.asList("ABCDEF"), ids(store.getTasksByTitle("abcdef", 0, 10)));
+    } finally {
+      store.shutdown();
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+
+/**
+ * Tests that rebuilding the metadata while reports are still arriving counts
+ * each report once
+ */
+public class MetadataRebuilderTest extends TestCase {
+
+  private File dir;
+  private SegmentedDataStore data;
+  private MemoryMetadataStore metadata;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("rebuild", "");
+    dir.delete();
+    new File(dir, "data").mkdirs();
+    data = new SegmentedDataStore(new File(dir, "data").getAbsolutePath(), 4096);
+    metadata = reopen();
+  }
+
+  @Override
+  protected void tearDown() {
+    data.shutdown();
+    metadata.shutdown();
+    delete(dir);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    file.delete();
+  }
+
+  /**
+   * Reopens the metadata store, which applies every report it has received
+   */
+  private MemoryMetadataStore reopen() throws IOException {
+    if (metadata != null)
+      metadata.shutdown();
+    return metadata = new MemoryMetadataStore(new File(dir, "metadata"), Long.MAX_VALUE, Long.MAX_VALUE);
+  }
+
+  /**
+   * Receives a report as the report sources do, into both stores
+   */
+  private void ingest(long taskId, int i) {
+    Report3 report = TestReports.report(taskId, i);
+    data.reportReceived(report);
+    metadata.reportReceived(report);
+  }
+
+  private int stored(long taskId) {
+    int n = 0;
+    ReportStream reports = data.getReports(TaskIDs.toHex(taskId));
+    try {
+      for (; reports.hasNext(); reports.next())
+        n++;
+    } finally {
+      reports.close();
+    }
+    return n;
+  }
+
+  @Test
+  public void testIngestDuringRebuild() throws IOException {
+    // Reports from before the metadata was lost are only in the data store
+    for (long taskId = 1; taskId <= 30; taskId++)
+      for (int i = 0; i < 3; i++)
+        data.reportReceived(TestReports.report(taskId, i));
+
+    // Some tasks receive reports before the rebuild reads them, and some after
+    for (long taskId = 1; taskId <= 10; taskId++)
+      ingest(taskId, 3);
+    reopen();
+    new MetadataRebuilder(data, metadata, 2, 7).rebuild();
+    for (long taskId = 11; taskId <= 20; taskId++)
+      ingest(taskId, 3);
+    reopen();
+
+    int total = 0;
+    for (long taskId = 1; taskId <= 30; taskId++) {
+      assertEquals(stored(taskId), metadata.getTask(TaskIDs.toHex(taskId)).getNumReports());
+      total += stored(taskId);
+    }
+    assertEquals(30, metadata.numTasks());
+    assertEquals(total, metadata.numReports());
+  }
+
+}
@@ -0,0 +1,101 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests the coalescing and the cap of the pending task updates
+ */
+public class PendingUpdatesTest extends TestCase {
+
+  private static PendingUpdates<PendingUpdates.Update> pending(int flushThreshold, int maxTasks, long maxWait) {
+    return new PendingUpdates<PendingUpdates.Update>(flushThreshold, maxTasks, maxWait) {
+      PendingUpdates.Update newUpdate(String taskId) {
+        return new PendingUpdates.Update(taskId);
+      }
+    };
+  }
+
+  @Test
+  public void testCoalesce() throws InterruptedException {
+    PendingUpdates<PendingUpdates.Update> pending = pending(3, 10, 0);
+    assertTrue(pending.add(TestReports.tagged(1, null, "h1", "a")));
+    assertTrue(pending.add(TestReports.tagged(1, null, "h2", "b")));
+    assertTrue(pending.add(TestReports.tagged(2, null, "h1")));
+    assertEquals(2, pending.size());
+    assertFalse(pending.await(1));
+
+    // Reaching the flush threshold wakes the writer
+    assertTrue(pending.add(TestReports.tagged(3, null, "h1")));
+    assertTrue(pending.await(1000));
+
+    List<PendingUpdates.Update> updates = pending.drain(new ArrayList<PendingUpdates.Update>());
+    assertEquals(3, updates.size());
+    assertEquals(0, pending.size());
+    for (PendingUpdates.Update update : updates) {
+      if (update.taskId.equals(TaskIDs.toHex(1))) {
+        assertEquals(2, update.reports);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), update.tags);
+        assertEquals(new HashSet<String>(Arrays.asList("h1", "h2")), update.summary.hosts);
+      }
+    }
+
+    // A signal is remembered until the writer next waits
+    pending.signal();
+    assertTrue(pending.await(1));
+    assertFalse(pending.await(1));
+  }
+
+  @Test
+  public void testCap() {
+    PendingUpdates<PendingUpdates.Update> pending = pending(1, 2, 10);
+    assertTrue(pending.add(TestReports.tagged(1, null, "h1", "a")));
+    assertTrue(pending.add(TestReports.tagged(2, null, "h1")));
+
+    // Tasks already pending only take counts, and new tasks are dropped
+    assertTrue(pending.add(TestReports.tagged(1, null, "h2", "b")));
+    assertFalse(pending.add(TestReports.tagged(3, null, "h1")));
+    assertEquals(2, pending.size());
+    assertEquals(1L, pending.getStatus().get("countsOnly"));
+    assertEquals(1L, pending.getStatus().get("dropped"));
+
+    List<PendingUpdates.Update> updates = pending.drain(new ArrayList<PendingUpdates.Update>());
+    for (PendingUpdates.Update update : updates) {
+      if (update.taskId.equals(TaskIDs.toHex(1))) {
+        assertEquals(2, update.reports);
+        assertEquals(new HashSet<String>(Arrays.asList("a")), update.tags);
+        assertEquals(new HashSet<String>(Arrays.asList("h1")), update.summary.hosts);
+      }
+    }
+    assertTrue(pending.add(TestReports.tagged(3, null, "h1")));
+  }
+
+  @Test
+  public void testWaitForRoom() throws InterruptedException {
+    final PendingUpdates<PendingUpdates.Update> pending = pending(1, 1, 10000);
+    assertTrue(pending.add(TestReports.tagged(1, null, "h1")));
+    // Drains once the next report is waiting for room
+    Thread writer = new Thread() {
+      public void run() {
+        try {
+          while (pending.getStatus().get("waits").equals(0L))
+            Thread.sleep(1);
+        } catch (InterruptedException e) {
+        }
+        pending.drain(new ArrayList<PendingUpdates.Update>());
+      }
+    };
+    writer.start();
+    assertTrue(pending.add(TestReports.tagged(2, null, "h1")));
+    writer.join();
+    assertEquals(1, pending.size());
+    assertEquals(1L, pending.getStatus().get("waits"));
+  }
+
+}
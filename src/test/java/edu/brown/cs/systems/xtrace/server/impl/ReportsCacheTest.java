@@ -0,0 +1,118 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests the size bound and reloading of the cache of web responses
+ */
+public class ReportsCacheTest extends TestCase {
+
+  private File directory;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = File.createTempFile("reportscache", "");
+    directory.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if (files != null)
+      for (File file : files)
+        file.delete();
+    directory.delete();
+  }
+
+  private static File put(ReportsCache cache, String key, int size) throws IOException {
+    File temp = cache.createTempFile();
+    FileOutputStream out = new FileOutputStream(temp);
+    out.write(new byte[size]);
+    out.close();
+    File file = cache.put(key, temp);
+    if (file == null)
+      temp.delete();
+    return file;
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    ReportsCache cache = new ReportsCache(directory, 100);
+    assertNull(cache.get("a"));
+    File a = put(cache, "a", 40);
+    assertEquals(a, cache.get("a"));
+    assertEquals(40, a.length());
+    put(cache, "b", 40);
+
+    // Using a makes b the least recently used
+    cache.get("a");
+    put(cache, "c", 40);
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertEquals(2, directory.listFiles().length);
+
+    // Too big to ever fit
+    assertNull(put(cache, "d", 101));
+    assertNull(cache.get("d"));
+  }
+
+  @Test
+  public void testConcurrentPuts() throws Exception {
+    final ReportsCache cache = new ReportsCache(directory, 100);
+    final IOException[] failed = new IOException[1];
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            // Few keys and room for two files, so keys are evicted while being put again
+            for (int i = 0; i < 500; i++)
+              put(cache, "k" + (i % 3), 40);
+          } catch (IOException e) {
+            failed[0] = e;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertNull(failed[0]);
+
+    // Every key still in the cache has its file
+    int cached = 0;
+    for (int i = 0; i < 3; i++) {
+      File file = cache.get("k" + i);
+      if (file != null) {
+        assertTrue(file.exists());
+        cached++;
+      }
+    }
+    assertEquals(2, cached);
+    assertEquals(2, directory.listFiles().length);
+  }
+
+  @Test
+  public void testReload() throws IOException {
+    ReportsCache cache = new ReportsCache(directory, 100);
+    put(cache, "a", 40);
+    put(cache, "b", 40);
+    File temp = cache.createTempFile();
+
+    // A leftover temporary file is deleted, and the oldest file makes room for a smaller bound
+    assertTrue(new File(directory, "a.cached").setLastModified(System.currentTimeMillis() - 10000));
+    cache = new ReportsCache(directory, 50);
+    assertFalse(temp.exists());
+    assertNull(cache.get("a"));
+    assertNotNull(cache.get("b"));
+    assertEquals(1, directory.listFiles().length);
+  }
+
+}
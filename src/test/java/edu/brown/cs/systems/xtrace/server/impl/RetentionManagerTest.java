@@ -0,0 +1,130 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.server.api.TaskRecord;
+
+/**
+ * Tests which tasks a retention pass deletes, by age, by tag and by size
+ */
+public class RetentionManagerTest extends TestCase {
+
+  private File dir;
+  private SegmentedDataStore data;
+  private MemoryMetadataStore metadata;
+  private long now;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("retention", "");
+    dir.delete();
+    new File(dir, "data").mkdirs();
+    data = new SegmentedDataStore(new File(dir, "data").getAbsolutePath(), 4096);
+    metadata = new MemoryMetadataStore(new File(dir, "metadata"), Long.MAX_VALUE, Long.MAX_VALUE);
+    now = System.currentTimeMillis();
+  }
+
+  @Override
+  protected void tearDown() {
+    data.shutdown();
+    metadata.shutdown();
+    delete(dir);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    file.delete();
+  }
+
+  /**
+   * Adds a task that was last updated age milliseconds ago, with one report
+   */
+  private void task(long taskId, long age, String... tags) {
+    data.reportReceived(TestReports.report(taskId, 0));
+    metadata.importTasks(Arrays.asList(new TaskRecord(TaskIDs.toHex(taskId), now - age, now - age, 1, null, Arrays.asList(tags))));
+  }
+
+  private RetentionManager retention(long maxAge, long maxBytes, Map<String, Long> tagMaxAges) {
+    return new RetentionManager(data, metadata, maxAge, maxBytes, tagMaxAges);
+  }
+
+  private List<Long> remaining(long... taskIds) {
+    List<Long> remaining = new ArrayList<Long>();
+    for (long taskId : taskIds) {
+      String id = TaskIDs.toHex(taskId);
+      assertEquals(data.contains(id), metadata.getTask(id) != null);
+      if (data.contains(id))
+        remaining.add(taskId);
+    }
+    return remaining;
+  }
+
+  @Test
+  public void testMaxAge() {
+    task(1, 100000);
+    task(2, 20000);
+    task(3, 1000);
+    retention(10000, 0, new HashMap<String, Long>()).runPass();
+    assertEquals(Arrays.asList(3L), remaining(1, 2, 3));
+  }
+
+  @Test
+  public void testTagOverrides() {
+    Map<String, Long> tagMaxAges = new HashMap<String, Long>();
+    tagMaxAges.put("short", 1000L);
+    tagMaxAges.put("long", 1000000L);
+
+    task(1, 20000);
+    task(2, 20000, "long");
+    task(3, 5000, "short");
+    task(4, 5000);
+    task(5, 5000, "short", "long");
+    task(6, 100, "short");
+
+    // Tasks with the short tag expire even though they are younger than the default
+    RetentionManager retention = retention(10000, 0, tagMaxAges);
+    retention.runPass();
+    assertEquals(Arrays.asList(2L, 4L, 5L, 6L), remaining(1, 2, 3, 4, 5, 6));
+    assertEquals(2L, retention.getStatus().get("tasksRemoved"));
+  }
+
+  @Test
+  public void testMaxBytes() {
+    // Every task has a report in every segment, so no segment empties until
+    // every task is removed
+    long[] taskIds = new long[10];
+    for (int i = 0; i < taskIds.length; i++) {
+      taskIds[i] = i + 1;
+      task(taskIds[i], 10000 - i);
+    }
+    for (int i = 1; i < 30; i++)
+      for (long taskId : taskIds)
+        data.reportReceived(TestReports.report(taskId, i));
+
+    long size = data.size();
+    retention(0, size / 2, new HashMap<String, Long>()).runPass();
+    assertTrue(data.size() <= size / 2);
+
+    // Only the least recently updated tasks needed to go
+    List<Long> remaining = remaining(taskIds);
+    assertTrue(remaining.size() >= 4);
+    List<Long> newest = new ArrayList<Long>();
+    for (long taskId = taskIds.length - remaining.size() + 1; taskId <= taskIds.length; taskId++)
+      newest.add(taskId);
+    assertEquals(newest, remaining);
+  }
+
+}
@@ -0,0 +1,307 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+
+/**
+ * Tests that the segmented data store reads back what it wrote, before and
+ * after a restart, and recovers from a crash
+ */
+public class SegmentedDataStoreTest extends TestCase {
+
+  private static final long SEGMENT_SIZE = 4096;
+  private static final int BLOCK_SIZE = 512;
+
+  private File dir;
+  private SegmentedDataStore store;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("segmented", "");
+    dir.delete();
+    dir.mkdirs();
+  }
+
+  @Override
+  protected void tearDown() {
+    if (store != null)
+      store.shutdown();
+    for (File file : dir.listFiles())
+      file.delete();
+    dir.delete();
+  }
+
+  private SegmentedDataStore open() throws IOException {
+    if (store != null)
+      store.shutdown();
+    return store = new SegmentedDataStore(dir.getAbsolutePath(), SEGMENT_SIZE);
+  }
+
+  private SegmentedDataStore openCompressed() throws IOException {
+    if (store != null)
+      store.shutdown();
+    return store = new SegmentedDataStore(dir.getAbsolutePath(), SEGMENT_SIZE, true, BLOCK_SIZE);
+  }
+
+  /**
+   * Writes n reports spread round robin over the tasks
+   */
+  private void write(int n, long... taskIds) {
+    for (int i = 0; i < n; i++)
+      store.reportReceived(TestReports.report(taskIds[i % taskIds.length], i));
+  }
+
+  /**
+   * Returns the event IDs of the task's reports, in the order they are read
+   */
+  private List<Long> read(long taskId) {
+    List<Long> events = new ArrayList<Long>();
+    ReportStream reports = store.getReports(TaskIDs.toHex(taskId));
+    try {
+      while (reports.hasNext()) {
+        Report report = reports.next();
+        assertEquals(TaskIDs.toHex(taskId), report.getTaskID());
+        events.add(((Report3) report).event().getEventID());
+      }
+    } finally {
+      reports.close();
+    }
+    return events;
+  }
+
+  private static List<Long> expected(int n, int index, int tasks) {
+    List<Long> events = new ArrayList<Long>();
+    for (long i = index; i < n; i += tasks)
+      events.add(i);
+    return events;
+  }
+
+  private File[] files(final String suffix) {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(suffix);
+      }
+    });
+    Arrays.sort(files);
+    return files;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    open();
+    write(300, 1, 2, 3);
+    assertTrue(files(SegmentedDataStore.SEGMENT_SUFFIX).length > 1);
+    assertEquals(new HashSet<String>(Arrays.asList(TaskIDs.toHex(1), TaskIDs.toHex(2), TaskIDs.toHex(3))),
+        new HashSet<String>(store.getTaskIds()));
+    for (int task = 1; task <= 3; task++)
+      assertEquals(expected(300, task - 1, 3), read(task));
+    assertFalse(store.contains(TaskIDs.toHex(4)));
+    assertTrue(read(4).isEmpty());
+  }
+
+  @Test
+  public void testRestart() throws IOException {
+    open();
+    write(300, 1, 2);
+    open();
+    assertEquals(expected(300, 1, 2), read(2));
+
+    // Reports written after the restart go to a new segment
+    write(10, 7);
+    open();
+    assertEquals(expected(10, 0, 1), read(7));
+
+    // Lost index files are rebuilt by scanning their segments
+    store.shutdown();
+    store = null;
+    for (File index : files(SegmentedDataStore.INDEX_SUFFIX))
+      assertTrue(index.delete());
+    open();
+    assertEquals(expected(300, 0, 2), read(1));
+    assertEquals(expected(300, 1, 2), read(2));
+    assertEquals(expected(10, 0, 1), read(7));
+    // Every segment but the new active one has its index again
+    assertEquals(files(SegmentedDataStore.SEGMENT_SUFFIX).length - 1, files(SegmentedDataStore.INDEX_SUFFIX).length);
+  }
+
+  @Test
+  public void testRemoveTask() throws IOException {
+    open();
+    write(300, 1, 2);
+    int segments = files(SegmentedDataStore.SEGMENT_SUFFIX).length;
+    long size = store.size();
+
+    // The size drops by the task's reports, though its segments are kept for task 2
+    long removed = store.removeTask(TaskIDs.toHex(1));
+    assertTrue(removed > 0);
+    assertEquals(size - removed, store.size());
+    assertEquals(segments, files(SegmentedDataStore.SEGMENT_SUFFIX).length);
+    assertTrue(read(1).isEmpty());
+    assertFalse(store.contains(TaskIDs.toHex(1)));
+
+    // A report that arrives after the removal is kept
+    store.reportReceived(TestReports.report(1, 1000));
+    assertEquals(Arrays.asList(1000L), read(1));
+
+    // The tombstone is replayed on restart
+    size = store.size();
+    open();
+    assertEquals(size, store.size());
+    assertEquals(Arrays.asList(1000L), read(1));
+    assertEquals(expected(300, 1, 2), read(2));
+
+    // Segments are deleted once all of their reports are removed
+    assertTrue(store.removeTask(TaskIDs.toHex(2)) > 0);
+    assertTrue(files(SegmentedDataStore.SEGMENT_SUFFIX).length < segments);
+    open();
+    assertTrue(read(2).isEmpty());
+    assertEquals(Arrays.asList(1000L), read(1));
+  }
+
+  @Test
+  public void testTornTail() throws IOException {
+    open();
+    write(20, 1);
+    store.shutdown();
+    store = null;
+
+    // A crash tears the last record and loses the index of the segment
+    File[] segments = files(SegmentedDataStore.SEGMENT_SUFFIX);
+    File last = segments[segments.length - 1];
+    RandomAccessFile file = new RandomAccessFile(last, "rw");
+    try {
+      file.setLength(file.length() - 3);
+    } finally {
+      file.close();
+    }
+    for (File index : files(SegmentedDataStore.INDEX_SUFFIX))
+      index.delete();
+
+    open();
+    assertEquals(expected(19, 0, 1), read(1));
+
+    // The torn record was truncated, and the store carries on writing
+    store.reportReceived(TestReports.report(1, 100));
+    open();
+    List<Long> events = expected(19, 0, 1);
+    events.add(100L);
+    assertEquals(events, read(1));
+  }
+
+  @Test
+  public void testInterruptedReader() throws Exception {
+    open();
+    write(50, 1);
+    assertEquals(expected(50, 0, 1), read(1));
+
+    // An interrupted read closes the segment's shared channel
+    Thread reader = new Thread() {
+      public void run() {
+        interrupt();
+        read(1);
+      }
+    };
+    reader.start();
+    reader.join();
+
+    assertEquals(expected(50, 0, 1), read(1));
+  }
+
+  @Test
+  public void testCompressedBlocks() throws IOException {
+    openCompressed();
+    write(1000, 1, 2, 3);
+
+    // Reads seal the block being filled, and straddle several blocks
+    assertEquals(expected(1000, 0, 3), read(1));
+    write(10, 4);
+    assertEquals(expected(10, 0, 1), read(4));
+
+    // Restarting, with and without index files
+    openCompressed();
+    for (int task = 1; task <= 3; task++)
+      assertEquals(expected(1000, task - 1, 3), read(task));
+    store.shutdown();
+    store = null;
+    for (File index : files(SegmentedDataStore.INDEX_SUFFIX))
+      assertTrue(index.delete());
+    openCompressed();
+    assertEquals(expected(1000, 1, 3), read(2));
+    assertEquals(expected(10, 0, 1), read(4));
+
+    // Uncompressed segments are still read alongside compressed ones
+    write(10, 5);
+    open();
+    assertEquals(expected(10, 0, 1), read(5));
+    assertEquals(expected(1000, 2, 3), read(3));
+    assertTrue(files(SegmentedDataStore.SEGMENT_SUFFIX).length > 2);
+  }
+
+  @Test
+  public void testTornBlock() throws IOException {
+    openCompressed();
+    write(200, 1);
+    store.shutdown();
+    store = null;
+
+    // A crash tears the last block, so the reports in it are lost, but the
+    // blocks before it are intact
+    assertEquals(1, files(SegmentedDataStore.SEGMENT_SUFFIX).length);
+    openCompressed();
+    write(50, 2);
+    store.shutdown();
+    store = null;
+    File[] segments = files(SegmentedDataStore.SEGMENT_SUFFIX);
+    File last = segments[segments.length - 1];
+    long intact;
+    RandomAccessFile file = new RandomAccessFile(last, "rw");
+    try {
+      file.setLength(file.length() - 10);
+      intact = file.length();
+    } finally {
+      file.close();
+    }
+    for (File index : files(SegmentedDataStore.INDEX_SUFFIX))
+      index.delete();
+
+    openCompressed();
+    assertEquals(expected(200, 0, 1), read(1));
+    List<Long> recovered = read(2);
+    assertFalse(recovered.isEmpty());
+    assertTrue(recovered.size() < 50);
+    assertEquals(expected(recovered.size(), 0, 1), recovered);
+    assertTrue(last.length() < intact);
+
+    // A corrupt block is skipped by the rebuild along with everything after it
+    store.reportReceived(TestReports.report(2, 100));
+    store.shutdown();
+    store = null;
+    segments = files(SegmentedDataStore.SEGMENT_SUFFIX);
+    last = segments[segments.length - 1];
+    file = new RandomAccessFile(last, "rw");
+    try {
+      file.seek(file.length() - 5);
+      file.write(file.read() ^ 0xFF);
+    } finally {
+      file.close();
+    }
+    for (File index : files(SegmentedDataStore.INDEX_SUFFIX))
+      index.delete();
+    openCompressed();
+    assertEquals(recovered, read(2));
+  }
+
+}
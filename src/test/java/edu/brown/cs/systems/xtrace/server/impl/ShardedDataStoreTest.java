@@ -0,0 +1,205 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.server.api.DataStore;
+import edu.brown.cs.systems.xtrace.server.api.Report;
+import edu.brown.cs.systems.xtrace.server.api.ReportStream;
+
+/**
+ * Tests how the sharded data store routes tasks, and how it drops reports when
+ * a shard is backed up, refuses them, or is unhealthy
+ */
+public class ShardedDataStoreTest extends TestCase {
+
+  /**
+   * Keeps the reports it receives in memory. Writes can be held up until
+   * release is counted down
+   */
+  private static class MemoryDataStore implements DataStore {
+    final List<Report> received = new ArrayList<Report>();
+    final CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(0);
+    boolean accept = true;
+
+    public boolean reportReceived(Report r) {
+      entered.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        return false;
+      }
+      synchronized (received) {
+        received.add(r);
+      }
+      return accept;
+    }
+
+    public ReportStream getReports(String taskId) {
+      return Reports.emptyStream();
+    }
+
+    public boolean contains(String taskId) {
+      synchronized (received) {
+        for (Report r : received)
+          if (r.getTaskID().equals(taskId))
+            return true;
+      }
+      return false;
+    }
+
+    public Collection<String> getTaskIds() {
+      return new ArrayList<String>();
+    }
+
+    public long removeTask(String taskId) {
+      return 0;
+    }
+
+    public long size() {
+      return 0;
+    }
+
+    public long sequence() {
+      synchronized (received) {
+        return received.size();
+      }
+    }
+
+    public boolean awaitDurable(long sequence, long timeout) {
+      return true;
+    }
+
+    public void shutdown() {
+    }
+  }
+
+  private File dir;
+  private ShardedDataStore sharded;
+  private MemoryDataStore[] stores;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("sharded", "");
+    dir.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    if (sharded != null)
+      sharded.shutdown();
+    File[] children = dir.listFiles();
+    if (children != null)
+      for (File child : children)
+        child.delete();
+    dir.delete();
+  }
+
+  /**
+   * Opens a store with a shard per directory name, creating the directories
+   * that are not null so that they pass the health check
+   */
+  private ShardedDataStore open(int queueSize, String... names) {
+    List<File> directories = new ArrayList<File>();
+    stores = new MemoryDataStore[names.length];
+    for (int i = 0; i < names.length; i++) {
+      File directory = new File(dir, names[i] == null ? "missing" + i : names[i]);
+      if (names[i] != null)
+        directory.mkdirs();
+      directories.add(directory);
+      stores[i] = new MemoryDataStore();
+    }
+    return sharded = new ShardedDataStore(directories, Arrays.<DataStore> asList(stores), queueSize, 60000);
+  }
+
+  private static int shardOf(String taskId, int shards) {
+    return (taskId.hashCode() & Integer.MAX_VALUE) % shards;
+  }
+
+  private JSONObject status(int shard) {
+    return (JSONObject) ((JSONArray) sharded.getStatus().get("shards")).get(shard);
+  }
+
+  @Test
+  public void testRouting() throws InterruptedException {
+    open(100, "a", "b", "c");
+    for (long taskId = 1; taskId <= 30; taskId++)
+      assertTrue(sharded.reportReceived(TestReports.report(taskId, 0)));
+    assertTrue(sharded.awaitDurable(sharded.sequence(), 10000));
+
+    for (int i = 0; i < stores.length; i++)
+      for (Report r : stores[i].received)
+        assertEquals(i, shardOf(r.getTaskID(), stores.length));
+    for (long taskId = 1; taskId <= 30; taskId++)
+      assertTrue(sharded.contains(TaskIDs.toHex(taskId)));
+    assertEquals(30, stores[0].received.size() + stores[1].received.size() + stores[2].received.size());
+  }
+
+  @Test
+  public void testQueueFull() throws InterruptedException {
+    open(1, "a");
+    stores[0].release = new CountDownLatch(1);
+
+    // The first report holds up the writer, the second fills the queue
+    assertTrue(sharded.reportReceived(TestReports.report(1, 0)));
+    stores[0].entered.await();
+    assertTrue(sharded.reportReceived(TestReports.report(1, 1)));
+    assertFalse(sharded.reportReceived(TestReports.report(1, 2)));
+
+    stores[0].release.countDown();
+    assertTrue(sharded.awaitDurable(sharded.sequence(), 10000));
+    assertEquals(2, stores[0].received.size());
+    assertEquals(2L, status(0).get("written"));
+    assertEquals(1L, status(0).get("dropped"));
+  }
+
+  @Test
+  public void testStoreRefuses() throws InterruptedException {
+    open(10, "a");
+    stores[0].accept = false;
+    assertTrue(sharded.reportReceived(TestReports.report(1, 0)));
+    assertTrue(sharded.awaitDurable(sharded.sequence(), 10000));
+    assertEquals(0L, status(0).get("written"));
+    assertEquals(1L, status(0).get("dropped"));
+  }
+
+  @Test
+  public void testUnhealthyShard() throws InterruptedException {
+    open(10, "a", null);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (Boolean.TRUE.equals(status(1).get("healthy")) && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    assertEquals(Boolean.FALSE, status(1).get("healthy"));
+
+    // Find a task for each shard
+    String[] taskIds = new String[2];
+    for (long taskId = 1; taskIds[0] == null || taskIds[1] == null; taskId++)
+      taskIds[shardOf(TaskIDs.toHex(taskId), 2)] = TaskIDs.toHex(taskId);
+
+    assertTrue(sharded.reportReceived(TestReports.report(TaskIDs.fromHex(taskIds[0]), 0)));
+    assertFalse(sharded.reportReceived(TestReports.report(TaskIDs.fromHex(taskIds[1]), 0)));
+    assertTrue(sharded.awaitDurable(sharded.sequence(), 10000));
+    assertTrue(sharded.contains(taskIds[0]));
+    assertTrue(stores[1].received.isEmpty());
+    assertEquals(1L, status(1).get("dropped"));
+
+    // A report that reached the shard before it failed cannot be read
+    stores[1].received.add(TestReports.report(TaskIDs.fromHex(taskIds[1]), 1));
+    assertTrue(stores[1].contains(taskIds[1]));
+    assertFalse(sharded.contains(taskIds[1]));
+  }
+
+}
@@ -0,0 +1,60 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests the conversions between numeric and hex task IDs
+ */
+public class TaskIDsTest extends TestCase {
+
+  @Test
+  public void testToHex() {
+    assertEquals("0000000000000000", TaskIDs.toHex(0));
+    assertEquals("00000000000000ff", TaskIDs.toHex(255));
+    assertEquals("ffffffffffffffff", TaskIDs.toHex(-1));
+    assertEquals("8000000000000000", TaskIDs.toHex(Long.MIN_VALUE));
+
+    // Same as the format string the server used to use
+    Random r = new Random(7);
+    for (int i = 0; i < 1000; i++) {
+      long taskId = r.nextLong();
+      assertEquals(String.format("%16s", Long.toHexString(taskId)).replace(' ', '0'), TaskIDs.toHex(taskId));
+    }
+  }
+
+  @Test
+  public void testRoundTrip() {
+    Random r = new Random(11);
+    for (int i = 0; i < 1000; i++) {
+      long taskId = r.nextLong();
+      assertEquals(taskId, TaskIDs.fromHex(TaskIDs.toHex(taskId)));
+      assertEquals(taskId, TaskIDs.fromHex(TaskIDs.toHex(taskId).toUpperCase()));
+    }
+    assertEquals(0xabcL, TaskIDs.fromHex("abc"));
+  }
+
+  @Test
+  public void testCanonical() {
+    assertTrue(TaskIDs.isCanonical(TaskIDs.toHex(0x123456789abcdefL)));
+    assertFalse(TaskIDs.isCanonical("0123456789ABCDEF"));
+    assertFalse(TaskIDs.isCanonical("abc"));
+    assertFalse(TaskIDs.isCanonical("0123456789abcdeg"));
+  }
+
+  @Test
+  public void testInvalid() {
+    for (String invalid : new String[] { "", "xyz", "00000000000000000", "12 4" }) {
+      try {
+        TaskIDs.fromHex(invalid);
+        fail("Parsed invalid task ID " + invalid);
+      } catch (NumberFormatException e) {
+        // Expected
+      }
+    }
+  }
+
+}
@@ -0,0 +1,95 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Tests the interval index against a linear scan of the same lifetimes
+ */
+public class TaskIntervalIndexTest extends TestCase {
+
+  private static Set<String> scan(Map<String, long[]> lifetimes, long start, long end) {
+    Set<String> overlapping = new HashSet<String>();
+    for (Map.Entry<String, long[]> entry : lifetimes.entrySet())
+      if (entry.getValue()[0] <= end && entry.getValue()[1] >= start)
+        overlapping.add(entry.getKey());
+    return overlapping;
+  }
+
+  @Test
+  public void testLengthClass() {
+    assertEquals(0, TaskIntervalIndex.lengthClass(0));
+    assertEquals(1, TaskIntervalIndex.lengthClass(1));
+    assertEquals(2, TaskIntervalIndex.lengthClass(2));
+    assertEquals(2, TaskIntervalIndex.lengthClass(3));
+    assertEquals(11, TaskIntervalIndex.lengthClass(1024));
+    assertEquals(63, TaskIntervalIndex.lengthClass(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testOverlapping() {
+    TaskIntervalIndex index = new TaskIntervalIndex();
+    index.update("a", 100, 200);
+    index.update("b", 150, 150);
+    index.update("c", 201, 5000);
+    index.update("d", 0, 1000000);
+
+    assertEquals(new HashSet<String>(Arrays.asList("a", "b", "d")), new HashSet<String>(index.getOverlapping(150, 200)));
+    assertEquals(new HashSet<String>(Arrays.asList("a", "c", "d")), new HashSet<String>(index.getOverlapping(200, 201)));
+    assertEquals(new HashSet<String>(Arrays.asList("d")), new HashSet<String>(index.getOverlapping(6000, 7000)));
+    assertTrue(index.getOverlapping(2000000, 3000000).isEmpty());
+    assertTrue(index.getOverlapping(200, 100).isEmpty());
+  }
+
+  @Test
+  public void testUpdateAndRemove() {
+    TaskIntervalIndex index = new TaskIntervalIndex();
+    index.update("a", 100, 100);
+    index.update("a", 100, 300);
+    index.update("a", 50, 200);
+    assertTrue(Arrays.equals(new long[] { 50, 300 }, index.getLifetime("a")));
+    assertEquals(Arrays.asList("a"), index.getOverlapping(250, 260));
+    assertEquals(1, index.size());
+
+    index.remove("a");
+    assertNull(index.getLifetime("a"));
+    assertTrue(index.getOverlapping(0, 1000).isEmpty());
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testRandom() {
+    Random r = new Random(3);
+    TaskIntervalIndex index = new TaskIntervalIndex();
+    Map<String, long[]> lifetimes = new HashMap<String, long[]>();
+    for (int i = 0; i < 5000; i++) {
+      String taskId = "task" + r.nextInt(2000);
+      long start = r.nextInt(1000000);
+      long end = start + (r.nextBoolean() ? r.nextInt(100) : r.nextInt(1 << r.nextInt(20)));
+      index.update(taskId, start, end);
+      long[] lifetime = lifetimes.get(taskId);
+      lifetimes.put(taskId, lifetime == null ? new long[] { start, end } : new long[] { Math.min(start, lifetime[0]), Math.max(end, lifetime[1]) });
+      if (r.nextInt(10) == 0) {
+        String removed = "task" + r.nextInt(2000);
+        index.remove(removed);
+        lifetimes.remove(removed);
+      }
+    }
+    assertEquals(lifetimes.size(), index.size());
+
+    for (int i = 0; i < 500; i++) {
+      long start = r.nextInt(1100000) - 50000;
+      long end = start + r.nextInt(1 << r.nextInt(18));
+      assertEquals(scan(lifetimes, start, end), new HashSet<String>(index.getOverlapping(start, end)));
+    }
+  }
+
+}
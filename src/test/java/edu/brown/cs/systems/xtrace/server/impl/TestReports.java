@@ -0,0 +1,44 @@
+package edu.brown.cs.systems.xtrace.server.impl;
+
+import java.util.Arrays;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+
+/**
+ * The version 3 reports shared by the data store and metadata store tests
+ */
+final class TestReports {
+
+  private TestReports() {
+  }
+
+  /**
+   * Starts a report of the task with the given event ID, for tests that need
+   * to set more fields
+   */
+  static XTraceReport3.Builder builder(long taskId, long eventId) {
+    return XTraceReport3.newBuilder().setTaskID(taskId).setEventID(eventId);
+  }
+
+  /**
+   * A report with a host and a label, so that it has a realistic size on disk
+   */
+  static Report3 report(long taskId, long eventId) {
+    return new Report3(builder(taskId, eventId).setHost("host").setLabel("report " + eventId + " of task " + taskId)
+        .build());
+  }
+
+  /**
+   * A report that sets the task's title and host when they are not null, and
+   * adds the tags
+   */
+  static Report3 tagged(long taskId, String title, String host, String... tags) {
+    XTraceReport3.Builder builder = builder(taskId, 1);
+    if (title != null)
+      builder.setTitle(title);
+    if (host != null)
+      builder.setHost(host);
+    return new Report3(builder.addAllTags(Arrays.asList(tags)).build());
+  }
+
+}
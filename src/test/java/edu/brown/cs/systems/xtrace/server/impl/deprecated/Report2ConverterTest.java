@@ -0,0 +1,78 @@
+package edu.brown.cs.systems.xtrace.server.impl.deprecated;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import edu.brown.cs.systems.xtrace.Reporting.XTraceReport3;
+import edu.brown.cs.systems.xtrace.server.impl.Report3;
+
+/**
+ * Tests the conversion of version 2 reports to version 3
+ */
+public class Report2ConverterTest extends TestCase {
+
+  private static final byte[] TASK_ID = { 0x12, 0x34, 0x56, 0x78, (byte) 0x9A, (byte) 0xBC, (byte) 0xDE, (byte) 0xF0 };
+
+  private static String report(String metadata, String... lines) {
+    StringBuilder report = new StringBuilder("X-Trace Report ver 1.0");
+    report.append("\nX-Trace: ").append(metadata);
+    for (String line : lines)
+      report.append("\n").append(line);
+    return report.toString();
+  }
+
+  private static String metadata(int taskIdLength) {
+    byte[] taskId = taskIdLength == 8 ? TASK_ID : Arrays.copyOf(TASK_ID, taskIdLength);
+    return new XTraceMetadata(TaskID.createFromBytes(taskId, 0, taskId.length), 0x0A0B0C0D).toString();
+  }
+
+  @Test
+  public void testConvert() {
+    Report2 v2 = Report2.parse(report(metadata(8), "Edge: 01020304", "Edge: 05060708", "Timestamp: 1389910591.123", "Host: host1",
+        "ProcessID: 42", "Agent: agent", "Label: hello", "Title: a title", "Tag: t1", "Tag: t2", "Custom: value"));
+    Report3 v3 = Report2Converter.convert(v2);
+    assertNotNull(v3);
+    assertEquals(v2.getTaskID().toLowerCase(), v3.getTaskID());
+
+    XTraceReport3 event = v3.diskRepr().getV3Report();
+    assertEquals(0x123456789ABCDEF0L, event.getTaskID());
+    assertEquals(0x0A0B0C0DL, event.getEventID());
+    assertEquals(Arrays.asList(0x01020304L, 0x05060708L), event.getParentEventIDList());
+    assertEquals(1389910591123L, event.getTimestamp());
+    assertEquals("host1", event.getHost());
+    assertEquals(42, event.getProcessID());
+    assertEquals("agent", event.getAgent());
+    assertEquals("hello", event.getLabel());
+    assertEquals("a title", v3.getTitle());
+    assertEquals(Arrays.asList("t1", "t2"), v3.getTags());
+    assertEquals(Arrays.asList("Custom"), event.getKeyList());
+    assertEquals(Arrays.asList("value"), event.getValueList());
+  }
+
+  @Test
+  public void testUnparseableValuesKept() {
+    Report2 v2 = Report2.parse(report(metadata(8), "ProcessID: notanumber", "Label: first", "Label: second"));
+    XTraceReport3 event = Report2Converter.convert(v2).diskRepr().getV3Report();
+    assertFalse(event.hasProcessID());
+    assertEquals("first", event.getLabel());
+    assertEquals(Arrays.asList("ProcessID", "Label"), event.getKeyList());
+    assertEquals(Arrays.asList("notanumber", "second"), event.getValueList());
+  }
+
+  @Test
+  public void testUnconvertibleTaskID() {
+    assertNull(Report2Converter.convert(Report2.parse(report(metadata(4), "Label: short"))));
+    assertNull(Report2Converter.convert(Report2.parse(report(metadata(20), "Label: long"))));
+  }
+
+  @Test
+  public void testTimestamps() {
+    assertEquals(1389910591000L, Report2Converter.toMillis("1389910591"));
+    assertEquals(1389910591123L, Report2Converter.toMillis("1389910591123"));
+    assertEquals(1389910591500L, Report2Converter.toMillis("1389910591.5"));
+  }
+
+}